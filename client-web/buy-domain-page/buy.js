@@ -1,6 +1,5 @@
 document.addEventListener('DOMContentLoaded', function() {
   const domainId = sessionStorage.getItem('domainToBuy');
-  const domainToRelease = sessionStorage.setItem('domainToRelease', domainId);
 
   if (domainId) {
     const domainElement = document.querySelector('.domain');
@@ -21,7 +20,6 @@ document.addEventListener('DOMContentLoaded', function() {
 
     const formData = new FormData(this);
     const jsonData = {};
-    const jsonOrderData = {"domainId": "","userId": "","orderData": "","type": "","price": ""};
 
     formData.forEach((value, key) => {
       jsonData[key] = value;
@@ -79,37 +77,12 @@ document.addEventListener('DOMContentLoaded', function() {
 
     if (domainId) {
       jsonData.domainId = domainId;
-      jsonOrderData.domainId = domainId;
     }
 
-    const userId = sessionStorage.getItem('sessionToken');
-
-    jsonData.userId = userId;
-    jsonOrderData.userId = userId;
+    jsonData.userId = sessionStorage.getItem('sessionToken');
     jsonData.currentDate = today.toISOString().slice(0, 10);
-    jsonOrderData.orderDate = new Date().toISOString().slice(0, 10);
-
-    jsonOrderData.type = 'buy';
-    jsonOrderData.price = sessionStorage.getItem(domainId);
-
-    // try to log the order in the database collection named orders
-    try {
-      const orderResponse = await fetch('http://localhost:8080/orders', {
-        method: 'POST',
-        headers: {
-          'Content-Type': 'application/json',
-        },
-        body: JSON.stringify(jsonOrderData)
-      });
-
-      if (orderResponse.status !== 200) {
-        throw new Error('Failed to log order. Server responded with status code: ' + orderResponse.status);
-      }
-    } catch (error) {
-      console.error('Error logging order:', error.message);
-      alert('Error logging order. Please try again.');
-      return; // Stop further execution in case of error
-    }
+    // The server records the order together with the domain
+    jsonData.price = sessionStorage.getItem(domainId);
 
     try {
       const response = await fetch('http://localhost:8080/domains', {
@@ -120,18 +93,24 @@ document.addEventListener('DOMContentLoaded', function() {
         body: JSON.stringify(jsonData)
       });
 
-      if (response.status === 200) {
-        alert('Domain buyed successfully until ' + domainExpirationDate + '!');
-        resetBuyForm();
-        window.location.replace('../home-page/homepage.html');
-      } else {
+      if (response.status === 409) {
+        // Another user bought the domain first
+        window.location.replace('../concurrency-error-page/error.html');
+        return;
+      } else if (response.status !== 200) {
         alert('Failed to purchase domain. Server responded with status code: ' + response.status);
+        return;
       }
     } catch (error) {
       console.error('Error:', error.message);
       alert('Error purchasing domain. Please try again.');
+      return;
     }
 
+    alert('Domain buyed successfully until ' + domainExpirationDate + '!');
+    resetBuyForm();
+    window.location.replace('../home-page/homepage.html');
+
     clearTimeout(timeoutId); // Clear the timeout if the form is submitted
   });
 });
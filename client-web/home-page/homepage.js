@@ -1,5 +1,3 @@
-releaseDomain(sessionStorage.getItem('domainToRelease'))
-
 // Add click event listener to the "My Domains" button to redirect to the domains page
 document.getElementById('my-domains').addEventListener('click', function () {
   window.location.href = './my-domains.html'; // Adjust the path as necessary
@@ -67,10 +65,6 @@ async function searchDomain() {
         // Redirect to the buy domain page
         window.location.href = '../buy-domain-page/buy.html';
         break;
-      case "Concurrency error":
-        // Redirect to the concurrency error page
-        window.location.href = '../concurrency-error-page/error.html';
-        break;
       default:
         // Log to console if no specific action is required
         console.log('No specific action required.');
@@ -106,16 +100,3 @@ document.addEventListener('DOMContentLoaded', function () {
     }
   });
 });
-
-async function releaseDomain(domainId) {
-  try {
-    const response = await fetch(`http://localhost:8080/domains/release/${domainId}`, {
-      method: 'DELETE',
-      headers: {
-        'Content-Type': 'application/json',
-      },
-    });
-  } catch (error) {
-    alert('Error:', error.message);
-  }
-}
\ No newline at end of file
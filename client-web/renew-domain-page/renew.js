@@ -18,7 +18,6 @@ document.addEventListener('DOMContentLoaded', function() {
     const previousDuration = parseInt(domainDetails.duration);
 
     const jsonData = {};
-    const jsonOrderData = {"domainId": "","userId": "","orderData": "","type": "","price": ""};
 
     // Update domainDetails with new form data
     formData.forEach((value, key) => {
@@ -79,30 +78,8 @@ document.addEventListener('DOMContentLoaded', function() {
     // Update domainDetails with the new duration
     domainDetails.duration = newDuration;
 
-    jsonOrderData.domainId = domainDetails.domainId;
-    jsonOrderData.userId = domainDetails.userId;
-    jsonOrderData.orderDate = new Date().toISOString().slice(0, 10);
-    jsonOrderData.price = sessionStorage.getItem(domainDetails.domainId);
-    jsonOrderData.type = 'renewal';
-
-    // try to log the order in the database collection named orders
-    try {
-      const orderResponse = await fetch('http://localhost:8080/orders', {
-        method: 'POST',
-        headers: {
-          'Content-Type': 'application/json',
-        },
-        body: JSON.stringify(jsonOrderData)
-      });
-
-      if (orderResponse.status !== 200) {
-        throw new Error('Failed to log order. Server responded with status code: ' + orderResponse.status);
-      }
-    } catch (error) {
-      console.error('Error logging order:', error.message);
-      alert('Error logging order. Please try again.');
-      return; // Stop further execution in case of error
-    }
+    // The server records the order together with the renewal
+    domainDetails.price = sessionStorage.getItem(domainDetails.domainId);
 
     try {
       const response = await fetch(`http://localhost:8080/domains`, {
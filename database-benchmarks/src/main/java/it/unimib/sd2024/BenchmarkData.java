@@ -0,0 +1,99 @@
+package it.unimib.sd2024;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * Builds the databases and the request lines used by the benchmarks. The
+ * documents have the shape of those in the {@code domains} collection of the
+ * web server, with values derived from their index, so every run of a
+ * benchmark works on the same data.
+ */
+final class BenchmarkData {
+  /**
+   * The name of the collection loaded by {@link #newDatabase(int)}.
+   */
+  static final String COLLECTION = "domains";
+  /**
+   * The number of request lines built by {@link #sampleLines}, a power of
+   * two so that a benchmark can cycle through them with a mask.
+   */
+  static final int SAMPLE_SIZE = 1 << 16;
+
+  private BenchmarkData() {
+  }
+
+  /**
+   * Creates a database with a single collection holding documents
+   * {@code 0} to {@code documents - 1}.
+   *
+   * @param documents the number of documents
+   * @return the loaded database
+   */
+  static Database newDatabase(int documents) {
+    Database database = new Database("benchmark");
+    Collection collection = new Collection(COLLECTION);
+    for (int i = 0; i < documents; i++) {
+      String id = documentId(i);
+      collection.insertDocument(id, new Document(id, documentData(i, 0)));
+    }
+    database.addCollection(COLLECTION, collection);
+    return database;
+  }
+
+  /**
+   * Returns the ID of a document.
+   *
+   * @param index the index of the document
+   * @return the ID
+   */
+  static String documentId(long index) {
+    return "domain" + index + ".com";
+  }
+
+  /**
+   * Returns the data of a document.
+   *
+   * @param index    the index of the document
+   * @param revision a number changing the data, so that an update stores a
+   *                 different value
+   * @return the JSON data
+   */
+  static String documentData(long index, long revision) {
+    return "{\"domainId\":\"" + documentId(index) + "\",\"duration\":\"" + (1 + revision % 10)
+        + "\",\"expirationDate\":\"2027-06-01\",\"userId\":\"user" + (index % 1000) + "\"}";
+  }
+
+  /**
+   * Returns a request line as the network layer hands it to the
+   * {@link ProtocolHandler}.
+   *
+   * @param command the command, with its arguments
+   * @return the UTF-8 encoded line, without terminator
+   */
+  static byte[] line(String command) {
+    return command.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Builds {@link #SAMPLE_SIZE} request lines for the given command on
+   * documents picked at random, so the lines are not encoded while measuring
+   * and the requests reach every part of a large collection.
+   *
+   * @param command   the command, such as {@code GET}
+   * @param documents the number of documents
+   * @param withData  whether the lines carry the data of the document
+   * @param seed      the seed choosing the documents
+   * @return the lines
+   */
+  static byte[][] sampleLines(String command, int documents, boolean withData, long seed) {
+    SplittableRandom random = new SplittableRandom(seed);
+    byte[][] lines = new byte[SAMPLE_SIZE][];
+    for (int i = 0; i < SAMPLE_SIZE; i++) {
+      int index = random.nextInt(documents);
+      lines[i] = line(command + " " + COLLECTION + " " + documentId(index)
+          + (withData ? " " + documentData(index, i) : ""));
+    }
+    return lines;
+  }
+}
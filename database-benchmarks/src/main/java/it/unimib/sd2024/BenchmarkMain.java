@@ -0,0 +1,64 @@
+package it.unimib.sd2024;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the database, taking the same options as the JMH
+ * command line (for example a regular expression selecting the benchmarks,
+ * or {@code -p documents=1000,100000} to restrict a parameter).
+ *
+ * <p>
+ * Unless the options say otherwise, the GC profiler is enabled, so every
+ * result also reports the bytes allocated per operation and the time spent
+ * collecting them, and the results are written in JSON to
+ * {@value #DEFAULT_RESULT}, to be compared with those of another version by
+ * {@link CompareResults}.
+ */
+public final class BenchmarkMain {
+  /**
+   * The file the results are written to when no {@code -rff} option is given.
+   */
+  public static final String DEFAULT_RESULT = "target/jmh-result.json";
+
+  private BenchmarkMain() {
+  }
+
+  /**
+   * Runs the benchmarks selected by the options.
+   *
+   * @param args the JMH command line options
+   * @throws CommandLineOptionException if an option is invalid
+   * @throws RunnerException            if a benchmark fails
+   * @throws IOException                if the list of benchmarks cannot be
+   *                                    read
+   */
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+    CommandLineOptions options = new CommandLineOptions(args);
+    if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers()
+        || options.shouldListResultFormats()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+
+    ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+    if (options.getProfilers().isEmpty()) {
+      builder.addProfiler(GCProfiler.class);
+    }
+    if (!options.getResultFormat().hasValue()) {
+      builder.resultFormat(ResultFormatType.JSON);
+    }
+    if (!options.getResult().hasValue()) {
+      builder.result(DEFAULT_RESULT);
+    }
+    new Runner(builder.build()).run();
+  }
+}
@@ -0,0 +1,130 @@
+package it.unimib.sd2024;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares two JSON result files written by {@link BenchmarkMain}, for
+ * example those of two releases, and prints for every benchmark present in
+ * both the score before and after, the change and the bytes allocated per
+ * operation.
+ *
+ * <p>
+ * A change is marked as a regression when the score got worse (higher for
+ * times, lower for throughputs) by more than the threshold, in percent, and
+ * by more than the sum of the two error margins. The program exits with
+ * status 1 if there is at least one regression, so it can fail a build.
+ *
+ * <p>
+ * Usage: {@code CompareResults [--threshold=5] before.json after.json}.
+ */
+public final class CompareResults {
+  private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+  private CompareResults() {
+  }
+
+  /**
+   * A score read from a result file.
+   *
+   * @param score      the primary score
+   * @param error      the error margin of the score, 0 if unknown
+   * @param unit       the unit of the score
+   * @param higherWins whether a higher score is better
+   * @param allocation the bytes allocated per operation, or NaN if not
+   *                   measured
+   */
+  private record Score(double score, double error, String unit, boolean higherWins, double allocation) {
+  }
+
+  /**
+   * Compares the two result files.
+   *
+   * @param args the options and the two files
+   * @throws IOException if a file cannot be read
+   */
+  public static void main(String[] args) throws IOException {
+    double threshold = 5;
+    String before = null;
+    String after = null;
+    for (String arg : args) {
+      if (arg.startsWith("--threshold=")) {
+        threshold = Double.parseDouble(arg.substring(arg.indexOf('=') + 1));
+      } else if (before == null) {
+        before = arg;
+      } else if (after == null) {
+        after = arg;
+      } else {
+        throw new IllegalArgumentException("Unexpected argument: " + arg);
+      }
+    }
+    if (after == null) {
+      throw new IllegalArgumentException("Usage: CompareResults [--threshold=5] before.json after.json");
+    }
+
+    Map<String, Score> oldScores = read(new File(before));
+    Map<String, Score> newScores = read(new File(after));
+    int regressions = 0;
+    System.out.printf("%-90s %14s %14s %9s %12s %12s%n", "Benchmark", "Before", "After", "Change", "B/op before",
+        "B/op after");
+    for (Map.Entry<String, Score> entry : newScores.entrySet()) {
+      Score oldScore = oldScores.get(entry.getKey());
+      if (oldScore == null) {
+        continue;
+      }
+      Score newScore = entry.getValue();
+      double change = (newScore.score() - oldScore.score()) / oldScore.score() * 100;
+      double worse = newScore.higherWins() ? -change : change;
+      boolean regression = worse > threshold
+          && Math.abs(newScore.score() - oldScore.score()) > oldScore.error() + newScore.error();
+      if (regression) {
+        regressions++;
+      }
+      System.out.printf("%-90s %14.3f %14.3f %+8.1f%% %12.0f %12.0f %s%s%n", entry.getKey(), oldScore.score(),
+          newScore.score(), change, oldScore.allocation(), newScore.allocation(), newScore.unit(),
+          regression ? "  REGRESSION" : "");
+    }
+    System.out.println(regressions + " regressions over " + threshold + "%");
+    if (regressions > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Reads the scores of a result file, keyed by benchmark, parameters and
+   * number of threads.
+   *
+   * @param file the JSON file written by JMH
+   * @return the scores, ordered by key
+   * @throws IOException if the file cannot be read
+   */
+  private static Map<String, Score> read(File file) throws IOException {
+    Map<String, Score> scores = new TreeMap<>();
+    for (JsonNode result : new ObjectMapper().readTree(file)) {
+      Map<String, String> params = new LinkedHashMap<>();
+      JsonNode paramsNode = result.path("params");
+      Iterator<Map.Entry<String, JsonNode>> fields = paramsNode.fields();
+      while (fields.hasNext()) {
+        Map.Entry<String, JsonNode> param = fields.next();
+        params.put(param.getKey(), param.getValue().asText());
+      }
+      String name = result.path("benchmark").asText().replace("it.unimib.sd2024.", "");
+      String key = name + (params.isEmpty() ? "" : " " + params) + " threads=" + result.path("threads").asInt();
+
+      JsonNode primary = result.path("primaryMetric");
+      double error = primary.path("scoreError").asDouble(0);
+      JsonNode allocation = result.path("secondaryMetrics").path(ALLOCATION).path("score");
+      scores.put(key, new Score(primary.path("score").asDouble(), Double.isNaN(error) ? 0 : error,
+          primary.path("scoreUnit").asText(), "thrpt".equals(result.path("mode").asText()),
+          allocation.isMissingNode() ? Double.NaN : allocation.asDouble()));
+    }
+    return scores;
+  }
+}
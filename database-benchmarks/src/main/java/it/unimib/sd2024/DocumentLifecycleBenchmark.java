@@ -0,0 +1,159 @@
+package it.unimib.sd2024;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the insertion and the removal of documents through the
+ * {@link ProtocolHandler} on collections of growing size. Each call changes
+ * the collection, so every iteration runs a fixed batch of requests: the
+ * documents added by an iteration of {@link #post(Posts)} are removed after
+ * it, and those removed by an iteration of {@link #delete(Deletes)} are added
+ * before it, so every iteration starts from the same collection. The
+ * reported time is that of the whole batch of {@value #BATCH} requests.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = DocumentLifecycleBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = DocumentLifecycleBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx6g" })
+public class DocumentLifecycleBenchmark {
+  static final int BATCH = 10_000;
+
+  /**
+   * The collection, with the requests on the documents after the loaded
+   * ones.
+   */
+  @State(Scope.Thread)
+  public static class Data {
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int documents;
+
+    Collection collection;
+    ProtocolHandler handler;
+    final byte[][] lines = new byte[BATCH][];
+    int next;
+
+    /**
+     * Loads the collection.
+     */
+    @Setup
+    public void setUp() {
+      Database database = BenchmarkData.newDatabase(documents);
+      collection = database.getCollection(BenchmarkData.COLLECTION);
+      handler = new ProtocolHandler(database);
+    }
+
+    /**
+     * Returns the ID of a document of the batch.
+     *
+     * @param i the position of the document in the batch
+     * @return the ID
+     */
+    String batchId(int i) {
+      return BenchmarkData.documentId(documents + i);
+    }
+
+    /**
+     * Returns the next request of the batch.
+     *
+     * @return the request line
+     */
+    byte[] next() {
+      return lines[next++];
+    }
+  }
+
+  /**
+   * The requests adding the documents of the batch.
+   */
+  @State(Scope.Thread)
+  public static class Posts extends Data {
+    /**
+     * Builds the requests.
+     */
+    @Setup
+    public void buildLines() {
+      for (int i = 0; i < BATCH; i++) {
+        lines[i] = BenchmarkData.line("POST " + BenchmarkData.COLLECTION + " " + batchId(i) + " "
+            + BenchmarkData.documentData(documents + i, 0));
+      }
+    }
+
+    /**
+     * Removes the documents added by the iteration.
+     */
+    @TearDown(Level.Iteration)
+    public void removeBatch() {
+      for (int i = 0; i < BATCH; i++) {
+        collection.removeDocument(batchId(i));
+      }
+      next = 0;
+    }
+  }
+
+  /**
+   * The requests removing the documents of the batch.
+   */
+  @State(Scope.Thread)
+  public static class Deletes extends Data {
+    /**
+     * Builds the requests.
+     */
+    @Setup
+    public void buildLines() {
+      for (int i = 0; i < BATCH; i++) {
+        lines[i] = BenchmarkData.line("DELETE " + BenchmarkData.COLLECTION + " " + batchId(i));
+      }
+    }
+
+    /**
+     * Adds the documents the iteration removes.
+     */
+    @Setup(Level.Iteration)
+    public void addBatch() {
+      for (int i = 0; i < BATCH; i++) {
+        String id = batchId(i);
+        collection.insertDocument(id, new Document(id, BenchmarkData.documentData(documents + i, 0)));
+      }
+      next = 0;
+    }
+  }
+
+  /**
+   * Adds a document.
+   *
+   * @param posts the batch of the iteration
+   * @return the response
+   */
+  @Benchmark
+  public String post(Posts posts) {
+    byte[] line = posts.next();
+    return posts.handler.handleRequest(line, line.length);
+  }
+
+  /**
+   * Removes a document.
+   *
+   * @param deletes the batch of the iteration
+   * @return the response
+   */
+  @Benchmark
+  public String delete(Deletes deletes) {
+    byte[] line = deletes.next();
+    return deletes.handler.handleRequest(line, line.length);
+  }
+}
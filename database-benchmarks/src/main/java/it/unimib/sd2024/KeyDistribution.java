@@ -0,0 +1,113 @@
+package it.unimib.sd2024;
+
+import java.util.SplittableRandom;
+
+/**
+ * Chooses the documents the {@link LoadGenerator} requests: either uniformly
+ * at random or following a Zipfian distribution, where the document of rank
+ * {@code k} is requested with a probability proportional to
+ * {@code 1 / k^theta}, so a few documents receive most of the requests as in
+ * real traffic.
+ *
+ * <p>
+ * The Zipfian keys are drawn with the method of Gray et al. ("Quickly
+ * generating billion-record synthetic databases"), in constant time after a
+ * setup linear in the number of documents. Documents are ranked by index:
+ * document {@code 0} is the most requested.
+ */
+final class KeyDistribution {
+  private final long documents;
+  private final double theta;
+  private final double zetaN;
+  private final double alpha;
+  private final double eta;
+  private final double secondThreshold;
+
+  /**
+   * Creates a distribution over documents {@code 0} to
+   * {@code documents - 1}.
+   *
+   * @param documents the number of documents, at least 1
+   * @param theta     the skew of the Zipfian distribution, between 0
+   *                  (excluded) and 1 (excluded), or 0 for a uniform one
+   */
+  private KeyDistribution(long documents, double theta) {
+    if (documents < 1) {
+      throw new IllegalArgumentException("The number of documents must be positive");
+    }
+    if (theta < 0 || theta >= 1) {
+      throw new IllegalArgumentException("The Zipfian skew must be in [0, 1)");
+    }
+    this.documents = documents;
+    this.theta = theta;
+    if (theta == 0) {
+      zetaN = alpha = eta = secondThreshold = 0;
+      return;
+    }
+    double zeta2 = 1 + Math.pow(0.5, theta);
+    double sum = 0;
+    for (long i = 1; i <= documents; i++) {
+      sum += 1 / Math.pow(i, theta);
+    }
+    zetaN = sum;
+    alpha = 1 / (1 - theta);
+    eta = (1 - Math.pow(2.0 / documents, 1 - theta)) / (1 - zeta2 / zetaN);
+    secondThreshold = zeta2;
+  }
+
+  /**
+   * Returns a uniform distribution.
+   *
+   * @param documents the number of documents
+   * @return the distribution
+   */
+  static KeyDistribution uniform(long documents) {
+    return new KeyDistribution(documents, 0);
+  }
+
+  /**
+   * Returns a Zipfian distribution.
+   *
+   * @param documents the number of documents
+   * @param theta     the skew, between 0 and 1 excluded (0.99 is the usual
+   *                  choice)
+   * @return the distribution
+   */
+  static KeyDistribution zipfian(long documents, double theta) {
+    if (theta == 0) {
+      throw new IllegalArgumentException("The Zipfian skew must be positive");
+    }
+    return new KeyDistribution(documents, theta);
+  }
+
+  /**
+   * Returns the index of the next document to request.
+   *
+   * @param random the random generator of the calling thread
+   * @return an index between 0 and the number of documents excluded
+   */
+  long next(SplittableRandom random) {
+    if (theta == 0) {
+      return random.nextLong(documents);
+    }
+    double u = random.nextDouble();
+    double uz = u * zetaN;
+    if (uz < 1) {
+      return 0;
+    }
+    if (uz < secondThreshold) {
+      return Math.min(1, documents - 1);
+    }
+    return Math.min(documents - 1, (long) (documents * Math.pow(eta * u - eta + 1, alpha)));
+  }
+
+  /**
+   * Returns a description of the distribution, for the report.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    return theta == 0 ? "uniform" : "zipfian(theta=" + theta + ")";
+  }
+}
@@ -0,0 +1,489 @@
+package it.unimib.sd2024;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a {@link LoadWorkload} to a running database over the text protocol
+ * and reports the latency percentiles of its requests and the throughput
+ * over time.
+ *
+ * <p>
+ * Without {@code --rate} the generator runs closed-loop: every connection
+ * sends a request, waits for its response and sends the next one, which
+ * measures the highest throughput. With {@code --rate=N} it runs open-loop:
+ * the connections together send N requests per second at fixed times,
+ * pipelining them without waiting for the responses, and the latency of a
+ * request is measured from the time it should have been sent. A server that
+ * stalls therefore cannot slow down the requests that measure it
+ * (coordinated omission): the requests delayed by the stall report the whole
+ * delay.
+ *
+ * <p>
+ * Before the run the generator creates the collections of the workload as
+ * the web server does and loads their documents; requests sent during the
+ * warm-up are shown in the timeline but left out of the percentiles.
+ *
+ * <p>
+ * Options: {@code --address=host:port} (default {@code localhost:3030}),
+ * {@code --workload=registrations|domains|orders|mixed} (default
+ * {@code mixed}), {@code --documents=N} (default 100000),
+ * {@code --distribution=uniform|zipfian} (default {@code uniform}),
+ * {@code --zipf-theta=T} (default 0.99), {@code --connections=N} (default
+ * 16), {@code --rate=N} (default 0, closed-loop), {@code --warmup-s=N}
+ * (default 5), {@code --seconds=N} (default 30), {@code --interval-s=N}
+ * (default 1) and {@code --load=false} to skip the loading.
+ */
+public final class LoadGenerator {
+  private static final double[] PERCENTILES = { 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 0.9999 };
+  private static final String[] PERCENTILE_NAMES = { "p50", "p75", "p90", "p95", "p99", "p99.9", "p99.99" };
+  private static final String ADDED = "Document added";
+  // Requests an open-loop connection may have sent without receiving their
+  // response; a power of two
+  private static final int MAX_OUTSTANDING = 1 << 16;
+  // Requests written while late before the open-loop sender flushes them
+  private static final int LATE_BATCH = 64;
+  // Requests sent by each write of the loading
+  private static final int LOAD_BATCH = 1000;
+  private static final long DRAIN_NANOS = 10_000_000_000L;
+
+  private final String host;
+  private final int port;
+  private final LoadWorkload workload;
+  private final KeyDistribution keys;
+  private final long users;
+  // Prefix of the IDs of the documents added during the run, so that they do
+  // not collide with those added by previous runs
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+  private final LatencyHistogram total = new LatencyHistogram();
+  private final LatencyHistogram[] byOperation = new LatencyHistogram[LoadWorkload.Operation.values().length];
+  private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder intervalErrors = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder unanswered = new LongAdder();
+  private volatile long measureStart;
+  private volatile long deadline;
+
+  /**
+   * Creates a generator.
+   *
+   * @param address   the address of the database, as {@code host:port}
+   * @param workload  the requests to send
+   * @param keys      the distribution choosing the documents
+   * @param documents the number of domains
+   */
+  private LoadGenerator(String address, LoadWorkload workload, KeyDistribution keys, long documents) {
+    int colon = address.lastIndexOf(':');
+    this.host = address.substring(0, colon);
+    this.port = Integer.parseInt(address.substring(colon + 1));
+    this.workload = workload;
+    this.keys = keys;
+    this.users = Math.max(1, documents / 4);
+    for (int i = 0; i < byOperation.length; i++) {
+      byOperation[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Loads the database and runs the workload.
+   *
+   * @param args the options of the generator
+   * @throws Exception if the database cannot be reached or the generator is
+   *                   interrupted
+   */
+  public static void main(String[] args) throws Exception {
+    String address = "localhost:3030";
+    LoadWorkload workload = LoadWorkload.MIXED;
+    long documents = 100_000;
+    String distribution = "uniform";
+    double theta = 0.99;
+    int connections = 16;
+    long rate = 0;
+    int warmupSeconds = 5;
+    int seconds = 30;
+    int intervalSeconds = 1;
+    boolean load = true;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--address=")) {
+        address = value;
+      } else if (arg.startsWith("--workload=")) {
+        workload = LoadWorkload.valueOf(value.toUpperCase());
+      } else if (arg.startsWith("--documents=")) {
+        documents = Long.parseLong(value);
+      } else if (arg.startsWith("--distribution=")) {
+        distribution = value;
+      } else if (arg.startsWith("--zipf-theta=")) {
+        theta = Double.parseDouble(value);
+      } else if (arg.startsWith("--connections=")) {
+        connections = Integer.parseInt(value);
+      } else if (arg.startsWith("--rate=")) {
+        rate = Long.parseLong(value);
+      } else if (arg.startsWith("--warmup-s=")) {
+        warmupSeconds = Integer.parseInt(value);
+      } else if (arg.startsWith("--seconds=")) {
+        seconds = Integer.parseInt(value);
+      } else if (arg.startsWith("--interval-s=")) {
+        intervalSeconds = Integer.parseInt(value);
+      } else if (arg.startsWith("--load=")) {
+        load = Boolean.parseBoolean(value);
+      } else {
+        throw new IllegalArgumentException("Unknown option: " + arg);
+      }
+    }
+    KeyDistribution keys = switch (distribution) {
+      case "uniform" -> KeyDistribution.uniform(documents);
+      case "zipfian" -> KeyDistribution.zipfian(documents, theta);
+      default -> throw new IllegalArgumentException("Unknown distribution: " + distribution);
+    };
+
+    LoadGenerator generator = new LoadGenerator(address, workload, keys, documents);
+    if (load) {
+      generator.load(documents);
+    }
+    System.out.printf("workload=%s documents=%d keys=%s connections=%d %s%n", workload.name().toLowerCase(),
+        documents, keys, connections, rate > 0 ? "open-loop rate=" + rate + "/s" : "closed-loop");
+    generator.run(connections, rate, warmupSeconds, seconds, intervalSeconds);
+  }
+
+  /**
+   * Creates the collections of the workload and adds their documents,
+   * pipelining the requests.
+   *
+   * @param documents the number of domains
+   * @throws IOException if the database cannot be reached
+   */
+  private void load(long documents) throws IOException {
+    try (Socket socket = connect()) {
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+      ResponseReader in = new ResponseReader(socket.getInputStream());
+      byte[] head = new byte[64];
+      for (String collection : workload.getCollections()) {
+        long begin = System.nanoTime();
+        for (String command : LoadWorkload.setupCommands(collection)) {
+          write(out, command);
+          out.flush();
+          in.next(head);
+        }
+        long count = LoadWorkload.initialDocuments(collection, documents, users);
+        long added = 0;
+        for (long first = 0; first < count; first += LOAD_BATCH) {
+          long last = Math.min(count, first + LOAD_BATCH);
+          for (long i = first; i < last; i++) {
+            write(out, LoadWorkload.loadCommand(collection, i, users));
+          }
+          out.flush();
+          for (long i = first; i < last; i++) {
+            int length = in.next(head);
+            if (length >= 0 && new String(head, 0, length, StandardCharsets.UTF_8).startsWith(ADDED)) {
+              added++;
+            }
+          }
+        }
+        System.out.printf("loaded %s: %d documents (%d already present) in %.1f s%n", collection, count,
+            count - added, (System.nanoTime() - begin) / 1e9);
+      }
+    }
+  }
+
+  /**
+   * Runs the connections, printing the throughput and latencies of every
+   * interval, then the percentiles of the whole run.
+   *
+   * @param connections     the number of connections
+   * @param rate            the requests per second of all the connections,
+   *                        or 0 to run closed-loop
+   * @param warmupSeconds   the duration of the warm-up
+   * @param seconds         the duration of the measurement
+   * @param intervalSeconds the duration of each line of the timeline
+   * @throws InterruptedException if the thread is interrupted while waiting
+   *                              for the connections
+   */
+  private void run(int connections, long rate, int warmupSeconds, int seconds, int intervalSeconds)
+      throws InterruptedException {
+    long begin = System.nanoTime();
+    measureStart = begin + warmupSeconds * 1_000_000_000L;
+    deadline = measureStart + seconds * 1_000_000_000L;
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      int id = i;
+      if (rate > 0) {
+        double period = connections * 1e9 / rate;
+        long first = begin + (long) (period * id / connections);
+        threads.add(Thread.ofPlatform().name("load-connection-" + id).start(() -> runOpenLoop(id, first, period)));
+      } else {
+        threads.add(Thread.ofPlatform().name("load-connection-" + id).start(() -> runClosedLoop(id)));
+      }
+    }
+
+    System.out.printf("%8s %10s %10s %10s %10s %8s%n", "time_s", "ops/s", "p50_us", "p99_us", "max_us", "errors");
+    long intervalNanos = intervalSeconds * 1_000_000_000L;
+    for (long end = begin + intervalNanos; end <= deadline; end += intervalNanos) {
+      long wait;
+      while ((wait = end - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      LatencyHistogram histogram = interval.getAndSet(new LatencyHistogram());
+      long[] values = histogram.getQuantileNanos(0.5, 0.99);
+      System.out.printf("%8d %10.0f %10.1f %10.1f %10.1f %8d%s%n", (end - begin) / 1_000_000_000L,
+          histogram.getCount() * 1e9 / intervalNanos, values[0] / 1e3, values[1] / 1e3,
+          histogram.getMaxNanos() / 1e3, intervalErrors.sumThenReset(), end <= measureStart ? " warmup" : "");
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    System.out.printf("requests=%d errors=%d unanswered=%d throughput=%.0f ops/s%n", total.getCount(),
+        errors.sum(), unanswered.sum(), completed.sum() / (double) seconds);
+    System.out.printf("%-20s %10s %10s", "latency_us", "count", "mean");
+    for (String name : PERCENTILE_NAMES) {
+      System.out.printf(" %10s", name);
+    }
+    System.out.printf(" %10s%n", "max");
+    for (LoadWorkload.Operation operation : LoadWorkload.Operation.values()) {
+      print(operation.name().toLowerCase(), byOperation[operation.ordinal()]);
+    }
+    print("all", total);
+  }
+
+  /**
+   * Prints a line of the final report.
+   *
+   * @param name      the name of the line
+   * @param histogram the latencies
+   */
+  private static void print(String name, LatencyHistogram histogram) {
+    if (histogram.getCount() == 0) {
+      return;
+    }
+    System.out.printf("%-20s %10d %10.1f", name, histogram.getCount(), histogram.getMeanNanos() / 1e3);
+    for (long value : histogram.getQuantileNanos(PERCENTILES)) {
+      System.out.printf(" %10.1f", value / 1e3);
+    }
+    System.out.printf(" %10.1f%n", histogram.getMaxNanos() / 1e3);
+  }
+
+  /**
+   * Sends requests on a connection one at a time until the end of the run.
+   *
+   * @param id the number of the connection
+   */
+  private void runClosedLoop(int id) {
+    SplittableRandom random = new SplittableRandom(id);
+    byte[] head = new byte[64];
+    String prefix = runId + "-" + id + "-";
+    long sequence = 0;
+    try (Socket socket = connect()) {
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+      ResponseReader in = new ResponseReader(socket.getInputStream());
+      while (System.nanoTime() < deadline) {
+        LoadWorkload.Operation operation = workload.next(random);
+        String request = operation.request(keys.next(random), users, prefix, sequence++);
+        long start = System.nanoTime();
+        write(out, request);
+        out.flush();
+        int length = in.next(head);
+        if (length < 0) {
+          throw new IOException("Connection closed by the database");
+        }
+        record(operation, start, System.nanoTime(), operation.isSuccess(head, length));
+      }
+    } catch (IOException e) {
+      System.err.println("connection " + id + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Sends requests on a connection at fixed times until the end of the run,
+   * while a second thread reads the responses, then waits for the
+   * outstanding responses.
+   *
+   * @param id     the number of the connection
+   * @param first  the time the first request is due
+   * @param period the nanoseconds between two requests of the connection
+   */
+  private void runOpenLoop(int id, long first, double period) {
+    SplittableRandom random = new SplittableRandom(id);
+    long[] starts = new long[MAX_OUTSTANDING];
+    LoadWorkload.Operation[] operations = new LoadWorkload.Operation[MAX_OUTSTANDING];
+    AtomicLong sent = new AtomicLong();
+    AtomicLong received = new AtomicLong();
+    String prefix = runId + "-" + id + "-";
+    long sequence = 0;
+    try (Socket socket = connect()) {
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+      Thread receiver = Thread.ofPlatform().name("load-receiver-" + id).start(() -> {
+        byte[] head = new byte[64];
+        try {
+          ResponseReader in = new ResponseReader(socket.getInputStream());
+          int length;
+          while ((length = in.next(head)) >= 0) {
+            long end = System.nanoTime();
+            long index = received.get();
+            // Reading the counter makes the entry written before it visible
+            while (sent.get() <= index) {
+              Thread.onSpinWait();
+            }
+            int slot = (int) (index & (MAX_OUTSTANDING - 1));
+            record(operations[slot], starts[slot], end, operations[slot].isSuccess(head, length));
+            received.set(index + 1);
+          }
+        } catch (IOException e) {
+          // The connection was closed at the end of the run
+        }
+      });
+
+      long count = 0;
+      int late = 0;
+      for (long due = first; due < deadline; due = first + (long) (++count * period)) {
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          out.flush();
+          late = 0;
+          while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        } else if (++late == LATE_BATCH) {
+          out.flush();
+          late = 0;
+        }
+        while (count - received.get() >= MAX_OUTSTANDING) {
+          out.flush();
+          LockSupport.parkNanos(10_000);
+        }
+        LoadWorkload.Operation operation = workload.next(random);
+        int slot = (int) (count & (MAX_OUTSTANDING - 1));
+        starts[slot] = due;
+        operations[slot] = operation;
+        sent.set(count + 1);
+        write(out, operation.request(keys.next(random), users, prefix, sequence++));
+      }
+      out.flush();
+
+      long drainDeadline = System.nanoTime() + DRAIN_NANOS;
+      while (received.get() < count && System.nanoTime() < drainDeadline) {
+        LockSupport.parkNanos(1_000_000);
+      }
+      socket.shutdownOutput();
+      receiver.join(1000);
+      unanswered.add(count - received.get());
+    } catch (IOException e) {
+      System.err.println("connection " + id + ": " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Records the latency of a request.
+   *
+   * @param operation the operation of the request
+   * @param start     the time the request was sent, or was due in open-loop
+   * @param end       the time the response was read
+   * @param success   whether the response reports a success
+   */
+  private void record(LoadWorkload.Operation operation, long start, long end, boolean success) {
+    long latency = end - start;
+    interval.get().record(latency);
+    if (!success) {
+      intervalErrors.increment();
+    }
+    if (end >= measureStart && end <= deadline) {
+      completed.increment();
+    }
+    if (start < measureStart) {
+      return;
+    }
+    total.record(latency);
+    byOperation[operation.ordinal()].record(latency);
+    if (!success) {
+      errors.increment();
+    }
+  }
+
+  /**
+   * Opens a connection to the database.
+   *
+   * @return the socket
+   * @throws IOException if the database cannot be reached
+   */
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    return socket;
+  }
+
+  /**
+   * Writes a request line.
+   *
+   * @param out     the stream of the connection
+   * @param command the request, without terminator
+   * @throws IOException if the write fails
+   */
+  private static void write(OutputStream out, String command) throws IOException {
+    out.write(command.getBytes(StandardCharsets.UTF_8));
+    out.write('\n');
+  }
+
+  /**
+   * Reads the responses of a connection, one per line, keeping only their
+   * first bytes.
+   */
+  private static final class ResponseReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+
+    /**
+     * Creates a reader.
+     *
+     * @param in the stream of the connection
+     */
+    ResponseReader(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * Reads the next response.
+     *
+     * @param head the array receiving the first bytes of the response
+     * @return the number of bytes stored in {@code head}, or -1 if the
+     *         connection was closed
+     * @throws IOException if the read fails
+     */
+    int next(byte[] head) throws IOException {
+      int length = 0;
+      while (true) {
+        if (position == limit) {
+          int read = in.read(buffer);
+          if (read < 0) {
+            return -1;
+          }
+          position = 0;
+          limit = read;
+        }
+        byte b = buffer[position++];
+        if (b == '\n') {
+          return length;
+        }
+        if (length < head.length) {
+          head[length++] = b;
+        }
+      }
+    }
+  }
+}
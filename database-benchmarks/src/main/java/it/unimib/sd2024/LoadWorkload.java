@@ -0,0 +1,289 @@
+package it.unimib.sd2024;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * The request mixes sent by the {@link LoadGenerator}, modelled on the
+ * requests the web server sends to the database for each of its collections.
+ * The weights are in thousandths of the requests.
+ *
+ * <p>
+ * Every workload works on {@code documents} domains, one order per domain
+ * and a quarter as many users, each owning about four domains. The check
+ * that an email is not registered yet, a full scan of {@code registrations},
+ * is left out: its cost depends only on the size of the collection, not on
+ * the keys or the mix.
+ */
+enum LoadWorkload {
+  /**
+   * Logins and user information, with a few new registrations.
+   */
+  REGISTRATIONS(950, 50, 0, 0, 0, 0, 0),
+  /**
+   * Domain searches, lists of the domains of a user and renewals.
+   */
+  DOMAINS(0, 0, 700, 200, 100, 0, 0),
+  /**
+   * Lists of the orders of a user and new orders.
+   */
+  ORDERS(0, 0, 0, 0, 0, 500, 500),
+  /**
+   * The three collections together, in the proportions of the web server.
+   */
+  MIXED(285, 15, 350, 100, 50, 100, 100);
+
+  /**
+   * A request of the web server to the database.
+   */
+  enum Operation {
+    /**
+     * Reads a user, at login or to show its information.
+     */
+    GET_USER("registrations", "{"),
+    /**
+     * Registers a new user.
+     */
+    REGISTER_USER("registrations", "Document added"),
+    /**
+     * Reads a domain, to tell whether it is available.
+     */
+    GET_DOMAIN("domains", "{"),
+    /**
+     * Lists the domains of a user through the index on {@code userId}.
+     */
+    FIND_USER_DOMAINS("domains", "{"),
+    /**
+     * Renews a domain, replacing its data.
+     */
+    RENEW_DOMAIN("domains", "Document updated"),
+    /**
+     * Lists the orders of a user through the index on {@code userId}.
+     */
+    FIND_USER_ORDERS("orders", "{"),
+    /**
+     * Records the order of a purchase or renewal.
+     */
+    ADD_ORDER("orders", "Document added");
+
+    private final String collection;
+    private final String expected;
+
+    /**
+     * Creates an operation.
+     *
+     * @param collection the collection the operation reads or writes
+     * @param expected   the beginning of a successful response
+     */
+    Operation(String collection, String expected) {
+      this.collection = collection;
+      this.expected = expected;
+    }
+
+    /**
+     * Returns the collection the operation reads or writes.
+     *
+     * @return the name of the collection
+     */
+    String getCollection() {
+      return collection;
+    }
+
+    /**
+     * Tells whether a response reports a success.
+     *
+     * @param head   the first bytes of the response
+     * @param length the number of bytes in {@code head}
+     * @return whether the response begins as a successful one
+     */
+    boolean isSuccess(byte[] head, int length) {
+      if (length < expected.length()) {
+        return false;
+      }
+      for (int i = 0; i < expected.length(); i++) {
+        if (head[i] != expected.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Builds the request line of the operation.
+     *
+     * @param index    the document chosen by the key distribution
+     * @param users    the number of users
+     * @param prefix   a prefix used by no other run or connection
+     * @param sequence the number of the request on its connection, which with
+     *                 the prefix names the documents the operation adds
+     * @return the request line, without terminator
+     */
+    String request(long index, long users, String prefix, long sequence) {
+      return switch (this) {
+        case GET_USER -> "GET registrations " + userId(index % users);
+        case REGISTER_USER -> "POST registrations new" + prefix + sequence + " " + user("new" + prefix + sequence);
+        case GET_DOMAIN -> "GET domains " + domainId(index);
+        case FIND_USER_DOMAINS -> "FIND domains userId=\"" + userId(index % users)
+            + "\" FIELDS domainId,currentDate,expirationDate";
+        case RENEW_DOMAIN -> "PUT domains " + domainId(index) + " " + domain(index, users, sequence);
+        case FIND_USER_ORDERS -> "FIND orders userId=\"" + userId(index % users)
+            + "\" FIELDS domainId,orderDate,type,price";
+        case ADD_ORDER -> "POST orders {" + domainId(index) + "}n" + prefix + sequence + " "
+            + order(index, users, "renewal");
+      };
+    }
+  }
+
+  private static final Operation[] OPERATIONS = Operation.values();
+
+  private final int[] weights;
+
+  /**
+   * Creates a workload.
+   *
+   * @param weights the thousandths of the requests of each operation, in
+   *                the order of {@link Operation}
+   */
+  LoadWorkload(int... weights) {
+    this.weights = weights;
+  }
+
+  /**
+   * Picks the operation of the next request.
+   *
+   * @param random the random generator of the calling thread
+   * @return the operation
+   */
+  Operation next(SplittableRandom random) {
+    int draw = random.nextInt(1000);
+    for (int i = 0; i < weights.length; i++) {
+      draw -= weights[i];
+      if (draw < 0) {
+        return OPERATIONS[i];
+      }
+    }
+    throw new IllegalStateException("The weights of " + this + " do not add up to 1000");
+  }
+
+  /**
+   * Returns the collections the workload reads or writes.
+   *
+   * @return the names of the collections
+   */
+  List<String> getCollections() {
+    List<String> collections = new ArrayList<>();
+    for (int i = 0; i < weights.length; i++) {
+      String collection = OPERATIONS[i].getCollection();
+      if (weights[i] > 0 && !collections.contains(collection)) {
+        collections.add(collection);
+      }
+    }
+    return collections;
+  }
+
+  /**
+   * Returns the commands creating a collection as the web server does, with
+   * its encoding, indexes and expiry.
+   *
+   * @param collection the name of the collection
+   * @return the commands
+   */
+  static List<String> setupCommands(String collection) {
+    return switch (collection) {
+      case "registrations" -> List.of("CREATE registrations", "ENCODING registrations COMPACT");
+      case "domains" -> List.of("CREATE domains", "ENCODING domains COMPACT", "INDEX domains userId HASH",
+          "INDEX domains expirationDate SORTED", "EXPIRY domains expirationDate");
+      case "orders" -> List.of("CREATE orders", "ENCODING orders COMPRESSED", "INDEX orders userId HASH");
+      default -> throw new IllegalArgumentException("Unknown collection: " + collection);
+    };
+  }
+
+  /**
+   * Returns the number of documents a collection holds before the run.
+   *
+   * @param collection the name of the collection
+   * @param documents  the number of domains
+   * @param users      the number of users
+   * @return the number of documents
+   */
+  static long initialDocuments(String collection, long documents, long users) {
+    return "registrations".equals(collection) ? users : documents;
+  }
+
+  /**
+   * Returns the command adding one of the documents a collection holds
+   * before the run.
+   *
+   * @param collection the name of the collection
+   * @param index      the index of the document
+   * @param users      the number of users
+   * @return the {@code POST} command
+   */
+  static String loadCommand(String collection, long index, long users) {
+    return switch (collection) {
+      case "registrations" -> "POST registrations " + userId(index) + " " + user(userId(index));
+      case "domains" -> "POST domains " + domainId(index) + " " + domain(index, users, 0);
+      case "orders" -> "POST orders {" + domainId(index) + "}" + index + " " + order(index, users, "purchase");
+      default -> throw new IllegalArgumentException("Unknown collection: " + collection);
+    };
+  }
+
+  /**
+   * Returns the ID of a user.
+   *
+   * @param index the index of the user
+   * @return the ID
+   */
+  private static String userId(long index) {
+    return "user" + index;
+  }
+
+  /**
+   * Returns the ID of a domain.
+   *
+   * @param index the index of the domain
+   * @return the ID
+   */
+  private static String domainId(long index) {
+    return "domain" + index + ".com";
+  }
+
+  /**
+   * Returns the data of a user.
+   *
+   * @param userId the ID of the user
+   * @return the JSON data
+   */
+  private static String user(String userId) {
+    return "{\"userId\":\"" + userId + "\",\"name\":\"Name\",\"surname\":\"Surname\",\"email\":\"" + userId
+        + "@example.com\"}";
+  }
+
+  /**
+   * Returns the data of a domain.
+   *
+   * @param index    the index of the domain
+   * @param users    the number of users
+   * @param revision a number changing the data at each renewal
+   * @return the JSON data
+   */
+  private static String domain(long index, long users, long revision) {
+    return "{\"userId\":\"" + userId(index % users) + "\",\"domainId\":\"" + domainId(index) + "\",\"duration\":\""
+        + (1 + revision % 10) + "\",\"currentDate\":\"2026-06-01\",\"expirationDate\":\"2036-06-01\",\"price\":\""
+        + (10 + index % 90) + "\"}";
+  }
+
+  /**
+   * Returns the data of an order.
+   *
+   * @param index the index of the domain ordered
+   * @param users the number of users
+   * @param type  the type of the order
+   * @return the JSON data
+   */
+  private static String order(long index, long users, String type) {
+    return "{\"userId\":\"" + userId(index % users) + "\",\"domainId\":\"" + domainId(index)
+        + "\",\"orderDate\":\"2026-06-01\",\"type\":\"" + type + "\",\"price\":\"" + (10 + index % 90) + "\"}";
+  }
+}
@@ -0,0 +1,146 @@
+package it.unimib.sd2024;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of concurrent connections sending a mix of
+ * {@code GET} and {@code PUT} requests on random documents of a shared
+ * collection, with 1, 2, 4 and as many threads as processors. Each thread has
+ * its own {@link ProtocolHandler}, as each connection of the server does, so
+ * the threads only contend on the collection: its striped write locks, its
+ * indexes and its version counters.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx6g" })
+public class MixedWorkloadBenchmark {
+
+  /**
+   * The database shared by the threads.
+   */
+  @State(Scope.Benchmark)
+  public static class Data {
+    @Param({ "100000", "1000000" })
+    public int documents;
+
+    @Param({ "50", "90", "99" })
+    public int readPercent;
+
+    Database database;
+
+    /**
+     * Loads the collection, with the indexes the web server creates on it.
+     */
+    @Setup
+    public void setUp() {
+      database = BenchmarkData.newDatabase(documents);
+      Collection collection = database.getCollection(BenchmarkData.COLLECTION);
+      collection.createIndex("userId", SecondaryIndex.Type.HASH);
+      collection.createIndex("expirationDate", SecondaryIndex.Type.SORTED);
+    }
+  }
+
+  /**
+   * The connection of a thread, with its sequence of requests.
+   */
+  @State(Scope.Thread)
+  public static class Connection {
+    ProtocolHandler handler;
+    byte[][] requests;
+    int next;
+
+    /**
+     * Opens the connection and builds its requests, reads and writes in the
+     * chosen proportion.
+     *
+     * @param data the shared database
+     */
+    @Setup
+    public void setUp(Data data) {
+      handler = new ProtocolHandler(data.database);
+      long seed = Thread.currentThread().threadId();
+      byte[][] gets = BenchmarkData.sampleLines("GET", data.documents, false, seed);
+      byte[][] puts = BenchmarkData.sampleLines("PUT", data.documents, true, seed);
+      SplittableRandom random = new SplittableRandom(seed);
+      requests = new byte[BenchmarkData.SAMPLE_SIZE][];
+      for (int i = 0; i < requests.length; i++) {
+        requests[i] = random.nextInt(100) < data.readPercent ? gets[i] : puts[i];
+      }
+    }
+
+    /**
+     * Sends the next request.
+     *
+     * @return the response
+     */
+    String send() {
+      next = (next + 1) & (BenchmarkData.SAMPLE_SIZE - 1);
+      byte[] line = requests[next];
+      return handler.handleRequest(line, line.length);
+    }
+  }
+
+  /**
+   * Runs the workload on one thread.
+   *
+   * @param connection the connection of the thread
+   * @return the response
+   */
+  @Benchmark
+  @Threads(1)
+  public String oneThread(Connection connection) {
+    return connection.send();
+  }
+
+  /**
+   * Runs the workload on two threads.
+   *
+   * @param connection the connection of the thread
+   * @return the response
+   */
+  @Benchmark
+  @Threads(2)
+  public String twoThreads(Connection connection) {
+    return connection.send();
+  }
+
+  /**
+   * Runs the workload on four threads.
+   *
+   * @param connection the connection of the thread
+   * @return the response
+   */
+  @Benchmark
+  @Threads(4)
+  public String fourThreads(Connection connection) {
+    return connection.send();
+  }
+
+  /**
+   * Runs the workload on as many threads as processors.
+   *
+   * @param connection the connection of the thread
+   * @return the response
+   */
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String allProcessors(Connection connection) {
+    return connection.send();
+  }
+}
@@ -0,0 +1,106 @@
+package it.unimib.sd2024;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the reads and the updates of a single document through the
+ * {@link ProtocolHandler}, from the request line to the response, on
+ * collections of growing size. The documents are picked at random, so on the
+ * larger collections most of them are not in the CPU caches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx6g" })
+public class PointOperationsBenchmark {
+
+  /**
+   * The database shared by the threads of a run.
+   */
+  @State(Scope.Benchmark)
+  public static class Data {
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int documents;
+
+    Database database;
+
+    /**
+     * Loads the collection.
+     */
+    @Setup
+    public void setUp() {
+      database = BenchmarkData.newDatabase(documents);
+    }
+  }
+
+  /**
+   * The connection of a thread: its handler and the requests it sends.
+   */
+  @State(Scope.Thread)
+  public static class Connection {
+    ProtocolHandler handler;
+    byte[][] gets;
+    byte[][] puts;
+    int next;
+
+    /**
+     * Opens the connection and builds its requests.
+     *
+     * @param data the shared database
+     */
+    @Setup
+    public void setUp(Data data) {
+      handler = new ProtocolHandler(data.database);
+      long seed = Thread.currentThread().threadId();
+      gets = BenchmarkData.sampleLines("GET", data.documents, false, seed);
+      puts = BenchmarkData.sampleLines("PUT", data.documents, true, seed);
+    }
+
+    /**
+     * Returns the index of the next request to send.
+     *
+     * @return the index
+     */
+    int next() {
+      next = (next + 1) & (BenchmarkData.SAMPLE_SIZE - 1);
+      return next;
+    }
+  }
+
+  /**
+   * Reads a document.
+   *
+   * @param connection the connection of the thread
+   * @return the response
+   */
+  @Benchmark
+  public String get(Connection connection) {
+    byte[] line = connection.gets[connection.next()];
+    return connection.handler.handleRequest(line, line.length);
+  }
+
+  /**
+   * Replaces the data of a document.
+   *
+   * @param connection the connection of the thread
+   * @return the response
+   */
+  @Benchmark
+  public String put(Connection connection) {
+    byte[] line = connection.puts[connection.next()];
+    return connection.handler.handleRequest(line, line.length);
+  }
+}
@@ -0,0 +1,84 @@
+package it.unimib.sd2024;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the parsing of a request line by {@link Request}: the split in
+ * tokens, the lookup of the {@link Command} and the materialization of the
+ * values a handler reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+  @Param({ "GET", "POST", "FIND", "EXEC" })
+  public String shape;
+
+  private final Request request = new Request();
+  private byte[] line;
+
+  /**
+   * Builds the line of the chosen shape.
+   */
+  @Setup
+  public void setUp() {
+    switch (shape) {
+      case "GET":
+        line = BenchmarkData.line("GET domains domain42.com");
+        break;
+      case "POST":
+        line = BenchmarkData.line("POST domains domain42.com " + BenchmarkData.documentData(42, 0));
+        break;
+      case "FIND":
+        line = BenchmarkData.line(
+            "FIND domains userId=\"user42\" expirationDate>=\"2025-01-01\" FIELDS domainId,expirationDate");
+        break;
+      default:
+        line = BenchmarkData.line(shape);
+        break;
+    }
+  }
+
+  /**
+   * Parses the line and reads the command and the collection name, as every
+   * request does.
+   *
+   * @param blackhole consumes the results
+   */
+  @Benchmark
+  public void parseCommand(Blackhole blackhole) {
+    blackhole.consume(request.parse(line, line.length));
+    blackhole.consume(request.getCommand());
+    blackhole.consume(request.getCollectionName());
+  }
+
+  /**
+   * Parses the line and materializes every value it holds.
+   *
+   * @param blackhole consumes the results
+   */
+  @Benchmark
+  public void parseAll(Blackhole blackhole) {
+    blackhole.consume(request.parse(line, line.length));
+    blackhole.consume(request.getCommand());
+    blackhole.consume(request.getCollectionName());
+    blackhole.consume(request.getDocumentId());
+    blackhole.consume(request.getDocumentData());
+  }
+}
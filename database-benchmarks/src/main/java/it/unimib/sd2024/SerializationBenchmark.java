@@ -0,0 +1,91 @@
+package it.unimib.sd2024;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the serialization of a whole collection by
+ * {@link Collection#toString()}, the response of a {@code GET} without a
+ * document ID. The collection caches its string until it changes, so the
+ * serialization is measured both after a write, when the whole collection is
+ * written again, and when nothing changed since the previous call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx6g" })
+public class SerializationBenchmark {
+
+  /**
+   * A loaded collection.
+   */
+  @State(Scope.Thread)
+  public static class Data {
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int documents;
+
+    Collection collection;
+
+    /**
+     * Loads the collection.
+     */
+    @Setup
+    public void setUp() {
+      collection = BenchmarkData.newDatabase(documents).getCollection(BenchmarkData.COLLECTION);
+    }
+  }
+
+  /**
+   * A loaded collection where a document changes before each call.
+   */
+  @State(Scope.Thread)
+  public static class Written extends Data {
+    private long revision;
+
+    /**
+     * Updates a document, so the cached string can no longer be used.
+     */
+    @Setup(Level.Invocation)
+    public void write() {
+      revision++;
+      collection.updateDocument(BenchmarkData.documentId(revision % documents),
+          BenchmarkData.documentData(revision % documents, revision));
+    }
+  }
+
+  /**
+   * Serializes the collection after one of its documents changed.
+   *
+   * @param written the collection
+   * @return the serialized collection
+   */
+  @Benchmark
+  public String afterWrite(Written written) {
+    return written.collection.toString();
+  }
+
+  /**
+   * Serializes the collection when it did not change since the previous
+   * call.
+   *
+   * @param data the collection
+   * @return the serialized collection
+   */
+  @Benchmark
+  public String unchanged(Data data) {
+    return data.collection.toString();
+  }
+}
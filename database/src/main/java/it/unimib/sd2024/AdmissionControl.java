@@ -0,0 +1,143 @@
+package it.unimib.sd2024;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of requests of a {@link Lane} executed at the same time.
+ * A request that finds every slot taken waits in a bounded queue, served in
+ * arrival order; when the queue is full too, the request is rejected at once
+ * with {@link #OVERLOADED} and not executed. Under overload the clients
+ * therefore receive an answer they can back off on, instead of responses
+ * slower and slower for everyone.
+ *
+ * <p>
+ * The connection threads of {@link ServerConfig.Mode#THREAD} and
+ * {@link ServerConfig.Mode#VIRTUAL} mode wait in the queue. In
+ * {@link ServerConfig.Mode#NIO} mode the I/O threads already bound the point
+ * requests executed at the same time, and the requests of the other lanes
+ * wait on virtual threads, see {@link NioServer}.
+ */
+public final class AdmissionControl {
+  /**
+   * The response to a request rejected because the queue is full.
+   */
+  public static final String OVERLOADED = "Server overloaded";
+
+  private final int maxActive;
+  private final int maxQueued;
+  private final Semaphore slots;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * Constructs a new AdmissionControl.
+   *
+   * @param maxActive the maximum number of requests executed at the same
+   *                  time, must be positive
+   * @param maxQueued the maximum number of requests waiting for a slot, may
+   *                  be 0 to reject every request that finds no free slot
+   * @throws IllegalArgumentException if a limit is out of range
+   */
+  public AdmissionControl(int maxActive, int maxQueued) {
+    if (maxActive <= 0 || maxQueued < 0) {
+      throw new IllegalArgumentException("Invalid admission limits");
+    }
+    this.maxActive = maxActive;
+    this.maxQueued = maxQueued;
+    this.slots = new Semaphore(maxActive, true);
+  }
+
+  /**
+   * Takes a slot for a request, waiting in the queue if none is free. Every
+   * successful call must be followed by a call to {@link #release()} once
+   * the request has been executed.
+   *
+   * @return true if the request can be executed, false if it has been
+   *         rejected because the queue is full
+   */
+  public boolean acquire() {
+    if (tryAcquire()) {
+      return true;
+    }
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      rejected.increment();
+      return false;
+    }
+    try {
+      slots.acquireUninterruptibly();
+      return true;
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * Takes a free slot, respecting the order of the requests already queued.
+   *
+   * @return true if a slot has been taken
+   */
+  private boolean tryAcquire() {
+    try {
+      return slots.tryAcquire(0, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Releases the slot of an executed request.
+   */
+  public void release() {
+    slots.release();
+  }
+
+  /**
+   * Returns the maximum number of requests executed at the same time.
+   *
+   * @return the number of slots
+   */
+  public int getMaxActive() {
+    return maxActive;
+  }
+
+  /**
+   * Returns the maximum number of requests waiting for a slot.
+   *
+   * @return the capacity of the queue
+   */
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  /**
+   * Returns the number of requests being executed.
+   *
+   * @return the slots taken
+   */
+  public int getActive() {
+    return maxActive - slots.availablePermits();
+  }
+
+  /**
+   * Returns the number of requests waiting for a slot.
+   *
+   * @return the depth of the queue
+   */
+  public int getQueued() {
+    return Math.max(queued.get(), 0);
+  }
+
+  /**
+   * Returns the number of requests rejected since the start.
+   *
+   * @return the rejected requests
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+}
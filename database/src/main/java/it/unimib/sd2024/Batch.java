@@ -0,0 +1,215 @@
+package it.unimib.sd2024;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A list of document writes, possibly on different collections, applied
+ * together by {@link Database#execute(Batch)}: either every write is applied
+ * or none is, and they are recorded in the write-ahead log as a single
+ * record.
+ *
+ * <p>
+ * The conditions of the writes (an insert needs a free ID, an update or a
+ * removal an existing document, optionally with a given version) are all
+ * checked before anything is changed, while the documents of the batch are
+ * locked, so no other write can slip in between. Readers are not blocked: a
+ * read of the documents of a batch running at the same time may see some of
+ * its writes and not yet the others.
+ */
+public final class Batch {
+  /**
+   * The highest number of writes accepted in a batch.
+   */
+  public static final int MAX_OPERATIONS = 1024;
+
+  /**
+   * The kind of write.
+   */
+  public enum Type {
+    INSERT,
+    REPLACE,
+    REMOVE
+  }
+
+  /**
+   * A single write of a batch.
+   */
+  static final class Operation {
+    private final Type type;
+    private final String collection;
+    private final String id;
+    private final Document document;
+    private final long expectedVersion;
+
+    private Operation(Type type, String collection, String id, Document document, long expectedVersion) {
+      this.type = type;
+      this.collection = collection;
+      this.id = id;
+      this.document = document;
+      this.expectedVersion = expectedVersion;
+    }
+
+    /**
+     * Returns the kind of write.
+     *
+     * @return the type
+     */
+    Type getType() {
+      return type;
+    }
+
+    /**
+     * Returns the name of the collection written.
+     *
+     * @return the collection name
+     */
+    String getCollection() {
+      return collection;
+    }
+
+    /**
+     * Returns the ID of the document written.
+     *
+     * @return the document ID
+     */
+    String getId() {
+      return id;
+    }
+
+    /**
+     * Returns the document to write.
+     *
+     * @return the document, or null for a removal
+     */
+    Document getDocument() {
+      return document;
+    }
+
+    /**
+     * Returns the version the document must have.
+     *
+     * @return the version, or {@link Collection#ANY_VERSION}
+     */
+    long getExpectedVersion() {
+      return expectedVersion;
+    }
+  }
+
+  /**
+   * The outcome of a batch: applied, or rejected because of one of its
+   * writes.
+   */
+  public static final class Result {
+    static final Result APPLIED = new Result(-1, Collection.WriteResult.APPLIED);
+
+    private final int failedOperation;
+    private final Collection.WriteResult failure;
+
+    Result(int failedOperation, Collection.WriteResult failure) {
+      this.failedOperation = failedOperation;
+      this.failure = failure;
+    }
+
+    /**
+     * Returns whether every write of the batch has been applied.
+     *
+     * @return true if the batch has been applied, false if nothing changed
+     */
+    public boolean isApplied() {
+      return failedOperation < 0;
+    }
+
+    /**
+     * Returns the position of the write that could not be applied.
+     *
+     * @return the index of the write, from 0, or -1 if the batch was applied
+     */
+    public int getFailedOperation() {
+      return failedOperation;
+    }
+
+    /**
+     * Returns why the batch was rejected.
+     *
+     * @return the result of the write that could not be applied, or
+     *         {@link Collection.WriteResult#APPLIED}
+     */
+    public Collection.WriteResult getFailure() {
+      return failure;
+    }
+  }
+
+  private final List<Operation> operations = new ArrayList<>();
+
+  /**
+   * Adds the insertion of a document that must not exist yet.
+   *
+   * @param collection the name of the collection
+   * @param id         the ID of the document
+   * @param document   the document to add
+   * @throws IllegalStateException if the batch is full
+   */
+  public void insert(String collection, String id, Document document) {
+    add(new Operation(Type.INSERT, collection, id, document, Collection.ANY_VERSION));
+  }
+
+  /**
+   * Adds the replacement of an existing document.
+   *
+   * @param collection      the name of the collection
+   * @param id              the ID of the document
+   * @param document        the document with the new data
+   * @param expectedVersion the version the document must have, or
+   *                        {@link Collection#ANY_VERSION}
+   * @throws IllegalStateException if the batch is full
+   */
+  public void replace(String collection, String id, Document document, long expectedVersion) {
+    add(new Operation(Type.REPLACE, collection, id, document, expectedVersion));
+  }
+
+  /**
+   * Adds the removal of an existing document.
+   *
+   * @param collection      the name of the collection
+   * @param id              the ID of the document
+   * @param expectedVersion the version the document must have, or
+   *                        {@link Collection#ANY_VERSION}
+   * @throws IllegalStateException if the batch is full
+   */
+  public void remove(String collection, String id, long expectedVersion) {
+    add(new Operation(Type.REMOVE, collection, id, null, expectedVersion));
+  }
+
+  /**
+   * Returns the number of writes of the batch.
+   *
+   * @return the number of writes
+   */
+  public int size() {
+    return operations.size();
+  }
+
+  /**
+   * Returns the writes of the batch.
+   *
+   * @return an unmodifiable list of the writes, in order
+   */
+  List<Operation> getOperations() {
+    return Collections.unmodifiableList(operations);
+  }
+
+  /**
+   * Appends a write to the batch.
+   *
+   * @param operation the write
+   * @throws IllegalStateException if the batch is full
+   */
+  private void add(Operation operation) {
+    if (operations.size() == MAX_OPERATIONS) {
+      throw new IllegalStateException("A batch cannot hold more than " + MAX_OPERATIONS + " operations");
+    }
+    operations.add(operation);
+  }
+}
@@ -0,0 +1,240 @@
+package it.unimib.sd2024;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A client of the database speaking the binary protocol described in
+ * {@link BinaryProtocol}. The connection is switched to the binary protocol
+ * when the client is created. Document data is exchanged as raw bytes, so it
+ * may contain spaces, newlines or any other byte and has no size limit other
+ * than the length prefix.
+ * This class is not thread-safe: use one client per thread.
+ */
+public class BinaryClient implements Closeable {
+
+  /**
+   * The outcome of a request: a status code from {@link BinaryProtocol} and an
+   * optional value.
+   */
+  public static final class Response {
+    private final byte status;
+    private final byte[] value;
+
+    /**
+     * Constructs a new Response.
+     *
+     * @param status the status code
+     * @param value  the value, empty if the response carries none
+     */
+    public Response(byte status, byte[] value) {
+      this.status = status;
+      this.value = value;
+    }
+
+    /**
+     * Returns the status code of the response.
+     *
+     * @return the status code
+     */
+    public byte getStatus() {
+      return status;
+    }
+
+    /**
+     * Returns whether the request succeeded.
+     *
+     * @return true if the status is {@link BinaryProtocol#STATUS_OK}
+     */
+    public boolean isOk() {
+      return status == BinaryProtocol.STATUS_OK;
+    }
+
+    /**
+     * Returns the value of the response.
+     *
+     * @return the value, empty if the response carries none
+     */
+    public byte[] getValue() {
+      return value;
+    }
+  }
+
+  private final Socket socket;
+  private final DataInputStream in;
+  private final OutputStream out;
+
+  /**
+   * Connects to the database and switches the connection to the binary
+   * protocol.
+   *
+   * @param host the database host
+   * @param port the database port
+   * @throws IOException if the connection fails or the server does not accept
+   *                     the binary protocol
+   */
+  public BinaryClient(String host, int port) throws IOException {
+    this.socket = new Socket(host, port);
+    try {
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      this.out = new BufferedOutputStream(socket.getOutputStream());
+      out.write("PROTOCOL BINARY\n".getBytes(StandardCharsets.UTF_8));
+      out.flush();
+
+      String reply = readTextLine();
+      if (!"Protocol switched".equals(reply)) {
+        throw new IOException("Binary protocol refused: " + reply);
+      }
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Creates a collection.
+   *
+   * @param collection the collection name
+   * @return the response
+   * @throws IOException if an I/O error occurs
+   */
+  public Response create(String collection) throws IOException {
+    return execute(BinaryProtocol.OP_CREATE, collection, null, null);
+  }
+
+  /**
+   * Returns the data of a document.
+   *
+   * @param collection the collection name
+   * @param id         the document ID
+   * @return the response, whose value is the document data
+   * @throws IOException if an I/O error occurs
+   */
+  public Response get(String collection, String id) throws IOException {
+    return execute(BinaryProtocol.OP_GET, collection, id, null);
+  }
+
+  /**
+   * Returns all the documents of a collection.
+   *
+   * @param collection the collection name
+   * @return a map of document IDs to document data, in the order sent by the
+   *         server, or null if the collection does not exist
+   * @throws IOException if an I/O error occurs
+   */
+  public Map<String, byte[]> getAll(String collection) throws IOException {
+    Response response = execute(BinaryProtocol.OP_GET, collection, null, null);
+    if (!response.isOk()) {
+      return null;
+    }
+
+    ByteBuffer listing = ByteBuffer.wrap(response.getValue());
+    int count = listing.getInt();
+    Map<String, byte[]> documents = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      byte[] id = new byte[listing.getShort() & 0xFFFF];
+      listing.get(id);
+      byte[] data = new byte[listing.getInt()];
+      listing.get(data);
+      documents.put(new String(id, StandardCharsets.UTF_8), data);
+    }
+    return documents;
+  }
+
+  /**
+   * Adds a new document.
+   *
+   * @param collection the collection name
+   * @param id         the document ID
+   * @param data       the document data
+   * @return the response
+   * @throws IOException if an I/O error occurs
+   */
+  public Response post(String collection, String id, byte[] data) throws IOException {
+    return execute(BinaryProtocol.OP_POST, collection, id, data);
+  }
+
+  /**
+   * Replaces the data of an existing document.
+   *
+   * @param collection the collection name
+   * @param id         the document ID
+   * @param data       the new document data
+   * @return the response
+   * @throws IOException if an I/O error occurs
+   */
+  public Response put(String collection, String id, byte[] data) throws IOException {
+    return execute(BinaryProtocol.OP_PUT, collection, id, data);
+  }
+
+  /**
+   * Removes a document.
+   *
+   * @param collection the collection name
+   * @param id         the document ID
+   * @return the response
+   * @throws IOException if an I/O error occurs
+   */
+  public Response delete(String collection, String id) throws IOException {
+    return execute(BinaryProtocol.OP_DELETE, collection, id, null);
+  }
+
+  /**
+   * Sends a request frame and waits for its response.
+   *
+   * @param opcode     the operation to perform
+   * @param collection the collection name
+   * @param id         the document ID, or null
+   * @param data       the document data, or null
+   * @return the response
+   * @throws IOException if an I/O error occurs
+   */
+  public Response execute(byte opcode, String collection, String id, byte[] data) throws IOException {
+    ByteBuffer frame = BinaryProtocol.encodeRequest(opcode, collection, id, data);
+    out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+    out.flush();
+
+    int length = in.readInt();
+    byte status = in.readByte();
+    byte[] value = new byte[in.readInt()];
+    if (length != 1 + Integer.BYTES + value.length) {
+      throw new IOException("Malformed response frame");
+    }
+    in.readFully(value);
+    return new Response(status, value);
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  /**
+   * Reads the text line sent by the server before switching protocol. The
+   * line is read from the same buffered stream used for the frames, so no
+   * binary data can be lost.
+   *
+   * @return the line, without its terminator
+   * @throws IOException if an I/O error occurs
+   */
+  private String readTextLine() throws IOException {
+    var line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0 && b != '\n') {
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    return line.toString(StandardCharsets.UTF_8);
+  }
+}
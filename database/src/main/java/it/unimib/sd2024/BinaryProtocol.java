@@ -0,0 +1,92 @@
+package it.unimib.sd2024;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and encoding helpers of the length-prefixed binary protocol.
+ * A connection switches to this protocol by sending the text command
+ * {@code PROTOCOL BINARY}; from then on every message is a frame made of a
+ * big-endian {@code int} length followed by that many bytes.
+ *
+ * <p>
+ * A request frame contains the opcode (1 byte), the collection name
+ * ({@code short} length + UTF-8 bytes), the document ID ({@code short} length +
+ * UTF-8 bytes, empty if absent) and the document data ({@code int} length +
+ * bytes, empty if absent). A response frame contains the status (1 byte) and a
+ * value ({@code int} length + bytes).
+ */
+public final class BinaryProtocol {
+  public static final byte OP_CREATE = 1;
+  public static final byte OP_GET = 2;
+  public static final byte OP_POST = 3;
+  public static final byte OP_PUT = 4;
+  public static final byte OP_DELETE = 5;
+
+  public static final byte STATUS_OK = 0;
+  public static final byte STATUS_DOCUMENT_NOT_FOUND = 1;
+  public static final byte STATUS_COLLECTION_NOT_FOUND = 2;
+  public static final byte STATUS_ALREADY_EXISTS = 3;
+  public static final byte STATUS_INVALID_REQUEST = 4;
+  public static final byte STATUS_UNSUPPORTED = 5;
+  public static final byte STATUS_READ_ONLY = 6;
+  public static final byte STATUS_OVERLOADED = 7;
+
+  /** Size of the length prefix of every frame. */
+  public static final int LENGTH_SIZE = Integer.BYTES;
+
+  /** Maximum length in bytes of a collection name or a document ID. */
+  public static final int MAX_NAME_LENGTH = 0xFFFF;
+
+  private BinaryProtocol() {
+  }
+
+  /**
+   * Encodes a request frame, length prefix included.
+   *
+   * @param opcode     the operation to perform
+   * @param collection the collection name
+   * @param key        the document ID, or null if absent
+   * @param value      the document data, or null if absent
+   * @return the encoded frame, ready to be written
+   * @throws IllegalArgumentException if the collection name or the ID is
+   *                                  longer than 65535 bytes
+   */
+  public static ByteBuffer encodeRequest(byte opcode, String collection, String key, byte[] value) {
+    byte[] collectionBytes = collection.getBytes(StandardCharsets.UTF_8);
+    byte[] keyBytes = key == null ? new byte[0] : key.getBytes(StandardCharsets.UTF_8);
+    if (collectionBytes.length > MAX_NAME_LENGTH || keyBytes.length > MAX_NAME_LENGTH) {
+      throw new IllegalArgumentException("Collection name and ID must not exceed " + MAX_NAME_LENGTH + " bytes");
+    }
+    int valueLength = value == null ? 0 : value.length;
+    int frameLength = 1 + Short.BYTES + collectionBytes.length + Short.BYTES + keyBytes.length
+        + Integer.BYTES + valueLength;
+
+    ByteBuffer frame = ByteBuffer.allocate(LENGTH_SIZE + frameLength);
+    frame.putInt(frameLength)
+        .put(opcode)
+        .putShort((short) collectionBytes.length).put(collectionBytes)
+        .putShort((short) keyBytes.length).put(keyBytes)
+        .putInt(valueLength);
+    if (value != null) {
+      frame.put(value);
+    }
+    return frame.flip();
+  }
+
+  /**
+   * Encodes the header of a response frame: length prefix, status and value
+   * length. The value itself is written right after the header.
+   *
+   * @param status      the status code
+   * @param valueLength the length of the value that follows
+   * @return the encoded header, ready to be written
+   */
+  public static ByteBuffer encodeResponseHeader(byte status, int valueLength) {
+    ByteBuffer header = ByteBuffer.allocate(LENGTH_SIZE + 1 + Integer.BYTES);
+    header.putInt(1 + Integer.BYTES + valueLength)
+        .put(status)
+        .putInt(valueLength);
+    return header.flip();
+  }
+}
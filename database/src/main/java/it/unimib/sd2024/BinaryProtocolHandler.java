@@ -0,0 +1,442 @@
+package it.unimib.sd2024;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Handles the frames of the binary protocol described in
+ * {@link BinaryProtocol}, on the same {@link Database} used by the
+ * {@link ProtocolHandler}. Document data is stored and returned as the bytes
+ * received from the client, without any charset conversion; only the
+ * collection name and the document ID are decoded, as they are map keys.
+ * An instance is meant to be reused for every frame of a connection.
+ *
+ * <p>
+ * The data of a single document is returned as a view of its storage, so
+ * data kept in an {@link OffHeapArena} goes to the socket without being
+ * copied to the heap. The read section of the arena the first such view was
+ * obtained in is kept open until {@link #releasePinned()} is called, so no
+ * block returned since is reused before the responses are written.
+ */
+public class BinaryProtocolHandler {
+  private Database database;
+  private OffHeapArena pinnedArena;
+  private long pinnedSection;
+
+  /**
+   * Constructs a new BinaryProtocolHandler for the specified database.
+   *
+   * @param database the database to perform operations on
+   */
+  public BinaryProtocolHandler(Database database) {
+    this.database = database;
+  }
+
+  /**
+   * Releases the documents whose data has been returned without copying.
+   * Must be called once every response returned so far has been written.
+   */
+  public void releasePinned() {
+    if (pinnedArena != null) {
+      pinnedArena.exit(pinnedSection);
+      pinnedArena = null;
+    }
+  }
+
+  /**
+   * Handles a request frame and returns the response frame. The time taken
+   * by each supported request is recorded in the {@link Metrics} of the
+   * database, and the slow requests as {@link CommandEvent}s. If the
+   * database has an {@link AdmissionControl} for the {@link Lane} of the
+   * request, the request waits for its turn in that lane first, and is
+   * answered {@link BinaryProtocol#STATUS_OVERLOADED} without being executed
+   * when too many requests of the lane are waiting already.
+   *
+   * @param frame  the buffer holding the frame, without its length prefix
+   * @param offset the index of the first byte of the frame
+   * @param length the length of the frame
+   * @return the buffers of the response frame, to be written in order
+   */
+  public ByteBuffer[] handleFrame(byte[] frame, int offset, int length) {
+    byte opcode;
+    String collectionName;
+    String documentId;
+    byte[] documentData;
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(frame, offset, length);
+      opcode = buffer.get();
+      collectionName = readString(buffer, buffer.getShort() & 0xFFFF);
+      int idLength = buffer.getShort() & 0xFFFF;
+      documentId = idLength == 0 ? null : readString(buffer, idLength);
+      int dataLength = buffer.getInt();
+      if (dataLength < 0 || dataLength != buffer.remaining()) {
+        return response(BinaryProtocol.STATUS_INVALID_REQUEST);
+      }
+      documentData = dataLength == 0 ? null
+          : Arrays.copyOfRange(frame, buffer.position(), buffer.position() + dataLength);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      return response(BinaryProtocol.STATUS_INVALID_REQUEST);
+    }
+
+    Command command = commandOf(opcode);
+    if (command == null) {
+      return response(BinaryProtocol.STATUS_UNSUPPORTED);
+    }
+    Lane lane = Lane.of(command, documentId != null);
+    AdmissionControl admission = database.getAdmissionControl(lane);
+    long arrival = System.nanoTime();
+    if (admission == null) {
+      return execute(command, lane, collectionName, documentId, documentData, length, arrival, arrival);
+    }
+    if (!admission.acquire()) {
+      return response(BinaryProtocol.STATUS_OVERLOADED);
+    }
+    try {
+      return execute(command, lane, collectionName, documentId, documentData, length, arrival,
+          System.nanoTime());
+    } finally {
+      admission.release();
+    }
+  }
+
+  /**
+   * Returns the lane of a request frame without decoding it.
+   *
+   * @param frame  the buffer holding the frame, without its length prefix
+   * @param offset the index of the first byte of the frame
+   * @param length the length of the frame
+   * @return the lane, {@link Lane#POINT} if the frame is malformed
+   */
+  public static Lane laneOf(byte[] frame, int offset, int length) {
+    if (length < 1 + Short.BYTES) {
+      return Lane.POINT;
+    }
+    // The length of the ID follows the opcode and the collection name
+    Command command = commandOf(frame, offset, length);
+    int idLengthAt = offset + 1 + Short.BYTES + ((frame[offset + 1] & 0xFF) << 8 | frame[offset + 2] & 0xFF);
+    if (command == null || idLengthAt + Short.BYTES > offset + length) {
+      return Lane.POINT;
+    }
+    return Lane.of(command, frame[idLengthAt] != 0 || frame[idLengthAt + 1] != 0);
+  }
+
+  /**
+   * Executes a decoded request frame, recording its latency and, if it is
+   * slow, a {@link CommandEvent}.
+   *
+   * @param command        the command of the frame
+   * @param lane           the lane of the frame
+   * @param collectionName the name of the collection
+   * @param documentId     the ID of the document, or null if absent
+   * @param documentData   the data of the document, or null if absent
+   * @param length         the length of the request frame
+   * @param arrival        the time the frame was decoded, before waiting for
+   *                       its turn
+   * @param start          the time the execution starts
+   * @return the response frame
+   */
+  private ByteBuffer[] execute(Command command, Lane lane, String collectionName, String documentId,
+      byte[] documentData, int length, long arrival, long start) {
+    CommandEvent event = new CommandEvent();
+    event.begin();
+    ByteBuffer[] response = handleCommand(command, collectionName, documentId, documentData);
+    long end = System.nanoTime();
+    event.end();
+    database.getMetrics().recordRequest(command, lane, database.getCollection(collectionName), end - start,
+        start - arrival);
+    if (event.shouldCommit()) {
+      long responseSize = 0;
+      for (ByteBuffer buffer : response) {
+        responseSize += buffer.remaining();
+      }
+      event.commit(command, collectionName, documentId, "binary", length, responseSize);
+    }
+    return response;
+  }
+
+  /**
+   * Returns the command of a request frame without decoding it.
+   *
+   * @param frame  the buffer holding the frame, without its length prefix
+   * @param offset the index of the first byte of the frame
+   * @param length the length of the frame
+   * @return the command, or null if the frame is empty or its opcode is not
+   *         supported
+   */
+  public static Command commandOf(byte[] frame, int offset, int length) {
+    return length < 1 ? null : commandOf(frame[offset]);
+  }
+
+  /**
+   * Returns the command executed by an opcode.
+   *
+   * @param opcode the opcode of a request frame
+   * @return the command, or null if the opcode is not supported
+   */
+  private static Command commandOf(byte opcode) {
+    switch (opcode) {
+      case BinaryProtocol.OP_CREATE:
+        return Command.CREATE;
+      case BinaryProtocol.OP_GET:
+        return Command.GET;
+      case BinaryProtocol.OP_POST:
+        return Command.POST;
+      case BinaryProtocol.OP_PUT:
+        return Command.PUT;
+      case BinaryProtocol.OP_DELETE:
+        return Command.DELETE;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Handles a decoded request frame.
+   *
+   * @param command        the command of the frame
+   * @param collectionName the name of the collection
+   * @param documentId     the ID of the document, or null if absent
+   * @param documentData   the data of the document, or null if absent
+   * @return the response frame
+   */
+  private ByteBuffer[] handleCommand(Command command, String collectionName, String documentId,
+      byte[] documentData) {
+    if (database.isReadOnly() && command != Command.GET) {
+      return response(BinaryProtocol.STATUS_READ_ONLY);
+    }
+    switch (command) {
+      case CREATE:
+        return handleCreate(collectionName);
+      case GET:
+        return handleGet(collectionName, documentId);
+      case POST:
+        if (documentId == null || documentData == null) {
+          return response(BinaryProtocol.STATUS_INVALID_REQUEST);
+        }
+        return handlePost(collectionName, documentId, documentData);
+      case PUT:
+        if (documentId == null || documentData == null) {
+          return response(BinaryProtocol.STATUS_INVALID_REQUEST);
+        }
+        return handlePut(collectionName, documentId, documentData);
+      case DELETE:
+        if (documentId == null) {
+          return response(BinaryProtocol.STATUS_INVALID_REQUEST);
+        }
+        return handleDelete(collectionName, documentId);
+      default:
+        return response(BinaryProtocol.STATUS_UNSUPPORTED);
+    }
+  }
+
+  /**
+   * Handles a GET request. A single document is returned as its raw data; a
+   * whole collection as an {@code int} count followed, for each document, by
+   * the ID ({@code short} length + bytes) and the data ({@code int} length +
+   * bytes).
+   *
+   * @param collectionName the name of the collection
+   * @param documentId     the ID of the document, or null for the whole
+   *                       collection
+   * @return the response frame
+   */
+  private ByteBuffer[] handleGet(String collectionName, String documentId) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return response(BinaryProtocol.STATUS_COLLECTION_NOT_FOUND);
+    }
+
+    if (documentId != null) {
+      OffHeapArena arena = database.getArena();
+      long section = arena == null ? 0 : arena.enter();
+      Document document = collection.getDocument(documentId);
+      if (arena != null) {
+        pin(arena, section);
+      }
+      if (document == null) {
+        return response(BinaryProtocol.STATUS_DOCUMENT_NOT_FOUND);
+      }
+      return response(BinaryProtocol.STATUS_OK, document.getDataBuffer());
+    }
+
+    var bytes = new ByteArrayOutputStream();
+    var out = new DataOutputStream(bytes);
+    int[] count = { 0 };
+    try {
+      out.writeInt(0);
+      collection.forEachDocument((id, document) -> {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] data = document.getDataBytes();
+        try {
+          out.writeShort(idBytes.length);
+          out.write(idBytes);
+          out.writeInt(data.length);
+          out.write(data);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        count[0]++;
+      });
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    byte[] listing = bytes.toByteArray();
+    ByteBuffer.wrap(listing).putInt(0, count[0]);
+    return response(BinaryProtocol.STATUS_OK, listing);
+  }
+
+  /**
+   * Keeps a read section open until {@link #releasePinned()} is called. If a
+   * section is already kept open the new one is closed: the blocks read
+   * after the older section was opened cannot be reused while it is open.
+   *
+   * @param arena   the arena the section belongs to
+   * @param section the token of the section
+   */
+  private void pin(OffHeapArena arena, long section) {
+    if (pinnedArena == null) {
+      pinnedArena = arena;
+      pinnedSection = section;
+    } else {
+      arena.exit(section);
+    }
+  }
+
+  /**
+   * Handles a POST request, adding a new document.
+   *
+   * @param collectionName the name of the collection
+   * @param documentId     the ID of the new document
+   * @param documentData   the data of the new document
+   * @return the response frame
+   */
+  private ByteBuffer[] handlePost(String collectionName, String documentId, byte[] documentData) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return response(BinaryProtocol.STATUS_COLLECTION_NOT_FOUND);
+    }
+    if (collection.insertDocument(documentId, new Document(documentId, documentData))
+        != Collection.WriteResult.APPLIED) {
+      return response(BinaryProtocol.STATUS_ALREADY_EXISTS);
+    }
+
+    database.awaitDurability();
+    return response(BinaryProtocol.STATUS_OK);
+  }
+
+  /**
+   * Handles a PUT request, replacing the data of an existing document.
+   *
+   * @param collectionName the name of the collection
+   * @param documentId     the ID of the document to update
+   * @param documentData   the new data of the document
+   * @return the response frame
+   */
+  private ByteBuffer[] handlePut(String collectionName, String documentId, byte[] documentData) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return response(BinaryProtocol.STATUS_COLLECTION_NOT_FOUND);
+    }
+    if (collection.replaceDocument(documentId, new Document(documentId, documentData), Collection.ANY_VERSION)
+        != Collection.WriteResult.APPLIED) {
+      return response(BinaryProtocol.STATUS_DOCUMENT_NOT_FOUND);
+    }
+
+    database.awaitDurability();
+    return response(BinaryProtocol.STATUS_OK);
+  }
+
+  /**
+   * Handles a DELETE request, removing a document.
+   *
+   * @param collectionName the name of the collection
+   * @param documentId     the ID of the document to delete
+   * @return the response frame
+   */
+  private ByteBuffer[] handleDelete(String collectionName, String documentId) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return response(BinaryProtocol.STATUS_COLLECTION_NOT_FOUND);
+    }
+    if (collection.removeDocument(documentId, Collection.ANY_VERSION) != Collection.WriteResult.APPLIED) {
+      return response(BinaryProtocol.STATUS_DOCUMENT_NOT_FOUND);
+    }
+
+    database.awaitDurability();
+    return response(BinaryProtocol.STATUS_OK);
+  }
+
+  /**
+   * Handles a CREATE request, creating an empty collection.
+   *
+   * @param collectionName the name of the new collection
+   * @return the response frame
+   */
+  private ByteBuffer[] handleCreate(String collectionName) {
+    if (collectionName.isEmpty()) {
+      return response(BinaryProtocol.STATUS_INVALID_REQUEST);
+    }
+    if (!database.addCollection(collectionName, new Collection(collectionName))) {
+      return response(BinaryProtocol.STATUS_ALREADY_EXISTS);
+    }
+    database.awaitDurability();
+    return response(BinaryProtocol.STATUS_OK);
+  }
+
+  /**
+   * Builds a response frame without value.
+   *
+   * @param status the status code
+   * @return the response frame
+   */
+  private static ByteBuffer[] response(byte status) {
+    return new ByteBuffer[] { BinaryProtocol.encodeResponseHeader(status, 0) };
+  }
+
+  /**
+   * Builds a response frame carrying a value. The value is wrapped, not
+   * copied.
+   *
+   * @param status the status code
+   * @param value  the value
+   * @return the response frame
+   */
+  private static ByteBuffer[] response(byte status, byte[] value) {
+    return new ByteBuffer[] { BinaryProtocol.encodeResponseHeader(status, value.length), ByteBuffer.wrap(value) };
+  }
+
+  /**
+   * Builds a response frame carrying a value held in a buffer.
+   *
+   * @param status the status code
+   * @param value  the buffer holding the value
+   * @return the response frame
+   */
+  private static ByteBuffer[] response(byte status, ByteBuffer value) {
+    return new ByteBuffer[] { BinaryProtocol.encodeResponseHeader(status, value.remaining()), value };
+  }
+
+  /**
+   * Reads a UTF-8 string of the given length at the current position.
+   *
+   * @param buffer the buffer to read from
+   * @param length the length of the string in bytes
+   * @return the decoded string
+   */
+  private static String readString(ByteBuffer buffer, int length) {
+    if (length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+}
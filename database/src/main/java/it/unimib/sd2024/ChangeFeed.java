@@ -0,0 +1,229 @@
+package it.unimib.sd2024;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes the changes of the documents of a {@link Database} to the
+ * connections that asked for them with {@code WATCH}. Each change is an
+ * event line naming the collection, the document ID, the operation
+ * ({@code PUT}, {@code DELETE}, or {@code EXPIRE} when the reaper marks the
+ * document as expired) and the version of the document.
+ *
+ * <p>
+ * Events are published by the collections while the changed document is
+ * locked, so the events of a document are received in the order the changes
+ * were applied. Publishing never waits for a consumer: every subscription has a bounded
+ * buffer, and when a slow consumer lets it fill up the following events are
+ * dropped until the consumer has read the buffer. It then receives a single
+ * {@code OVERFLOW} event with the number of events dropped, after which the
+ * events flow again: the consumer must consider everything it derived from
+ * the earlier events stale and read the documents again.
+ */
+public final class ChangeFeed {
+  /**
+   * The highest number of events buffered for a subscription.
+   */
+  public static final int BUFFER_CAPACITY = 4096;
+
+  private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  /**
+   * The subscription of a connection to the changes of a collection, or of
+   * the documents of a collection whose ID starts with a prefix.
+   */
+  public final class Subscription {
+    private final String collection;
+    private final String prefix;
+    private final ArrayDeque<String> events = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private long dropped;
+    private boolean overflowed;
+    private boolean closed;
+    private volatile Runnable listener;
+
+    private Subscription(String collection, String prefix) {
+      this.collection = collection;
+      this.prefix = prefix;
+    }
+
+    /**
+     * Sets the action run when events become available after the buffer has
+     * been read, so a non-blocking server can be woken up. The action is run
+     * by the publishing thread and must not block.
+     *
+     * @param listener the action, or null
+     */
+    public void setListener(Runnable listener) {
+      this.listener = listener;
+      if (listener != null) {
+        listener.run();
+      }
+    }
+
+    /**
+     * Returns the buffered events, waiting until there is at least one. An
+     * {@code OVERFLOW} event follows the events received before the buffer
+     * filled up.
+     *
+     * @return the events, or null once the subscription is closed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<String> take() throws InterruptedException {
+      lock.lock();
+      try {
+        while (events.isEmpty() && !overflowed && !closed) {
+          ready.await();
+        }
+        return closed ? null : drain();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Returns the buffered events without waiting.
+     *
+     * @return the events, empty if there are none or the subscription is
+     *         closed
+     */
+    public List<String> poll() {
+      lock.lock();
+      try {
+        return closed ? new ArrayList<>() : drain();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Stops the subscription: no more events are buffered and a thread
+     * waiting in {@link #take()} returns.
+     */
+    public void close() {
+      subscriptions.remove(this);
+      lock.lock();
+      try {
+        closed = true;
+        events.clear();
+        ready.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Returns whether a change of a document is of interest.
+     *
+     * @param collectionName the name of the collection
+     * @param id             the ID of the document
+     * @return true if the subscription covers the document
+     */
+    private boolean covers(String collectionName, String id) {
+      return collection.equals(collectionName) && (prefix == null || id.startsWith(prefix));
+    }
+
+    /**
+     * Buffers an event, or counts it as dropped if the buffer is full.
+     *
+     * @param event the event line
+     */
+    private void offer(String event) {
+      boolean wasEmpty;
+      lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        wasEmpty = events.isEmpty() && !overflowed;
+        if (overflowed) {
+          dropped++;
+          return;
+        }
+        if (events.size() == BUFFER_CAPACITY) {
+          overflowed = true;
+          dropped = 1;
+        } else {
+          events.add(event);
+        }
+        ready.signal();
+      } finally {
+        lock.unlock();
+      }
+      Runnable current = listener;
+      if (wasEmpty && current != null) {
+        current.run();
+      }
+    }
+
+    /**
+     * Empties the buffer, appending the overflow event if events have been
+     * dropped. Called while the lock is held.
+     *
+     * @return the events
+     */
+    private List<String> drain() {
+      List<String> drained = new ArrayList<>(events);
+      events.clear();
+      if (overflowed) {
+        drained.add("{\"collection\": \"" + collection + "\",\"operation\": \"OVERFLOW\",\"dropped\": "
+            + dropped + "}");
+        overflowed = false;
+        dropped = 0;
+      }
+      return drained;
+    }
+  }
+
+  /**
+   * Subscribes to the changes of the documents of a collection.
+   *
+   * @param collection the name of the collection
+   * @param prefix     the prefix of the IDs of the documents, or null for
+   *                   every document
+   * @return the subscription, to be closed when no longer needed
+   */
+  public Subscription subscribe(String collection, String prefix) {
+    Subscription subscription = new Subscription(collection, prefix);
+    subscriptions.add(subscription);
+    return subscription;
+  }
+
+  /**
+   * Returns whether any connection is subscribed, so the collections can skip
+   * building events nobody reads.
+   *
+   * @return true if there is at least one subscription
+   */
+  boolean hasSubscriptions() {
+    return !subscriptions.isEmpty();
+  }
+
+  /**
+   * Publishes the change of a document to the subscriptions covering it.
+   * Called while the document is locked; never waits for a consumer.
+   *
+   * @param collection the name of the collection
+   * @param id         the ID of the document
+   * @param operation  {@code PUT}, {@code DELETE} or {@code EXPIRE}
+   * @param version    the version of the document after the change, or the
+   *                   version consumed by its removal
+   */
+  void publish(String collection, String id, String operation, long version) {
+    String event = null;
+    for (Subscription subscription : subscriptions) {
+      if (subscription.covers(collection, id)) {
+        if (event == null) {
+          event = "{\"collection\": \"" + collection + "\",\"id\": \"" + id + "\",\"operation\": \"" + operation
+              + "\",\"version\": " + version + "}";
+        }
+        subscription.offer(event);
+      }
+    }
+  }
+}
@@ -1,19 +1,117 @@
 package it.unimib.sd2024;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Represents a collection of documents in a database.
+ * The collection can hold {@link SecondaryIndex secondary indexes} on the
+ * top-level fields of the JSON data of its documents, which are updated
+ * together with the documents. The IDs are also kept in order, so the
+ * documents can be read in chunks with a {@link Scan}. A field can also be
+ * chosen to hold the time each document expires: the time is read when the
+ * document is written and kept in the {@link Document}, and an
+ * {@link ExpiryIndex} orders the documents by it.
+ *
+ * <p>
+ * Every write of a document gives it a new version, taken from a counter of
+ * the collection, so a version is never reused even after the document is
+ * removed and added again. Conditional writes ({@link #insertDocument},
+ * {@link #replaceDocument} and {@link #removeDocument(String, long)}) check
+ * and write a document in a single atomic step of the map holding it, so
+ * concurrent writers of the same document never need a lock of their own.
+ * Each write also holds one of a fixed set of striped locks, chosen by the
+ * document ID: a {@link Batch} takes the stripes of all its documents, so it
+ * can check and change several documents without other writes in between.
+ *
+ * <p>
+ * Every change increments the version of the collection. The string
+ * representation returned by {@link #toString()} is cached together with the
+ * version it was built at, and each {@link Document} caches its own
+ * fragment, so reading an unchanged collection again only returns the cached
+ * string and a collection changed by a few writes is rebuilt by copying the
+ * cached fragments of the other documents.
+ *
+ * <p>
+ * When the collection is given an {@link OffHeapArena}, the data of every
+ * document is stored in it and nothing is cached on the heap. A replaced or
+ * removed document is retired, so its block is reused once no read section
+ * of the arena can see it anymore. The methods of the collection reading
+ * documents open their own section; a document returned by
+ * {@link #getDocument(String)} must be read inside a section opened by the
+ * caller, see {@link #read(Supplier)}.
+ *
+ * <p>
+ * A collection can also be given an encoding: the data of its documents is
+ * then stored in the compact form of a {@link DocumentCodec}, on the heap or
+ * in the arena, and its string representation is not cached either.
  */
 public final class Collection {
+  /**
+   * The expected version of a conditional write that accepts any version.
+   */
+  public static final long ANY_VERSION = 0;
+  /**
+   * The number of striped write locks of a collection.
+   */
+  static final int WRITE_LOCK_STRIPES = 64;
+
+  /**
+   * The outcome of a conditional write.
+   */
+  public enum WriteResult {
+    APPLIED,
+    ALREADY_EXISTS,
+    NOT_FOUND,
+    VERSION_MISMATCH,
+    COLLECTION_NOT_FOUND
+  }
 
   private String name;
   private final ConcurrentHashMap<String, Document> documents;
+  private final ConcurrentHashMap<String, SecondaryIndex> indexes = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+  private final AtomicReference<ExpiryIndex> expiry = new AtomicReference<>();
+  private final AtomicLong version = new AtomicLong();
+  private final AtomicLong documentVersions = new AtomicLong();
+  private final ReentrantLock[] writeLocks = new ReentrantLock[WRITE_LOCK_STRIPES];
+  private volatile Serialized serialized;
   private final ReadWriteLock nameLock = new ReentrantReadWriteLock();
+  private volatile MutationListener listener;
+  private volatile ChangeFeed feed;
+  private volatile OffHeapArena arena;
+  private final AtomicReference<DocumentCodec> codec = new AtomicReference<>();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  /**
+   * The string representation of the collection at a given version.
+   */
+  private static final class Serialized {
+    private final long version;
+    private final String value;
+
+    private Serialized(long version, String value) {
+      this.version = version;
+      this.value = value;
+    }
+  }
 
   /**
    * Constructs a new Collection with the specified name.
@@ -25,6 +123,9 @@ public final class Collection {
     validateName(name);
     this.name = name;
     this.documents = new ConcurrentHashMap<>();
+    for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+      writeLocks[i] = new ReentrantLock();
+    }
   }
 
   /**
@@ -55,10 +156,13 @@ public final class Collection {
     } finally {
       nameLock.writeLock().unlock();
     }
+    version.incrementAndGet();
   }
 
   /**
-   * Returns all the documents in the collection as a {@link Map}.
+   * Returns all the documents in the collection as a {@link Map}. Documents
+   * stored in an arena must be read inside a section, see
+   * {@link #read(Supplier)}.
    *
    * @return a map of document IDs to documents
    */
@@ -74,38 +178,134 @@ public final class Collection {
    */
   public void setAllDocuments(ConcurrentHashMap<String, Document> documents) {
     validateDocuments(documents);
-    this.documents.clear();
-    this.documents.putAll(documents);
+    for (String id : this.documents.keySet()) {
+      if (!documents.containsKey(id)) {
+        removeDocument(id);
+      }
+    }
+    documents.forEach(this::addDocument);
   }
 
   /**
-   * Adds a document to the collection.
+   * Adds a document to the collection, replacing the document with the same
+   * ID if there is one. The document is given a new version.
    *
    * @param id       the ID of the document, must not be null
    * @param document the document to add, must not be null
    * @throws NullPointerException if either the id or document is null
    */
   public void addDocument(String id, Document document) {
+    restoreDocument(id, document, ANY_VERSION);
+  }
+
+  /**
+   * Adds a document to the collection only if no document has the same ID.
+   * The check and the insertion are a single atomic step, so when several
+   * clients insert the same ID at the same time exactly one of them succeeds.
+   *
+   * @param id       the ID of the document, must not be null
+   * @param document the document to add, must not be null
+   * @return {@link WriteResult#APPLIED}, or {@link WriteResult#ALREADY_EXISTS}
+   *         if the ID is taken
+   * @throws NullPointerException if either the id or document is null
+   */
+  public WriteResult insertDocument(String id, Document document) {
     Objects.requireNonNull(id, "Document ID cannot be null");
     Objects.requireNonNull(document, "Document cannot be null");
-    documents.put(id, document);
+    WriteResult[] result = { WriteResult.ALREADY_EXISTS };
+    Lock lock = writeLockOf(id);
+    lock.lock();
+    try {
+      documents.compute(id, (key, previous) -> {
+        if (previous != null) {
+          return previous;
+        }
+        result[0] = WriteResult.APPLIED;
+        return write(id, null, document, ANY_VERSION);
+      });
+    } finally {
+      lock.unlock();
+    }
+    if (result[0] == WriteResult.APPLIED) {
+      version.incrementAndGet();
+    }
+    return result[0];
   }
 
   /**
-   * Updates the data of a document in the collection.
+   * Updates the data of a document in the collection. The document is
+   * replaced by a new instance, so concurrent readers of the previous one
+   * (including a snapshot in progress) never observe a partial change.
    *
    * @param id   the ID of the document to update, must exist in the collection
    * @param data the new data for the document
    */
   public void updateDocument(String id, String data) {
-    Document document = documents.get(id);
-    if (document != null) {
-      document.setData(data);
+    replaceDocument(id, new Document(id, data), ANY_VERSION);
+  }
+
+  /**
+   * Updates the data of a document in the collection with UTF-8 encoded bytes.
+   *
+   * @param id   the ID of the document to update, must exist in the collection
+   * @param data the new UTF-8 encoded data for the document
+   */
+  public void updateDocument(String id, byte[] data) {
+    replaceDocument(id, new Document(id, data), ANY_VERSION);
+  }
+
+  /**
+   * Replaces an existing document if its version is the expected one. The
+   * check and the replacement are a single atomic step: of several clients
+   * replacing the same version at the same time, exactly one succeeds.
+   *
+   * @param id              the ID of the document to replace
+   * @param document        the document with the new data
+   * @param expectedVersion the version the document must have, or
+   *                        {@link #ANY_VERSION} to replace any version
+   * @return {@link WriteResult#APPLIED}, {@link WriteResult#NOT_FOUND} or
+   *         {@link WriteResult#VERSION_MISMATCH}
+   */
+  public WriteResult replaceDocument(String id, Document document, long expectedVersion) {
+    WriteResult[] result = { WriteResult.NOT_FOUND };
+    Lock lock = writeLockOf(id);
+    lock.lock();
+    try {
+      documents.computeIfPresent(id, (key, previous) -> {
+        if (expectedVersion != ANY_VERSION && previous.getVersion() != expectedVersion) {
+          result[0] = WriteResult.VERSION_MISMATCH;
+          return previous;
+        }
+        result[0] = WriteResult.APPLIED;
+        return write(id, previous, document, ANY_VERSION);
+      });
+    } finally {
+      lock.unlock();
+    }
+    if (result[0] == WriteResult.APPLIED) {
+      version.incrementAndGet();
     }
+    return result[0];
+  }
+
+  /**
+   * Performs the given action for each document of the collection without
+   * copying it. The iteration is weakly consistent: it reflects the documents
+   * at some point during the iteration.
+   *
+   * @param action the action to perform for each ID and document
+   */
+  public void forEachDocument(BiConsumer<String, Document> action) {
+    read(() -> {
+      documents.forEach(action);
+      return null;
+    });
   }
 
   /**
-   * Returns the document with the specified ID.
+   * Returns the document with the specified ID. If the collection stores data
+   * in an arena, the document must be looked up and read inside a section,
+   * see {@link #read(Supplier)}.
    *
    * @param id the ID of the document to retrieve
    * @return the document, or null if not found
@@ -120,7 +320,822 @@ public final class Collection {
    * @param id the ID of the document to remove
    */
   public void removeDocument(String id) {
-    documents.remove(id);
+    removeDocument(id, ANY_VERSION);
+  }
+
+  /**
+   * Removes a document if its version is the expected one. The check and the
+   * removal are a single atomic step.
+   *
+   * @param id              the ID of the document to remove
+   * @param expectedVersion the version the document must have, or
+   *                        {@link #ANY_VERSION} to remove any version
+   * @return {@link WriteResult#APPLIED}, {@link WriteResult#NOT_FOUND} or
+   *         {@link WriteResult#VERSION_MISMATCH}
+   */
+  public WriteResult removeDocument(String id, long expectedVersion) {
+    WriteResult[] result = { WriteResult.NOT_FOUND };
+    Lock lock = writeLockOf(id);
+    lock.lock();
+    try {
+      documents.computeIfPresent(id, (key, document) -> {
+        if (expectedVersion != ANY_VERSION && document.getVersion() != expectedVersion) {
+          result[0] = WriteResult.VERSION_MISMATCH;
+          return document;
+        }
+        long removal = documentVersions.incrementAndGet();
+        MutationListener current = listener;
+        if (current != null) {
+          // Logged first, so a failed log leaves the document and its indexes
+          current.onMutation(new Mutation(Mutation.Type.DELETE, getName(), id, null, removal));
+        }
+        result[0] = WriteResult.APPLIED;
+        keys.remove(id);
+        updateIndexes(id, document, Map.of());
+        ExpiryIndex currentExpiry = expiry.get();
+        if (currentExpiry != null) {
+          currentExpiry.update(id, document.getExpiresAt(), 0);
+        }
+        publish(id, "DELETE", removal);
+        document.retire();
+        return null;
+      });
+    } finally {
+      lock.unlock();
+    }
+    if (result[0] == WriteResult.APPLIED) {
+      version.incrementAndGet();
+    }
+    return result[0];
+  }
+
+  /**
+   * Returns the version of the collection, incremented after every change of
+   * its documents or name.
+   *
+   * @return the current version
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Creates a secondary index on a top-level field of the documents and fills
+   * it with the documents already in the collection. All the striped locks
+   * are held while the index is installed and filled, so the writes of the
+   * collection wait for it and none of them is missed.
+   *
+   * @param field the name of the field to index, must not be null or empty
+   * @param type  the kind of index
+   * @return true if the index has been created, false if the field is already
+   *         indexed
+   * @throws IllegalArgumentException if the field name is null or empty
+   */
+  public boolean createIndex(String field, SecondaryIndex.Type type) {
+    if (field == null || field.isEmpty()) {
+      throw new IllegalArgumentException("Field cannot be null or empty");
+    }
+    SecondaryIndex index = new SecondaryIndex(field, type);
+    lockAllStripes();
+    try {
+      if (indexes.putIfAbsent(field, index) != null) {
+        return false;
+      }
+
+      MutationListener current = listener;
+      if (current != null) {
+        current.onMutation(new Mutation(Mutation.Type.CREATE_INDEX, getName(), field,
+            type.name().getBytes(StandardCharsets.UTF_8)));
+      }
+      documents.forEach((id, document) ->
+          index.add(id, JsonFields.extract(document.getDataBytes(), Set.of(field)).get(field)));
+      return true;
+    } finally {
+      unlockAllStripes();
+    }
+  }
+
+  /**
+   * Returns the index on the specified field.
+   *
+   * @param field the name of the indexed field
+   * @return the index, or null if the field is not indexed
+   */
+  public SecondaryIndex getIndex(String field) {
+    return indexes.get(field);
+  }
+
+  /**
+   * Returns the indexes of the collection.
+   *
+   * @return a copy of the list of indexes
+   */
+  public List<SecondaryIndex> getIndexes() {
+    return new ArrayList<>(indexes.values());
+  }
+
+  /**
+   * Chooses the top-level field holding the time each document expires, see
+   * {@link ExpiryIndex} for the accepted values, and reads it from the
+   * documents already in the collection. A collection has at most one expiry
+   * field. As with {@link #createIndex}, all the striped locks are held while
+   * the field is set and read, so no write is missed.
+   *
+   * @param field the name of the field, must not be null or empty
+   * @return true if the field has been set, false if the collection already
+   *         has an expiry field
+   * @throws IllegalArgumentException if the field name is null or empty
+   */
+  public boolean setExpiryField(String field) {
+    if (field == null || field.isEmpty()) {
+      throw new IllegalArgumentException("Field cannot be null or empty");
+    }
+    ExpiryIndex index = new ExpiryIndex(field);
+    lockAllStripes();
+    try {
+      if (!expiry.compareAndSet(null, index)) {
+        return false;
+      }
+
+      MutationListener current = listener;
+      if (current != null) {
+        current.onMutation(new Mutation(Mutation.Type.SET_EXPIRY, getName(), field, null));
+      }
+      documents.replaceAll((id, document) -> {
+        long expiresAt = ExpiryIndex.parse(JsonFields.extract(document.getDataBytes(), Set.of(field)).get(field));
+        if (expiresAt == document.getExpiresAt()) {
+          return document;
+        }
+        index.update(id, document.getExpiresAt(), expiresAt);
+        return document.withExpiresAt(expiresAt);
+      });
+    } finally {
+      unlockAllStripes();
+    }
+    version.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Returns the name of the field holding the time each document expires.
+   *
+   * @return the field name, or null if the documents do not expire
+   */
+  public String getExpiryField() {
+    ExpiryIndex current = expiry.get();
+    return current == null ? null : current.getField();
+  }
+
+  /**
+   * Returns the latency of the requests naming this collection, see
+   * {@link Metrics}.
+   *
+   * @return the latency histogram
+   */
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  /**
+   * Chooses how the data of the documents is encoded, see
+   * {@link DocumentCodec}, and encodes the documents already in the
+   * collection. The encoding of a collection is chosen once.
+   *
+   * @param encoding the encoding, must not be null
+   * @return true if the encoding has been set, false if the collection
+   *         already has one
+   * @throws IllegalArgumentException if the encoding is null
+   */
+  public boolean setEncoding(DocumentCodec.Encoding encoding) {
+    if (encoding == null) {
+      throw new IllegalArgumentException("Encoding cannot be null");
+    }
+    if (!codec.compareAndSet(null, new DocumentCodec(encoding))) {
+      return false;
+    }
+
+    MutationListener current = listener;
+    if (current != null) {
+      current.onMutation(new Mutation(Mutation.Type.SET_ENCODING, getName(), encoding.name(), null));
+    }
+    for (String id : documents.keySet()) {
+      Lock lock = writeLockOf(id);
+      lock.lock();
+      try {
+        documents.computeIfPresent(id, (key, document) -> {
+          Document stored = store(id, document, document.getVersion(), document.getExpiresAt());
+          if (stored != document) {
+            document.retire();
+          }
+          return stored;
+        });
+      } finally {
+        lock.unlock();
+      }
+    }
+    version.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Returns how the data of the documents is encoded.
+   *
+   * @return the encoding, or null if the documents are stored as JSON
+   */
+  public DocumentCodec.Encoding getEncoding() {
+    DocumentCodec current = codec.get();
+    return current == null ? null : current.getEncoding();
+  }
+
+  /**
+   * Packs the documents that have not been read since the previous run in
+   * compressed blocks, and takes the documents read since then out of their
+   * block, when the collection has the {@link DocumentCodec.Encoding#COMPRESSED}
+   * encoding and keeps its data on the heap. Each document is swapped while
+   * it is locked, and only if it has not been written meanwhile; its version
+   * does not change.
+   *
+   * @return the number of documents moved in or out of a block
+   */
+  int compressCold() {
+    DocumentCodec current = codec.get();
+    if (current == null || current.getEncoding() != DocumentCodec.Encoding.COMPRESSED || arena != null) {
+      return 0;
+    }
+    int moved = 0;
+    List<String> ids = new ArrayList<>(DocumentCodec.BLOCK_SIZE);
+    List<Document> cold = new ArrayList<>(DocumentCodec.BLOCK_SIZE);
+    for (Map.Entry<String, Document> entry : documents.entrySet()) {
+      Document document = entry.getValue();
+      if (document.isInBlock()) {
+        if (!document.isCold() && swap(entry.getKey(), document, document.outOfBlock())) {
+          moved++;
+        }
+      } else if (document.markCold()) {
+        ids.add(entry.getKey());
+        cold.add(document);
+        if (ids.size() == DocumentCodec.BLOCK_SIZE) {
+          moved += pack(ids, cold);
+        }
+      }
+    }
+    if (!ids.isEmpty()) {
+      moved += pack(ids, cold);
+    }
+    return moved;
+  }
+
+  /**
+   * Compresses cold documents in a block and stores each one in its slot.
+   * The lists are cleared.
+   *
+   * @param ids  the IDs of the documents
+   * @param cold the documents
+   * @return the number of documents moved to the block
+   */
+  private int pack(List<String> ids, List<Document> cold) {
+    List<byte[]> encoded = new ArrayList<>(cold.size());
+    for (Document document : cold) {
+      encoded.add(document.getEncodedBytes());
+    }
+    DocumentCodec.Block block = DocumentCodec.compress(encoded);
+    int moved = 0;
+    for (int i = 0; i < ids.size(); i++) {
+      if (swap(ids.get(i), cold.get(i), cold.get(i).inBlock(block, i))) {
+        moved++;
+      }
+    }
+    ids.clear();
+    cold.clear();
+    return moved;
+  }
+
+  /**
+   * Replaces a document with another instance of the same version, unless it
+   * has been written or removed meanwhile.
+   *
+   * @param id          the ID of the document
+   * @param expected    the instance to replace
+   * @param replacement the new instance
+   * @return true if the document has been replaced
+   */
+  private boolean swap(String id, Document expected, Document replacement) {
+    boolean[] swapped = new boolean[1];
+    Lock lock = writeLockOf(id);
+    lock.lock();
+    try {
+      documents.computeIfPresent(id, (key, document) -> {
+        if (document != expected) {
+          return document;
+        }
+        swapped[0] = true;
+        return replacement;
+      });
+    } finally {
+      lock.unlock();
+    }
+    return swapped[0];
+  }
+
+  /**
+   * Returns the IDs of the documents expiring in a window of time.
+   *
+   * @param from the start of the window, inclusive, in milliseconds since the
+   *             epoch
+   * @param to   the end of the window, exclusive, in milliseconds since the
+   *             epoch
+   * @return the matching IDs ordered by expiry time, empty if the collection
+   *         has no expiry field
+   */
+  public List<String> expiring(long from, long to) {
+    ExpiryIndex current = expiry.get();
+    return current == null ? new ArrayList<>() : current.expiring(from, to);
+  }
+
+  /**
+   * Returns the IDs of the documents expired at a given time.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   * @return the matching IDs ordered by expiry time, empty if the collection
+   *         has no expiry field
+   */
+  public List<String> expired(long now) {
+    ExpiryIndex current = expiry.get();
+    return current == null ? new ArrayList<>() : current.expired(now);
+  }
+
+  /**
+   * Marks as expired the documents whose time has come, at most a given
+   * number per call so a run of the reaper never holds up the writers for
+   * long. Each document is marked while it is locked.
+   *
+   * @param now   the current time, in milliseconds since the epoch
+   * @param limit the highest number of documents to mark
+   * @return the number of documents marked
+   */
+  int reapExpired(long now, int limit) {
+    ExpiryIndex current = expiry.get();
+    if (current == null) {
+      return 0;
+    }
+    int reaped = 0;
+    for (ExpiryIndex.Entry entry : current.due(now, limit)) {
+      Lock lock = writeLockOf(entry.getId());
+      lock.lock();
+      try {
+        if (current.markExpired(entry)) {
+          reaped++;
+          Document document = documents.get(entry.getId());
+          publish(entry.getId(), "EXPIRE", document == null ? 0 : document.getVersion());
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return reaped;
+  }
+
+  /**
+   * Returns a string representation of some documents of the collection, in
+   * the same format as {@link #toString()}. IDs of documents that no longer
+   * exist are skipped.
+   *
+   * @param ids the IDs of the documents to include
+   * @return a string representation of the selected documents
+   */
+  public String toString(List<String> ids) {
+    return read(() -> {
+      Map<String, Document> selected = new LinkedHashMap<>();
+      for (String id : ids) {
+        Document document = documents.get(id);
+        if (document != null) {
+          selected.put(id, document);
+        }
+      }
+      return "{"
+          + "\"name\": \"" + getName() + "\","
+          + "\"allDocuments\": " + mapToString(selected)
+          + "}";
+    });
+  }
+
+  /**
+   * Runs a query on the collection and returns the matching documents, in the
+   * same format as {@link #toString()}, with only the projected fields. When
+   * a predicate can be answered by an index only the documents it selects are
+   * checked, otherwise the whole collection is scanned.
+   *
+   * @param query the query
+   * @return a string representation of the matching documents
+   */
+  public String find(Query query) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"name\": \"").append(getName()).append("\",\"allDocuments\": {");
+    int start = sb.length();
+    BiConsumer<String, Document> append = (id, document) -> {
+      if (document == null || !query.matches(document)) {
+        return;
+      }
+      if (sb.length() > start) {
+        sb.append(",");
+      }
+      sb.append("\"").append(id).append("\": {\"id\": \"").append(id).append("\",\"version\": ")
+          .append(document.getVersion());
+      if (document.getExpiresAt() != 0) {
+        sb.append(",\"expiresAt\": ").append(document.getExpiresAt());
+      }
+      sb.append(",\"data\":");
+      if (query.getProjection() == null) {
+        sb.append(document.getData());
+      } else {
+        sb.append(new String(JsonFields.project(document.getDataBytes(), query.getProjection()),
+            StandardCharsets.UTF_8));
+      }
+      sb.append("}");
+    };
+
+    List<String> candidates = query.candidates(this);
+    read(() -> {
+      if (candidates == null) {
+        documents.forEach(append);
+      } else {
+        for (String id : candidates) {
+          append.accept(id, documents.get(id));
+        }
+      }
+      return null;
+    });
+    return sb.append("}}").toString();
+  }
+
+  /**
+   * Returns one chunk of the documents in the range of a scan, in key order,
+   * in the same format as {@link #toString()} plus a {@code cursor} member:
+   * the opaque cursor of the next chunk, or null if the range is exhausted.
+   * The iteration is weakly consistent, like {@link #forEachDocument}.
+   *
+   * @param scan the range and the limit of the chunk
+   * @return a string representation of the chunk
+   */
+  public String scan(Scan scan) {
+    NavigableSet<String> tail = scan.getStart() == null ? keys
+        : keys.tailSet(scan.getStart(), scan.isStartInclusive());
+    NavigableSet<String> range = scan.getEnd() == null ? tail : tail.headSet(scan.getEnd(), false);
+
+    return read(() -> {
+      StringBuilder sb = new StringBuilder();
+      sb.append("{\"name\": \"").append(getName()).append("\",\"allDocuments\": {");
+      int start = sb.length();
+      int count = 0;
+      // The UTF-8 size of the chunk, counted up to the char at counted
+      long bytes = 0;
+      int counted = 0;
+      String last = null;
+      boolean more = false;
+      for (String id : range) {
+        bytes += JsonFields.utf8Length(sb, counted, sb.length());
+        counted = sb.length();
+        if (count == scan.getLimit() || bytes > Scan.MAX_CHUNK_BYTES) {
+          more = true;
+          break;
+        }
+        Document document = documents.get(id);
+        if (document == null) {
+          continue;
+        }
+        if (sb.length() > start) {
+          sb.append(",");
+        }
+        sb.append("\"").append(id).append("\": ").append(document);
+        last = id;
+        count++;
+      }
+      sb.append("},\"cursor\": ");
+      if (more) {
+        sb.append("\"").append(scan.cursorAfter(last)).append("\"");
+      } else {
+        sb.append("null");
+      }
+      return sb.append("}").toString();
+    });
+  }
+
+  /**
+   * Runs a read of the documents of the collection. If the collection stores
+   * data in an arena, the read runs inside a section of the arena, so the
+   * blocks of the documents it sees are not reused before it returns; the
+   * documents must not be read after that.
+   *
+   * @param <T>    the type of the result
+   * @param reader the read to run
+   * @return the result of the read
+   */
+  public <T> T read(Supplier<T> reader) {
+    OffHeapArena current = arena;
+    if (current == null) {
+      return reader.get();
+    }
+    long section = current.enter();
+    try {
+      return reader.get();
+    } finally {
+      current.exit(section);
+    }
+  }
+
+  /**
+   * Sets the listener notified of every document change. The listener is
+   * invoked while the document is locked, see {@link MutationListener}.
+   *
+   * @param listener the listener, or null to stop notifying changes
+   */
+  void setMutationListener(MutationListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Sets the feed the changes of the documents are published to. Like the
+   * mutation listener, the feed is notified while the document is locked.
+   *
+   * @param feed the feed, or null to stop publishing changes
+   */
+  void setChangeFeed(ChangeFeed feed) {
+    this.feed = feed;
+  }
+
+  /**
+   * Adds a document with a given version, replacing the document with the
+   * same ID if there is one. Used to reload documents from a snapshot or the
+   * log, so that they keep the versions they were written with.
+   *
+   * @param id       the ID of the document, must not be null
+   * @param document the document to add, must not be null
+   * @param version  the version of the document, or {@link #ANY_VERSION} to
+   *                 give it a new one
+   * @throws NullPointerException if either the id or document is null
+   */
+  void restoreDocument(String id, Document document, long version) {
+    Objects.requireNonNull(id, "Document ID cannot be null");
+    Objects.requireNonNull(document, "Document cannot be null");
+    Lock lock = writeLockOf(id);
+    lock.lock();
+    try {
+      documents.compute(id, (key, previous) -> write(id, previous, document, version));
+    } finally {
+      lock.unlock();
+    }
+    this.version.incrementAndGet();
+  }
+
+  /**
+   * Returns the striped lock held by the writes of a document.
+   *
+   * @param id the ID of the document
+   * @return the lock
+   */
+  Lock writeLockOf(String id) {
+    return writeLocks[writeStripeOf(id)];
+  }
+
+  /**
+   * Returns a striped write lock by index.
+   *
+   * @param stripe the index of the stripe
+   * @return the lock
+   */
+  Lock writeLockAt(int stripe) {
+    return writeLocks[stripe];
+  }
+
+  /**
+   * Takes all the striped write locks, in order, so no write of a document
+   * runs until {@link #unlockAllStripes()}.
+   */
+  private void lockAllStripes() {
+    for (Lock lock : writeLocks) {
+      lock.lock();
+    }
+  }
+
+  /**
+   * Releases the locks taken by {@link #lockAllStripes()}.
+   */
+  private void unlockAllStripes() {
+    for (int i = writeLocks.length - 1; i >= 0; i--) {
+      writeLocks[i].unlock();
+    }
+  }
+
+  /**
+   * Returns the index of the striped lock held by the writes of a document.
+   * Locks with a lower index must be taken first.
+   *
+   * @param id the ID of the document
+   * @return the index of the stripe
+   */
+  static int writeStripeOf(String id) {
+    int hash = id.hashCode();
+    return (hash ^ (hash >>> 16)) & (WRITE_LOCK_STRIPES - 1);
+  }
+
+  /**
+   * Makes sure that the versions given to documents from now on are higher
+   * than the specified one.
+   *
+   * @param used a version already given to a document
+   */
+  void advanceVersion(long used) {
+    documentVersions.accumulateAndGet(used, Math::max);
+  }
+
+  /**
+   * Returns the highest version given to a document of the collection.
+   *
+   * @return the last version used
+   */
+  long getLastDocumentVersion() {
+    return documentVersions.get();
+  }
+
+  /**
+   * Sets the arena storing the data of the documents. The documents already
+   * in the collection are moved to it.
+   *
+   * @param arena the arena, or null to keep the data of new documents on the
+   *              heap
+   */
+  void setArena(OffHeapArena arena) {
+    this.arena = arena;
+    if (arena == null) {
+      return;
+    }
+    for (String id : documents.keySet()) {
+      documents.computeIfPresent(id, (key, document) -> {
+        if (document.isStoredIn(arena)) {
+          return document;
+        }
+        Document stored = store(id, document, document.getVersion(), document.getExpiresAt());
+        if (stored != document) {
+          document.retire();
+        }
+        return stored;
+      });
+    }
+  }
+
+  /**
+   * Writes a document in place of the previous one with the same ID. Called
+   * while the document is locked: the new document is given its version and
+   * expiry time, stored and logged, and only then indexed and published, and
+   * the previous one is retired. If the listener fails, for example because
+   * the log is closed, nothing of the write is left: the map keeps the
+   * previous document, the indexes are untouched and the block of the new
+   * one is freed.
+   *
+   * @param id       the ID of the document
+   * @param previous the document being replaced, or null if added
+   * @param document the document with the new data
+   * @param version  the version to give to the document, or
+   *                 {@link #ANY_VERSION} to take a new one
+   * @return the document to keep
+   */
+  private Document write(String id, Document previous, Document document, long version) {
+    long assigned = version;
+    if (assigned == ANY_VERSION) {
+      assigned = documentVersions.incrementAndGet();
+    } else {
+      advanceVersion(assigned);
+    }
+    ExpiryIndex currentExpiry = expiry.get();
+    Map<String, String> values = indexedValues(document, currentExpiry);
+    long expiresAt = currentExpiry == null ? 0 : ExpiryIndex.parse(values.get(currentExpiry.getField()));
+    Document stored = store(id, document, assigned, expiresAt);
+    try {
+      notifyPut(id, document, assigned);
+    } catch (RuntimeException e) {
+      if (stored != document) {
+        stored.retire();
+      }
+      throw e;
+    }
+    if (previous == null) {
+      keys.add(id);
+    }
+    updateIndexes(id, previous, values);
+    if (currentExpiry != null) {
+      currentExpiry.update(id, previous == null ? 0 : previous.getExpiresAt(), expiresAt);
+    }
+    publish(id, "PUT", assigned);
+    if (previous != null && previous != stored) {
+      previous.retire();
+    }
+    return stored;
+  }
+
+  /**
+   * Returns the instance of a document kept in the collection, with the
+   * specified version and expiry time: the document itself if it has never
+   * been stored, or a copy, stored in the arena of the collection if there is
+   * one, or encoded by the codec of the collection if there is one. A
+   * document already stored in a collection is never shared, since its
+   * version and its block belong to that collection.
+   *
+   * @param id        the ID of the document
+   * @param document  the document
+   * @param version   the version of the stored document
+   * @param expiresAt the expiry time of the stored document, or 0
+   * @return the document to keep
+   */
+  private Document store(String id, Document document, long version, long expiresAt) {
+    OffHeapArena current = arena;
+    DocumentCodec currentCodec = codec.get();
+    Document stored = document;
+    if (currentCodec != null) {
+      byte[] encoded = currentCodec.encode(document.getDataBytes());
+      stored = current != null ? new Document(id, current, currentCodec, encoded)
+          : new Document(id, currentCodec, encoded);
+    } else if (current != null) {
+      stored = new Document(id, current, document.getDataBytes());
+    } else if (document.getVersion() != 0) {
+      stored = new Document(id, document.getDataBytes());
+    }
+    stored.setVersion(version);
+    stored.setExpiresAt(expiresAt);
+    return stored;
+  }
+
+  /**
+   * Moves a document between the entries of every index. Called while the
+   * document is locked, so the indexes see the changes of a document in the
+   * order they are applied.
+   *
+   * @param id        the ID of the document
+   * @param before    the previous version of the document, or null if added
+   * @param newValues the indexed fields of the new version, as returned by
+   *                  {@link #indexedValues}, or an empty map if removed
+   */
+  private void updateIndexes(String id, Document before, Map<String, String> newValues) {
+    if (indexes.isEmpty()) {
+      return;
+    }
+    Map<String, String> oldValues = before == null ? Map.of()
+        : JsonFields.extract(before.getDataBytes(), indexes.keySet());
+    indexes.forEach((field, index) -> {
+      String oldValue = oldValues.get(field);
+      String newValue = newValues.get(field);
+      if (!Objects.equals(oldValue, newValue)) {
+        index.remove(id, oldValue);
+        index.add(id, newValue);
+      }
+    });
+  }
+
+  /**
+   * Reads the indexed fields of a document and the field holding its expiry
+   * time, in a single pass over its data.
+   *
+   * @param document the document
+   * @param expiry   the expiry index of the collection, or null
+   * @return a map of field names to values
+   */
+  private Map<String, String> indexedValues(Document document, ExpiryIndex expiry) {
+    Set<String> fields = indexes.keySet();
+    if (expiry != null && !fields.contains(expiry.getField())) {
+      fields = new HashSet<>(fields);
+      fields.add(expiry.getField());
+    }
+    if (fields.isEmpty()) {
+      return Map.of();
+    }
+    return JsonFields.extract(document.getDataBytes(), fields);
+  }
+
+  /**
+   * Notifies the listener, if any, that a document has been written.
+   *
+   * @param id       the ID of the document
+   * @param document the document with its new data
+   * @param version  the version of the document
+   */
+  private void notifyPut(String id, Document document, long version) {
+    MutationListener current = listener;
+    if (current != null) {
+      current.onMutation(new Mutation(Mutation.Type.PUT, getName(), id, document.getDataBytes(), version));
+    }
+  }
+
+  /**
+   * Publishes the change of a document to the change feed, if any.
+   *
+   * @param id        the ID of the document
+   * @param operation the kind of change
+   * @param version   the version of the document after the change
+   */
+  private void publish(String id, String operation, long version) {
+    ChangeFeed current = feed;
+    if (current != null && current.hasSubscriptions()) {
+      current.publish(getName(), id, operation, version);
+    }
   }
 
   /**
@@ -131,23 +1146,58 @@ public final class Collection {
    */
   private static String mapToString(Map<String, Document> documents) {
     StringBuilder sb = new StringBuilder();
+    appendDocuments(sb, documents);
+    return sb.toString();
+  }
+
+  /**
+   * Appends the string representation of a {@link Map} of documents, using the
+   * fragment cached by each document.
+   *
+   * @param sb        the builder to append to
+   * @param documents the Map to convert to a string
+   */
+  private static void appendDocuments(StringBuilder sb, Map<String, Document> documents) {
     sb.append("{");
+    int start = sb.length();
     documents.forEach((id, doc) -> {
-      sb.append("\"").append(id).append("\": ").append(doc).append(",");
+      if (sb.length() > start) {
+        sb.append(",");
+      }
+      sb.append("\"").append(id).append("\": ").append(doc);
     });
-    if (sb.lastIndexOf(",") > -1) {
-      sb.delete(sb.lastIndexOf(","), sb.length());
-    }
     sb.append("}");
-    return sb.toString();
   }
 
+  /**
+   * Returns the string representation of the collection, rebuilt only if the
+   * collection changed since it was last built. The version is read before
+   * the documents: a change made during the rebuild increments it again, so
+   * a string missing that change is never returned after the change is
+   * complete. The string is not cached when the data is kept off the heap
+   * or encoded.
+   *
+   * @return the string representation of the collection
+   */
   @Override
   public String toString() {
-    return "{"
-        + "\"name\": \"" + name + "\","
-        + "\"allDocuments\": " + mapToString(this.documents)
-        + "}";
+    long current = version.get();
+    Serialized cached = serialized;
+    if (cached != null && cached.version == current) {
+      return cached.value;
+    }
+
+    StringBuilder sb = new StringBuilder(cached == null ? 64 : cached.value.length() + 64);
+    sb.append("{\"name\": \"").append(getName()).append("\",\"allDocuments\": ");
+    read(() -> {
+      appendDocuments(sb, documents);
+      return null;
+    });
+    String value = sb.append("}").toString();
+    if (arena == null && codec.get() == null) {
+      serialized = new Serialized(current, value);
+    }
+    return value;
   }
 
   /**
@@ -0,0 +1,53 @@
+package it.unimib.sd2024;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The commands understood by the {@link ProtocolHandler}.
+ */
+public enum Command {
+  CREATE,
+  GET,
+  POST,
+  PUT,
+  DELETE,
+  PROTOCOL,
+  INDEX,
+  LOOKUP,
+  RANGE,
+  FIND,
+  SCAN,
+  MULTI,
+  EXEC,
+  DISCARD,
+  EXPIRY,
+  EXPIRING,
+  EXPIRED,
+  WATCH,
+  ENCODING,
+  REPLICATE,
+  REPLICATION,
+  STATS;
+
+  private static final Command[] VALUES = values();
+
+  private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * Returns the command spelled by the specified bytes, without allocating.
+   *
+   * @param bytes the buffer holding the command name
+   * @param from  the index of the first byte of the name, inclusive
+   * @param to    the index of the last byte of the name, exclusive
+   * @return the matching command, or null if the name is not a command
+   */
+  public static Command match(byte[] bytes, int from, int to) {
+    for (Command command : VALUES) {
+      if (Arrays.equals(command.name, 0, command.name.length, bytes, from, to)) {
+        return command;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,74 @@
+package it.unimib.sd2024;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A JDK Flight Recorder event for a request handled by the database, emitted
+ * by the {@link ProtocolHandler} and the {@link BinaryProtocolHandler}. Only
+ * the requests lasting longer than the threshold (10 ms unless the recording
+ * settings change it) are recorded, and the fields are only filled for them.
+ * When no recording is running the event costs nothing: it is never
+ * allocated and its timing calls do nothing.
+ */
+@Name(CommandEvent.NAME)
+@Label("Database Command")
+@Category({ "Database", "Commands" })
+@Description("A request handled by the database")
+@Threshold("10 ms")
+@StackTrace(false)
+final class CommandEvent extends Event {
+  /**
+   * The name of the event in the recordings.
+   */
+  static final String NAME = "it.unimib.sd2024.Command";
+
+  @Label("Command")
+  String command;
+
+  @Label("Collection")
+  String collection;
+
+  @Label("Key")
+  @Description("The document ID, or the first argument of the command")
+  String key;
+
+  @Label("Protocol")
+  String protocol;
+
+  @Label("Request Size")
+  @DataAmount
+  long requestSize;
+
+  @Label("Response Size")
+  @DataAmount
+  long responseSize;
+
+  /**
+   * Fills the fields of the event and commits it.
+   *
+   * @param command      the command of the request
+   * @param collection   the collection named by the request, or null
+   * @param key          the document ID of the request, or null
+   * @param protocol     the protocol of the connection, {@code text} or
+   *                     {@code binary}
+   * @param requestSize  the size of the request in bytes
+   * @param responseSize the size of the response in bytes
+   */
+  void commit(Command command, String collection, String key, String protocol, long requestSize,
+      long responseSize) {
+    this.command = command.name();
+    this.collection = collection;
+    this.key = key;
+    this.protocol = protocol;
+    this.requestSize = requestSize;
+    this.responseSize = responseSize;
+    commit();
+  }
+}
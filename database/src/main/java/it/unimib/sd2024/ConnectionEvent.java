@@ -0,0 +1,81 @@
+package it.unimib.sd2024;
+
+import java.net.SocketAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JDK Flight Recorder event for a client connection, lasting from its
+ * opening to its closing. Since the event is only written when the
+ * connection closes, the opening is also recorded on its own by an
+ * {@link Opened} event, so the connections still open when the recording
+ * is dumped can be found.
+ */
+@Name(ConnectionEvent.NAME)
+@Label("Database Connection")
+@Category({ "Database", "Connections" })
+@Description("A client connection, from its opening to its closing")
+@StackTrace(false)
+final class ConnectionEvent extends Event {
+  /**
+   * The name of the event in the recordings.
+   */
+  static final String NAME = "it.unimib.sd2024.Connection";
+
+  @Label("Remote Address")
+  String remoteAddress;
+
+  /**
+   * The opening of a client connection.
+   */
+  @Name(Opened.NAME)
+  @Label("Database Connection Opened")
+  @Category({ "Database", "Connections" })
+  @Description("A client connection was accepted")
+  @StackTrace(false)
+  static final class Opened extends Event {
+    /**
+     * The name of the event in the recordings.
+     */
+    static final String NAME = "it.unimib.sd2024.ConnectionOpened";
+
+    @Label("Remote Address")
+    String remoteAddress;
+  }
+
+  /**
+   * Records the opening of a connection and starts timing it.
+   *
+   * @param address the address of the client
+   * @return the event to pass to {@link #closed(SocketAddress)} when the
+   *         connection closes
+   */
+  static ConnectionEvent opened(SocketAddress address) {
+    Opened opened = new Opened();
+    if (opened.shouldCommit()) {
+      opened.remoteAddress = String.valueOf(address);
+      opened.commit();
+    }
+    ConnectionEvent event = new ConnectionEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Records the closing of the connection.
+   *
+   * @param address the address of the client
+   */
+  void closed(SocketAddress address) {
+    end();
+    if (shouldCommit()) {
+      remoteAddress = String.valueOf(address);
+      commit();
+    }
+  }
+}
@@ -1,7 +1,14 @@
 package it.unimib.sd2024;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Represents a database with collections.
@@ -10,6 +17,13 @@ import java.util.concurrent.ConcurrentHashMap;
 public final class Database {
   private String name;
   private ConcurrentHashMap<String, Collection> collections;
+  private volatile WriteAheadLog writeAheadLog;
+  private volatile OffHeapArena arena;
+  private final ChangeFeed changeFeed = new ChangeFeed();
+  private volatile LogShipper logShipper;
+  private volatile ReplicaClient replicaClient;
+  private final Metrics metrics = new Metrics();
+  private final AdmissionControl[] admissionControls = new AdmissionControl[Lane.values().length];
 
   /**
    * Constructs a new Database with the specified name.
@@ -59,22 +73,49 @@ public final class Database {
    */
   public void setAllCollections(ConcurrentHashMap<String, Collection> collections) {
     validateCollections(collections);
-    this.collections.clear();
-    this.collections.putAll(collections);
+    for (String existing : this.collections.keySet()) {
+      removeCollection(existing);
+    }
+    collections.forEach(this::addCollection);
   }
 
   /**
-   * Adds a new collection to the database.
+   * Adds a new collection to the database, unless a collection with the same
+   * name exists. The check and the insertion are a single atomic step, so
+   * when several clients create the same collection at the same time exactly
+   * one of them succeeds, and only that one is logged.
    *
    * @param name       the name of the collection, must not be null or empty.
    * @param collection the collection to add, must not be null.
+   * @return true if the collection has been added, false if the name is taken.
    * @throws IllegalArgumentException if name is null, empty, or if collection is
    *                                  null.
    */
-  public void addCollection(String name, Collection collection) {
+  public boolean addCollection(String name, Collection collection) {
     Objects.requireNonNull(name, "Collection name cannot be null");
     Objects.requireNonNull(collection, "Collection cannot be null");
-    collections.put(name, collection);
+    boolean[] added = new boolean[1];
+    collections.compute(name, (key, previous) -> {
+      if (previous != null) {
+        return previous;
+      }
+      WriteAheadLog log = writeAheadLog;
+      if (log != null) {
+        log.onMutation(new Mutation(Mutation.Type.CREATE_COLLECTION, name, null, null));
+        collection.forEachDocument((id, document) -> log.onMutation(
+            new Mutation(Mutation.Type.PUT, name, id, document.getDataBytes())));
+        for (SecondaryIndex index : collection.getIndexes()) {
+          log.onMutation(new Mutation(Mutation.Type.CREATE_INDEX, name, index.getField(),
+              index.getType().name().getBytes(StandardCharsets.UTF_8)));
+        }
+      }
+      collection.setArena(arena);
+      collection.setMutationListener(log);
+      collection.setChangeFeed(changeFeed);
+      added[0] = true;
+      return collection;
+    });
+    return added[0];
   }
 
   /**
@@ -100,7 +141,14 @@ public final class Database {
    * @throws IllegalArgumentException if name is null or empty
    */
   public void removeCollection(String name) {
-    collections.remove(name);
+    collections.computeIfPresent(name, (key, collection) -> {
+      collection.setMutationListener(null);
+      WriteAheadLog log = writeAheadLog;
+      if (log != null) {
+        log.onMutation(new Mutation(Mutation.Type.DROP_COLLECTION, name, null, null));
+      }
+      return null;
+    });
   }
 
   /**
@@ -113,6 +161,303 @@ public final class Database {
     return collections.get(name);
   }
 
+  /**
+   * Applies the writes of a batch atomically: either all of them or none.
+   * The striped write locks of every document of the batch are taken, always
+   * in the same order (by collection name, then by stripe), so concurrent
+   * batches never deadlock. The conditions of all the writes are checked
+   * first, taking into account the earlier writes of the batch; the writes are
+   * then applied and recorded in the log as a single record before the locks
+   * are released.
+   *
+   * @param batch the batch to apply
+   * @return the result of the batch
+   * @throws IllegalStateException if the log can no longer be written
+   */
+  public Batch.Result execute(Batch batch) {
+    List<Batch.Operation> operations = batch.getOperations();
+    Collection[] targets = new Collection[operations.size()];
+    Map<String, Collection> byName = new HashMap<>();
+    TreeMap<String, boolean[]> stripes = new TreeMap<>();
+    for (int i = 0; i < operations.size(); i++) {
+      Batch.Operation operation = operations.get(i);
+      targets[i] = byName.computeIfAbsent(operation.getCollection(), collections::get);
+      if (targets[i] == null) {
+        return new Batch.Result(i, Collection.WriteResult.COLLECTION_NOT_FOUND);
+      }
+      stripes.computeIfAbsent(operation.getCollection(),
+          name -> new boolean[Collection.WRITE_LOCK_STRIPES])[Collection.writeStripeOf(operation.getId())] = true;
+    }
+
+    List<Lock> locks = new ArrayList<>();
+    stripes.forEach((name, taken) -> {
+      for (int stripe = 0; stripe < taken.length; stripe++) {
+        if (taken[stripe]) {
+          locks.add(byName.get(name).writeLockAt(stripe));
+        }
+      }
+    });
+    for (Lock lock : locks) {
+      lock.lock();
+    }
+    try {
+      Batch.Result result = check(operations, targets);
+      if (result.isApplied()) {
+        apply(operations, targets);
+      }
+      return result;
+    } finally {
+      for (int i = locks.size() - 1; i >= 0; i--) {
+        locks.get(i).unlock();
+      }
+    }
+  }
+
+  /**
+   * Marks as expired the documents of every collection whose time has come,
+   * at most {@link ExpiryIndex#MAX_REAPED_PER_RUN} per collection, so a run
+   * never takes long even when many documents expire together: the rest are
+   * marked by the following runs.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   * @return the number of documents marked
+   */
+  public int reapExpired(long now) {
+    int reaped = 0;
+    for (Collection collection : collections.values()) {
+      reaped += collection.reapExpired(now, ExpiryIndex.MAX_REAPED_PER_RUN);
+    }
+    return reaped;
+  }
+
+  /**
+   * Runs the compressor of the cold documents on every collection with the
+   * {@link DocumentCodec.Encoding#COMPRESSED} encoding, see
+   * {@link Collection#compressCold()}.
+   *
+   * @return the number of documents moved in or out of a compressed block
+   */
+  public int compressCold() {
+    int moved = 0;
+    for (Collection collection : collections.values()) {
+      moved += collection.compressCold();
+    }
+    return moved;
+  }
+
+  /**
+   * Attaches a write-ahead log to the database: from now on every change is
+   * appended to it. The log must be attached after it has been replayed.
+   *
+   * @param log the log to attach, or null to detach the current one
+   */
+  public void attachLog(WriteAheadLog log) {
+    this.writeAheadLog = log;
+    collections.forEach((name, collection) -> collection.setMutationListener(log));
+  }
+
+  /**
+   * Sets the arena keeping the data of the documents outside of the heap.
+   * Collections added afterwards store the data of their documents in it, so
+   * the arena must be set before the database is loaded.
+   *
+   * @param arena the arena, or null to keep the data on the heap
+   */
+  public void setArena(OffHeapArena arena) {
+    this.arena = arena;
+  }
+
+  /**
+   * Returns the arena keeping the data of the documents outside of the heap.
+   *
+   * @return the arena, or null if the data is kept on the heap
+   */
+  public OffHeapArena getArena() {
+    return arena;
+  }
+
+  /**
+   * Returns the feed publishing the changes of the documents of every
+   * collection.
+   *
+   * @return the change feed
+   */
+  public ChangeFeed getChangeFeed() {
+    return changeFeed;
+  }
+
+  /**
+   * Returns the statistics of the requests served on this database.
+   *
+   * @return the metrics
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets the admission control limiting the requests of a lane executed at
+   * the same time on this database. The admission controls must be set
+   * before the database serves requests.
+   *
+   * @param lane             the lane
+   * @param admissionControl the admission control, or null to execute every
+   *                         request of the lane at once
+   */
+  public void setAdmissionControl(Lane lane, AdmissionControl admissionControl) {
+    admissionControls[lane.ordinal()] = admissionControl;
+  }
+
+  /**
+   * Returns the admission control limiting the requests of a lane executed
+   * at the same time on this database.
+   *
+   * @param lane the lane
+   * @return the admission control, or null if the requests of the lane are
+   *         not limited
+   */
+  public AdmissionControl getAdmissionControl(Lane lane) {
+    return admissionControls[lane.ordinal()];
+  }
+
+  /**
+   * Sets the shipper sending the log of this database to its replicas.
+   *
+   * @param logShipper the shipper, or null if the database has no log
+   */
+  public void setLogShipper(LogShipper logShipper) {
+    this.logShipper = logShipper;
+  }
+
+  /**
+   * Returns the shipper sending the log of this database to its replicas.
+   *
+   * @return the shipper, or null if the database cannot have replicas
+   */
+  public LogShipper getLogShipper() {
+    return logShipper;
+  }
+
+  /**
+   * Makes this database a read-only replica, kept up to date by a client of
+   * its primary.
+   *
+   * @param replicaClient the client of the primary
+   */
+  public void setReplicaClient(ReplicaClient replicaClient) {
+    this.replicaClient = replicaClient;
+  }
+
+  /**
+   * Returns the client keeping this replica up to date.
+   *
+   * @return the client, or null if this database is not a replica
+   */
+  public ReplicaClient getReplicaClient() {
+    return replicaClient;
+  }
+
+  /**
+   * Returns whether the clients may only read this database, because it is a
+   * replica whose changes come from its primary.
+   *
+   * @return true if the database is a replica
+   */
+  public boolean isReadOnly() {
+    return replicaClient != null;
+  }
+
+  /**
+   * Waits until the changes made by the calling thread are as durable as
+   * required by the {@link Durability} of the attached log. Returns
+   * immediately if no log is attached.
+   *
+   * @throws IllegalStateException if the log can no longer be written
+   */
+  public void awaitDurability() {
+    WriteAheadLog log = writeAheadLog;
+    if (log != null) {
+      log.awaitDurability();
+    }
+  }
+
+  /**
+   * Checks the conditions of the writes of a batch, whose documents are
+   * locked. The versions left by the earlier writes of the batch are tracked,
+   * so a document inserted by the batch can be updated by a later write of
+   * the same batch, but not with a condition on its version.
+   *
+   * @param operations the writes of the batch
+   * @param targets    the collection of each write
+   * @return the result of the batch if it were applied
+   */
+  private static Batch.Result check(List<Batch.Operation> operations, Collection[] targets) {
+    Map<String, Long> written = new HashMap<>();
+    for (int i = 0; i < operations.size(); i++) {
+      Batch.Operation operation = operations.get(i);
+      String key = operation.getCollection() + '\n' + operation.getId();
+      Long pending = written.get(key);
+      long current;
+      if (pending != null) {
+        current = pending;
+      } else {
+        Document document = targets[i].getDocument(operation.getId());
+        current = document == null ? 0 : document.getVersion();
+      }
+
+      Collection.WriteResult failure = null;
+      if (operation.getType() == Batch.Type.INSERT) {
+        if (current != 0) {
+          failure = Collection.WriteResult.ALREADY_EXISTS;
+        }
+      } else if (current == 0) {
+        failure = Collection.WriteResult.NOT_FOUND;
+      } else if (operation.getExpectedVersion() != Collection.ANY_VERSION
+          && operation.getExpectedVersion() != current) {
+        failure = Collection.WriteResult.VERSION_MISMATCH;
+      }
+      if (failure != null) {
+        return new Batch.Result(i, failure);
+      }
+      written.put(key, operation.getType() == Batch.Type.REMOVE ? 0L : -1L);
+    }
+    return Batch.Result.APPLIED;
+  }
+
+  /**
+   * Applies the writes of a batch whose conditions hold, collecting their
+   * mutations into a single log record.
+   *
+   * @param operations the writes of the batch
+   * @param targets    the collection of each write
+   */
+  private void apply(List<Batch.Operation> operations, Collection[] targets) {
+    WriteAheadLog log = writeAheadLog;
+    if (log != null) {
+      log.beginBatch();
+    }
+    try {
+      for (int i = 0; i < operations.size(); i++) {
+        Batch.Operation operation = operations.get(i);
+        switch (operation.getType()) {
+          case INSERT:
+            targets[i].insertDocument(operation.getId(), operation.getDocument());
+            break;
+          case REPLACE:
+            targets[i].replaceDocument(operation.getId(), operation.getDocument(), Collection.ANY_VERSION);
+            break;
+          default:
+            targets[i].removeDocument(operation.getId(), Collection.ANY_VERSION);
+            break;
+        }
+      }
+    } finally {
+      if (log != null) {
+        log.commitBatch();
+      }
+    }
+  }
+
   /**
    * Validates the name of the collection.
    *
@@ -1,14 +1,51 @@
 package it.unimib.sd2024;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 /**
- * Represents a document with an ID and data.
- * This class is not thread-safe.
+ * Represents a document with an ID, data and a version.
+ * The version is assigned by the {@link Collection} the document is stored
+ * in: it changes at every write of the document and is never reused within
+ * the collection, so it can be used for conditional writes. A collection with
+ * an {@link ExpiryIndex} also gives each document the time it expires.
+ * The data can be provided either as a string or as UTF-8 bytes; the other
+ * representation is only computed when first requested, so documents written
+ * and read through the binary protocol are never converted to UTF-16.
+ * Documents loaded from a {@link Snapshot} keep their data in the mapped file:
+ * only the string, once requested, is cached, and the bytes are copied out on
+ * every request, so reading the fields of every document while loading does
+ * not bring them all onto the heap. Documents stored in an {@link OffHeapArena}
+ * keep only the handle of their block and copy the data out on every
+ * request, so nothing of it is cached on the heap; they must be read inside
+ * a section of the arena, see {@link OffHeapArena#enter()}.
+ * Documents of a collection with a {@link DocumentCodec} keep their data
+ * encoded, on the heap, in the arena or in a compressed block shared with
+ * other cold documents, and decode it on every request; reading the data for
+ * a client marks the document as warm, so the compressor leaves it out of
+ * (or takes it back from) the blocks.
+ * This class is not thread-safe, but the lazily computed representations are
+ * derived from data that never changes, so a document that is not modified
+ * once shared can be read concurrently: the strings are immutable and the
+ * array of the UTF-8 bytes is held in a volatile field, so a thread never
+ * sees it before it is filled.
  */
 public class Document {
   private String id;
   private String data;
+  private volatile byte[] dataBytes;
+  private ByteBuffer mappedData;
+  private String serialized;
+  private OffHeapArena arena;
+  private long handle;
+  private int length;
+  private long version;
+  private long expiresAt;
+  private DocumentCodec codec;
+  private DocumentCodec.Block block;
+  private int slot;
+  private boolean cold;
 
   /**
    * Constructs a new Document with the specified ID and data.
@@ -24,6 +61,96 @@ public class Document {
     this.data = data;
   }
 
+  /**
+   * Constructs a new Document with the specified ID and UTF-8 encoded data.
+   * The array is kept as is and must not be modified afterwards.
+   *
+   * @param id   the ID of the document, must not be null or empty
+   * @param data the UTF-8 encoded data of the document, must not be null or
+   *             empty
+   * @throws IllegalArgumentException if id or data is null or empty
+   */
+  public Document(String id, byte[] data) {
+    validateId(id);
+    validateData(data);
+    this.id = id;
+    this.dataBytes = data;
+  }
+
+  /**
+   * Constructs a new Document whose UTF-8 encoded data is read from a region
+   * of a mapped file when first requested. The buffer must not be modified.
+   *
+   * @param id         the ID of the document, must not be null or empty
+   * @param mappedData the UTF-8 encoded data of the document, must not be
+   *                   empty
+   * @throws IllegalArgumentException if id or data is null or empty
+   */
+  Document(String id, ByteBuffer mappedData) {
+    validateId(id);
+    if (mappedData == null || !mappedData.hasRemaining()) {
+      throw new IllegalArgumentException("Data cannot be null or empty");
+    }
+    this.id = id;
+    this.mappedData = mappedData;
+  }
+
+  /**
+   * Constructs a new Document whose UTF-8 encoded data is copied to a block
+   * of an arena.
+   *
+   * @param id    the ID of the document, must not be null or empty
+   * @param arena the arena holding the data
+   * @param data  the UTF-8 encoded data of the document, must not be null or
+   *              empty
+   * @throws IllegalArgumentException if id or data is null or empty
+   */
+  Document(String id, OffHeapArena arena, byte[] data) {
+    validateId(id);
+    validateData(data);
+    this.id = id;
+    this.arena = arena;
+    this.handle = arena.store(data);
+    this.length = data.length;
+  }
+
+  /**
+   * Constructs a new Document whose data is encoded by a codec. The array is
+   * kept as is and must not be modified afterwards.
+   *
+   * @param id      the ID of the document, must not be null or empty
+   * @param codec   the codec of the collection
+   * @param encoded the data returned by {@link DocumentCodec#encode(byte[])}
+   * @throws IllegalArgumentException if id is null or empty
+   */
+  Document(String id, DocumentCodec codec, byte[] encoded) {
+    validateId(id);
+    this.id = id;
+    this.codec = codec;
+    this.dataBytes = encoded;
+  }
+
+  /**
+   * Constructs a new Document whose data is encoded by a codec and copied to
+   * a block of an arena.
+   *
+   * @param id      the ID of the document, must not be null or empty
+   * @param arena   the arena holding the data
+   * @param codec   the codec of the collection
+   * @param encoded the data returned by {@link DocumentCodec#encode(byte[])}
+   * @throws IllegalArgumentException if id is null or empty
+   */
+  Document(String id, OffHeapArena arena, DocumentCodec codec, byte[] encoded) {
+    this(id, arena, encoded);
+    this.codec = codec;
+  }
+
+  /**
+   * Constructs an empty Document, filled by {@link #copy()}.
+   */
+  private Document() {
+  }
+
   /**
    * Returns the ID of the document.
    *
@@ -33,13 +160,278 @@ public class Document {
     return id;
   }
 
+  /**
+   * Returns the version of the document.
+   *
+   * @return the version, or 0 if the document has not been stored in a
+   *         collection
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Sets the version of the document. Called by the collection before the
+   * document is shared.
+   *
+   * @param version the version
+   */
+  void setVersion(long version) {
+    this.serialized = null;
+    this.version = version;
+  }
+
+  /**
+   * Returns the time the document expires.
+   *
+   * @return the expiry time in milliseconds since the epoch, or 0 if the
+   *         document does not expire
+   */
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  /**
+   * Returns whether the document has expired, without reading its data.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   * @return true if the document has an expiry time and it is not after now
+   */
+  public boolean isExpired(long now) {
+    return expiresAt != 0 && expiresAt <= now;
+  }
+
+  /**
+   * Sets the time the document expires. Called by the collection before the
+   * document is shared.
+   *
+   * @param expiresAt the expiry time in milliseconds since the epoch, or 0 if
+   *                  the document does not expire
+   */
+  void setExpiresAt(long expiresAt) {
+    this.serialized = null;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Returns a new instance holding the same data and version as this one,
+   * with another expiry time. The storage of the data moves to the new
+   * instance: this one must no longer be retired.
+   *
+   * @param expiresAt the expiry time of the new instance
+   * @return the new instance, not shared yet
+   */
+  Document withExpiresAt(long expiresAt) {
+    Document copy = copy();
+    copy.expiresAt = expiresAt;
+    return copy;
+  }
+
+  /**
+   * Returns a new instance holding the same encoded data, version and expiry
+   * time as this one, stored in a slot of a compressed block.
+   *
+   * @param block the block holding the encoded data of this document
+   * @param slot  the index of the document in the block
+   * @return the new instance, not shared yet
+   */
+  Document inBlock(DocumentCodec.Block block, int slot) {
+    Document copy = copy();
+    copy.dataBytes = null;
+    copy.block = block;
+    copy.slot = slot;
+    copy.cold = true;
+    return copy;
+  }
+
+  /**
+   * Returns a new instance holding the same encoded data, version and expiry
+   * time as this one, out of its compressed block.
+   *
+   * @return the new instance, not shared yet
+   */
+  Document outOfBlock() {
+    Document copy = copy();
+    copy.dataBytes = getEncodedBytes();
+    copy.block = null;
+    return copy;
+  }
+
+  /**
+   * Returns a new instance holding the same data, version and expiry time
+   * as this one.
+   *
+   * @return the new instance, not shared yet
+   */
+  private Document copy() {
+    Document copy = new Document();
+    copy.id = id;
+    copy.data = data;
+    copy.dataBytes = dataBytes;
+    copy.mappedData = mappedData;
+    copy.arena = arena;
+    copy.handle = handle;
+    copy.length = length;
+    copy.version = version;
+    copy.expiresAt = expiresAt;
+    copy.codec = codec;
+    copy.block = block;
+    copy.slot = slot;
+    return copy;
+  }
+
+  /**
+   * Returns the data of a document encoded by a codec, as stored.
+   *
+   * @return the encoded data
+   * @throws IllegalStateException if the document is not encoded
+   */
+  byte[] getEncodedBytes() {
+    if (codec == null) {
+      throw new IllegalStateException("Document is not encoded");
+    }
+    if (block != null) {
+      return block.get(slot);
+    }
+    return arena != null ? arena.read(handle, length) : dataBytes;
+  }
+
+  /**
+   * Returns whether the encoded data of the document is stored in a
+   * compressed block.
+   *
+   * @return true if the document is in a block
+   */
+  boolean isInBlock() {
+    return block != null;
+  }
+
+  /**
+   * Marks the document as cold, until its data is next read for a client.
+   * Called by each run of the compressor.
+   *
+   * @return true if the document was already cold, i.e. its data has not
+   *         been read since the previous run
+   */
+  boolean markCold() {
+    boolean wasCold = cold;
+    cold = true;
+    return wasCold;
+  }
+
+  /**
+   * Returns whether the data of the document has not been read for a
+   * client since it was last marked as cold.
+   *
+   * @return true if the document is cold
+   */
+  boolean isCold() {
+    return cold;
+  }
+
+  /**
+   * Records that the data of the document is read for a client. The flag is
+   * only written when it changes, so hot documents are not written by every
+   * read.
+   */
+  private void warm() {
+    if (cold) {
+      cold = false;
+    }
+  }
+
   /**
    * Returns the data of the document.
    *
    * @return the data of the document
    */
   public String getData() {
-    return data;
+    if (codec != null) {
+      warm();
+      return new String(getDataBytes(), StandardCharsets.UTF_8);
+    }
+    if (arena != null) {
+      return new String(getDataBytes(), StandardCharsets.UTF_8);
+    }
+    String current = data;
+    if (current == null) {
+      current = new String(getDataBytes(), StandardCharsets.UTF_8);
+      data = current;
+    }
+    return current;
+  }
+
+  /**
+   * Returns the data of the document encoded in UTF-8. The returned array may
+   * be shared with the document and must not be modified.
+   *
+   * @return the UTF-8 encoded data of the document
+   */
+  public byte[] getDataBytes() {
+    if (codec != null) {
+      return codec.decode(getEncodedBytes());
+    }
+    if (arena != null) {
+      return arena.read(handle, length);
+    }
+    byte[] current = dataBytes;
+    if (current != null) {
+      return current;
+    }
+    ByteBuffer mapped = mappedData;
+    if (mapped != null) {
+      current = new byte[mapped.remaining()];
+      mapped.get(mapped.position(), current);
+      return current;
+    }
+    current = data.getBytes(StandardCharsets.UTF_8);
+    dataBytes = current;
+    return current;
+  }
+
+  /**
+   * Returns the UTF-8 encoded data of the document as a buffer. The buffer
+   * shares the data with the document and must not be modified. The data of
+   * a document stored in an {@link OffHeapArena} is not copied: the buffer is
+   * a view of its block, which stays valid only until the section of the
+   * arena it was obtained in is closed.
+   *
+   * @return the UTF-8 encoded data of the document
+   */
+  public ByteBuffer getDataBuffer() {
+    if (codec != null) {
+      warm();
+      return ByteBuffer.wrap(getDataBytes());
+    }
+    if (arena != null) {
+      return arena.view(handle, length);
+    }
+    ByteBuffer mapped = mappedData;
+    if (mapped != null) {
+      return mapped.duplicate();
+    }
+    return ByteBuffer.wrap(getDataBytes());
+  }
+
+  /**
+   * Returns whether the data of the document is stored in an arena.
+   *
+   * @param arena the arena
+   * @return true if the data is in a block of the arena
+   */
+  boolean isStoredIn(OffHeapArena arena) {
+    return this.arena == arena;
+  }
+
+  /**
+   * Marks a document that has been replaced or removed from its collection:
+   * the block holding its data, if any, is reused once no read section of
+   * the arena can see the document anymore.
+   */
+  void retire() {
+    if (arena != null) {
+      arena.retire(handle, length);
+    }
   }
 
   /**
@@ -50,6 +442,7 @@ public class Document {
    */
   public void setId(String id) {
     validateId(id);
+    this.serialized = null;
     this.id = id;
   }
 
@@ -61,12 +454,64 @@ public class Document {
    */
   public void setData(String data) {
     validateData(data);
+    this.dataBytes = null;
+    this.mappedData = null;
+    this.arena = null;
+    this.codec = null;
+    this.block = null;
+    this.serialized = null;
     this.data = data;
   }
 
+  /**
+   * Sets the data of the document from UTF-8 bytes. The array is kept as is
+   * and must not be modified afterwards.
+   *
+   * @param data the new UTF-8 encoded data, must not be null or empty
+   * @throws IllegalArgumentException if data is null or empty
+   */
+  public void setData(byte[] data) {
+    validateData(data);
+    this.data = null;
+    this.mappedData = null;
+    this.arena = null;
+    this.codec = null;
+    this.block = null;
+    this.serialized = null;
+    this.dataBytes = data;
+  }
+
+  /**
+   * Returns the JSON representation of the document, with its version and
+   * expiry time. It is built once and cached until the document is changed,
+   * so a collection serializing many documents only copies their cached
+   * fragments. The representation of a document stored in an arena or
+   * encoded by a codec is never cached.
+   *
+   * @return the JSON representation of the document
+   */
   @Override
   public String toString() {
-    return ("{\"id\": \"" + id + "\",\"data\":" + data + "}");
+    if (arena != null || codec != null) {
+      return serialize();
+    }
+    String current = serialized;
+    if (current == null) {
+      current = serialize();
+      serialized = current;
+    }
+    return current;
+  }
+
+  /**
+   * Builds the JSON representation of the document. The expiry time is only
+   * included when the document has one.
+   *
+   * @return the JSON representation of the document
+   */
+  private String serialize() {
+    return "{\"id\": \"" + id + "\",\"version\": " + version
+        + (expiresAt == 0 ? "" : ",\"expiresAt\": " + expiresAt) + ",\"data\":" + getData() + "}";
   }
 
   @Override
@@ -76,12 +521,12 @@ public class Document {
     if (o == null || getClass() != o.getClass())
       return false;
     Document document = (Document) o;
-    return id.equals(document.id) && data.equals(document.data);
+    return id.equals(document.id) && getData().equals(document.getData());
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(id, data);
+    return Objects.hash(id, getData());
   }
 
   private void validateId(String id) {
@@ -95,4 +540,10 @@ public class Document {
       throw new IllegalArgumentException("Data cannot be null or empty");
     }
   }
+
+  private void validateData(byte[] data) {
+    if (data == null || data.length == 0) {
+      throw new IllegalArgumentException("Data cannot be null or empty");
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,721 @@
+package it.unimib.sd2024;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of the JSON data of the documents of a
+ * {@link Collection}, decoded back to exactly the same bytes.
+ *
+ * <p>
+ * The names of the fields are replaced by small numbers from a dictionary
+ * shared by the documents of the collection, so keys repeated by every
+ * document (like {@code userId} or {@code expirationDate}) are stored once.
+ * Values are stored with a one-byte tag: numbers written as integers and
+ * strings holding an integer or an ISO date (like {@code "2024-06-30"}) are
+ * stored natively as variable-length integers, other strings and numbers as
+ * their raw bytes, escapes included. Data that would not be decoded to the
+ * same bytes (JSON with whitespace, non-canonical numbers or dates, or data
+ * that is not JSON at all, as written through the binary protocol) is kept as
+ * it is behind a single format byte, so the encoding is always transparent.
+ *
+ * <p>
+ * With {@link Encoding#COMPRESSED} the documents that have not been read for
+ * a whole run of the compressor are also packed, {@link #BLOCK_SIZE} at a
+ * time, in a {@link Block} compressed with {@link Deflater}: the values
+ * shared by neighbouring documents (dates, user IDs, domain suffixes) are
+ * then stored once per block. Reading a document of a block inflates the
+ * whole block, so a document read again is moved out of its block by the
+ * next run, see {@link Collection#compressCold()}.
+ *
+ * <p>
+ * The dictionary only lives in memory: the log, the snapshots and the
+ * replicas always receive the JSON data.
+ */
+final class DocumentCodec {
+  /**
+   * How the documents of a collection are encoded.
+   */
+  enum Encoding {
+    /** Field dictionary and typed values. */
+    COMPACT,
+    /** As {@link #COMPACT}, with the cold documents compressed in blocks. */
+    COMPRESSED
+  }
+
+  /**
+   * The number of documents compressed together in a block.
+   */
+  static final int BLOCK_SIZE = 64;
+  /**
+   * The delay between two runs of the compressor, in milliseconds. A
+   * document is compressed when it has not been read for a whole run.
+   */
+  static final long COMPRESS_INTERVAL_MILLIS = 30_000;
+  private static final int MAX_FIELDS = 4096;
+
+  private static final byte FORMAT_RAW = 0;
+  private static final byte FORMAT_COMPACT = 1;
+
+  private static final byte TAG_OBJECT = 1;
+  private static final byte TAG_ARRAY = 2;
+  private static final byte TAG_STRING = 3;
+  private static final byte TAG_INTEGER = 4;
+  private static final byte TAG_NUMBER = 5;
+  private static final byte TAG_TRUE = 6;
+  private static final byte TAG_FALSE = 7;
+  private static final byte TAG_NULL = 8;
+  private static final byte TAG_DATE = 9;
+  private static final byte TAG_DIGITS = 10;
+
+  private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+  private final Encoding encoding;
+  // Field names are keyed by their raw bytes, one char per byte
+  private final ConcurrentHashMap<String, Integer> fieldIds = new ConcurrentHashMap<>();
+  private volatile byte[][] fieldNames = new byte[1][];
+
+  /**
+   * Thrown internally when the data cannot be encoded exactly.
+   */
+  private static final class NotEncodable extends Exception {
+    private static final long serialVersionUID = 1L;
+    private static final NotEncodable INSTANCE = new NotEncodable();
+
+    private NotEncodable() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * A group of cold documents compressed together. The encoded documents
+   * are concatenated and deflated; the offsets give the position of each one
+   * in the inflated content.
+   */
+  static final class Block {
+    private final byte[] deflated;
+    private final int[] offsets;
+
+    private Block(byte[] deflated, int[] offsets) {
+      this.deflated = deflated;
+      this.offsets = offsets;
+    }
+
+    /**
+     * Returns the encoded document stored in a slot of the block.
+     *
+     * @param slot the index of the document in the block
+     * @return the encoded document
+     */
+    byte[] get(int slot) {
+      byte[] content = new byte[offsets[offsets.length - 1]];
+      Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(deflated);
+        int length = 0;
+        while (length < content.length) {
+          int inflated = inflater.inflate(content, length, content.length - length);
+          if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+            break;
+          }
+          length += inflated;
+        }
+        if (length != content.length) {
+          throw new IllegalStateException("Corrupted block");
+        }
+      } catch (DataFormatException e) {
+        throw new IllegalStateException("Corrupted block", e);
+      } finally {
+        inflater.end();
+      }
+      return Arrays.copyOfRange(content, offsets[slot], offsets[slot + 1]);
+    }
+
+    /**
+     * Returns the number of bytes of the compressed content.
+     *
+     * @return the compressed size
+     */
+    int getCompressedSize() {
+      return deflated.length;
+    }
+  }
+
+  /**
+   * Constructs a new DocumentCodec with an empty dictionary.
+   *
+   * @param encoding how the documents are encoded
+   */
+  DocumentCodec(Encoding encoding) {
+    this.encoding = encoding;
+  }
+
+  /**
+   * Returns how the documents are encoded.
+   *
+   * @return the encoding
+   */
+  Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Returns the number of field names in the dictionary.
+   *
+   * @return the size of the dictionary
+   */
+  int getFieldCount() {
+    return fieldIds.size();
+  }
+
+  /**
+   * Encodes the data of a document.
+   *
+   * @param data the UTF-8 encoded data
+   * @return the encoded data, decoded back to the same bytes by
+   *         {@link #decode(byte[])}
+   */
+  byte[] encode(byte[] data) {
+    Output out = new Output(data.length);
+    out.write(FORMAT_COMPACT);
+    try {
+      int end = encodeValue(data, 0, out);
+      if (end == data.length) {
+        return out.toByteArray();
+      }
+    } catch (NotEncodable | RuntimeException e) {
+      // Stored as it is below
+    }
+    byte[] raw = new byte[data.length + 1];
+    raw[0] = FORMAT_RAW;
+    System.arraycopy(data, 0, raw, 1, data.length);
+    return raw;
+  }
+
+  /**
+   * Decodes the data of a document.
+   *
+   * @param encoded the data returned by {@link #encode(byte[])}
+   * @return the UTF-8 encoded data
+   */
+  byte[] decode(byte[] encoded) {
+    if (encoded[0] == FORMAT_RAW) {
+      return Arrays.copyOfRange(encoded, 1, encoded.length);
+    }
+    Output out = new Output(encoded.length * 3);
+    decodeValue(encoded, new int[] { 1 }, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Compresses encoded documents together.
+   *
+   * @param documents the encoded documents
+   * @return the block holding them, in the same order
+   */
+  static Block compress(List<byte[]> documents) {
+    int[] offsets = new int[documents.size() + 1];
+    for (int i = 0; i < documents.size(); i++) {
+      offsets[i + 1] = offsets[i] + documents.get(i).length;
+    }
+    byte[] content = new byte[offsets[documents.size()]];
+    for (int i = 0; i < documents.size(); i++) {
+      System.arraycopy(documents.get(i), 0, content, offsets[i], documents.get(i).length);
+    }
+
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    try {
+      deflater.setInput(content);
+      deflater.finish();
+      byte[] buffer = new byte[content.length + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      return new Block(Arrays.copyOf(buffer, length), offsets);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Encodes the JSON value starting at a position.
+   *
+   * @param data     the UTF-8 encoded JSON
+   * @param position the position of the first byte of the value
+   * @param out      the output
+   * @return the position after the value
+   * @throws NotEncodable if the value cannot be decoded to the same bytes
+   */
+  private int encodeValue(byte[] data, int position, Output out) throws NotEncodable {
+    switch (data[position]) {
+      case '{':
+        return encodeObject(data, position, out);
+      case '[':
+        return encodeArray(data, position, out);
+      case '"':
+        return encodeString(data, position, out);
+      case 't':
+        out.write(TAG_TRUE);
+        return literal(data, position, TRUE);
+      case 'f':
+        out.write(TAG_FALSE);
+        return literal(data, position, FALSE);
+      case 'n':
+        out.write(TAG_NULL);
+        return literal(data, position, NULL);
+      default:
+        return encodeNumber(data, position, out);
+    }
+  }
+
+  /**
+   * Encodes an object as the number of its fields followed by the ID of
+   * each field name and its value. A name that does not fit in the
+   * dictionary is written inline after the ID 0.   *
+   * @param data     the UTF-8 encoded JSON
+   * @param position the position of the first byte of the value
+   * @param out      the output
+   * @return the position after the value
+   * @throws NotEncodable if the value cannot be decoded to the same bytes
+   */
+  private int encodeObject(byte[] data, int position, Output out) throws NotEncodable {
+    out.write(TAG_OBJECT);
+    int countAt = out.reserve();
+    int count = 0;
+    int i = position + 1;
+    if (data[i] == '}') {
+      out.patch(countAt, 0);
+      return i + 1;
+    }
+    while (true) {
+      if (data[i] != '"') {
+        throw NotEncodable.INSTANCE;
+      }
+      int end = endOfString(data, i);
+      int id = fieldId(data, i + 1, end);
+      out.writeVarint(id);
+      if (id == 0) {
+        out.writeVarint(end - i - 1);
+        out.write(data, i + 1, end - i - 1);
+      }
+      i = end + 1;
+      if (data[i] != ':') {
+        throw NotEncodable.INSTANCE;
+      }
+      i = encodeValue(data, i + 1, out);
+      count++;
+      if (data[i] == '}') {
+        out.patch(countAt, count);
+        return i + 1;
+      }
+      if (data[i] != ',') {
+        throw NotEncodable.INSTANCE;
+      }
+      i++;
+    }
+  }
+
+  /**
+   * Encodes an array as the number of its values followed by the values.   *
+   * @param data     the UTF-8 encoded JSON
+   * @param position the position of the first byte of the value
+   * @param out      the output
+   * @return the position after the value
+   * @throws NotEncodable if the value cannot be decoded to the same bytes
+   */
+  private int encodeArray(byte[] data, int position, Output out) throws NotEncodable {
+    out.write(TAG_ARRAY);
+    int countAt = out.reserve();
+    int count = 0;
+    int i = position + 1;
+    if (data[i] == ']') {
+      out.patch(countAt, 0);
+      return i + 1;
+    }
+    while (true) {
+      i = encodeValue(data, i, out);
+      count++;
+      if (data[i] == ']') {
+        out.patch(countAt, count);
+        return i + 1;
+      }
+      if (data[i] != ',') {
+        throw NotEncodable.INSTANCE;
+      }
+      i++;
+    }
+  }
+
+  /**
+   * Encodes a string: an ISO date as its epoch day, a canonical integer as
+   * its value, any other string as its raw bytes.
+   *
+   * @param data     the UTF-8 encoded JSON
+   * @param position the position of the opening quote
+   * @param out      the output
+   * @return the position after the closing quote
+   */
+  private int encodeString(byte[] data, int position, Output out) {
+    int end = endOfString(data, position);
+    int length = end - position - 1;
+    long digits = canonicalLong(data, position + 1, end);
+    if (digits >= 0) {
+      out.write(TAG_DIGITS);
+      out.writeVarint(digits);
+    } else if (length == 10 && isDate(data, position + 1)) {
+      out.write(TAG_DATE);
+      out.writeVarint(zigZag(LocalDate.parse(new String(data, position + 1, 10, StandardCharsets.US_ASCII))
+          .toEpochDay()));
+    } else {
+      out.write(TAG_STRING);
+      out.writeVarint(length);
+      out.write(data, position + 1, length);
+    }
+    return end + 1;
+  }
+
+  /**
+   * Encodes a number: an integer in canonical form as its value, any other
+   * number as its raw bytes.   *
+   * @param data     the UTF-8 encoded JSON
+   * @param position the position of the first byte of the value
+   * @param out      the output
+   * @return the position after the value
+   * @throws NotEncodable if the value cannot be decoded to the same bytes
+   */
+  private int encodeNumber(byte[] data, int position, Output out) throws NotEncodable {
+    int end = position;
+    while (end < data.length && isNumberByte(data[end])) {
+      end++;
+    }
+    if (end == position) {
+      throw NotEncodable.INSTANCE;
+    }
+    long value = 0;
+    boolean canonical = false;
+    String text = new String(data, position, end - position, StandardCharsets.US_ASCII);
+    try {
+      value = Long.parseLong(text);
+      canonical = Long.toString(value).equals(text);
+    } catch (NumberFormatException e) {
+      // Kept as text
+    }
+    if (canonical) {
+      out.write(TAG_INTEGER);
+      out.writeVarint(zigZag(value));
+    } else {
+      out.write(TAG_NUMBER);
+      out.writeVarint(end - position);
+      out.write(data, position, end - position);
+    }
+    return end;
+  }
+
+  /**
+   * Decodes the value at the position held by the cursor and advances it.
+   *
+   * @param encoded the encoded data
+   * @param cursor  a single-element array holding the position
+   * @param out     the output
+   */
+  private void decodeValue(byte[] encoded, int[] cursor, Output out) {
+    byte tag = encoded[cursor[0]++];
+    switch (tag) {
+      case TAG_OBJECT: {
+        long count = readVarint(encoded, cursor);
+        out.write((byte) '{');
+        for (long i = 0; i < count; i++) {
+          if (i > 0) {
+            out.write((byte) ',');
+          }
+          int id = (int) readVarint(encoded, cursor);
+          out.write((byte) '"');
+          if (id == 0) {
+            int length = (int) readVarint(encoded, cursor);
+            out.write(encoded, cursor[0], length);
+            cursor[0] += length;
+          } else {
+            byte[] name = fieldNames[id];
+            out.write(name, 0, name.length);
+          }
+          out.write((byte) '"');
+          out.write((byte) ':');
+          decodeValue(encoded, cursor, out);
+        }
+        out.write((byte) '}');
+        break;
+      }
+      case TAG_ARRAY: {
+        long count = readVarint(encoded, cursor);
+        out.write((byte) '[');
+        for (long i = 0; i < count; i++) {
+          if (i > 0) {
+            out.write((byte) ',');
+          }
+          decodeValue(encoded, cursor, out);
+        }
+        out.write((byte) ']');
+        break;
+      }
+      case TAG_STRING: {
+        int length = (int) readVarint(encoded, cursor);
+        out.write((byte) '"');
+        out.write(encoded, cursor[0], length);
+        out.write((byte) '"');
+        cursor[0] += length;
+        break;
+      }
+      case TAG_NUMBER: {
+        int length = (int) readVarint(encoded, cursor);
+        out.write(encoded, cursor[0], length);
+        cursor[0] += length;
+        break;
+      }
+      case TAG_INTEGER:
+        out.writeAscii(Long.toString(unZigZag(readVarint(encoded, cursor))));
+        break;
+      case TAG_DIGITS:
+        out.write((byte) '"');
+        out.writeAscii(Long.toString(readVarint(encoded, cursor)));
+        out.write((byte) '"');
+        break;
+      case TAG_DATE:
+        out.write((byte) '"');
+        out.writeAscii(LocalDate.ofEpochDay(unZigZag(readVarint(encoded, cursor))).toString());
+        out.write((byte) '"');
+        break;
+      case TAG_TRUE:
+        out.write(TRUE, 0, TRUE.length);
+        break;
+      case TAG_FALSE:
+        out.write(FALSE, 0, FALSE.length);
+        break;
+      case TAG_NULL:
+        out.write(NULL, 0, NULL.length);
+        break;
+      default:
+        throw new IllegalStateException("Unknown value tag: " + tag);
+    }
+  }
+
+  /**
+   * Returns the ID of a field name, adding it to the dictionary if there is
+   * room.
+   *
+   * @param data  the buffer holding the name
+   * @param start the index of the first byte of the name
+   * @param end   the index after the last byte of the name
+   * @return the ID, or 0 if the dictionary is full
+   */
+  private int fieldId(byte[] data, int start, int end) {
+    String key = new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    Integer id = fieldIds.get(key);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = fieldIds.get(key);
+      if (id != null) {
+        return id;
+      }
+      byte[][] names = fieldNames;
+      if (names.length > MAX_FIELDS) {
+        return 0;
+      }
+      names = Arrays.copyOf(names, names.length + 1);
+      names[names.length - 1] = Arrays.copyOfRange(data, start, end);
+      // Publish the name before its ID can be used by an encoded document
+      fieldNames = names;
+      fieldIds.put(key, names.length - 1);
+      return names.length - 1;
+    }
+  }
+
+  /**
+   * Returns the position of the quote closing the string that starts at a
+   * position.
+   *
+   * @param data     the UTF-8 encoded JSON
+   * @param position the position of the opening quote
+   * @return the position of the closing quote
+   */
+  private static int endOfString(byte[] data, int position) {
+    int i = position + 1;
+    while (data[i] != '"') {
+      i += data[i] == '\\' ? 2 : 1;
+    }
+    return i;
+  }
+
+  /**
+   * Checks that a literal is written at a position.
+   *
+   * @param data     the UTF-8 encoded JSON
+   * @param position the position of the first byte of the literal
+   * @param literal  the expected literal
+   * @return the position after the literal
+   * @throws NotEncodable if another value is written
+   */
+  private static int literal(byte[] data, int position, byte[] literal) throws NotEncodable {
+    if (!Arrays.equals(data, position, position + literal.length, literal, 0, literal.length)) {
+      throw NotEncodable.INSTANCE;
+    }
+    return position + literal.length;
+  }
+
+  /**
+   * Returns the value of a string of digits written in canonical form (no
+   * sign, no leading zero) that fits in a {@code long}.
+   *
+   * @param data  the buffer holding the string
+   * @param start the index of the first byte of the string
+   * @param end   the index after the last byte of the string
+   * @return the value, or -1 if the string is not such an integer
+   */
+  private static long canonicalLong(byte[] data, int start, int end) {
+    int length = end - start;
+    if (length == 0 || length > 18 || (data[start] == '0' && length > 1)) {
+      return -1;
+    }
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      if (data[i] < '0' || data[i] > '9') {
+        return -1;
+      }
+      value = value * 10 + (data[i] - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Returns whether ten bytes hold an ISO date that is formatted back to the
+   * same bytes.
+   *
+   * @param data  the buffer holding the bytes
+   * @param start the index of the first byte
+   * @return true if the bytes are a canonical ISO date
+   */
+  private static boolean isDate(byte[] data, int start) {
+    for (int i = 0; i < 10; i++) {
+      boolean dash = i == 4 || i == 7;
+      if (dash ? data[start + i] != '-' : data[start + i] < '0' || data[start + i] > '9') {
+        return false;
+      }
+    }
+    if (data[start] == '0') {
+      // Years before 1000 are formatted differently
+      return false;
+    }
+    try {
+      LocalDate.parse(new String(data, start, 10, StandardCharsets.US_ASCII));
+      return true;
+    } catch (DateTimeException e) {
+      return false;
+    }
+  }
+
+  private static boolean isNumberByte(byte b) {
+    return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static long readVarint(byte[] encoded, int[] cursor) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = encoded[cursor[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  /**
+   * A growable byte buffer.
+   */
+  private static final class Output {
+    private byte[] bytes;
+    private int length;
+
+    private Output(int capacity) {
+      this.bytes = new byte[Math.max(capacity, 16)];
+    }
+
+    private void ensureCapacity(int extra) {
+      if (length + extra > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(length + extra, bytes.length * 2));
+      }
+    }
+
+    private void write(byte b) {
+      ensureCapacity(1);
+      bytes[length++] = b;
+    }
+
+    private void write(byte[] source, int offset, int count) {
+      ensureCapacity(count);
+      System.arraycopy(source, offset, bytes, length, count);
+      length += count;
+    }
+
+    private void writeAscii(String text) {
+      ensureCapacity(text.length());
+      for (int i = 0; i < text.length(); i++) {
+        bytes[length++] = (byte) text.charAt(i);
+      }
+    }
+
+    private void writeVarint(long value) {
+      ensureCapacity(10);
+      long remaining = value;
+      while ((remaining & ~0x7FL) != 0) {
+        bytes[length++] = (byte) ((remaining & 0x7F) | 0x80);
+        remaining >>>= 7;
+      }
+      bytes[length++] = (byte) remaining;
+    }
+
+    /**
+     * Reserves room for a count written later with {@link #patch}. Counts
+     * are stored in two bytes, as a varint of up to 14 bits.
+     */
+    private int reserve() {
+      ensureCapacity(2);
+      length += 2;
+      return length - 2;
+    }
+
+    private void patch(int position, int count) throws NotEncodable {
+      if (count >= 1 << 14) {
+        throw NotEncodable.INSTANCE;
+      }
+      bytes[position] = (byte) ((count & 0x7F) | 0x80);
+      bytes[position + 1] = (byte) (count >>> 7);
+    }
+
+    private byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+  }
+}
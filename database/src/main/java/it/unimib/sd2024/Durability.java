@@ -0,0 +1,23 @@
+package it.unimib.sd2024;
+
+/**
+ * How long a write waits for the write-ahead log before being acknowledged.
+ */
+public enum Durability {
+  /**
+   * The write is acknowledged after the fsync that covers it. Writers that
+   * arrive while a fsync is in progress share the next one (group commit).
+   */
+  SYNC,
+  /**
+   * Like {@link #SYNC}, but the log collects writes for a batch window before
+   * each fsync: fewer fsyncs at the cost of some latency.
+   */
+  BATCH,
+  /**
+   * The write is acknowledged immediately and the log is written and synced
+   * in the background once per batch window. A crash can lose the writes of
+   * the last window.
+   */
+  ASYNC
+}
@@ -0,0 +1,214 @@
+package it.unimib.sd2024;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Orders the documents of a {@link Collection} by the time they expire. The
+ * expiry time of a document is read from a top-level JSON field when the
+ * document is written and kept in the document itself, so checking whether a
+ * document has expired never parses its data, see {@link Document#isExpired}.
+ *
+ * <p>
+ * The entries are kept in two sets ordered by time: the pending ones and the
+ * ones already marked as expired by the reaper, which moves the pending
+ * entries whose time has come with a bounded amount of work per run, see
+ * {@link Collection#reapExpired(long, int)}. Both sets are kept up to date by
+ * the collection while the changed document is locked, so the documents
+ * expiring in a window of time are a range of the pending set.
+ *
+ * <p>
+ * The field may hold the time in milliseconds since the epoch, an ISO instant
+ * or date-time, or an ISO date: a document with a date (like the
+ * {@code expirationDate} of a domain) expires at the end of that day, in the
+ * time zone of the server.
+ */
+final class ExpiryIndex {
+  /**
+   * The delay between two runs of the reaper, in milliseconds.
+   */
+  static final long REAP_INTERVAL_MILLIS = 1000;
+  /**
+   * The highest number of entries a run of the reaper marks in a collection.
+   */
+  static final int MAX_REAPED_PER_RUN = 10_000;
+
+  private final String field;
+  private final ConcurrentSkipListSet<Entry> pending = new ConcurrentSkipListSet<>(Entry.ORDER);
+  private final ConcurrentSkipListSet<Entry> expired = new ConcurrentSkipListSet<>(Entry.ORDER);
+
+  /**
+   * An entry of the index: the expiry time and the ID of a document.
+   */
+  static final class Entry {
+    private static final Comparator<Entry> ORDER = Comparator
+        .comparingLong((Entry entry) -> entry.expiresAt)
+        .thenComparing(entry -> entry.id, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final long expiresAt;
+    private final String id;
+
+    private Entry(long expiresAt, String id) {
+      this.expiresAt = expiresAt;
+      this.id = id;
+    }
+
+    /**
+     * Returns the ID of the document.
+     *
+     * @return the document ID
+     */
+    String getId() {
+      return id;
+    }
+  }
+
+  /**
+   * Constructs a new, empty ExpiryIndex.
+   *
+   * @param field the name of the field holding the expiry time
+   */
+  ExpiryIndex(String field) {
+    this.field = field;
+  }
+
+  /**
+   * Returns the name of the field holding the expiry time.
+   *
+   * @return the field name
+   */
+  String getField() {
+    return field;
+  }
+
+  /**
+   * Returns the IDs of the documents expiring in a window of time.
+   *
+   * @param from the start of the window, inclusive, in milliseconds since the
+   *             epoch
+   * @param to   the end of the window, exclusive, in milliseconds since the
+   *             epoch
+   * @return the matching IDs, ordered by expiry time
+   */
+  List<String> expiring(long from, long to) {
+    List<String> ids = new ArrayList<>();
+    if (from >= to) {
+      return ids;
+    }
+    for (Entry entry : pending.subSet(new Entry(from, null), true, new Entry(to, null), false)) {
+      ids.add(entry.id);
+    }
+    return ids;
+  }
+
+  /**
+   * Returns the IDs of the documents expired at a given time: the ones marked
+   * by the reaper and the pending ones it has not reached yet.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   * @return the matching IDs, ordered by expiry time
+   */
+  List<String> expired(long now) {
+    List<String> ids = new ArrayList<>();
+    for (Entry entry : expired) {
+      ids.add(entry.id);
+    }
+    for (Entry entry : pending.headSet(new Entry(now + 1, null), false)) {
+      ids.add(entry.id);
+    }
+    return ids;
+  }
+
+  /**
+   * Returns the first pending entries whose time has come.
+   *
+   * @param now   the current time, in milliseconds since the epoch
+   * @param limit the highest number of entries to return
+   * @return the entries, ordered by expiry time
+   */
+  List<Entry> due(long now, int limit) {
+    List<Entry> entries = new ArrayList<>();
+    for (Entry entry : pending.headSet(new Entry(now + 1, null), false)) {
+      if (entries.size() == limit) {
+        break;
+      }
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  /**
+   * Marks a pending entry as expired. Called while the document is locked.
+   *
+   * @param entry the entry, as returned by {@link #due(long, int)}
+   * @return true if the entry has been marked, false if the document has been
+   *         changed since
+   */
+  boolean markExpired(Entry entry) {
+    if (!pending.remove(entry)) {
+      return false;
+    }
+    expired.add(entry);
+    return true;
+  }
+
+  /**
+   * Moves a document to its new expiry time. Called while the document is
+   * locked.
+   *
+   * @param id     the ID of the document
+   * @param before the previous expiry time, or 0 if it had none
+   * @param after  the new expiry time, or 0 if it has none or was removed
+   */
+  void update(String id, long before, long after) {
+    if (before != 0) {
+      Entry previous = new Entry(before, id);
+      if (!pending.remove(previous)) {
+        expired.remove(previous);
+      }
+    }
+    if (after != 0) {
+      pending.add(new Entry(after, id));
+    }
+  }
+
+  /**
+   * Parses the value of an expiry field.
+   *
+   * @param value the value, as returned by {@link JsonFields}, or null
+   * @return the expiry time in milliseconds since the epoch, or 0 if the
+   *         value is missing or not a time
+   */
+  static long parse(String value) {
+    if (value == null || value.isEmpty()) {
+      return 0;
+    }
+    try {
+      char first = value.charAt(0);
+      if (first >= '0' && first <= '9' && value.indexOf('-') < 0) {
+        return Math.max(Long.parseLong(value), 0);
+      }
+      if (value.length() == 10) {
+        return LocalDate.parse(value).plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+      }
+      if (value.endsWith("Z")) {
+        return Instant.parse(value).toEpochMilli();
+      }
+      try {
+        return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+      } catch (DateTimeParseException e) {
+        return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+      }
+    } catch (DateTimeParseException | NumberFormatException | ArithmeticException e) {
+      return 0;
+    }
+  }
+}
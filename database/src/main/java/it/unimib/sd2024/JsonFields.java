@@ -0,0 +1,120 @@
+package it.unimib.sd2024;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the fields of the JSON object stored as the data of a document.
+ * Documents are scanned with the streaming parser of Jackson, so no tree is
+ * built and the values of the fields that are not requested are skipped.
+ * Projections are copied token by token with the streaming generator. The
+ * size of the JSON text built by the server, as sent to the clients, is
+ * counted without encoding it.
+ */
+final class JsonFields {
+  private static final JsonFactory FACTORY = new JsonFactory();
+
+  private JsonFields() {
+  }
+
+  /**
+   * Returns the values of some top-level fields of a JSON object. Strings are
+   * returned without quotes, numbers and booleans as written. Fields that are
+   * missing, null, objects or arrays are left out.
+   *
+   * @param json   the UTF-8 encoded JSON object
+   * @param fields the names of the fields to read
+   * @return a map of field names to values, empty if the data is not a JSON
+   *         object
+   */
+  static Map<String, String> extract(byte[] json, Set<String> fields) {
+    Map<String, String> values = new HashMap<>();
+    try (JsonParser parser = FACTORY.createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return values;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.currentName();
+        JsonToken value = parser.nextToken();
+        if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+          parser.skipChildren();
+        } else if (value != JsonToken.VALUE_NULL && fields.contains(name)) {
+          values.put(name, parser.getText());
+          if (values.size() == fields.size()) {
+            break;
+          }
+        }
+      }
+    } catch (IOException e) {
+      values.clear();
+    }
+    return values;
+  }
+
+  /**
+   * Returns a JSON object with only some top-level fields of another one, in
+   * the order they appear in it. Values are copied as they are, including
+   * nested objects and arrays.
+   *
+   * @param json   the UTF-8 encoded JSON object
+   * @param fields the names of the fields to keep
+   * @return the UTF-8 encoded projection, or the data unchanged if it is not a
+   *         JSON object
+   */
+  static byte[] project(byte[] json, List<String> fields) {
+    var out = new ByteArrayOutputStream(Math.min(json.length, 256));
+    try (JsonParser parser = FACTORY.createParser(json);
+        JsonGenerator generator = FACTORY.createGenerator(out)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return json;
+      }
+      generator.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.currentName();
+        parser.nextToken();
+        if (fields.contains(name)) {
+          generator.writeFieldName(name);
+          generator.copyCurrentStructure(parser);
+        } else {
+          parser.skipChildren();
+        }
+      }
+      generator.writeEndObject();
+    } catch (IOException e) {
+      return json;
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the length of a part of a string encoded in UTF-8, without
+   * encoding it.
+   *
+   * @param text the string
+   * @param from the index of the first char, inclusive
+   * @param to   the index of the last char, exclusive
+   * @return the number of bytes
+   */
+  static long utf8Length(CharSequence text, int from, int to) {
+    long length = to - from;
+    for (int i = from; i < to; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x800) {
+        // A surrogate pair takes 4 bytes for its 2 chars, any other char 3
+        length += Character.isSurrogate(c) ? 1 : 2;
+      } else if (c >= 0x80) {
+        length++;
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,58 @@
+package it.unimib.sd2024;
+
+/**
+ * The scheduling lanes of the requests. Each lane has its own
+ * {@link AdmissionControl}, with its own number of requests executed at the
+ * same time and its own queue, and its own latency in the {@link Metrics}:
+ * the requests reading a whole collection, which cost orders of magnitude
+ * more than those on a single document, wait for their own slots and cannot
+ * take those of the interactive traffic.
+ */
+public enum Lane {
+  /**
+   * The requests on a single document, the batches and the commands changing
+   * the state of the connection.
+   */
+  POINT,
+  /**
+   * The requests reading a whole collection or the documents matching a
+   * condition: {@code GET} without an ID, {@code LOOKUP}, {@code RANGE},
+   * {@code FIND}, {@code SCAN}, {@code EXPIRING} and {@code EXPIRED}.
+   */
+  SCAN,
+  /**
+   * The commands changing the schema or the storage of a collection and the
+   * administration commands: {@code CREATE}, {@code INDEX}, {@code EXPIRY},
+   * {@code ENCODING} and {@code REPLICATION}.
+   */
+  ADMIN;
+
+  /**
+   * Returns the lane of a request.
+   *
+   * @param command       the command of the request
+   * @param hasDocumentId whether the request names a document
+   * @return the lane
+   */
+  public static Lane of(Command command, boolean hasDocumentId) {
+    switch (command) {
+      case GET:
+        return hasDocumentId ? POINT : SCAN;
+      case LOOKUP:
+      case RANGE:
+      case FIND:
+      case SCAN:
+      case EXPIRING:
+      case EXPIRED:
+        return SCAN;
+      case CREATE:
+      case INDEX:
+      case EXPIRY:
+      case ENCODING:
+      case REPLICATION:
+        return ADMIN;
+      default:
+        return POINT;
+    }
+  }
+}
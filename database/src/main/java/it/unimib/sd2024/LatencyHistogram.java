@@ -0,0 +1,175 @@
+package it.unimib.sd2024;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets of logarithmic width, as an HDR histogram does,
+ * so that percentiles can be read with a bounded relative error without
+ * keeping every sample.
+ *
+ * <p>
+ * Values below {@value #SUB_BUCKETS} nanoseconds have a bucket each; every
+ * following power of two is split in {@value #SUB_BUCKETS} buckets of equal
+ * width, so a value is reported with an error below 1/{@value #SUB_BUCKETS}
+ * of itself. Values above about 18 minutes fall in the last bucket.
+ *
+ * <p>
+ * Recording is lock-free: the buckets, the sum and the maximum are spread
+ * over a few stripes, chosen by the recording thread, so threads recording
+ * the same latency do not all update the same counter, and a value costs two
+ * atomic additions. The counts read while values are being recorded may miss
+ * the latest ones.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  /**
+   * The number of buckets each power of two is split in.
+   */
+  public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+  // Each stripe holds the buckets followed by the sum and the maximum
+  private static final int SUM = BUCKETS;
+  private static final int MAX = BUCKETS + 1;
+  private static final int STRIPES = Integer.highestOneBit(
+      Math.min(Runtime.getRuntime().availableProcessors(), 8) * 2 - 1);
+
+  private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+  /**
+   * Constructs a new, empty LatencyHistogram.
+   */
+  public LatencyHistogram() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new AtomicLongArray(BUCKETS + 2);
+    }
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency in nanoseconds; negative values are recorded
+   *              as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    AtomicLongArray stripe = stripes[(int) Thread.currentThread().threadId() & (STRIPES - 1)];
+    stripe.getAndIncrement(bucketOf(value));
+    stripe.getAndAdd(SUM, value);
+    long max;
+    while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value)) {
+      // Retry with the maximum set by another thread
+    }
+  }
+
+  /**
+   * Returns the number of latencies recorded.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    long count = 0;
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        count += stripe.get(i);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the mean of the latencies recorded.
+   *
+   * @return the mean in nanoseconds, 0 if nothing has been recorded
+   */
+  public double getMeanNanos() {
+    long count = getCount();
+    long sum = 0;
+    for (AtomicLongArray stripe : stripes) {
+      sum += stripe.get(SUM);
+    }
+    return count == 0 ? 0 : sum / (double) count;
+  }
+
+  /**
+   * Returns the highest latency recorded.
+   *
+   * @return the maximum in nanoseconds, 0 if nothing has been recorded
+   */
+  public long getMaxNanos() {
+    long max = 0;
+    for (AtomicLongArray stripe : stripes) {
+      max = Math.max(max, stripe.get(MAX));
+    }
+    return max;
+  }
+
+  /**
+   * Returns the latencies below which the given fractions of the recorded
+   * ones fall, each reported as the middle of its bucket and never above the
+   * maximum.
+   *
+   * @param quantiles the fractions, between 0 and 1, in increasing order
+   * @return the latency of each fraction in nanoseconds, all 0 if nothing has
+   *         been recorded
+   */
+  public long[] getQuantileNanos(double... quantiles) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        long bucket = stripe.get(i);
+        counts[i] += bucket;
+        total += bucket;
+      }
+    }
+
+    long[] values = new long[quantiles.length];
+    if (total == 0) {
+      return values;
+    }
+    long max = getMaxNanos();
+    int bucket = 0;
+    long seen = counts[0];
+    for (int q = 0; q < quantiles.length; q++) {
+      long rank = Math.max((long) Math.ceil(quantiles[q] * total), 1);
+      while (seen < rank && bucket < BUCKETS - 1) {
+        seen += counts[++bucket];
+      }
+      long low = lowestValueOf(bucket);
+      long width = lowestValueOf(bucket + 1) - low;
+      values[q] = Math.min(low + width / 2, max);
+    }
+    return values;
+  }
+
+  /**
+   * Returns the bucket counting a value.
+   *
+   * @param value the value, not negative
+   * @return the index of the bucket
+   */
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket, BUCKETS - 1);
+  }
+
+  /**
+   * Returns the lowest value counted by a bucket.
+   *
+   * @param bucket the index of the bucket, up to the number of buckets
+   * @return the lowest value
+   */
+  private static long lowestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+}
@@ -0,0 +1,215 @@
+package it.unimib.sd2024;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads lines of bytes from an input stream into a reusable buffer.
+ * Lines are terminated by {@code "\n"}, {@code "\r"} or {@code "\r\n"}, as
+ * with {@link java.io.BufferedReader#readLine()}, but no string is created:
+ * the caller works directly on {@link #getLine()}.
+ * The length of a line and the time spent waiting for it can be limited, so
+ * a client cannot make the reader buffer or wait without end.
+ * This class is not thread-safe.
+ */
+public final class LineReader {
+  private final InputStream in;
+  private final byte[] buffer = new byte[8192];
+  private int position;
+  private int limit;
+  private byte[] line = new byte[256];
+  private boolean skipLineFeed;
+  private int maxLineLength = Integer.MAX_VALUE;
+  private Socket socket;
+  private int idleMillis;
+  private int readMillis;
+  private int socketTimeout = -1;
+  private long filledAt;
+  private long lineStartedAt;
+
+  /**
+   * Thrown when a line is longer than the maximum length of the reader.
+   */
+  public static final class LineTooLongException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a new LineTooLongException.
+     *
+     * @param maxLineLength the maximum length of a line
+     */
+    public LineTooLongException(int maxLineLength) {
+      super("Line longer than " + maxLineLength + " bytes");
+    }
+  }
+
+  /**
+   * Constructs a new LineReader on the specified stream.
+   *
+   * @param in the stream to read from
+   */
+  public LineReader(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Sets the maximum length of a line. It must be set before the first line
+   * is read.
+   *
+   * @param maxLineLength the maximum length in bytes, without the terminator
+   */
+  public void setMaxLineLength(int maxLineLength) {
+    this.maxLineLength = maxLineLength;
+    if (line.length > maxLineLength) {
+      line = new byte[maxLineLength];
+    }
+  }
+
+  /**
+   * Limits the time spent waiting for the lines. The reader waits at most the
+   * idle timeout for the first byte of a line and at most the read timeout
+   * for a whole line, counted from its first byte, by setting the read
+   * timeout of the socket before each read.
+   *
+   * @param socket     the socket the stream of the reader comes from
+   * @param idleMillis the idle timeout in milliseconds, 0 for no limit
+   * @param readMillis the read timeout in milliseconds, 0 for no limit
+   */
+  public void setTimeouts(Socket socket, int idleMillis, int readMillis) {
+    this.socket = socket;
+    this.idleMillis = idleMillis;
+    this.readMillis = readMillis;
+  }
+
+  /**
+   * Reads the next line into the line buffer.
+   *
+   * @return the length of the line, or -1 if the end of the stream has been
+   *         reached before any byte of a new line
+   * @throws LineTooLongException   if the line is longer than the maximum
+   *                                length
+   * @throws SocketTimeoutException if the idle or the read timeout expires
+   * @throws IOException            if an I/O error occurs
+   */
+  public int readLine() throws IOException {
+    int length = 0;
+    while (true) {
+      if (position == limit) {
+        limit = socket == null ? in.read(buffer) : timedRead(length);
+        position = 0;
+        if (limit <= 0) {
+          limit = 0;
+          return length > 0 ? length : -1;
+        }
+      }
+
+      byte b = buffer[position++];
+      if (b == '\n' && skipLineFeed) {
+        skipLineFeed = false;
+        continue;
+      }
+      skipLineFeed = b == '\r';
+      if (b == '\n' || b == '\r') {
+        return length;
+      }
+      if (length == line.length) {
+        if (length >= maxLineLength) {
+          throw new LineTooLongException(maxLineLength);
+        }
+        line = Arrays.copyOf(line, (int) Math.min(line.length * 2L, maxLineLength));
+      }
+      if (length == 0) {
+        lineStartedAt = filledAt;
+      }
+      line[length++] = b;
+    }
+  }
+
+  /**
+   * Fills the buffer, waiting at most the time left by the timeouts.
+   *
+   * @param length the bytes of the current line read so far
+   * @return the number of bytes read, or -1 at the end of the stream
+   * @throws SocketTimeoutException if the timeout expires
+   * @throws IOException            if an I/O error occurs
+   */
+  private int timedRead(int length) throws IOException {
+    int timeout = idleMillis;
+    if (length > 0) {
+      timeout = 0;
+      if (readMillis > 0) {
+        long left = readMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lineStartedAt);
+        if (left <= 0) {
+          throw new SocketTimeoutException("Read timeout");
+        }
+        timeout = (int) left;
+      }
+    }
+    if (timeout != socketTimeout) {
+      socket.setSoTimeout(timeout);
+      socketTimeout = timeout;
+    }
+    try {
+      int read = in.read(buffer);
+      if (readMillis > 0) {
+        filledAt = System.nanoTime();
+      }
+      return read;
+    } catch (SocketTimeoutException e) {
+      throw new SocketTimeoutException(length == 0 ? "Idle timeout" : "Read timeout");
+    }
+  }
+
+  /**
+   * Returns the buffer holding the last line read. Its content is only valid
+   * until the next call to {@link #readLine()}.
+   *
+   * @return the line buffer
+   */
+  public byte[] getLine() {
+    return line;
+  }
+
+  /**
+   * Returns whether another line can be read without blocking, meaning the
+   * client has already sent further pipelined requests.
+   *
+   * @return true if buffered or available input exists
+   * @throws IOException if an I/O error occurs
+   */
+  public boolean hasBufferedInput() throws IOException {
+    return position < limit || in.available() > 0;
+  }
+
+  /**
+   * Returns a stream with the bytes not yet consumed as lines followed by the
+   * rest of the underlying stream. It is used when the connection switches to
+   * another framing; this reader must not be used afterwards. The line feed of
+   * a {@code "\r\n"} terminator is not part of the remaining input.
+   *
+   * @return the remaining input
+   * @throws IOException if an I/O error occurs
+   */
+  public InputStream remainingInput() throws IOException {
+    if (skipLineFeed) {
+      if (position == limit) {
+        limit = Math.max(in.read(buffer), 0);
+        position = 0;
+      }
+      if (position < limit && buffer[position] == '\n') {
+        position++;
+      }
+      skipLineFeed = false;
+    }
+
+    var buffered = new ByteArrayInputStream(buffer, position, limit - position);
+    position = limit;
+    return new SequenceInputStream(buffered, in);
+  }
+}
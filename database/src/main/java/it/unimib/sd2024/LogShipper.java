@@ -0,0 +1,245 @@
+package it.unimib.sd2024;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Ships the write-ahead log of a primary to its replicas, which apply the
+ * same records in the same order and serve reads (asynchronous log-shipping
+ * replication).
+ *
+ * <p>
+ * A replica connects like any client and sends {@code REPLICATE lsn}, the
+ * LSN of the last record it holds. After the {@code Replicating} response the
+ * connection carries binary frames, each starting with a type byte:
+ * {@link #RECORD} followed by a log record exactly as stored in the segments
+ * (length, checksum and payload), {@link #SNAPSHOT} followed by the
+ * {@code long} size and the content of a snapshot file, and
+ * {@link #HEARTBEAT} followed by the {@code long} durable LSN of the
+ * primary. Only the records already synced to the disk are shipped, read back
+ * from the segments, so a replica never holds a change the primary could
+ * lose in a crash. If the log no longer holds the records the replica needs
+ * (they have been covered by a snapshot and deleted, or the replica is ahead
+ * of the primary) a new snapshot is sent first and the records follow it.
+ *
+ * <p>
+ * A heartbeat follows every group of records and is sent at least every
+ * {@link #HEARTBEAT_MILLIS} milliseconds; the replica answers each heartbeat
+ * with the {@code long} LSN of the last record it applied, from which the
+ * lag of each replica is computed.
+ */
+public final class LogShipper {
+  /**
+   * The type of the frames holding a log record.
+   */
+  public static final byte RECORD = 'R';
+  /**
+   * The type of the frames holding a snapshot file.
+   */
+  public static final byte SNAPSHOT = 'S';
+  /**
+   * The type of the frames holding the durable LSN of the primary.
+   */
+  public static final byte HEARTBEAT = 'H';
+  /**
+   * The highest delay between two heartbeats, in milliseconds.
+   */
+  public static final long HEARTBEAT_MILLIS = 1000;
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_GROUP_SIZE = 256 * 1024;
+
+  private final Path directory;
+  private final Database database;
+  private final WriteAheadLog log;
+  private final CopyOnWriteArrayList<Replica> replicas = new CopyOnWriteArrayList<>();
+
+  /**
+   * The state of a connected replica.
+   */
+  private static final class Replica {
+    private final String address;
+    // LSN and time of the groups shipped and not yet acknowledged
+    private final ConcurrentLinkedDeque<long[]> inFlight = new ConcurrentLinkedDeque<>();
+    private volatile long ackedLsn;
+    private volatile boolean disconnected;
+
+    private Replica(String address, long ackedLsn) {
+      this.address = address;
+      this.ackedLsn = ackedLsn;
+    }
+
+    /**
+     * Records that the records up to an LSN have been shipped.
+     *
+     * @param lsn the LSN of the last record shipped
+     */
+    private void shipped(long lsn) {
+      long[] last = inFlight.peekLast();
+      if (lsn > ackedLsn && (last == null || last[0] < lsn)) {
+        inFlight.addLast(new long[] { lsn, System.currentTimeMillis() });
+      }
+    }
+
+    /**
+     * Records that the replica applied the records up to an LSN.
+     *
+     * @param lsn the LSN of the last record applied
+     */
+    private void acknowledged(long lsn) {
+      ackedLsn = lsn;
+      long[] first;
+      while ((first = inFlight.peekFirst()) != null && first[0] <= lsn) {
+        inFlight.pollFirst();
+      }
+    }
+
+    /**
+     * Returns for how long the oldest record not yet applied by the replica
+     * has been shipped.
+     *
+     * @param now the current time, in milliseconds since the epoch
+     * @return the lag in milliseconds, 0 if the replica is up to date
+     */
+    private long lagMillis(long now) {
+      long[] first = inFlight.peekFirst();
+      return first == null ? 0 : now - first[1];
+    }
+  }
+
+  /**
+   * Constructs a new LogShipper.
+   *
+   * @param directory the data directory of the primary
+   * @param database  the database of the primary, with the log attached
+   * @param log       the write-ahead log of the database
+   */
+  public LogShipper(Path directory, Database database, WriteAheadLog log) {
+    this.directory = directory;
+    this.database = database;
+    this.log = log;
+  }
+
+  /**
+   * Ships the log to a replica until it disconnects. Runs on the thread of
+   * the connection, while the acknowledgements of the replica are read on a
+   * virtual thread.
+   *
+   * @param afterLsn the LSN of the last record the replica holds
+   * @param input    the input of the connection
+   * @param output   the output of the connection
+   * @param address  the address of the replica, for the lag report
+   * @throws IOException if the connection or the log fails
+   */
+  public void serve(long afterLsn, InputStream input, OutputStream output, String address) throws IOException {
+    Replica replica = new Replica(address, afterLsn);
+    replicas.add(replica);
+    Thread.ofVirtual().start(() -> {
+      var in = new DataInputStream(input);
+      try {
+        while (true) {
+          replica.acknowledged(in.readLong());
+        }
+      } catch (IOException e) {
+        // The replica disconnected
+      } finally {
+        replica.disconnected = true;
+      }
+    });
+
+    var out = new DataOutputStream(new BufferedOutputStream(output, OUTPUT_BUFFER_SIZE));
+    WriteAheadLog.Reader reader = null;
+    long from = afterLsn;
+    try {
+      while (!replica.disconnected) {
+        if (reader == null) {
+          if (from > log.getDurableLsn()) {
+            from = sendSnapshot(out);
+          }
+          reader = new WriteAheadLog.Reader(directory, from);
+        }
+
+        long durableLsn = log.awaitDurableLsn(reader.getNextLsn() - 1, HEARTBEAT_MILLIS);
+        try {
+          int shipped = 0;
+          ByteBuffer record;
+          while (shipped < MAX_GROUP_SIZE && (record = reader.next(durableLsn)) != null) {
+            out.writeByte(RECORD);
+            out.write(record.array(), 0, record.limit());
+            shipped += record.limit();
+          }
+        } catch (NoSuchFileException e) {
+          // The replica is too far behind: start again from a new snapshot
+          reader.close();
+          reader = null;
+          from = sendSnapshot(out);
+          continue;
+        }
+        replica.shipped(reader.getNextLsn() - 1);
+        out.writeByte(HEARTBEAT);
+        out.writeLong(durableLsn);
+        out.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      replicas.remove(replica);
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Writes a snapshot of the database and sends it to the replica.
+   *
+   * @param out the output of the connection
+   * @return the LSN covered by the snapshot
+   * @throws IOException if the snapshot cannot be written or sent
+   */
+  private long sendSnapshot(DataOutputStream out) throws IOException {
+    try (FileChannel snapshot = Snapshot.writeAndOpen(directory, database, log)) {
+      long lsn = Snapshot.coveredLsn(snapshot);
+      out.writeByte(SNAPSHOT);
+      out.writeLong(snapshot.size());
+      Channels.newInputStream(snapshot.position(0)).transferTo(out);
+      return lsn;
+    }
+  }
+
+  /**
+   * Returns the replication state of the primary as a JSON object: its
+   * durable LSN and, for each connected replica, the LSN it acknowledged and
+   * how far behind it is, in records and in milliseconds.
+   *
+   * @return the JSON description
+   */
+  public String describe() {
+    long lsn = log.getDurableLsn();
+    long now = System.currentTimeMillis();
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"role\": \"primary\",\"lsn\": ").append(lsn).append(",\"replicas\": [");
+    boolean first = true;
+    for (Replica replica : replicas) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      sb.append("{\"address\": \"").append(replica.address)
+          .append("\",\"ackedLsn\": ").append(replica.ackedLsn)
+          .append(",\"lagRecords\": ").append(Math.max(lsn - replica.ackedLsn, 0))
+          .append(",\"lagMillis\": ").append(replica.lagMillis(now)).append('}');
+    }
+    return sb.append("]}").toString();
+  }
+}
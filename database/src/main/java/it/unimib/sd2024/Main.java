@@ -6,6 +6,18 @@
 package it.unimib.sd2024;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
 
 /**
@@ -13,25 +25,226 @@ import java.io.*;
  */
 public class Main {
   public static final int PORT = 3030;
+  public static final String SERVER_BUSY = "Server busy";
+  public static final String REQUEST_TOO_LARGE = "Request too large";
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
   private static Database database;
+  private static ServerConfig config;
 
   /**
-   * Starts the server, initializes the database, and listens for incoming
-   * connections.
-   * For each connection, a new Handler thread is started to process client
-   * requests.
+   * Starts the server with the default configuration.
    *
    * @throws IOException If an I/O error occurs when opening the socket.
    */
   public static void startServer() throws IOException {
-    var server = new ServerSocket(PORT);
+    startServer(new ServerConfig());
+  }
 
-    System.out.println("Database listening at localhost:" + PORT);
+  /**
+   * Starts the server, initializes the database, and listens for incoming
+   * connections using the network layer selected in the configuration.
+   * In {@link ServerConfig.Mode#THREAD} mode a new Handler thread is started
+   * for each connection, in {@link ServerConfig.Mode#VIRTUAL} mode each
+   * connection runs on a virtual thread and in {@link ServerConfig.Mode#NIO}
+   * mode the connections are multiplexed on a few selector threads.
+   * The requests of each {@link Lane} executed at the same time are limited
+   * by an {@link AdmissionControl} if
+   * {@link ServerConfig#getMaxActiveRequests(Lane)} is set, except the point
+   * requests in NIO mode, which are already limited by the I/O threads.
+   *
+   * @param config the server configuration
+   * @throws IOException If an I/O error occurs when opening the socket.
+   */
+  public static void startServer(ServerConfig config) throws IOException {
+    Main.config = config;
     database = new Database("Database1");
+    for (Lane lane : Lane.values()) {
+      if (config.getMaxActiveRequests(lane) > 0
+          && (lane != Lane.POINT || config.getMode() != ServerConfig.Mode.NIO)) {
+        database.setAdmissionControl(lane, new AdmissionControl(config.getMaxActiveRequests(lane),
+            config.getMaxQueuedRequests(lane)));
+      }
+    }
+    if (config.getStorage() == ServerConfig.Storage.OFF_HEAP) {
+      database.setArena(new OffHeapArena());
+    }
+    WriteAheadLog log = config.getDataDirectory() == null ? null : openWriteAheadLog(config);
+    if (config.getReplicaOf() != null) {
+      startReplication(config, log);
+    } else if (log != null) {
+      database.attachLog(log);
+      database.setLogShipper(new LogShipper(config.getDataDirectory(), database, log));
+    }
+    startExpiryReaper();
+    startCompressor();
+    if (config.getStatsIntervalSeconds() > 0) {
+      startStatsDump(config.getStatsIntervalSeconds());
+    }
+
+    switch (config.getMode()) {
+      case NIO:
+        System.out.println("Database listening at localhost:" + config.getPort() + " (nio, "
+            + config.getIoThreads() + " I/O threads)");
+        new NioServer(config, database).start();
+        break;
+      case VIRTUAL:
+        startVirtualThreadServer(config);
+        break;
+      default:
+        startThreadServer(config);
+        break;
+    }
+  }
+
+  /**
+   * Rebuilds the database from the latest snapshot and the write-ahead log in
+   * the data directory, opens the log for the following changes and
+   * schedules the periodic snapshots. A primary attaches the log to the
+   * database, so every change is recorded, while a replica appends the
+   * records of its primary.
+   *
+   * @param config the server configuration
+   * @return the write-ahead log
+   * @throws IOException If the snapshot or the log cannot be read or opened.
+   */
+  private static WriteAheadLog openWriteAheadLog(ServerConfig config) throws IOException {
+    Path directory = config.getDataDirectory();
+    Files.createDirectories(directory);
+
+    long start = System.nanoTime();
+    long snapshotLsn = Snapshot.load(directory, database);
+    long loaded = System.nanoTime();
+    long lastLsn = WriteAheadLog.replay(directory, database, snapshotLsn);
+    long replayed = System.nanoTime();
+    System.out.println("Recovered " + database.getAllCollections().size() + " collections from " + directory
+        + " (snapshot LSN " + snapshotLsn + " in " + TimeUnit.NANOSECONDS.toMillis(loaded - start)
+        + " ms, last LSN " + lastLsn + " in " + TimeUnit.NANOSECONDS.toMillis(replayed - loaded) + " ms)");
+
+    var log = new WriteAheadLog(directory, config.getDurability(), config.getBatchWindowMillis(), lastLsn);
+
+    int interval = config.getSnapshotIntervalSeconds();
+    if (interval > 0) {
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "snapshot");
+        thread.setDaemon(true);
+        return thread;
+      });
+      scheduler.scheduleWithFixedDelay(() -> {
+        try {
+          Snapshot.write(directory, database, log);
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Snapshot failed: " + e);
+        }
+      }, interval, interval, TimeUnit.SECONDS);
+    }
+    return log;
+  }
+
+  /**
+   * Makes the database a read-only replica of the primary given in the
+   * configuration and starts following it. A replica without a data
+   * directory stores the snapshots of the primary in a temporary directory.
+   *
+   * @param config the server configuration
+   * @param log    the write-ahead log of the replica, or null if it only
+   *               keeps its data in memory
+   * @throws IOException If the temporary directory cannot be created.
+   */
+  private static void startReplication(ServerConfig config, WriteAheadLog log) throws IOException {
+    String primary = config.getReplicaOf();
+    int separator = primary.lastIndexOf(':');
+    Path directory = config.getDataDirectory() != null ? config.getDataDirectory()
+        : Files.createTempDirectory("replica");
+    var client = new ReplicaClient(primary.substring(0, separator),
+        Integer.parseInt(primary.substring(separator + 1)), database, directory, log,
+        log == null ? 0 : log.getLastLsn());
+    database.setReplicaClient(client);
+    client.start();
+  }
+
+  /**
+   * Schedules the reaper marking the expired documents of the collections
+   * with an expiry field, see {@link Database#reapExpired(long)}.
+   */
+  private static void startExpiryReaper() {
+    ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "expiry-reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    reaper.scheduleWithFixedDelay(() -> {
+      try {
+        database.reapExpired(System.currentTimeMillis());
+      } catch (RuntimeException e) {
+        System.err.println("Expiry reaper failed: " + e);
+      }
+    }, ExpiryIndex.REAP_INTERVAL_MILLIS, ExpiryIndex.REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Schedules the compressor packing the cold documents of the collections
+   * with the compressed encoding, see {@link Database#compressCold()}.
+   */
+  private static void startCompressor() {
+    ScheduledExecutorService compressor = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "compressor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    compressor.scheduleWithFixedDelay(() -> {
+      try {
+        database.compressCold();
+      } catch (RuntimeException e) {
+        System.err.println("Compressor failed: " + e);
+      }
+    }, DocumentCodec.COMPRESS_INTERVAL_MILLIS, DocumentCodec.COMPRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Schedules the periodic print of the statistics of the server, in the
+   * format of the {@code STATS} command.
+   *
+   * @param interval the interval between two prints, in seconds
+   */
+  private static void startStatsDump(int interval) {
+    ScheduledExecutorService dump = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "stats");
+      thread.setDaemon(true);
+      return thread;
+    });
+    dump.scheduleWithFixedDelay(() -> {
+      try {
+        System.out.println(database.getMetrics().describe(database));
+      } catch (RuntimeException e) {
+        System.err.println("Stats dump failed: " + e);
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Accepts connections forever, starting a new Handler thread for each one.
+   * At most {@link ServerConfig#getMaxConnections()} connections are served
+   * at the same time, as in {@link #startVirtualThreadServer(ServerConfig)}.
+   *
+   * @param config the server configuration
+   * @throws IOException If an I/O error occurs when opening the socket.
+   */
+  private static void startThreadServer(ServerConfig config) throws IOException {
+    var server = new ServerSocket(config.getPort());
+    var permits = new Semaphore(config.getMaxConnections());
+
+    System.out.println("Database listening at localhost:" + config.getPort());
 
     try {
-      while (true)
-        new Handler(server.accept()).start();
+      while (true) {
+        Socket client = server.accept();
+        if (permits.tryAcquire()) {
+          new Thread(new Handler(client, permits)).start();
+        } else {
+          rejectBusy(client);
+        }
+      }
     } catch (IOException e) {
       System.err.println(e);
     } finally {
@@ -39,41 +252,145 @@ public class Main {
     }
   }
 
+  /**
+   * Accepts connections forever, serving each one on a virtual thread.
+   * At most {@link ServerConfig#getMaxConnections()} connections are served
+   * at the same time: when the cap is reached the new client receives
+   * {@link #SERVER_BUSY} and the connection is closed, so a spike cannot
+   * exhaust the memory of the JVM.
+   *
+   * @param config the server configuration
+   * @throws IOException If an I/O error occurs when opening the socket.
+   */
+  private static void startVirtualThreadServer(ServerConfig config) throws IOException {
+    var permits = new Semaphore(config.getMaxConnections());
+
+    try (var server = new ServerSocket(config.getPort());
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      System.out.println("Database listening at localhost:" + config.getPort() + " (virtual threads, max "
+          + config.getMaxConnections() + " connections)");
+
+      while (true) {
+        Socket client = server.accept();
+        if (permits.tryAcquire()) {
+          executor.execute(new Handler(client, permits));
+        } else {
+          rejectBusy(client);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println(e);
+    }
+  }
+
+  /**
+   * Replies {@link #SERVER_BUSY} to a client that exceeds the connection cap
+   * and closes its socket.
+   *
+   * @param client the rejected client socket
+   */
+  private static void rejectBusy(Socket client) {
+    database.getMetrics().connectionRejected();
+    try (client) {
+      OutputStream out = client.getOutputStream();
+      out.write(SERVER_BUSY.getBytes(StandardCharsets.UTF_8));
+      out.write(LINE_SEPARATOR);
+      out.flush();
+    } catch (IOException e) {
+      System.err.println("Error rejecting client: " + e.getMessage());
+    }
+  }
+
   /**
    * A private static inner class that handles client connections.
    * Each instance of Handler is associated with a single client socket.
    * The run method processes client requests until the connection is closed.
    */
-  private static class Handler extends Thread {
+  private static class Handler implements Runnable {
     private Socket client;
+    private Semaphore permits;
 
     /**
      * Constructs a new Handler instance for the specified client socket.
      *
-     * @param client The client socket to be handled.
+     * @param client  The client socket to be handled.
+     * @param permits The connection permits to release when the connection
+     *                ends, or null if the connections are not capped.
      */
-    public Handler(Socket client) {
+    public Handler(Socket client, Semaphore permits) {
       this.client = client;
+      this.permits = permits;
     }
 
     /**
      * The main execution method for the handler.
      * Reads requests from the client, processes them using a ProtocolHandler,
      * and sends back responses until the client closes the connection.
+     * Requests may be pipelined: the responses are buffered and flushed
+     * together once the client has no further requests in flight. After a
+     * {@code PROTOCOL BINARY} request the connection continues with the
+     * binary protocol, after a {@code WATCH} request it only carries the
+     * events of the subscription and after a {@code REPLICATE} request the
+     * log shipped to a replica. A client that stays idle or takes too long
+     * to send a request is disconnected, and one that sends a request line
+     * longer than {@link ServerConfig#getMaxLineBytes()} receives
+     * {@link #REQUEST_TOO_LARGE} and is disconnected. The connection and its
+     * bytes are counted in the {@link Metrics} of the database, and its
+     * opening and closing are recorded as {@link ConnectionEvent}s.
      */
     public void run() {
-      try (var out = new PrintWriter(client.getOutputStream(), true);
-          var in = new BufferedReader(new InputStreamReader(client.getInputStream()))) {
+      Metrics metrics = database.getMetrics();
+      metrics.connectionOpened();
+      ConnectionEvent event = ConnectionEvent.opened(client.getRemoteSocketAddress());
+      try (var out = new BufferedOutputStream(metrics.countOutput(client.getOutputStream()), OUTPUT_BUFFER_SIZE);
+          var in = metrics.countInput(client.getInputStream())) {
 
-        String inputLine;
+        LineReader reader = new LineReader(in);
+        reader.setMaxLineLength(config.getMaxLineBytes());
+        reader.setTimeouts(client, (int) TimeUnit.SECONDS.toMillis(config.getIdleTimeoutSeconds()),
+            (int) TimeUnit.SECONDS.toMillis(config.getReadTimeoutSeconds()));
+        ProtocolHandler protocolHandler = new ProtocolHandler(database);
+        int length;
 
-        while ((inputLine = in.readLine()) != null) {
-          // Handle the input with a local ProtocolHandler object
-          ProtocolHandler protocolHandler = new ProtocolHandler(inputLine, database);
-          String response = protocolHandler.handleRequest();
-          // System.out.println(response);
-          out.println(response); // Send response back to client
+        try {
+          while ((length = reader.readLine()) >= 0) {
+            // Handle the input with the ProtocolHandler of this connection
+            String response = protocolHandler.handleRequest(reader.getLine(), length);
+            out.write(response.getBytes(StandardCharsets.UTF_8));
+            out.write(LINE_SEPARATOR);
+            if (protocolHandler.isBinaryRequested()) {
+              out.flush();
+              client.setSoTimeout(0);
+              serveBinary(reader.remainingInput(), out);
+              break;
+            }
+            if (protocolHandler.getSubscription() != null) {
+              out.flush();
+              client.setSoTimeout(0);
+              serveWatch(protocolHandler.getSubscription(), in, out);
+              break;
+            }
+            if (protocolHandler.getReplicationStart() >= 0) {
+              out.flush();
+              client.setSoTimeout(0);
+              database.getLogShipper().serve(protocolHandler.getReplicationStart(), reader.remainingInput(), out,
+                  String.valueOf(client.getRemoteSocketAddress()));
+              break;
+            }
+            // Send the responses back once all the pipelined requests are handled
+            if (!reader.hasBufferedInput()) {
+              out.flush();
+            }
+          }
+        } catch (LineReader.LineTooLongException e) {
+          metrics.requestTooLarge();
+          out.write(REQUEST_TOO_LARGE.getBytes(StandardCharsets.UTF_8));
+          out.write(LINE_SEPARATOR);
+          out.flush();
         }
+      } catch (SocketTimeoutException e) {
+        // The client was idle or too slow: closing the connection frees it
+        metrics.connectionTimedOut();
       } catch (IOException e) {
         System.err.println(e);
       } finally {
@@ -82,6 +399,106 @@ public class Main {
         } catch (IOException e) {
           System.err.println("Error closing client socket: " + e.getMessage());
         }
+        if (permits != null) {
+          permits.release();
+        }
+        metrics.connectionClosed();
+        event.closed(client.getRemoteSocketAddress());
+      }
+    }
+
+    /**
+     * Serves the rest of the connection with the events of a subscription,
+     * one per line, until the client closes the connection. The input is only
+     * read, on a virtual thread, to notice the end of the connection: a
+     * slow client makes this thread wait on the socket, never the writers,
+     * whose events are buffered by the subscription.
+     *
+     * @param subscription the subscription of the connection
+     * @param in           the input of the connection
+     * @param out          the output of the connection
+     * @throws IOException if an I/O error occurs
+     */
+    private void serveWatch(ChangeFeed.Subscription subscription, InputStream in, OutputStream out)
+        throws IOException {
+      Thread.ofVirtual().start(() -> {
+        byte[] ignored = new byte[256];
+        try {
+          while (in.read(ignored) >= 0) {
+            // Requests sent while watching are ignored
+          }
+        } catch (IOException e) {
+          // The connection is closed by the handler
+        } finally {
+          subscription.close();
+        }
+      });
+
+      try {
+        List<String> events;
+        while ((events = subscription.take()) != null) {
+          for (String event : events) {
+            out.write(event.getBytes(StandardCharsets.UTF_8));
+            out.write(LINE_SEPARATOR);
+          }
+          out.flush();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        subscription.close();
+      }
+    }
+
+    /**
+     * Serves the rest of the connection with the binary protocol, reading
+     * length-prefixed frames until the client closes the connection. A frame
+     * longer than {@link ServerConfig#getMaxLineBytes()} closes the
+     * connection.
+     *
+     * @param input the input of the connection
+     * @param out   the output of the connection
+     * @throws IOException if an I/O error occurs or a frame length is invalid
+     */
+    private void serveBinary(InputStream input, OutputStream out) throws IOException {
+      var in = new DataInputStream(new BufferedInputStream(input));
+      BinaryProtocolHandler binaryHandler = new BinaryProtocolHandler(database);
+      WritableByteChannel channel = Channels.newChannel(out);
+      byte[] frame = new byte[256];
+
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          return;
+        }
+        if (length < 0) {
+          throw new IOException("Invalid frame length: " + length);
+        }
+        if (length > config.getMaxLineBytes()) {
+          database.getMetrics().requestTooLarge();
+          throw new IOException("Frame too large: " + length);
+        }
+        if (length > frame.length) {
+          frame = new byte[Math.max(length, frame.length * 2)];
+        }
+        in.readFully(frame, 0, length);
+
+        try {
+          for (ByteBuffer buffer : binaryHandler.handleFrame(frame, 0, length)) {
+            if (buffer.hasArray()) {
+              out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+              channel.write(buffer);
+            }
+          }
+        } finally {
+          binaryHandler.releasePinned();
+        }
+        if (in.available() == 0) {
+          out.flush();
+        }
       }
     }
   }
@@ -91,10 +508,10 @@ public class Main {
    * Calls startServer to initialize the server and begin listening for
    * connections.
    *
-   * @param args Command line arguments (not used).
+   * @param args Command line options, see {@link ServerConfig#fromArgs}.
    * @throws IOException If an I/O error occurs when starting the server.
    */
   public static void main(String[] args) throws IOException {
-    startServer();
+    startServer(ServerConfig.fromArgs(args));
   }
 }
\ No newline at end of file
@@ -0,0 +1,300 @@
+package it.unimib.sd2024;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the statistics of the server: the requests and their latency for
+ * each command, each collection and each {@link Lane}, the connections, the
+ * connections and requests refused under overload and the bytes received and
+ * sent. Every counter is a {@link LongAdder} or a
+ * {@link LatencyHistogram}, so recording never takes a lock and threads
+ * serving different connections do not contend on the same memory. The
+ * statistics are reported by the {@code STATS} command.
+ *
+ * <p>
+ * The latency of a request is measured by the {@link ProtocolHandler} and the
+ * {@link BinaryProtocolHandler}, from the parsed request to the response
+ * ready to be written, so it includes the wait for the durability of a write
+ * but not the network. The latency of a lane also includes the wait for a
+ * slot of its {@link AdmissionControl}, so it shows what the clients of the
+ * lane experience. The bytes are counted by the network layer.
+ */
+public final class Metrics {
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+  private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+  private final long startedAt = System.nanoTime();
+  private final LatencyHistogram[] commands = new LatencyHistogram[Command.values().length];
+  private final LatencyHistogram[] lanes = new LatencyHistogram[Lane.values().length];
+  private final LongAdder connectionsOpened = new LongAdder();
+  private final LongAdder connectionsClosed = new LongAdder();
+  private final LongAdder connectionsRejected = new LongAdder();
+  private final LongAdder connectionsTimedOut = new LongAdder();
+  private final LongAdder requestsTooLarge = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  /**
+   * Constructs a new Metrics with every counter at zero.
+   */
+  public Metrics() {
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = new LatencyHistogram();
+    }
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Records a handled request.
+   *
+   * @param command    the command of the request
+   * @param lane       the lane of the request
+   * @param collection the collection the request named, or null if it named
+   *                   none or the collection does not exist
+   * @param nanos      the time taken to handle the request, in nanoseconds
+   * @param waitNanos  the time the request waited for its turn in the lane,
+   *                   in nanoseconds
+   */
+  public void recordRequest(Command command, Lane lane, Collection collection, long nanos, long waitNanos) {
+    commands[command.ordinal()].record(nanos);
+    lanes[lane.ordinal()].record(nanos + waitNanos);
+    if (collection != null) {
+      collection.getLatency().record(nanos);
+    }
+  }
+
+  /**
+   * Records a new connection.
+   */
+  public void connectionOpened() {
+    connectionsOpened.increment();
+  }
+
+  /**
+   * Records the end of a connection.
+   */
+  public void connectionClosed() {
+    connectionsClosed.increment();
+  }
+
+  /**
+   * Records a connection refused because the connection cap was reached.
+   */
+  public void connectionRejected() {
+    connectionsRejected.increment();
+  }
+
+  /**
+   * Records a connection closed because its idle or read timeout expired.
+   */
+  public void connectionTimedOut() {
+    connectionsTimedOut.increment();
+  }
+
+  /**
+   * Records a connection closed because it sent a request line longer than
+   * the maximum.
+   */
+  public void requestTooLarge() {
+    requestsTooLarge.increment();
+  }
+
+  /**
+   * Records bytes received from the clients.
+   *
+   * @param bytes the number of bytes
+   */
+  public void addBytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  /**
+   * Records bytes sent to the clients.
+   *
+   * @param bytes the number of bytes
+   */
+  public void addBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  /**
+   * Wraps the input of a connection so that the bytes read are counted.
+   *
+   * @param in the input of the connection
+   * @return the counting input
+   */
+  public InputStream countInput(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          bytesIn.increment();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+          bytesIn.add(read);
+        }
+        return read;
+      }
+    };
+  }
+
+  /**
+   * Wraps the output of a connection so that the bytes written are counted.
+   * The output should be buffered on top of the returned stream, which
+   * counts each write.
+   *
+   * @param out the output of the connection
+   * @return the counting output
+   */
+  public OutputStream countOutput(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytesOut.increment();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesOut.add(len);
+      }
+    };
+  }
+
+  /**
+   * Returns the statistics as a JSON object: the uptime, the connections
+   * still open, those opened since the start and those refused or closed
+   * under overload, the bytes received and sent, the off-heap memory if the
+   * database has an arena, for each lane that received requests or has an
+   * {@link AdmissionControl} its latency and the state of its queue, and for
+   * each command and each collection that received requests their number and
+   * latency percentiles, in microseconds.
+   *
+   * @param database the database the statistics belong to
+   * @return the JSON description
+   */
+  public String describe(Database database) {
+    long opened = connectionsOpened.sum();
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"uptimeMillis\": ").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt))
+        .append(",\"connections\": {\"active\": ").append(Math.max(opened - connectionsClosed.sum(), 0))
+        .append(",\"total\": ").append(opened)
+        .append(",\"rejected\": ").append(connectionsRejected.sum())
+        .append(",\"timedOut\": ").append(connectionsTimedOut.sum())
+        .append(",\"tooLarge\": ").append(requestsTooLarge.sum())
+        .append("},\"bytes\": {\"in\": ").append(bytesIn.sum())
+        .append(",\"out\": ").append(bytesOut.sum()).append('}');
+    OffHeapArena arena = database.getArena();
+    if (arena != null) {
+      sb.append(",\"offHeap\": {\"reservedBytes\": ").append(arena.getReservedBytes())
+          .append(",\"usedBytes\": ").append(arena.getUsedBytes()).append('}');
+    }
+
+    sb.append(",\"lanes\": {");
+    boolean first = true;
+    for (Lane lane : Lane.values()) {
+      LatencyHistogram histogram = lanes[lane.ordinal()];
+      AdmissionControl admission = database.getAdmissionControl(lane);
+      if (histogram.getCount() > 0 || admission != null) {
+        if (!first) {
+          sb.append(',');
+        }
+        first = false;
+        sb.append('"').append(lane.name().toLowerCase()).append("\": {");
+        appendLatency(sb, histogram);
+        if (admission != null) {
+          sb.append(",\"activeRequests\": ").append(admission.getActive())
+              .append(",\"queuedRequests\": ").append(admission.getQueued())
+              .append(",\"maxActiveRequests\": ").append(admission.getMaxActive())
+              .append(",\"maxQueuedRequests\": ").append(admission.getMaxQueued())
+              .append(",\"rejectedRequests\": ").append(admission.getRejected());
+        }
+        sb.append('}');
+      }
+    }
+
+    sb.append("},\"commands\": {");
+    first = true;
+    for (Command command : Command.values()) {
+      LatencyHistogram histogram = commands[command.ordinal()];
+      if (histogram.getCount() > 0) {
+        first = appendHistogram(sb, first, command.name(), histogram);
+      }
+    }
+    sb.append("},\"collections\": {");
+    first = true;
+    Map<String, Collection> collections = new TreeMap<>(database.getAllCollections());
+    for (Map.Entry<String, Collection> entry : collections.entrySet()) {
+      LatencyHistogram histogram = entry.getValue().getLatency();
+      if (histogram.getCount() > 0) {
+        first = appendHistogram(sb, first, entry.getKey(), histogram);
+      }
+    }
+    return sb.append("}}").toString();
+  }
+
+  /**
+   * Appends a named histogram to a JSON object being written.
+   *
+   * @param sb        the JSON being written
+   * @param first     whether this is the first member of the object
+   * @param name      the name of the member
+   * @param histogram the histogram
+   * @return false, the value of {@code first} for the following member
+   */
+  private static boolean appendHistogram(StringBuilder sb, boolean first, String name,
+      LatencyHistogram histogram) {
+    if (!first) {
+      sb.append(',');
+    }
+    sb.append('"').append(name).append("\": {");
+    appendLatency(sb, histogram);
+    sb.append('}');
+    return false;
+  }
+
+  /**
+   * Appends the count and the latency of a histogram as the members of a
+   * JSON object being written.
+   *
+   * @param sb        the JSON being written
+   * @param histogram the histogram
+   */
+  private static void appendLatency(StringBuilder sb, LatencyHistogram histogram) {
+    sb.append("\"count\": ").append(histogram.getCount())
+        .append(",\"meanMicros\": ").append(micros(histogram.getMeanNanos()));
+    long[] quantiles = histogram.getQuantileNanos(QUANTILES);
+    for (int i = 0; i < quantiles.length; i++) {
+      sb.append(",\"").append(QUANTILE_NAMES[i]).append("Micros\": ").append(micros(quantiles[i]));
+    }
+    sb.append(",\"maxMicros\": ").append(micros(histogram.getMaxNanos()));
+  }
+
+  /**
+   * Converts nanoseconds to microseconds, rounded to one decimal.
+   *
+   * @param nanos the duration in nanoseconds
+   * @return the duration in microseconds
+   */
+  private static double micros(double nanos) {
+    return Math.round(nanos / 100) / 10.0;
+  }
+}
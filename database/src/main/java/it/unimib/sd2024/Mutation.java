@@ -0,0 +1,311 @@
+package it.unimib.sd2024;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes a single change applied to the database, as recorded in the
+ * write-ahead log. Inserts and updates are both recorded as {@link Type#PUT},
+ * so replaying a mutation more than once leads to the same state. Document
+ * changes carry the version they were applied with, so replaying them
+ * restores the same versions. The changes of a {@link Batch} are recorded
+ * together as a single {@link Type#BATCH} mutation, so they are either all
+ * replayed or not at all.
+ */
+public final class Mutation {
+
+  /**
+   * The kind of change.
+   */
+  public enum Type {
+    CREATE_COLLECTION,
+    DROP_COLLECTION,
+    PUT,
+    DELETE,
+    CREATE_INDEX,
+    BATCH,
+    SET_EXPIRY,
+    SET_ENCODING;
+
+    private static final Type[] VALUES = values();
+
+    /**
+     * Returns the type with the specified ordinal.
+     *
+     * @param ordinal the ordinal, as stored in the log
+     * @return the type
+     * @throws IllegalArgumentException if the ordinal is out of range
+     */
+    public static Type fromOrdinal(int ordinal) {
+      if (ordinal < 0 || ordinal >= VALUES.length) {
+        throw new IllegalArgumentException("Unknown mutation type: " + ordinal);
+      }
+      return VALUES[ordinal];
+    }
+  }
+
+  private final Type type;
+  private final String collection;
+  private final String documentId;
+  private final byte[] data;
+  private final long version;
+
+  /**
+   * Constructs a new Mutation that carries no version.
+   *
+   * @param type       the kind of change
+   * @param collection the name of the collection
+   * @param documentId the ID of the document, the indexed field for
+   *                   {@link Type#CREATE_INDEX}, the expiry field for
+   *                   {@link Type#SET_EXPIRY}, the encoding for
+   *                   {@link Type#SET_ENCODING}, or null for collection
+   *                   changes
+   * @param data       the UTF-8 encoded document data for {@link Type#PUT},
+   *                   the index type for {@link Type#CREATE_INDEX}, null
+   *                   otherwise
+   */
+  public Mutation(Type type, String collection, String documentId, byte[] data) {
+    this(type, collection, documentId, data, 0);
+  }
+
+  /**
+   * Constructs a new Mutation.
+   *
+   * @param type       the kind of change
+   * @param collection the name of the collection
+   * @param documentId the ID of the document, the indexed field for
+   *                   {@link Type#CREATE_INDEX}, the expiry field for
+   *                   {@link Type#SET_EXPIRY}, the encoding for
+   *                   {@link Type#SET_ENCODING}, or null for collection
+   *                   changes
+   * @param data       the UTF-8 encoded document data for {@link Type#PUT},
+   *                   the index type for {@link Type#CREATE_INDEX}, the
+   *                   encoded changes for {@link Type#BATCH}, null
+   *                   otherwise
+   * @param version    the version of the written document for
+   *                   {@link Type#PUT}, the version consumed by the removal
+   *                   for {@link Type#DELETE}, or 0 if unknown
+   */
+  public Mutation(Type type, String collection, String documentId, byte[] data, long version) {
+    this.type = type;
+    this.collection = collection;
+    this.documentId = documentId;
+    this.data = data;
+    this.version = version;
+  }
+
+  /**
+   * Returns the kind of change.
+   *
+   * @return the type
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Returns the name of the collection the change applies to.
+   *
+   * @return the collection name
+   */
+  public String getCollection() {
+    return collection;
+  }
+
+  /**
+   * Returns the ID of the changed document.
+   *
+   * @return the document ID, or null for collection changes
+   */
+  public String getDocumentId() {
+    return documentId;
+  }
+
+  /**
+   * Returns the new data of the document. The array must not be modified.
+   *
+   * @return the UTF-8 encoded data, or null if the change carries none
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * Returns the document version the change was applied with.
+   *
+   * @return the version, or 0 if the change carries none
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Checks that an encoded collection name or document ID fits the
+   * {@code short} length of a record.
+   *
+   * @param name the UTF-8 encoded name or ID
+   * @throws IllegalArgumentException if it is longer than
+   *                                  {@link BinaryProtocol#MAX_NAME_LENGTH}
+   */
+  static void checkNameLength(byte[] name) {
+    if (name.length > BinaryProtocol.MAX_NAME_LENGTH) {
+      throw new IllegalArgumentException("Name longer than " + BinaryProtocol.MAX_NAME_LENGTH + " bytes");
+    }
+  }
+
+  /**
+   * Returns a mutation recording several changes applied together.
+   *
+   * @param mutations the document changes, in the order they were applied
+   * @return the {@link Type#BATCH} mutation
+   */
+  public static Mutation batch(List<Mutation> mutations) {
+    int length = 0;
+    List<byte[]> names = new ArrayList<>(2 * mutations.size());
+    for (Mutation mutation : mutations) {
+      byte[] collectionName = mutation.collection.getBytes(StandardCharsets.UTF_8);
+      byte[] id = mutation.documentId == null ? new byte[0]
+          : mutation.documentId.getBytes(StandardCharsets.UTF_8);
+      checkNameLength(collectionName);
+      checkNameLength(id);
+      names.add(collectionName);
+      names.add(id);
+      length += 1 + 2 * Short.BYTES + collectionName.length + id.length + Integer.BYTES
+          + (mutation.data == null ? 0 : mutation.data.length) + Long.BYTES;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for (int i = 0; i < mutations.size(); i++) {
+      Mutation mutation = mutations.get(i);
+      byte[] collectionName = names.get(2 * i);
+      byte[] id = names.get(2 * i + 1);
+      buffer.put((byte) mutation.type.ordinal())
+          .putShort((short) collectionName.length).put(collectionName)
+          .putShort((short) id.length).put(id);
+      if (mutation.data == null) {
+        buffer.putInt(0);
+      } else {
+        buffer.putInt(mutation.data.length).put(mutation.data);
+      }
+      buffer.putLong(mutation.version);
+    }
+    return new Mutation(Type.BATCH, "", null, buffer.array());
+  }
+
+  /**
+   * Returns the changes recorded by a {@link Type#BATCH} mutation.
+   *
+   * @return the changes, in the order they were applied
+   * @throws IllegalStateException if this is not a batch
+   */
+  public List<Mutation> getBatch() {
+    if (type != Type.BATCH) {
+      throw new IllegalStateException("Not a batch: " + type);
+    }
+    List<Mutation> mutations = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(data == null ? new byte[0] : data);
+    while (buffer.hasRemaining()) {
+      mutations.add(decode(buffer));
+    }
+    return mutations;
+  }
+
+  /**
+   * Decodes a mutation stored as its type, its collection name, its document
+   * ID, its data and its version, which is missing in the log records written
+   * before versions existed.
+   *
+   * @param buffer the buffer, positioned at the type
+   * @return the decoded mutation
+   */
+  static Mutation decode(ByteBuffer buffer) {
+    Type type = Type.fromOrdinal(buffer.get());
+    String collection = readString(buffer, buffer.getShort() & 0xFFFF);
+    int idLength = buffer.getShort() & 0xFFFF;
+    String id = idLength == 0 ? null : readString(buffer, idLength);
+    int dataLength = buffer.getInt();
+    byte[] data = null;
+    if (dataLength > 0) {
+      data = new byte[dataLength];
+      buffer.get(data);
+    }
+    long version = buffer.remaining() >= Long.BYTES ? buffer.getLong() : 0;
+    return new Mutation(type, collection, id, data, version);
+  }
+
+  /**
+   * Reads a UTF-8 string of the given length at the current position.
+   *
+   * @param buffer the buffer to read from
+   * @param length the length in bytes
+   * @return the decoded string
+   */
+  private static String readString(ByteBuffer buffer, int length) {
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * Applies this mutation to the specified database. Used when replaying the
+   * log, before any listener is attached.
+   *
+   * @param database the database to change
+   */
+  public void applyTo(Database database) {
+    switch (type) {
+      case CREATE_COLLECTION:
+        if (database.getCollection(collection) == null) {
+          database.addCollection(collection, new Collection(collection));
+        }
+        break;
+      case DROP_COLLECTION:
+        database.removeCollection(collection);
+        break;
+      case PUT:
+        Collection target = database.getCollection(collection);
+        if (target == null) {
+          target = new Collection(collection);
+          database.addCollection(collection, target);
+        }
+        target.restoreDocument(documentId, new Document(documentId, data), version);
+        break;
+      case DELETE:
+        Collection existing = database.getCollection(collection);
+        if (existing != null) {
+          existing.removeDocument(documentId);
+          existing.advanceVersion(version);
+        }
+        break;
+      case CREATE_INDEX:
+        Collection indexed = database.getCollection(collection);
+        if (indexed != null) {
+          indexed.createIndex(documentId,
+              SecondaryIndex.Type.valueOf(new String(data, StandardCharsets.UTF_8)));
+        }
+        break;
+      case SET_EXPIRY:
+        Collection expiring = database.getCollection(collection);
+        if (expiring != null) {
+          expiring.setExpiryField(documentId);
+        }
+        break;
+      case SET_ENCODING:
+        Collection encoded = database.getCollection(collection);
+        if (encoded != null) {
+          encoded.setEncoding(DocumentCodec.Encoding.valueOf(documentId));
+        }
+        break;
+      case BATCH:
+        for (Mutation mutation : getBatch()) {
+          mutation.applyTo(database);
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown mutation type: " + type);
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package it.unimib.sd2024;
+
+/**
+ * Receives the changes applied to a {@link Database}.
+ * The listener is invoked while the changed document (or collection) is
+ * locked, so the mutations of a single document are observed in the order
+ * they were applied. Implementations must therefore be quick and must never
+ * block or call back into the database.
+ */
+@FunctionalInterface
+public interface MutationListener {
+
+  /**
+   * Called when a change is applied in memory.
+   *
+   * @param mutation the change
+   */
+  void onMutation(Mutation mutation);
+}
@@ -0,0 +1,818 @@
+package it.unimib.sd2024;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking network layer of the database server.
+ * The acceptor runs on the calling thread and hands every new connection to
+ * one of a fixed number of I/O loops, each one owning a {@link Selector} and a
+ * pair of reusable direct buffers. Requests are framed exactly like
+ * {@link java.io.BufferedReader#readLine()} does and the responses are the
+ * same bytes written by the thread-per-connection server, so clients cannot
+ * tell the two modes apart. Connections switched to the binary protocol are
+ * framed by their length prefix instead. The events of a connection that
+ * sent {@code WATCH} are written by its loop, which is woken up when the
+ * subscription receives events and only takes them once the socket has
+ * accepted the previous ones. A connection that sent {@code REPLICATE} is
+ * taken off its loop once the response is written and handed, in blocking
+ * mode, to a thread of the {@link LogShipper}, which streams the log for as
+ * long as the replica stays connected.
+ *
+ * <p>
+ * The same limits as the other modes protect the server under overload: the
+ * acceptor refuses the connections beyond the cap with
+ * {@link Main#SERVER_BUSY}, a line longer than the maximum is answered
+ * {@link Main#REQUEST_TOO_LARGE} and closes the connection, and each loop
+ * periodically closes the text connections idle or sending a line for longer
+ * than the timeouts.
+ *
+ * <p>
+ * The I/O loops only execute the requests of the {@link Lane#POINT} lane.
+ * A request of a lane with an {@link AdmissionControl}, like a read of a
+ * whole collection, is executed on a virtual thread, where it waits for a
+ * slot of its lane, so it never holds up the other connections of the loop;
+ * its connection stops reading until the response is queued, so the
+ * pipelined requests are still answered in order. The writes are executed
+ * the same way when the database is logged with a {@link Durability} other
+ * than {@link Durability#ASYNC}, since they wait for the log to be synced
+ * before answering; the writes of many connections waiting at the same time
+ * are then also synced together.
+ */
+public class NioServer {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+  private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+  private final ServerConfig config;
+  private final Database database;
+  private final IoLoop[] loops;
+  private final AtomicInteger openConnections = new AtomicInteger();
+  private final long idleTimeoutNanos;
+  private final long readTimeoutNanos;
+  private final boolean durableWrites;
+
+  /**
+   * Constructs a new NioServer serving the specified database.
+   *
+   * @param config   the server configuration
+   * @param database the database the requests are executed on
+   * @throws IOException if a selector cannot be opened
+   */
+  public NioServer(ServerConfig config, Database database) throws IOException {
+    this.config = config;
+    this.database = database;
+    this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getIdleTimeoutSeconds());
+    this.readTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getReadTimeoutSeconds());
+    this.durableWrites = config.getDataDirectory() != null && config.getDurability() != Durability.ASYNC;
+    this.loops = new IoLoop[config.getIoThreads()];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new IoLoop();
+    }
+  }
+
+  /**
+   * Starts the I/O loops and accepts connections on the calling thread,
+   * distributing them round-robin between the loops. The connections beyond
+   * {@link ServerConfig#getMaxConnections()} are refused. This method only
+   * returns when the server socket fails.
+   *
+   * @throws IOException if the server socket cannot be opened
+   */
+  public void start() throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      new Thread(loops[i], "nio-io-" + i).start();
+    }
+
+    try (var server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(config.getPort()));
+      int next = 0;
+      while (true) {
+        SocketChannel client = server.accept();
+        if (openConnections.incrementAndGet() > config.getMaxConnections()) {
+          openConnections.decrementAndGet();
+          rejectBusy(client);
+          continue;
+        }
+        loops[next].register(client);
+        next = (next + 1) % loops.length;
+      }
+    }
+  }
+
+  /**
+   * Replies {@link Main#SERVER_BUSY} to a client that exceeds the connection
+   * cap and closes its channel, still in blocking mode.
+   *
+   * @param client the rejected client channel
+   */
+  private void rejectBusy(SocketChannel client) {
+    database.getMetrics().connectionRejected();
+    try (client) {
+      ByteBuffer busy = ByteBuffer.allocate(Main.SERVER_BUSY.length() + LINE_SEPARATOR.length);
+      busy.put(Main.SERVER_BUSY.getBytes(StandardCharsets.UTF_8)).put(LINE_SEPARATOR).flip();
+      while (busy.hasRemaining()) {
+        client.write(busy);
+      }
+    } catch (IOException e) {
+      System.err.println("Error rejecting client: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns whether a command waits for its changes to be durable before
+   * answering.
+   *
+   * @param command the command of the request
+   * @return true if the command writes to the database
+   */
+  private static boolean awaitsDurability(Command command) {
+    switch (command) {
+      case CREATE:
+      case POST:
+      case PUT:
+      case DELETE:
+      case INDEX:
+      case EXPIRY:
+      case ENCODING:
+      case EXEC:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * An event loop serving a subset of the connections. All the state of its
+   * connections is only touched by the loop thread, so no locking is needed.
+   */
+  private final class IoLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> watching = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> replicating = new ArrayDeque<>();
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long lastSweep = System.nanoTime();
+
+    /**
+     * Constructs a new IoLoop with its own selector.
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    IoLoop() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop. Called by the acceptor
+     * thread.
+     *
+     * @param client the accepted channel
+     */
+    void register(SocketChannel client) {
+      pending.add(client);
+      selector.wakeup();
+    }
+
+    /**
+     * Asks this loop to write the events received by the subscription of a
+     * connection. Called by the threads publishing the events.
+     *
+     * @param connection the watching connection
+     */
+    void eventsReady(Connection connection) {
+      watching.add(connection);
+      selector.wakeup();
+    }
+
+    /**
+     * Asks this loop to queue the response of a request executed outside of
+     * it. Called by the thread that executed the request.
+     *
+     * @param connection the connection of the request
+     */
+    void offloadCompleted(Connection connection) {
+      completed.add(connection);
+      selector.wakeup();
+    }
+
+    /**
+     * Waits for ready channels and dispatches their events until the selector
+     * fails. If a timeout is set the loop also wakes up periodically to close
+     * the connections that exceeded it.
+     */
+    public void run() {
+      boolean sweeping = idleTimeoutNanos > 0 || readTimeoutNanos > 0;
+      while (true) {
+        try {
+          if (sweeping) {
+            selector.select(SWEEP_INTERVAL_MILLIS);
+            sweepTimedOut();
+          } else {
+            selector.select();
+          }
+        } catch (IOException e) {
+          System.err.println(e);
+          return;
+        }
+        registerPending();
+        flushWatching();
+        startReplication();
+        resumeOffloaded();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.flush();
+            }
+          } catch (IOException | RuntimeException e) {
+            System.err.println(e);
+            connection.close();
+          }
+        }
+      }
+    }
+
+    /**
+     * Closes the text connections that have been idle for longer than the
+     * idle timeout or have been sending a line for longer than the read
+     * timeout, at most once per sweep interval. A connection with output
+     * still to be written is waiting for its client to read, not to send, so
+     * it is left alone.
+     */
+    private void sweepTimedOut() {
+      long now = System.nanoTime();
+      if (now - lastSweep < TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS)) {
+        return;
+      }
+      lastSweep = now;
+      for (SelectionKey key : selector.keys()) {
+        Connection connection = (Connection) key.attachment();
+        if (key.isValid() && connection.isTimedOut(now)) {
+          database.getMetrics().connectionTimedOut();
+          connection.close();
+        }
+      }
+    }
+
+    /**
+     * Writes the events received by the watching connections since the last
+     * wake up.
+     */
+    private void flushWatching() {
+      Connection connection;
+      while ((connection = watching.poll()) != null) {
+        try {
+          connection.flush();
+        } catch (IOException | RuntimeException e) {
+          System.err.println(e);
+          connection.close();
+        }
+      }
+    }
+
+    /**
+     * Queues the responses of the requests executed outside of the loop since
+     * the last wake up and resumes their connections.
+     */
+    private void resumeOffloaded() {
+      Connection connection;
+      while ((connection = completed.poll()) != null) {
+        try {
+          connection.resume();
+        } catch (IOException | RuntimeException e) {
+          System.err.println(e);
+          connection.close();
+        }
+      }
+    }
+
+    /**
+     * Hands the connections of the replicas to the log shipper. Their keys
+     * have been cancelled before the last select, which deregistered the
+     * channels, so they can be switched to blocking mode.
+     */
+    private void startReplication() {
+      Connection connection;
+      while ((connection = replicating.poll()) != null) {
+        Connection replica = connection;
+        try {
+          replica.channel.configureBlocking(true);
+        } catch (IOException e) {
+          System.err.println(e);
+          replica.close();
+          continue;
+        }
+        Thread.ofVirtual().name("replication").start(replica::serveReplica);
+      }
+    }
+
+    /**
+     * Registers the connections handed over by the acceptor since the last
+     * wake up.
+     */
+    private void registerPending() {
+      SocketChannel client;
+      while ((client = pending.poll()) != null) {
+        try {
+          client.configureBlocking(false);
+          Connection connection = new Connection(this, client);
+          connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+          database.getMetrics().connectionOpened();
+          connection.remoteAddress = client.getRemoteAddress();
+          connection.event = ConnectionEvent.opened(connection.remoteAddress);
+        } catch (IOException e) {
+          System.err.println(e);
+          openConnections.decrementAndGet();
+          try {
+            client.close();
+          } catch (IOException closeException) {
+            System.err.println("Error closing client socket: " + closeException.getMessage());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The state of a single client connection: the bytes of the line being
+   * received and the responses not yet written to the socket.
+   */
+  private final class Connection {
+    private final IoLoop loop;
+    private final SocketChannel channel;
+    private final Queue<ByteBuffer> output = new ArrayDeque<>();
+    private final ProtocolHandler protocolHandler = new ProtocolHandler(database);
+    private BinaryProtocolHandler binaryHandler;
+    private ChangeFeed.Subscription subscription;
+    private SelectionKey key;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean skipLineFeed;
+    private boolean closeWhenFlushed;
+    private boolean replicating;
+    private byte[] replicaInput = new byte[0];
+    private SocketAddress remoteAddress;
+    private ConnectionEvent event;
+    private long lastActivity = System.nanoTime();
+    private long lineStartedAt;
+    private final Request classifier = new Request();
+    // A request is being executed outside of the loop: the input is not
+    // processed until its response is queued, the unprocessed bytes are kept
+    // in the stash
+    private boolean offloaded;
+    private ByteBuffer stash;
+    private boolean endOfInput;
+    // The outcome of the offloaded request, published through the queue of
+    // completed requests of the loop
+    private String offloadedResponse;
+    private ByteBuffer[] offloadedFrame;
+    private RuntimeException offloadFailure;
+
+    /**
+     * Constructs a new Connection for the specified channel.
+     *
+     * @param loop    the loop the connection belongs to
+     * @param channel the client channel
+     */
+    Connection(IoLoop loop, SocketChannel channel) {
+      this.loop = loop;
+      this.channel = channel;
+    }
+
+    /**
+     * Reads the available bytes, handles every complete line in order and
+     * writes all their responses at once. A line terminated by the end of the stream is still handled,
+     * as {@link java.io.BufferedReader#readLine()} would do.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void read() throws IOException {
+      ByteBuffer buffer = loop.readBuffer;
+      buffer.clear();
+      int read = channel.read(buffer);
+      if (read > 0) {
+        database.getMetrics().addBytesIn(read);
+        if (idleTimeoutNanos > 0 || readTimeoutNanos > 0) {
+          lastActivity = System.nanoTime();
+        }
+      }
+      if (read < 0) {
+        endOfInput = true;
+        if (lineLength > 0 && binaryHandler == null && subscription == null) {
+          handleLine();
+        }
+        closeWhenFlushed = !offloaded;
+        flush();
+        return;
+      }
+
+      buffer.flip();
+      process(buffer);
+      flush();
+    }
+
+    /**
+     * Handles the requests in the received bytes, until a request is executed
+     * outside of the loop: the bytes left are then kept for
+     * {@link #resume()}.
+     *
+     * @param buffer the buffer holding the received bytes
+     * @throws IOException if a frame length is invalid
+     */
+    private void process(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining() && subscription == null && !replicating && !closeWhenFlushed && !offloaded) {
+        if (binaryHandler != null) {
+          if (skipLineFeed && buffer.get(buffer.position()) == '\n') {
+            buffer.get();
+          }
+          skipLineFeed = false;
+          appendFrames(buffer);
+          break;
+        }
+        byte b = buffer.get();
+        if (b == '\n' && skipLineFeed) {
+          skipLineFeed = false;
+          continue;
+        }
+        skipLineFeed = b == '\r';
+        if (b == '\n' || b == '\r') {
+          handleLine();
+        } else {
+          append(b);
+        }
+      }
+      if (replicating && buffer.hasRemaining()) {
+        if (skipLineFeed && buffer.get(buffer.position()) == '\n') {
+          buffer.get();
+        }
+        replicaInput = new byte[buffer.remaining()];
+        buffer.get(replicaInput);
+      }
+      if (offloaded && buffer.hasRemaining()) {
+        stash = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+      }
+    }
+
+    /**
+     * Executes a request on a virtual thread, where it waits for a slot of
+     * its lane. The connection stops reading until {@link #resume()}.
+     *
+     * @param request the execution of the request, storing its outcome
+     */
+    private void offload(Runnable request) {
+      offloaded = true;
+      Thread.ofVirtual().name("lane-worker").start(() -> {
+        try {
+          request.run();
+        } catch (RuntimeException e) {
+          offloadFailure = e;
+        }
+        loop.offloadCompleted(this);
+      });
+    }
+
+    /**
+     * Queues the response of the request executed outside of the loop, then
+     * handles the requests received in the meantime and writes the responses.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void resume() throws IOException {
+      offloaded = false;
+      if (!channel.isOpen()) {
+        return;
+      }
+      if (offloadFailure != null) {
+        throw offloadFailure;
+      }
+      if (offloadedResponse != null) {
+        queueResponse(offloadedResponse);
+        offloadedResponse = null;
+      } else if (offloadedFrame != null) {
+        output.addAll(Arrays.asList(offloadedFrame));
+        offloadedFrame = null;
+      }
+
+      ByteBuffer received = stash;
+      stash = null;
+      if (received != null) {
+        process(received);
+      } else if (binaryHandler != null) {
+        // Handle the frames received after the offloaded one
+        appendFrames(ByteBuffer.allocate(0));
+      }
+      if (endOfInput && !offloaded) {
+        closeWhenFlushed = true;
+      }
+      flush();
+    }
+
+    /**
+     * Writes as much pending output as the socket accepts. The responses of
+     * all the requests handled since the last flush are coalesced in the
+     * direct buffer, so pipelined requests are answered with as few writes as
+     * possible. If the socket is full the connection stops reading until the
+     * output drains, so a client that does not read its responses cannot make
+     * the server buffer without limit. The events of a subscription are only
+     * taken once everything before them has been written, so those of a slow
+     * client stay in the bounded buffer of the subscription.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void flush() throws IOException {
+      if (!channel.isOpen()) {
+        return;
+      }
+      ByteBuffer buffer = loop.writeBuffer;
+      while (!output.isEmpty() || queueEvents()) {
+        buffer.clear();
+        for (ByteBuffer pending : output) {
+          int chunk = Math.min(buffer.remaining(), pending.remaining());
+          buffer.put(buffer.position(), pending, pending.position(), chunk);
+          buffer.position(buffer.position() + chunk);
+          if (!buffer.hasRemaining()) {
+            break;
+          }
+        }
+        buffer.flip();
+
+        int coalesced = buffer.remaining();
+        int written = channel.write(buffer);
+        database.getMetrics().addBytesOut(written);
+        consume(written);
+        if (written < coalesced) {
+          key.interestOps(SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+
+      if (binaryHandler != null) {
+        binaryHandler.releasePinned();
+      }
+      if (closeWhenFlushed) {
+        close();
+      } else if (replicating) {
+        key.cancel();
+        loop.replicating.add(this);
+        loop.selector.wakeup();
+      } else {
+        key.interestOps(offloaded ? 0 : SelectionKey.OP_READ);
+      }
+    }
+
+    /**
+     * Streams the log to the replica on the blocking channel until it
+     * disconnects, then closes the connection. Runs on its own thread.
+     */
+    void serveReplica() {
+      try {
+        var socket = channel.socket();
+        Metrics metrics = database.getMetrics();
+        var in = new SequenceInputStream(new ByteArrayInputStream(replicaInput),
+            metrics.countInput(socket.getInputStream()));
+        database.getLogShipper().serve(protocolHandler.getReplicationStart(), in,
+            metrics.countOutput(socket.getOutputStream()), String.valueOf(socket.getRemoteSocketAddress()));
+      } catch (IOException | RuntimeException e) {
+        System.err.println(e);
+      } finally {
+        close();
+      }
+    }
+
+    /**
+     * Queues the events received by the subscription of the connection.
+     *
+     * @return true if events have been queued
+     */
+    private boolean queueEvents() {
+      if (subscription == null) {
+        return false;
+      }
+      List<String> events = subscription.poll();
+      for (String event : events) {
+        output.add(ByteBuffer.wrap(event.getBytes(StandardCharsets.UTF_8)));
+        output.add(ByteBuffer.wrap(LINE_SEPARATOR));
+      }
+      return !events.isEmpty();
+    }
+
+    /**
+     * Removes the specified number of written bytes from the head of the
+     * output queue.
+     *
+     * @param written the number of bytes written to the socket
+     */
+    private void consume(int written) {
+      while (!output.isEmpty() && (written > 0 || !output.peek().hasRemaining())) {
+        ByteBuffer head = output.peek();
+        int consumed = Math.min(written, head.remaining());
+        head.position(head.position() + consumed);
+        written -= consumed;
+        if (!head.hasRemaining()) {
+          output.poll();
+        }
+      }
+    }
+
+    /**
+     * Returns whether the text connection exceeded the idle or the read
+     * timeout.
+     *
+     * @param now the current value of {@link System#nanoTime()}
+     * @return true if the connection must be closed
+     */
+    boolean isTimedOut(long now) {
+      if (binaryHandler != null || subscription != null || replicating || offloaded || !output.isEmpty()) {
+        return false;
+      }
+      if (lineLength == 0) {
+        return idleTimeoutNanos > 0 && now - lastActivity > idleTimeoutNanos;
+      }
+      return readTimeoutNanos > 0 && now - lineStartedAt > readTimeoutNanos;
+    }
+
+    /**
+     * Closes the channel and cancels its registration. The connection is
+     * counted as closed only the first time.
+     */
+    void close() {
+      if (!channel.isOpen()) {
+        return;
+      }
+      openConnections.decrementAndGet();
+      database.getMetrics().connectionClosed();
+      if (event != null) {
+        event.closed(remoteAddress);
+      }
+      if (binaryHandler != null) {
+        binaryHandler.releasePinned();
+      }
+      if (subscription != null) {
+        subscription.close();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        System.err.println("Error closing client socket: " + e.getMessage());
+      }
+    }
+
+    /**
+     * Executes the buffered line and queues its response, or hands it to a
+     * virtual thread if its lane has an {@link AdmissionControl} or it waits
+     * for the log to be synced.
+     */
+    private void handleLine() {
+      Command command = classifier.parse(line, lineLength) ? classifier.getCommand() : null;
+      if (isOffloaded(command, command != null ? Lane.of(command, classifier.hasDocumentId()) : Lane.POINT)) {
+        byte[] request = Arrays.copyOf(line, lineLength);
+        lineLength = 0;
+        offload(() -> offloadedResponse = protocolHandler.handleRequest(request, request.length));
+        return;
+      }
+      String response = protocolHandler.handleRequest(line, lineLength);
+      lineLength = 0;
+      queueResponse(response);
+    }
+
+    /**
+     * Returns whether a request is executed outside of the loop.
+     *
+     * @param command the command of the request, or null if unknown
+     * @param lane    the lane of the request
+     * @return true if the lane has an admission control or the request waits
+     *         for the log to be synced
+     */
+    private boolean isOffloaded(Command command, Lane lane) {
+      return lane != Lane.POINT && database.getAdmissionControl(lane) != null
+          || durableWrites && command != null && awaitsDurability(command);
+    }
+
+    /**
+     * Queues the response of a text request and applies the changes of the
+     * connection it asked for.
+     *
+     * @param text the response
+     */
+    private void queueResponse(String text) {
+      byte[] response = text.getBytes(StandardCharsets.UTF_8);
+      output.add(ByteBuffer.wrap(response));
+      output.add(ByteBuffer.wrap(LINE_SEPARATOR));
+      if (protocolHandler.isBinaryRequested()) {
+        binaryHandler = new BinaryProtocolHandler(database);
+      }
+      if (protocolHandler.getSubscription() != null) {
+        subscription = protocolHandler.getSubscription();
+        subscription.setListener(() -> loop.eventsReady(this));
+      }
+      replicating = protocolHandler.getReplicationStart() >= 0;
+    }
+
+    /**
+     * Appends the remaining bytes of the buffer to the pending binary input and
+     * handles every complete frame, queueing the responses, until a frame is
+     * executed outside of the loop.
+     *
+     * @param buffer the buffer holding the received bytes
+     * @throws IOException if a frame length is invalid
+     */
+    private void appendFrames(ByteBuffer buffer) throws IOException {
+      int received = buffer.remaining();
+      ensureCapacity(lineLength + received);
+      buffer.get(line, lineLength, received);
+      lineLength += received;
+
+      int start = 0;
+      while (!offloaded && lineLength - start >= BinaryProtocol.LENGTH_SIZE) {
+        int length = ByteBuffer.wrap(line, start, BinaryProtocol.LENGTH_SIZE).getInt();
+        if (length < 0) {
+          throw new IOException("Invalid frame length: " + length);
+        }
+        if (length > config.getMaxLineBytes()) {
+          database.getMetrics().requestTooLarge();
+          throw new IOException("Frame too large: " + length);
+        }
+        int frameStart = start + BinaryProtocol.LENGTH_SIZE;
+        if (lineLength - frameStart < length) {
+          ensureCapacity(frameStart - start + length);
+          break;
+        }
+        if (isOffloaded(BinaryProtocolHandler.commandOf(line, frameStart, length),
+            BinaryProtocolHandler.laneOf(line, frameStart, length))) {
+          byte[] frame = Arrays.copyOfRange(line, frameStart, frameStart + length);
+          offload(() -> offloadedFrame = binaryHandler.handleFrame(frame, 0, frame.length));
+        } else {
+          for (ByteBuffer response : binaryHandler.handleFrame(line, frameStart, length)) {
+            output.add(response);
+          }
+        }
+        start = frameStart + length;
+      }
+
+      System.arraycopy(line, start, line, 0, lineLength - start);
+      lineLength -= start;
+    }
+
+    /**
+     * Grows the receive buffer so it can hold at least the given number of
+     * bytes.
+     *
+     * @param capacity the required capacity
+     */
+    private void ensureCapacity(int capacity) {
+      if (capacity > line.length) {
+        line = Arrays.copyOf(line, Math.max(capacity, line.length * 2));
+      }
+    }
+
+    /**
+     * Appends a byte to the line being received, growing the buffer if needed.
+     * If the line exceeds the maximum length the client is answered
+     * {@link Main#REQUEST_TOO_LARGE} and the connection is closed once the
+     * responses are written.
+     *
+     * @param b the byte to append
+     */
+    private void append(byte b) {
+      if (lineLength == 0) {
+        lineStartedAt = lastActivity;
+      } else if (lineLength >= config.getMaxLineBytes()) {
+        database.getMetrics().requestTooLarge();
+        output.add(ByteBuffer.wrap(Main.REQUEST_TOO_LARGE.getBytes(StandardCharsets.UTF_8)));
+        output.add(ByteBuffer.wrap(LINE_SEPARATOR));
+        lineLength = 0;
+        closeWhenFlushed = true;
+        return;
+      }
+      ensureCapacity(lineLength + 1);
+      line[lineLength++] = b;
+    }
+  }
+}
@@ -0,0 +1,336 @@
+package it.unimib.sd2024;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stores document data outside of the Java heap, so that large collections
+ * neither inflate the heap nor lengthen garbage collection pauses.
+ *
+ * <p>
+ * Memory is taken from the operating system in slabs of direct buffers. Each
+ * slab is cut in blocks of one size class (powers of two from
+ * {@value #MIN_BLOCK_SIZE} to {@value #MAX_BLOCK_SIZE} bytes); larger values
+ * get a dedicated slab. Freed blocks go back to the free list of their class
+ * and are reused by the following allocations of the same class.
+ *
+ * <p>
+ * A {@link Document} keeps only the handle of its block. Since a reader may
+ * still hold a document that has just been replaced or removed, documents
+ * stored in an arena must be read inside a section, opened with
+ * {@link #enter()} before the document is looked up and closed with
+ * {@link #exit(long)} once its data is no longer used. The block of a
+ * retired document is freed only after every section that could have seen
+ * the document is closed: sections belong to an epoch, and an epoch is ended
+ * once all the sections of the previous one are closed, which frees the
+ * blocks retired during it.
+ */
+public final class OffHeapArena {
+  /**
+   * The smallest block size.
+   */
+  public static final int MIN_BLOCK_SIZE = 16;
+  /**
+   * The largest block size cut from shared slabs.
+   */
+  public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+  private static final int SLAB_SIZE = 4 * 1024 * 1024;
+  private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_BLOCK_SIZE)
+      - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE) + 1;
+
+  private final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASSES];
+  private final Object slabLock = new Object();
+  private final AtomicLongArray readers = new AtomicLongArray(2);
+  private final Limbo[] limbo = { new Limbo(), new Limbo() };
+  private volatile long epoch;
+  private final AtomicLong reservedBytes = new AtomicLong();
+  private final AtomicLong usedBytes = new AtomicLong();
+  private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+  private int slabCount;
+  private int[] freeSlabs = new int[0];
+  private int freeSlabCount;
+
+  /**
+   * The blocks of one size: the free list and the slab being cut.
+   */
+  private static final class SizeClass {
+    private final int blockSize;
+    private long[] free = new long[64];
+    private int freeCount;
+    private int slab = -1;
+    private int offset = SLAB_SIZE;
+
+    private SizeClass(int blockSize) {
+      this.blockSize = blockSize;
+    }
+  }
+
+  /**
+   * The blocks retired during an epoch, waiting to be freed.
+   */
+  private static final class Limbo {
+    private long[] handles = new long[64];
+    private int[] lengths = new int[64];
+    private int count;
+  }
+
+  /**
+   * Constructs a new, empty OffHeapArena.
+   */
+  public OffHeapArena() {
+    for (int i = 0; i < SIZE_CLASSES; i++) {
+      sizeClasses[i] = new SizeClass(MIN_BLOCK_SIZE << i);
+    }
+  }
+
+  /**
+   * Copies a value into a new block. The blocks that can no longer be read
+   * are freed first, so they can be reused right away.
+   *
+   * @param data the value
+   * @return the handle of the block
+   */
+  public long store(byte[] data) {
+    reclaim();
+    long handle = allocate(data.length);
+    ByteBuffer slab = slabs[slabOf(handle)];
+    slab.put(offsetOf(handle), data, 0, data.length);
+    usedBytes.addAndGet(data.length);
+    return handle;
+  }
+
+  /**
+   * Copies the value of a block to a new array.
+   *
+   * @param handle the handle of the block
+   * @param length the length of the value
+   * @return the value
+   */
+  public byte[] read(long handle, int length) {
+    byte[] data = new byte[length];
+    slabs[slabOf(handle)].get(offsetOf(handle), data, 0, length);
+    return data;
+  }
+
+  /**
+   * Returns a read-only view of the value of a block, without copying it.
+   *
+   * @param handle the handle of the block
+   * @param length the length of the value
+   * @return a buffer over the value
+   */
+  public ByteBuffer view(long handle, int length) {
+    return slabs[slabOf(handle)].slice(offsetOf(handle), length).asReadOnlyBuffer();
+  }
+
+  /**
+   * Opens a read section. Documents stored in the arena must be looked up
+   * and read inside a section, which must be closed with {@link #exit(long)}
+   * by the same caller. Sections are cheap, but blocks cannot be reused while
+   * a section is open, so they should last as long as a single request.
+   *
+   * @return the token to pass to {@link #exit(long)}
+   */
+  public long enter() {
+    while (true) {
+      long current = epoch;
+      int slot = (int) (current & 1);
+      readers.incrementAndGet(slot);
+      if (epoch == current) {
+        return current;
+      }
+      readers.decrementAndGet(slot);
+    }
+  }
+
+  /**
+   * Closes a read section.
+   *
+   * @param token the token returned by {@link #enter()}
+   */
+  public void exit(long token) {
+    readers.decrementAndGet((int) (token & 1));
+  }
+
+  /**
+   * Schedules a block to be freed once no open section can read it. Called
+   * after the document owning the block has been replaced or removed.
+   *
+   * @param handle the handle of the block
+   * @param length the length of the value it holds
+   */
+  void retire(long handle, int length) {
+    synchronized (limbo) {
+      Limbo current = limbo[(int) (epoch & 1)];
+      if (current.count == current.handles.length) {
+        current.handles = Arrays.copyOf(current.handles, current.count * 2);
+        current.lengths = Arrays.copyOf(current.lengths, current.count * 2);
+      }
+      current.handles[current.count] = handle;
+      current.lengths[current.count] = length;
+      current.count++;
+    }
+  }
+
+  /**
+   * Returns the memory taken from the operating system.
+   *
+   * @return the size of all the slabs, in bytes
+   */
+  public long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  /**
+   * Returns the memory holding values, excluding the unused part of the
+   * blocks. The blocks of retired documents are included until they are
+   * freed.
+   *
+   * @return the total length of the stored values, in bytes
+   */
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /**
+   * Ends the current epoch if every section of the previous one is closed.
+   * The blocks retired during the previous epoch were unreachable for the
+   * sections opened since, so they are freed, and new sections start in the
+   * next epoch.
+   */
+  private void reclaim() {
+    synchronized (limbo) {
+      long current = epoch;
+      int previous = (int) ((current - 1) & 1);
+      if (readers.get(previous) != 0) {
+        return;
+      }
+      Limbo retired = limbo[previous];
+      for (int i = 0; i < retired.count; i++) {
+        free(retired.handles[i], retired.lengths[i]);
+      }
+      retired.count = 0;
+      epoch = current + 1;
+    }
+  }
+
+  /**
+   * Takes a block large enough for a value, from the free list of its size
+   * class if possible.
+   *
+   * @param length the length of the value
+   * @return the handle of the block
+   */
+  private long allocate(int length) {
+    if (length > MAX_BLOCK_SIZE) {
+      return handle(addSlab(ByteBuffer.allocateDirect(length)), 0);
+    }
+
+    SizeClass sizeClass = sizeClasses[sizeClassOf(length)];
+    synchronized (sizeClass) {
+      if (sizeClass.freeCount > 0) {
+        return sizeClass.free[--sizeClass.freeCount];
+      }
+      if (sizeClass.offset + sizeClass.blockSize > SLAB_SIZE) {
+        sizeClass.slab = addSlab(ByteBuffer.allocateDirect(SLAB_SIZE));
+        sizeClass.offset = 0;
+      }
+      long handle = handle(sizeClass.slab, sizeClass.offset);
+      sizeClass.offset += sizeClass.blockSize;
+      return handle;
+    }
+  }
+
+  /**
+   * Returns a block to the free list of its size class, or releases its slab
+   * if the block had one of its own.
+   *
+   * @param handle the handle of the block
+   * @param length the length of the value it held
+   */
+  private void free(long handle, int length) {
+    usedBytes.addAndGet(-length);
+    if (length > MAX_BLOCK_SIZE) {
+      removeSlab(slabOf(handle));
+      return;
+    }
+
+    SizeClass sizeClass = sizeClasses[sizeClassOf(length)];
+    synchronized (sizeClass) {
+      if (sizeClass.freeCount == sizeClass.free.length) {
+        sizeClass.free = Arrays.copyOf(sizeClass.free, sizeClass.free.length * 2);
+      }
+      sizeClass.free[sizeClass.freeCount++] = handle;
+    }
+  }
+
+  /**
+   * Registers a new slab, reusing the index of a released one if possible.
+   *
+   * @param slab the slab
+   * @return the index of the slab
+   */
+  private int addSlab(ByteBuffer slab) {
+    synchronized (slabLock) {
+      int index;
+      if (freeSlabCount > 0) {
+        index = freeSlabs[--freeSlabCount];
+      } else {
+        if (slabCount == slabs.length) {
+          slabs = Arrays.copyOf(slabs, slabs.length * 2);
+        }
+        index = slabCount++;
+      }
+      ByteBuffer[] current = slabs;
+      current[index] = slab;
+      slabs = current;
+      reservedBytes.addAndGet(slab.capacity());
+      return index;
+    }
+  }
+
+  /**
+   * Releases a dedicated slab. Its memory is returned to the operating system
+   * when the buffer is collected.
+   *
+   * @param index the index of the slab
+   */
+  private void removeSlab(int index) {
+    synchronized (slabLock) {
+      ByteBuffer[] current = slabs;
+      reservedBytes.addAndGet(-current[index].capacity());
+      current[index] = null;
+      slabs = current;
+      if (freeSlabCount == freeSlabs.length) {
+        freeSlabs = Arrays.copyOf(freeSlabs, Math.max(16, freeSlabs.length * 2));
+      }
+      freeSlabs[freeSlabCount++] = index;
+    }
+  }
+
+  /**
+   * Returns the size class of the smallest block holding a value.
+   *
+   * @param length the length of the value, at most {@link #MAX_BLOCK_SIZE}
+   * @return the index of the size class
+   */
+  private static int sizeClassOf(int length) {
+    int blockSize = Math.max(MIN_BLOCK_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    return Integer.numberOfTrailingZeros(blockSize) - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE);
+  }
+
+  private static long handle(int slab, int offset) {
+    return ((long) slab << 32) | offset;
+  }
+
+  private static int slabOf(long handle) {
+    return (int) (handle >>> 32);
+  }
+
+  private static int offsetOf(long handle) {
+    return (int) handle;
+  }
+}
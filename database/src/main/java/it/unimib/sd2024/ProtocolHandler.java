@@ -1,5 +1,7 @@
 package it.unimib.sd2024;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Handles protocol requests by parsing input commands and executing database
  * operations. This class is responsible for interpreting the commands received
@@ -7,8 +9,31 @@ package it.unimib.sd2024;
  * retrieving, adding, updating, or deleting documents within collections.
  */
 public class ProtocolHandler {
+  private static final String CONDITION = "IF ";
+  private static final String QUEUED = "Queued";
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+  private static final String READ_ONLY = "Read-only replica";
+  private static final String NAME_TOO_LONG = "Name too long";
+
   private String inputLine;
   private Database database;
+  private final Request request = new Request();
+  private boolean binaryRequested;
+  private Batch batch;
+  private boolean batchFailed;
+  private ChangeFeed.Subscription subscription;
+  private long replicationStart = -1;
+
+  /**
+   * Constructs a new ProtocolHandler for the specified database. The handler
+   * can be reused for every line received on a connection through
+   * {@link #handleRequest(byte[], int)}.
+   *
+   * @param database the database to perform operations on
+   */
+  public ProtocolHandler(Database database) {
+    this.database = database;
+  }
 
   /**
    * Constructs a new ProtocolHandler with the specified input line and database.
@@ -58,49 +83,303 @@ public class ProtocolHandler {
   }
 
   /**
-   * Handles the request based on the input line, performing the appropriate
-   * database operation. It parses the input line into commands and parameters,
-   * then executes the corresponding database operation based on the command.
+   * Returns whether the client asked to switch the connection to the binary
+   * protocol with {@code PROTOCOL BINARY}. Once this returns true the
+   * following bytes of the connection must be handed to a
+   * {@link BinaryProtocolHandler}.
+   *
+   * @return true if the connection must switch to the binary protocol
+   */
+  public boolean isBinaryRequested() {
+    return binaryRequested;
+  }
+
+  /**
+   * Returns the subscription requested by the client with {@code WATCH}.
+   * Once this returns a subscription the connection is only used to send its
+   * events, one per line, until the client closes it; the subscription must
+   * then be closed.
+   *
+   * @return the subscription, or null if the client is not watching
+   */
+  public ChangeFeed.Subscription getSubscription() {
+    return subscription;
+  }
+
+  /**
+   * Returns the LSN after which a replica asked to receive the log with
+   * {@code REPLICATE}. Once this returns a valid LSN the connection must be
+   * handed to the {@link LogShipper} of the database.
+   *
+   * @return the LSN of the last record held by the replica, or -1 if the
+   *         client is not a replica
+   */
+  public long getReplicationStart() {
+    return replicationStart;
+  }
+
+  /**
+   * Handles the request held by the current input line.
    *
    * @return a string representing the result of the request
+   * @see #handleRequest(byte[], int)
    */
   public String handleRequest() {
-    String[] parts = inputLine.split(" ");
-    if (parts.length < 2) {
+    byte[] line = inputLine.getBytes(StandardCharsets.UTF_8);
+    return handleRequest(line, line.length);
+  }
+
+  /**
+   * Handles the request based on the input line, performing the appropriate
+   * database operation. The line is tokenized in place by a reusable
+   * {@link Request}, so only the values the command needs are materialized.
+   * The time taken by each request is recorded in the {@link Metrics} of the
+   * database, for its command and its collection, and the slow requests are
+   * recorded as {@link CommandEvent}s when a flight recording is running.
+   * If the database has an {@link AdmissionControl} for the {@link Lane} of
+   * the request, the request waits for its turn in that lane first, and is
+   * answered {@link AdmissionControl#OVERLOADED} without being executed when
+   * too many requests of the lane are waiting already.
+   *
+   * @param line   the buffer holding the UTF-8 encoded line
+   * @param length the number of valid bytes in the buffer
+   * @return a string representing the result of the request
+   */
+  public String handleRequest(byte[] line, int length) {
+    if (!request.parse(line, length)) {
       return "Invalid command format";
     }
 
-    String command = parts[0]; // GET, PUT
-    String collectionName = parts[1]; // domains, users
-    String documentId = parts.length > 2 ? parts[2] : null; // example.com, 123
-    String documentData = parts.length > 3 ? parts[3] : null; // { "key": "value" }
+    Command command = request.getCommand(); // GET, PUT
+    if (command == null) {
+      return request.hasCollectionName() ? "Unsupported command" : "Invalid command format";
+    }
+    Lane lane = Lane.of(command, request.hasDocumentId());
+    AdmissionControl admission = database.getAdmissionControl(lane);
+    long arrival = System.nanoTime();
+    if (admission == null || !needsAdmission(command)) {
+      return execute(command, lane, length, arrival, arrival);
+    }
+    if (!admission.acquire()) {
+      if (command == Command.EXEC) {
+        // The writes of a rejected batch are dropped, none of them is applied
+        batch = null;
+      }
+      return AdmissionControl.OVERLOADED;
+    }
+    try {
+      return execute(command, lane, length, arrival, System.nanoTime());
+    } finally {
+      admission.release();
+    }
+  }
+
+  /**
+   * Returns whether a request must be admitted by the
+   * {@link AdmissionControl} before being executed. The requests that only
+   * report the statistics or change the state of the connection, such as the
+   * writes queued in a batch, are cheap and always executed, so a client can
+   * observe an overloaded server and a batch is only rejected as a whole at
+   * {@code EXEC}.
+   *
+   * @param command the command of the parsed request
+   * @return true if the request must be admitted
+   */
+  private boolean needsAdmission(Command command) {
+    if (command == Command.STATS || command == Command.MULTI || command == Command.DISCARD) {
+      return false;
+    }
+    return batch == null || command == Command.EXEC;
+  }
+
+  /**
+   * Executes a parsed request, recording its latency and, if it is slow, a
+   * {@link CommandEvent}.
+   *
+   * @param command the command of the parsed request
+   * @param lane    the lane of the request
+   * @param length  the length of the request line
+   * @param arrival the time the request was parsed, before waiting for its
+   *                turn
+   * @param start   the time the execution starts
+   * @return a string representing the result of the request
+   */
+  private String execute(Command command, Lane lane, int length, long arrival, long start) {
+    CommandEvent event = new CommandEvent();
+    event.begin();
+    String response = dispatch(command);
+    long end = System.nanoTime();
+    event.end();
+    database.getMetrics().recordRequest(command, lane,
+        request.hasCollectionName() ? database.getCollection(request.getCollectionName()) : null, end - start,
+        start - arrival);
+    if (event.shouldCommit()) {
+      event.commit(command, request.hasCollectionName() ? request.getCollectionName() : null,
+          request.hasDocumentId() ? request.getDocumentId() : null, "text", length,
+          JsonFields.utf8Length(response, 0, response.length()));
+    }
+    return response;
+  }
+
+  /**
+   * Handles a parsed request. Between {@code MULTI} and {@code EXEC} the
+   * document writes are queued in a {@link Batch} instead of being applied. A
+   * read-only replica rejects every command that changes the database.
+   *
+   * @param command the command of the parsed request
+   * @return a string representing the result of the request
+   */
+  private String dispatch(Command command) {
+    if (database.isReadOnly() && isWrite(command)) {
+      return READ_ONLY;
+    }
+    if (!request.hasCollectionName()) {
+      if (command == Command.MULTI) {
+        return handleMulti();
+      } else if (command == Command.EXEC) {
+        return handleExec();
+      } else if (command == Command.DISCARD) {
+        return handleDiscard();
+      } else if (command == Command.REPLICATION) {
+        return handleReplication();
+      } else if (command == Command.STATS) {
+        return database.getMetrics().describe(database);
+      }
+      return "Invalid command format";
+    }
+    if (batch == null) {
+      return handleCommand(command);
+    }
+
+    // Inside MULTI only document writes are accepted; any error makes EXEC fail
+    String response = command == Command.POST || command == Command.PUT || command == Command.DELETE
+        ? handleCommand(command)
+        : "Command not allowed in a batch";
+    if (!QUEUED.equals(response)) {
+      batchFailed = true;
+    }
+    return response;
+  }
+
+  /**
+   * Returns whether a collection name or a document ID is longer than the
+   * write-ahead log and the snapshots can store, see
+   * {@link BinaryProtocol#MAX_NAME_LENGTH}.
+   *
+   * @param name the name or the ID, may be null
+   * @return true if its UTF-8 encoding is too long
+   */
+  private static boolean isTooLong(String name) {
+    // Each char takes at most 3 bytes in UTF-8, so short names are not encoded
+    return name != null && name.length() > BinaryProtocol.MAX_NAME_LENGTH / 3
+        && name.getBytes(StandardCharsets.UTF_8).length > BinaryProtocol.MAX_NAME_LENGTH;
+  }
+
+  /**
+   * Handles a command that names a collection.
+   *
+   * @param command the command of the parsed request
+   * @return a string representing the result of the request
+   */
+  private String handleCommand(Command command) {
+    String collectionName = request.getCollectionName(); // domains, users
+    String documentId = request.getDocumentId(); // example.com, 123
+    if (isTooLong(collectionName) || isTooLong(documentId)) {
+      return NAME_TOO_LONG;
+    }
 
     switch (command) {
-      case "CREATE":
-        if (documentData != null) {
+      case CREATE:
+        if (request.hasDocumentData()) {
           return "Invalid command";
         }
         return handleCreate(collectionName);
-      case "GET":
-        if (documentData != null) {
+      case GET:
+        if (request.hasDocumentData()) {
           return "Invalid command";
         }
         return handleGet(collectionName, documentId);
-      case "POST":
-        if (documentData == null) {
+      case POST:
+        if (!request.hasDocumentData()) {
+          return "Invalid command";
+        }
+        return handlePost(collectionName, documentId, request.getDocumentData());
+      case PUT:
+        if (!request.hasDocumentData()) {
+          return "Invalid command";
+        }
+        return handlePut(collectionName, documentId, request.getDocumentData());
+      case DELETE:
+        return handleDelete(collectionName, documentId,
+            request.hasDocumentData() ? request.getDocumentData() : null);
+      case PROTOCOL:
+        if (documentId != null) {
+          return "Invalid command";
+        }
+        return handleProtocol(collectionName);
+      case INDEX:
+        if (documentId == null) {
+          return "Invalid command";
+        }
+        return handleIndex(collectionName, documentId,
+            request.hasDocumentData() ? request.getDocumentData() : SecondaryIndex.Type.HASH.name());
+      case LOOKUP:
+        if (!request.hasDocumentData()) {
+          return "Invalid command";
+        }
+        return handleLookup(collectionName, documentId, request.getDocumentData());
+      case RANGE:
+        if (!request.hasDocumentData()) {
+          return "Invalid command";
+        }
+        return handleRange(collectionName, documentId, request.getDocumentData());
+      case FIND:
+        if (documentId == null) {
+          return handleFind(collectionName, "");
+        }
+        return handleFind(collectionName,
+            request.hasDocumentData() ? documentId + " " + request.getDocumentData() : documentId);
+      case SCAN:
+        if (documentId == null) {
+          return handleScan(collectionName, "");
+        }
+        return handleScan(collectionName,
+            request.hasDocumentData() ? documentId + " " + request.getDocumentData() : documentId);
+      case EXPIRY:
+        if (documentId == null || request.hasDocumentData()) {
+          return "Invalid command";
+        }
+        return handleExpiry(collectionName, documentId);
+      case EXPIRING:
+        if (documentId == null || request.hasDocumentData()) {
+          return "Invalid command";
+        }
+        return handleExpiring(collectionName, documentId);
+      case EXPIRED:
+        if (documentId != null) {
           return "Invalid command";
         }
-        return handlePost(collectionName, documentId, documentData);
-      case "PUT":
-        if (documentData == null) {
+        return handleExpired(collectionName);
+      case WATCH:
+        if (request.hasDocumentData()) {
           return "Invalid command";
         }
-        return handlePut(collectionName, documentId, documentData);
-      case "DELETE":
-        if (documentData != null) {
+        return handleWatch(collectionName, documentId);
+      case ENCODING:
+        if (documentId == null || request.hasDocumentData()) {
           return "Invalid command";
         }
-        return handleDelete(collectionName, documentId);
+        return handleEncoding(collectionName, documentId);
+      case REPLICATE:
+        if (documentId != null) {
+          return "Invalid command";
+        }
+        return handleReplicate(collectionName);
+      case MULTI:
+      case EXEC:
+      case DISCARD:
+      case STATS:
+        return "Invalid command";
       default:
         return "Unsupported command";
     }
@@ -125,18 +404,20 @@ public class ProtocolHandler {
     if (documentId == null) {
       return collection.toString();
     } else {
-      Document document = collection.getDocument(documentId);
-      if (document == null) {
-        return "Document not found";
-      }
-      return document.toString();
+      return collection.read(() -> {
+        Document document = collection.getDocument(documentId);
+        if (document == null) {
+          return "Document not found";
+        }
+        return document.toString();
+      });
     }
   }
 
   /**
-   * Handles a POST request to add a new document to a collection. Adds a new
-   * document
-   * with the specified ID and data to the collection.
+   * Handles a POST request to add a new document to a collection. The check
+   * for an existing document and the insertion are a single atomic step, so
+   * of several clients adding the same ID only one succeeds.
    *
    * @param collectionName the name of the collection
    * @param documentId     the ID of the new document
@@ -144,70 +425,231 @@ public class ProtocolHandler {
    * @return a string indicating the result of the operation
    */
   private String handlePost(String collectionName, String documentId, String documentData) {
+    if (batch != null) {
+      return queue(() -> batch.insert(collectionName, documentId, new Document(documentId, documentData)));
+    }
+
     Collection collection = database.getCollection(collectionName);
     if (collection == null) {
       return "Collection not found";
     }
 
-    Document existingDocument = collection.getDocument(documentId);
-    if (existingDocument != null) {
+    Document document = new Document(documentId, documentData);
+    if (collection.insertDocument(documentId, document) != Collection.WriteResult.APPLIED) {
       return "Document with the same ID already exists. Use PUT to update it.";
     }
-
-    Document document = new Document(documentId, documentData);
-    collection.addDocument(documentId, document);
+    database.awaitDurability();
 
     return "Document added";
   }
 
   /**
-   * Handles a PUT request to update an existing document in a collection. Updates
-   * the
-   * data of an existing document with the specified ID in the collection.
+   * Handles a PUT request to update an existing document in a collection. The
+   * data may start with {@code IF <version>}: the document is then updated
+   * only if it still has that version.
    *
    * @param collectionName the name of the collection
    * @param documentId     the ID of the document to update
-   * @param documentData   the new data for the document
+   * @param documentData   the new data for the document, optionally preceded
+   *                       by a condition
    * @return a string indicating the result of the operation
    */
   private String handlePut(String collectionName, String documentId, String documentData) {
+    long expectedVersion = Collection.ANY_VERSION;
+    String data = documentData;
+    if (documentData.startsWith(CONDITION)) {
+      int end = documentData.indexOf(' ', CONDITION.length());
+      if (end < 0) {
+        return "Invalid command";
+      }
+      expectedVersion = parseVersion(documentData.substring(CONDITION.length(), end));
+      data = documentData.substring(end + 1);
+    }
+    if (expectedVersion < 0) {
+      return "Invalid version";
+    }
+    if (batch != null) {
+      long version = expectedVersion;
+      Document document = new Document(documentId, data);
+      return queue(() -> batch.replace(collectionName, documentId, document, version));
+    }
+
     Collection collection = database.getCollection(collectionName);
     if (collection == null) {
       return "Collection not found";
     }
 
-    Document document = collection.getDocument(documentId);
-    if (document == null) {
-      return "Document not found";
+    String result = describe(collection.replaceDocument(documentId, new Document(documentId, data),
+        expectedVersion));
+    if (result != null) {
+      return result;
     }
-
-    document.setData(documentData);
+    database.awaitDurability();
     return "Document updated";
   }
 
   /**
-   * Handles a DELETE request to remove a document from a collection. Removes the
-   * specified document from the collection.
+   * Handles a DELETE request to remove a document from a collection. The
+   * request may end with {@code IF <version>}: the document is then removed
+   * only if it still has that version.
    *
    * @param collectionName the name of the collection
    * @param documentId     the ID of the document to delete
+   * @param condition      the condition, or null to remove any version
    * @return a string indicating the result of the operation
    */
-  private String handleDelete(String collectionName, String documentId) {
+  private String handleDelete(String collectionName, String documentId, String condition) {
+    long expectedVersion = Collection.ANY_VERSION;
+    if (condition != null) {
+      if (!condition.startsWith(CONDITION)) {
+        return "Invalid command";
+      }
+      expectedVersion = parseVersion(condition.substring(CONDITION.length()));
+      if (expectedVersion < 0) {
+        return "Invalid version";
+      }
+    }
+    if (batch != null) {
+      long version = expectedVersion;
+      return queue(() -> batch.remove(collectionName, documentId, version));
+    }
+
     Collection collection = database.getCollection(collectionName);
     if (collection == null) {
       return "Collection not found";
     }
 
-    Document document = collection.getDocument(documentId);
-    if (document == null) {
-      return "Document not found";
+    String result = describe(collection.removeDocument(documentId, expectedVersion));
+    if (result != null) {
+      return result;
     }
-
-    collection.removeDocument(documentId);
+    database.awaitDurability();
     return "Document deleted";
   }
 
+  /**
+   * Handles a MULTI request, starting a batch: the following POST, PUT and
+   * DELETE requests of the connection are queued until EXEC.
+   *
+   * @return a string indicating the result of the operation
+   */
+  private String handleMulti() {
+    if (batch != null) {
+      return "Batch already started";
+    }
+    batch = new Batch();
+    batchFailed = false;
+    return "Batch started";
+  }
+
+  /**
+   * Handles an EXEC request, applying the queued writes atomically. The
+   * response is a JSON array with the result of each write if the batch has
+   * been applied, or the reason why nothing has been changed.
+   *
+   * @return a string indicating the result of the operation
+   */
+  private String handleExec() {
+    if (batch == null) {
+      return "EXEC without MULTI";
+    }
+    Batch current = batch;
+    boolean failed = batchFailed;
+    batch = null;
+    if (failed) {
+      return "Batch discarded because of an invalid command";
+    }
+
+    Batch.Result result = database.execute(current);
+    if (!result.isApplied()) {
+      return "Batch aborted at command " + (result.getFailedOperation() + 1) + ": "
+          + describe(result.getFailure());
+    }
+    database.awaitDurability();
+    StringBuilder sb = new StringBuilder("[");
+    for (Batch.Operation operation : current.getOperations()) {
+      if (sb.length() > 1) {
+        sb.append(",");
+      }
+      switch (operation.getType()) {
+        case INSERT:
+          sb.append("\"Document added\"");
+          break;
+        case REPLACE:
+          sb.append("\"Document updated\"");
+          break;
+        default:
+          sb.append("\"Document deleted\"");
+          break;
+      }
+    }
+    return sb.append("]").toString();
+  }
+
+  /**
+   * Handles a DISCARD request, dropping the queued writes.
+   *
+   * @return a string indicating the result of the operation
+   */
+  private String handleDiscard() {
+    if (batch == null) {
+      return "DISCARD without MULTI";
+    }
+    batch = null;
+    return "Batch discarded";
+  }
+
+  /**
+   * Adds a write to the current batch.
+   *
+   * @param write the addition of the write to the batch
+   * @return the response to the queued request
+   */
+  private String queue(Runnable write) {
+    try {
+      write.run();
+      return QUEUED;
+    } catch (IllegalStateException e) {
+      return e.getMessage();
+    }
+  }
+
+  /**
+   * Parses the version of a condition.
+   *
+   * @param text the version
+   * @return the version, or -1 if the text is not a positive number
+   */
+  private static long parseVersion(String text) {
+    try {
+      long version = Long.parseLong(text);
+      return version > 0 ? version : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the error message of a conditional write that was not applied.
+   *
+   * @param result the result of the write
+   * @return the message, or null if the write was applied
+   */
+  private static String describe(Collection.WriteResult result) {
+    switch (result) {
+      case ALREADY_EXISTS:
+        return "Document with the same ID already exists. Use PUT to update it.";
+      case COLLECTION_NOT_FOUND:
+        return "Collection not found";
+      case NOT_FOUND:
+        return "Document not found";
+      case VERSION_MISMATCH:
+        return "Version mismatch";
+      default:
+        return null;
+    }
+  }
+
   /**
    * Handles a CREATE request to create a new collection. Creates a new collection
    * with the specified name and populates it with some initial data.
@@ -216,13 +658,351 @@ public class ProtocolHandler {
    * @return a string indicating the result of the operation
    */
   private String handleCreate(String collectionName) {
-    if (database.getCollection(collectionName) != null) {
+    if (!database.addCollection(collectionName, new Collection(collectionName))) {
       return "Collection already exists";
     }
-
-    Collection newCollection = new Collection(collectionName);
-    database.addCollection(collectionName, newCollection);
+    database.awaitDurability();
 
     return "Collection created";
   }
+
+  /**
+   * Handles an INDEX request to create a secondary index on a top-level field
+   * of the documents of a collection.
+   *
+   * @param collectionName the name of the collection
+   * @param field          the name of the field to index
+   * @param type           the kind of index, {@code HASH} or {@code SORTED}
+   * @return a string indicating the result of the operation
+   */
+  private String handleIndex(String collectionName, String field, String type) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+
+    SecondaryIndex.Type indexType;
+    try {
+      indexType = SecondaryIndex.Type.valueOf(type);
+    } catch (IllegalArgumentException e) {
+      return "Unsupported index type";
+    }
+
+    if (!collection.createIndex(field, indexType)) {
+      return "Index already exists";
+    }
+    database.awaitDurability();
+    return "Index created";
+  }
+
+  /**
+   * Handles a LOOKUP request, returning the documents of a collection whose
+   * indexed field equals a value, in the same format as a GET of the whole
+   * collection.
+   *
+   * @param collectionName the name of the collection
+   * @param field          the name of the indexed field
+   * @param value          the value to look for, without JSON quotes
+   * @return the matching documents, or a string describing the error
+   */
+  private String handleLookup(String collectionName, String field, String value) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+
+    SecondaryIndex index = collection.getIndex(field);
+    if (index == null) {
+      return "Index not found";
+    }
+    return collection.toString(index.lookup(value));
+  }
+
+  /**
+   * Handles a RANGE request, returning the documents of a collection whose
+   * indexed field is between two values, inclusive. A bound equal to
+   * {@code *} is open.
+   *
+   * @param collectionName the name of the collection
+   * @param field          the name of the field, with a sorted index
+   * @param bounds         the lowest and the highest value, separated by a
+   *                       space
+   * @return the matching documents ordered by value, or a string describing
+   *         the error
+   */
+  private String handleRange(String collectionName, String field, String bounds) {
+    int separator = bounds.indexOf(' ');
+    if (separator < 0 || bounds.indexOf(' ', separator + 1) >= 0) {
+      return "Invalid command";
+    }
+    String from = bounds.substring(0, separator);
+    String to = bounds.substring(separator + 1);
+
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+
+    SecondaryIndex index = collection.getIndex(field);
+    if (index == null) {
+      return "Index not found";
+    }
+    if (index.getType() != SecondaryIndex.Type.SORTED) {
+      return "Index not sorted";
+    }
+    return collection.toString(index.range("*".equals(from) ? null : from, "*".equals(to) ? null : to));
+  }
+
+  /**
+   * Handles a FIND request, returning the documents of a collection that
+   * satisfy some predicates, trimmed to the requested fields. See
+   * {@link Query} for the syntax.
+   *
+   * @param collectionName the name of the collection
+   * @param query          the textual form of the query
+   * @return the matching documents, in the same format as a GET of the whole
+   *         collection, or a string describing the error
+   */
+  private String handleFind(String collectionName, String query) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+
+    Query parsed;
+    try {
+      parsed = Query.parse(query);
+    } catch (IllegalArgumentException e) {
+      return "Invalid query";
+    }
+    return collection.find(parsed);
+  }
+
+  /**
+   * Handles a SCAN request, returning one bounded chunk of the documents of a
+   * collection in key order. See {@link Scan} for the options.
+   *
+   * @param collectionName the name of the collection
+   * @param options        the textual form of the scan
+   * @return the chunk with the cursor of the next one, or a string describing
+   *         the error
+   */
+  private String handleScan(String collectionName, String options) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+
+    Scan scan;
+    try {
+      scan = Scan.parse(options);
+    } catch (IllegalArgumentException e) {
+      return "Invalid scan";
+    }
+    return collection.scan(scan);
+  }
+
+  /**
+   * Handles an EXPIRY request, choosing the top-level field holding the time
+   * the documents of a collection expire. See {@link ExpiryIndex} for the
+   * accepted values.
+   *
+   * @param collectionName the name of the collection
+   * @param field          the name of the field
+   * @return a string indicating the result of the operation
+   */
+  private String handleExpiry(String collectionName, String field) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+
+    if (!collection.setExpiryField(field)) {
+      return "Expiry field already set";
+    }
+    database.awaitDurability();
+    return "Expiry field set";
+  }
+
+  /**
+   * Handles an ENCODING request, choosing how the data of the documents of a
+   * collection is stored, see {@link DocumentCodec}. The documents are still
+   * returned as the same JSON.
+   *
+   * @param collectionName the name of the collection
+   * @param encoding       the name of the encoding
+   * @return a string indicating the result of the operation
+   */
+  private String handleEncoding(String collectionName, String encoding) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+    DocumentCodec.Encoding value;
+    try {
+      value = DocumentCodec.Encoding.valueOf(encoding);
+    } catch (IllegalArgumentException e) {
+      return "Unsupported encoding";
+    }
+
+    if (!collection.setEncoding(value)) {
+      return "Encoding already set";
+    }
+    database.awaitDurability();
+    return "Encoding set";
+  }
+
+  /**
+   * Handles an EXPIRING request, returning the documents of a collection
+   * that expire in the following days, in the same format as a GET of the
+   * whole collection, ordered by expiry time. The documents already expired
+   * are not included.
+   *
+   * @param collectionName the name of the collection
+   * @param days           the number of days from now
+   * @return the matching documents, or a string describing the error
+   */
+  private String handleExpiring(String collectionName, String days) {
+    long count;
+    try {
+      count = Long.parseLong(days);
+    } catch (NumberFormatException e) {
+      return "Invalid number of days";
+    }
+    if (count < 0 || count > Long.MAX_VALUE / DAY_MILLIS) {
+      return "Invalid number of days";
+    }
+
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+    if (collection.getExpiryField() == null) {
+      return "Expiry field not set";
+    }
+    long now = System.currentTimeMillis();
+    return collection.toString(collection.expiring(now + 1, now + 1 + count * DAY_MILLIS));
+  }
+
+  /**
+   * Handles an EXPIRED request, returning the expired documents of a
+   * collection, in the same format as a GET of the whole collection, ordered
+   * by expiry time.
+   *
+   * @param collectionName the name of the collection
+   * @return the matching documents, or a string describing the error
+   */
+  private String handleExpired(String collectionName) {
+    Collection collection = database.getCollection(collectionName);
+    if (collection == null) {
+      return "Collection not found";
+    }
+    if (collection.getExpiryField() == null) {
+      return "Expiry field not set";
+    }
+    return collection.toString(collection.expired(System.currentTimeMillis()));
+  }
+
+  /**
+   * Handles a WATCH request, subscribing the connection to the changes of the
+   * documents of a collection, see {@link ChangeFeed}.
+   *
+   * @param collectionName the name of the collection
+   * @param prefix         the prefix of the IDs of the documents to watch, or
+   *                       null to watch the whole collection
+   * @return a string indicating the result of the operation
+   */
+  private String handleWatch(String collectionName, String prefix) {
+    if (database.getCollection(collectionName) == null) {
+      return "Collection not found";
+    }
+
+    subscription = database.getChangeFeed().subscribe(collectionName, prefix);
+    return "Watching";
+  }
+
+  /**
+   * Handles a REPLICATE request, sent by a replica to receive the log of this
+   * database after the last record it holds, see {@link LogShipper}.
+   *
+   * @param lsn the LSN of the last record held by the replica
+   * @return a string indicating the result of the operation
+   */
+  private String handleReplicate(String lsn) {
+    if (database.getLogShipper() == null) {
+      return "Replication requires a data directory";
+    }
+    long afterLsn;
+    try {
+      afterLsn = Long.parseLong(lsn);
+    } catch (NumberFormatException e) {
+      afterLsn = -1;
+    }
+    if (afterLsn < 0) {
+      return "Invalid LSN";
+    }
+
+    replicationStart = afterLsn;
+    return "Replicating";
+  }
+
+  /**
+   * Handles a REPLICATION request, returning the replication state of this
+   * database: the lag of each replica on a primary, the lag behind the
+   * primary on a replica.
+   *
+   * @return the JSON description of the state, or a string describing the
+   *         error
+   */
+  private String handleReplication() {
+    LogShipper shipper = database.getLogShipper();
+    if (shipper != null) {
+      return shipper.describe();
+    }
+    ReplicaClient client = database.getReplicaClient();
+    if (client != null) {
+      return client.describe();
+    }
+    return "Replication not configured";
+  }
+
+  /**
+   * Returns whether a command changes the database, and is therefore
+   * rejected by a read-only replica.
+   *
+   * @param command the command
+   * @return true if the command writes
+   */
+  private static boolean isWrite(Command command) {
+    switch (command) {
+      case CREATE:
+      case POST:
+      case PUT:
+      case DELETE:
+      case INDEX:
+      case EXPIRY:
+      case ENCODING:
+      case MULTI:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Handles a PROTOCOL request to switch the connection to another wire
+   * protocol. The only protocol supported is {@code BINARY}, described in
+   * {@link BinaryProtocol}.
+   *
+   * @param protocol the name of the requested protocol
+   * @return a string indicating the result of the operation
+   */
+  private String handleProtocol(String protocol) {
+    if (!"BINARY".equals(protocol)) {
+      return "Unsupported protocol";
+    }
+
+    binaryRequested = true;
+    return "Protocol switched";
+  }
 }
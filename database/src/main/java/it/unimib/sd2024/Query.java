@@ -0,0 +1,278 @@
+package it.unimib.sd2024;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A query on the documents of a {@link Collection}: predicates on top-level
+ * JSON fields, all of which must hold, and an optional list of the fields to
+ * return.
+ *
+ * <p>
+ * The textual form is a list of predicates such as {@code userId=42} or
+ * {@code expirationDate<2025-01-01}, separated by spaces, optionally followed
+ * by {@code FIELDS} and a comma separated list of fields. Values containing
+ * spaces can be written between double quotes. Values are compared like in a
+ * {@link SecondaryIndex}: numbers by value, everything else as text. A
+ * document without the field never matches.
+ */
+public final class Query {
+
+  /**
+   * The comparison operators of a predicate.
+   */
+  public enum Operator {
+    EQUAL("="),
+    NOT_EQUAL("!="),
+    LESS("<"),
+    LESS_OR_EQUAL("<="),
+    GREATER(">"),
+    GREATER_OR_EQUAL(">=");
+
+    private final String symbol;
+
+    Operator(String symbol) {
+      this.symbol = symbol;
+    }
+
+    /**
+     * Returns whether the result of a comparison satisfies the operator.
+     *
+     * @param comparison the result of comparing the field value with the
+     *                   value of the predicate
+     * @return true if the predicate holds
+     */
+    boolean accepts(int comparison) {
+      switch (this) {
+        case EQUAL:
+          return comparison == 0;
+        case NOT_EQUAL:
+          return comparison != 0;
+        case LESS:
+          return comparison < 0;
+        case LESS_OR_EQUAL:
+          return comparison <= 0;
+        case GREATER:
+          return comparison > 0;
+        default:
+          return comparison >= 0;
+      }
+    }
+  }
+
+  /**
+   * A condition on the value of a field.
+   */
+  public static final class Predicate {
+    private final String field;
+    private final Operator operator;
+    private final String value;
+
+    /**
+     * Constructs a new Predicate.
+     *
+     * @param field    the name of the field
+     * @param operator the comparison operator
+     * @param value    the value to compare with, without JSON quotes
+     */
+    public Predicate(String field, Operator operator, String value) {
+      this.field = field;
+      this.operator = operator;
+      this.value = value;
+    }
+
+    /**
+     * Returns whether the value of the field satisfies the predicate.
+     *
+     * @param fieldValue the value of the field, or null if missing
+     * @return true if the predicate holds
+     */
+    boolean test(String fieldValue) {
+      return fieldValue != null && operator.accepts(SecondaryIndex.compareValues(fieldValue, value));
+    }
+  }
+
+  private static final String FIELDS = "FIELDS";
+
+  private final List<Predicate> predicates;
+  private final List<String> projection;
+  private final Set<String> predicateFields = new LinkedHashSet<>();
+
+  /**
+   * Constructs a new Query.
+   *
+   * @param predicates the conditions that must all hold
+   * @param projection the fields to return, or null to return whole documents
+   */
+  public Query(List<Predicate> predicates, List<String> projection) {
+    this.predicates = predicates;
+    this.projection = projection;
+    for (Predicate predicate : predicates) {
+      predicateFields.add(predicate.field);
+    }
+  }
+
+  /**
+   * Parses the textual form of a query.
+   *
+   * @param text the predicates and the projection, may be empty
+   * @return the query
+   * @throws IllegalArgumentException if the text is malformed
+   */
+  public static Query parse(String text) {
+    List<String> tokens = tokenize(text);
+    List<Predicate> predicates = new ArrayList<>();
+    List<String> projection = null;
+    for (int i = 0; i < tokens.size(); i++) {
+      String token = tokens.get(i);
+      if (FIELDS.equals(token)) {
+        if (i != tokens.size() - 2) {
+          throw new IllegalArgumentException("FIELDS must be followed by a single list of fields");
+        }
+        projection = List.of(tokens.get(i + 1).split(","));
+        break;
+      }
+      predicates.add(parsePredicate(token));
+    }
+    return new Query(predicates, projection);
+  }
+
+  /**
+   * Returns the fields to return.
+   *
+   * @return the projected fields, or null if whole documents are returned
+   */
+  public List<String> getProjection() {
+    return projection;
+  }
+
+  /**
+   * Returns the IDs of the documents that may match, read from an index of
+   * the collection. The first predicate that can be answered by an index is
+   * used: equality on any index, or a comparison on a sorted one.
+   *
+   * @param collection the collection to query
+   * @return the candidate IDs, or null if no index applies and every document
+   *         must be checked
+   */
+  List<String> candidates(Collection collection) {
+    for (Predicate predicate : predicates) {
+      SecondaryIndex index = collection.getIndex(predicate.field);
+      if (index == null) {
+        continue;
+      }
+      if (predicate.operator == Operator.EQUAL) {
+        return index.lookup(predicate.value);
+      }
+      if (index.getType() == SecondaryIndex.Type.SORTED) {
+        switch (predicate.operator) {
+          case LESS:
+          case LESS_OR_EQUAL:
+            return index.range(null, predicate.value);
+          case GREATER:
+          case GREATER_OR_EQUAL:
+            return index.range(predicate.value, null);
+          default:
+            break;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether a document satisfies every predicate.
+   *
+   * @param document the document
+   * @return true if the document matches
+   */
+  boolean matches(Document document) {
+    if (predicates.isEmpty()) {
+      return true;
+    }
+    Map<String, String> values = JsonFields.extract(document.getDataBytes(), predicateFields);
+    for (Predicate predicate : predicates) {
+      if (!predicate.test(values.get(predicate.field))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses a predicate written as a field, an operator and a value.
+   *
+   * @param token the predicate
+   * @return the predicate
+   * @throws IllegalArgumentException if the token is not a predicate
+   */
+  private static Predicate parsePredicate(String token) {
+    for (int i = 1; i < token.length(); i++) {
+      char c = token.charAt(i);
+      if (c == '=' || c == '<' || c == '>' || (c == '!' && i + 1 < token.length() && token.charAt(i + 1) == '=')) {
+        int valueStart = i + 1;
+        if (c != '=' && valueStart < token.length() && token.charAt(valueStart) == '=') {
+          valueStart++;
+        }
+        String symbol = token.substring(i, valueStart);
+        for (Operator operator : Operator.values()) {
+          if (operator.symbol.equals(symbol)) {
+            return new Predicate(token.substring(0, i), operator, unquote(token.substring(valueStart)));
+          }
+        }
+      }
+    }
+    throw new IllegalArgumentException("Invalid predicate: " + token);
+  }
+
+  /**
+   * Splits the text on spaces, keeping together the characters between double
+   * quotes.
+   *
+   * @param text the text
+   * @return the tokens, with their quotes
+   * @throws IllegalArgumentException if a quote is not closed
+   */
+  private static List<String> tokenize(String text) {
+    List<String> tokens = new ArrayList<>();
+    StringBuilder current = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      }
+      if (c == ' ' && !quoted) {
+        if (current.length() > 0) {
+          tokens.add(current.toString());
+          current.setLength(0);
+        }
+      } else {
+        current.append(c);
+      }
+    }
+    if (quoted) {
+      throw new IllegalArgumentException("Unterminated quote");
+    }
+    if (current.length() > 0) {
+      tokens.add(current.toString());
+    }
+    return tokens;
+  }
+
+  /**
+   * Removes the double quotes around a value, if any.
+   *
+   * @param value the value
+   * @return the value without quotes
+   */
+  private static String unquote(String value) {
+    if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+}
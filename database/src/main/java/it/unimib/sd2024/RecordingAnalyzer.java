@@ -0,0 +1,198 @@
+package it.unimib.sd2024;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Reads a JDK Flight Recorder file written by the database and prints
+ * reports of the {@link CommandEvent}s it holds: the latency of the recorded
+ * requests for each command, the collections and the keys where they spent
+ * the most time, and the connections opened and closed
+ * ({@link ConnectionEvent}).
+ *
+ * <p>
+ * Only the requests slower than the threshold of the recording are in the
+ * file, so the reports describe the slow requests, not all the traffic; the
+ * {@code STATS} command reports the latency of every request.
+ *
+ * <p>
+ * Usage: {@code RecordingAnalyzer [--top=N] recording.jfr}, where
+ * {@code --top} is the number of collections and keys listed (default 10).
+ */
+public final class RecordingAnalyzer {
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+  /**
+   * The recorded requests of a command, a collection or a key.
+   */
+  private static final class Totals {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long totalNanos;
+    private long requestBytes;
+    private long responseBytes;
+
+    /**
+     * Constructs empty totals.
+     *
+     * @param name the command, collection or key
+     */
+    Totals(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Adds a request.
+     *
+     * @param event the event of the request
+     */
+    void add(RecordedEvent event) {
+      long nanos = event.getDuration().toNanos();
+      latency.record(nanos);
+      totalNanos += nanos;
+      requestBytes += event.getLong("requestSize");
+      responseBytes += event.getLong("responseSize");
+    }
+  }
+
+  private final Map<String, Totals> commands = new HashMap<>();
+  private final Map<String, Totals> collections = new HashMap<>();
+  private final Map<String, Totals> keys = new HashMap<>();
+  private final LatencyHistogram connectionLifetimes = new LatencyHistogram();
+  private long connectionsOpened;
+  private long totalNanos;
+  private Instant first;
+  private Instant last;
+
+  private RecordingAnalyzer() {
+  }
+
+  /**
+   * Analyzes a recording and prints the reports.
+   *
+   * @param args the options and the recording file
+   * @throws IOException if the recording cannot be read
+   */
+  public static void main(String[] args) throws IOException {
+    int top = 10;
+    String file = null;
+    for (String arg : args) {
+      if (arg.startsWith("--top=")) {
+        top = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+      } else if (file == null) {
+        file = arg;
+      } else {
+        throw new IllegalArgumentException("Unexpected argument: " + arg);
+      }
+    }
+    if (file == null) {
+      throw new IllegalArgumentException("Usage: RecordingAnalyzer [--top=N] recording.jfr");
+    }
+
+    RecordingAnalyzer analyzer = new RecordingAnalyzer();
+    try (RecordingFile recording = new RecordingFile(Path.of(file))) {
+      while (recording.hasMoreEvents()) {
+        analyzer.add(recording.readEvent());
+      }
+    }
+    analyzer.print(top);
+  }
+
+  /**
+   * Adds an event of the recording to the reports. The events of the JVM
+   * are ignored.
+   *
+   * @param event the event
+   */
+  private void add(RecordedEvent event) {
+    switch (event.getEventType().getName()) {
+      case CommandEvent.NAME -> {
+        String command = event.getString("command");
+        String collection = event.getString("collection");
+        String key = event.getString("key");
+        commands.computeIfAbsent(command, Totals::new).add(event);
+        if (collection != null) {
+          collections.computeIfAbsent(collection, Totals::new).add(event);
+          if (key != null) {
+            keys.computeIfAbsent(collection + " " + key, Totals::new).add(event);
+          }
+        }
+        totalNanos += event.getDuration().toNanos();
+        if (first == null || event.getStartTime().isBefore(first)) {
+          first = event.getStartTime();
+        }
+        if (last == null || event.getEndTime().isAfter(last)) {
+          last = event.getEndTime();
+        }
+      }
+      case ConnectionEvent.Opened.NAME -> connectionsOpened++;
+      case ConnectionEvent.NAME -> connectionLifetimes.record(event.getDuration().toNanos());
+      default -> {
+        // Not an event of the database
+      }
+    }
+  }
+
+  /**
+   * Prints the reports.
+   *
+   * @param top the number of collections and keys listed
+   */
+  private void print(int top) {
+    long requests = 0;
+    for (Totals totals : commands.values()) {
+      requests += totals.latency.getCount();
+    }
+    if (requests == 0) {
+      System.out.println("No database commands in the recording");
+    } else {
+      System.out.printf("%d slow requests from %s to %s, %.1f ms in total%n%n", requests, first, last,
+          totalNanos / 1e6);
+      System.out.println("Latency by command (ms)");
+      printTable(commands, commands.size());
+      System.out.println();
+      System.out.println("Hottest collections (ms)");
+      printTable(collections, top);
+      System.out.println();
+      System.out.println("Hottest keys (ms)");
+      printTable(keys, top);
+      System.out.println();
+    }
+    System.out.printf("Connections: %d opened, %d closed", connectionsOpened, connectionLifetimes.getCount());
+    if (connectionLifetimes.getCount() > 0) {
+      System.out.printf(", lifetime mean %.1f ms, max %.1f ms", connectionLifetimes.getMeanNanos() / 1e6,
+          connectionLifetimes.getMaxNanos() / 1e6);
+    }
+    System.out.println();
+  }
+
+  /**
+   * Prints the totals taking the most time, with their share of the time of
+   * all the recorded requests.
+   *
+   * @param totals the totals by name
+   * @param limit  the number of lines printed
+   */
+  private void printTable(Map<String, Totals> totals, int limit) {
+    List<Totals> sorted = new ArrayList<>(totals.values());
+    sorted.sort(Comparator.comparingLong((Totals t) -> t.totalNanos).reversed());
+    System.out.printf("%-40s %8s %10s %7s %9s %9s %9s %9s %9s %12s %12s%n", "name", "count", "total", "share",
+        "mean", "p50", "p90", "p99", "max", "request_B", "response_B");
+    for (Totals t : sorted.subList(0, Math.min(limit, sorted.size()))) {
+      long[] quantiles = t.latency.getQuantileNanos(QUANTILES);
+      System.out.printf("%-40s %8d %10.1f %6.1f%% %9.2f %9.2f %9.2f %9.2f %9.2f %12d %12d%n", t.name,
+          t.latency.getCount(), t.totalNanos / 1e6, t.totalNanos * 100.0 / totalNanos,
+          t.latency.getMeanNanos() / 1e6, quantiles[0] / 1e6, quantiles[1] / 1e6, quantiles[2] / 1e6,
+          t.latency.getMaxNanos() / 1e6, t.requestBytes, t.responseBytes);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package it.unimib.sd2024;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps a read-only replica up to date with its primary, applying the log
+ * records shipped by the {@link LogShipper} of the primary in the same order.
+ *
+ * <p>
+ * The client runs on its own thread: it connects to the primary, asks for
+ * the records after the last one it applied, and applies each record as it
+ * arrives, reconnecting after {@link #RECONNECT_DELAY_MILLIS} milliseconds
+ * when the connection is lost. If the replica has a data directory the
+ * records are also appended to its own write-ahead log with the same LSN, so
+ * after a restart it only asks for the records it is missing; a replica kept
+ * in memory starts again from a snapshot. The records of a {@code MULTI}
+ * batch are applied one document at a time, so a read on the replica may see
+ * part of a batch.
+ */
+public final class ReplicaClient implements Runnable {
+  /**
+   * The delay before connecting again to the primary, in milliseconds.
+   */
+  public static final long RECONNECT_DELAY_MILLIS = 1000;
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+  private final String host;
+  private final int port;
+  private final Database database;
+  private final Path directory;
+  private final WriteAheadLog log;
+  private volatile long appliedLsn;
+  private volatile long primaryLsn;
+  private volatile boolean connected;
+
+  /**
+   * Constructs a new ReplicaClient.
+   *
+   * @param host       the host of the primary
+   * @param port       the port of the primary
+   * @param database   the database of the replica, without a log attached
+   * @param directory  the directory where the snapshots of the primary are
+   *                   stored
+   * @param log        the write-ahead log of the replica, or null if it only
+   *                   keeps its data in memory
+   * @param appliedLsn the LSN of the last record already in the database
+   */
+  public ReplicaClient(String host, int port, Database database, Path directory, WriteAheadLog log,
+      long appliedLsn) {
+    this.host = host;
+    this.port = port;
+    this.database = database;
+    this.directory = directory;
+    this.log = log;
+    this.appliedLsn = appliedLsn;
+    this.primaryLsn = appliedLsn;
+  }
+
+  /**
+   * Starts following the primary on a daemon thread.
+   */
+  public void start() {
+    Thread thread = new Thread(this, "replica");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Follows the primary forever, connecting again whenever the connection
+   * is lost.
+   */
+  @Override
+  public void run() {
+    while (true) {
+      try (var socket = new Socket()) {
+        socket.connect(new InetSocketAddress(host, port));
+        follow(socket);
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Replication from " + host + ":" + port + " interrupted: " + e);
+      } finally {
+        connected = false;
+      }
+      try {
+        Thread.sleep(RECONNECT_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Asks the primary for the records after the last one applied and applies
+   * the frames it sends until the connection ends.
+   *
+   * @param socket the connection to the primary
+   * @throws IOException if the connection fails or a frame is invalid
+   */
+  private void follow(Socket socket) throws IOException {
+    var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    var in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), INPUT_BUFFER_SIZE));
+    out.write(("REPLICATE " + appliedLsn + "\n").getBytes(StandardCharsets.UTF_8));
+    out.flush();
+    String response = readLine(in);
+    if (!"Replicating".equals(response)) {
+      throw new IOException("Unexpected response from the primary: " + response);
+    }
+    connected = true;
+    System.out.println("Replicating from " + host + ":" + port + " after LSN " + appliedLsn);
+
+    CRC32C crc = new CRC32C();
+    byte[] payload = new byte[256];
+    while (true) {
+      byte type = in.readByte();
+      switch (type) {
+        case LogShipper.RECORD:
+          int length = in.readInt();
+          int checksum = in.readInt();
+          if (length < 0) {
+            throw new IOException("Invalid record length: " + length);
+          }
+          if (length > payload.length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+          }
+          in.readFully(payload, 0, length);
+          crc.reset();
+          crc.update(payload, 0, length);
+          if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupted record after LSN " + appliedLsn);
+          }
+          apply(ByteBuffer.wrap(payload, 0, length));
+          break;
+        case LogShipper.SNAPSHOT:
+          long size = in.readLong();
+          appliedLsn = Snapshot.install(directory, database, log, in, size);
+          System.out.println("Installed a snapshot of the primary at LSN " + appliedLsn);
+          break;
+        case LogShipper.HEARTBEAT:
+          primaryLsn = in.readLong();
+          out.writeLong(appliedLsn);
+          out.flush();
+          break;
+        default:
+          throw new IOException("Unknown frame type: " + type);
+      }
+    }
+  }
+
+  /**
+   * Applies a log record to the database and appends it to the log of the
+   * replica, if it has one.
+   *
+   * @param record the payload of the record, starting with its LSN
+   * @throws IOException if the record does not follow the last one applied
+   */
+  private void apply(ByteBuffer record) throws IOException {
+    long lsn = record.getLong();
+    if (lsn <= appliedLsn) {
+      return;
+    }
+    if (lsn != appliedLsn + 1) {
+      throw new IOException("Missing records between LSN " + appliedLsn + " and " + lsn);
+    }
+    Mutation mutation = Mutation.decode(record);
+    mutation.applyTo(database);
+    if (log != null) {
+      log.append(mutation);
+    }
+    appliedLsn = lsn;
+  }
+
+  /**
+   * Reads a text line sent by the primary before the replication frames.
+   *
+   * @param in the input of the connection
+   * @return the line, without its terminator
+   * @throws IOException if the connection ends before the line
+   */
+  private static String readLine(DataInputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.readUnsignedByte()) != '\n') {
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  /**
+   * Returns the replication state of the replica as a JSON object: its
+   * primary, whether it is connected, the LSN of the last record it applied,
+   * the last durable LSN announced by the primary and the difference between
+   * the two.
+   *
+   * @return the JSON description
+   */
+  public String describe() {
+    long applied = appliedLsn;
+    long primary = primaryLsn;
+    return "{\"role\": \"replica\",\"primary\": \"" + host + ":" + port + "\",\"connected\": " + connected
+        + ",\"lsn\": " + applied + ",\"primaryLsn\": " + primary + ",\"lagRecords\": "
+        + Math.max(primary - applied, 0) + "}";
+  }
+}
@@ -0,0 +1,176 @@
+package it.unimib.sd2024;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A parsed request line. The parser does not copy the line: it only records
+ * where the command, the collection name, the document ID and the document
+ * data start and end, and the values are materialized on demand. An instance
+ * is meant to be reused for every line received on a connection.
+ * This class is not thread-safe.
+ */
+public final class Request {
+  private static final int COLLECTION_CACHE_SIZE = 8;
+
+  private final byte[][] cachedCollectionBytes = new byte[COLLECTION_CACHE_SIZE][];
+  private final String[] cachedCollectionNames = new String[COLLECTION_CACHE_SIZE];
+  private int nextCacheSlot;
+
+  private byte[] line;
+  private int commandStart;
+  private int commandEnd;
+  private int collectionStart;
+  private int collectionEnd;
+  private int idStart;
+  private int idEnd;
+  private int dataStart;
+  private int dataEnd;
+
+  /**
+   * Parses a request line of the form
+   * {@code COMMAND [COLLECTION_NAME] [DOCUMENT_ID] [DOCUMENT_DATA]}. Leading
+   * and trailing whitespace is ignored, tokens are separated by single spaces
+   * and the document data is the whole remainder of the line, so it may
+   * contain spaces.
+   *
+   * @param line   the buffer holding the line, without its terminator
+   * @param length the number of valid bytes in the buffer
+   * @return true if the line holds at least a command
+   */
+  public boolean parse(byte[] line, int length) {
+    this.line = line;
+    int start = 0;
+    int end = length;
+    while (start < end && (line[start] & 0xFF) <= ' ') {
+      start++;
+    }
+    while (end > start && (line[end - 1] & 0xFF) <= ' ') {
+      end--;
+    }
+
+    if (start == end) {
+      return false;
+    }
+
+    commandStart = start;
+    commandEnd = indexOfSpace(start, end);
+    collectionStart = -1;
+    collectionEnd = -1;
+    idStart = -1;
+    idEnd = -1;
+    dataStart = -1;
+    dataEnd = -1;
+    if (commandEnd == end) {
+      return true;
+    }
+
+    collectionStart = commandEnd + 1;
+    collectionEnd = indexOfSpace(collectionStart, end);
+    if (collectionEnd < end) {
+      idStart = collectionEnd + 1;
+      idEnd = indexOfSpace(idStart, end);
+      if (idEnd < end) {
+        dataStart = idEnd + 1;
+        dataEnd = end;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the command of the parsed line.
+   *
+   * @return the command, or null if the command is not supported
+   */
+  public Command getCommand() {
+    return Command.match(line, commandStart, commandEnd);
+  }
+
+  /**
+   * Returns whether the parsed line contains a collection name.
+   *
+   * @return true if a collection name is present
+   */
+  public boolean hasCollectionName() {
+    return collectionStart >= 0;
+  }
+
+  /**
+   * Returns the collection name of the parsed line. The names of the last few
+   * collections are cached, so requests on the same collections do not
+   * allocate a new string every time.
+   *
+   * @return the collection name, or null if absent
+   */
+  public String getCollectionName() {
+    if (collectionStart < 0) {
+      return null;
+    }
+    for (int i = 0; i < COLLECTION_CACHE_SIZE; i++) {
+      byte[] cached = cachedCollectionBytes[i];
+      if (cached != null && Arrays.equals(cached, 0, cached.length, line, collectionStart, collectionEnd)) {
+        return cachedCollectionNames[i];
+      }
+    }
+
+    String name = new String(line, collectionStart, collectionEnd - collectionStart, StandardCharsets.UTF_8);
+    cachedCollectionBytes[nextCacheSlot] = Arrays.copyOfRange(line, collectionStart, collectionEnd);
+    cachedCollectionNames[nextCacheSlot] = name;
+    nextCacheSlot = (nextCacheSlot + 1) % COLLECTION_CACHE_SIZE;
+    return name;
+  }
+
+  /**
+   * Returns whether the parsed line contains a document ID.
+   *
+   * @return true if a document ID is present
+   */
+  public boolean hasDocumentId() {
+    return idStart >= 0;
+  }
+
+  /**
+   * Returns the document ID of the parsed line.
+   *
+   * @return the document ID, or null if absent
+   */
+  public String getDocumentId() {
+    return idStart < 0 ? null : new String(line, idStart, idEnd - idStart, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns whether the parsed line contains document data.
+   *
+   * @return true if document data is present
+   */
+  public boolean hasDocumentData() {
+    return dataStart >= 0;
+  }
+
+  /**
+   * Returns the document data of the parsed line, decoded straight from the
+   * line buffer.
+   *
+   * @return the document data, or null if absent
+   */
+  public String getDocumentData() {
+    return dataStart < 0 ? null : new String(line, dataStart, dataEnd - dataStart, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the index of the first space in the given range of the line.
+   *
+   * @param from the first index to inspect, inclusive
+   * @param to   the last index to inspect, exclusive
+   * @return the index of the space, or {@code to} if there is none
+   */
+  private int indexOfSpace(int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (line[i] == ' ') {
+        return i;
+      }
+    }
+    return to;
+  }
+}
@@ -0,0 +1,162 @@
+package it.unimib.sd2024;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A request for one chunk of the documents of a {@link Collection} in key
+ * order.
+ *
+ * <p>
+ * The textual form is a list of options separated by spaces:
+ * {@code START <key>} (inclusive), {@code END <key>} (exclusive),
+ * {@code LIMIT <n>} and {@code CURSOR <cursor>}. A chunk holds at most
+ * {@code LIMIT} documents and stops early once it exceeds
+ * {@link #MAX_CHUNK_BYTES}, so its size never depends on the size of the
+ * collection. When more documents are left, the chunk carries an opaque
+ * cursor: a SCAN with only that cursor (and optionally a new limit) returns
+ * the next chunk of the same range.
+ */
+public final class Scan {
+  /**
+   * The number of documents returned when no limit is given.
+   */
+  public static final int DEFAULT_LIMIT = 100;
+  /**
+   * The highest limit accepted.
+   */
+  public static final int MAX_LIMIT = 10_000;
+  /**
+   * The size in bytes, encoded in UTF-8 as sent to the client, after which a
+   * chunk is ended, whatever its limit.
+   */
+  public static final int MAX_CHUNK_BYTES = 1024 * 1024;
+
+  private static final char CURSOR_SEPARATOR = '\n';
+
+  private final String start;
+  private final boolean startInclusive;
+  private final String end;
+  private final int limit;
+
+  /**
+   * Constructs a new Scan.
+   *
+   * @param start          the first key, or null to start from the lowest one
+   * @param startInclusive whether a document with the first key is returned
+   * @param end            the key where the range ends, exclusive, or null to
+   *                       scan up to the highest key
+   * @param limit          the maximum number of documents to return
+   * @throws IllegalArgumentException if the limit is out of range
+   */
+  public Scan(String start, boolean startInclusive, String end, int limit) {
+    if (limit <= 0 || limit > MAX_LIMIT) {
+      throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIMIT);
+    }
+    this.start = start;
+    this.startInclusive = startInclusive;
+    this.end = end;
+    this.limit = limit;
+  }
+
+  /**
+   * Parses the textual form of a scan.
+   *
+   * @param text the options, may be empty
+   * @return the scan
+   * @throws IllegalArgumentException if the text is malformed or the cursor
+   *                                  is not valid
+   */
+  public static Scan parse(String text) {
+    String[] tokens = text.isEmpty() ? new String[0] : text.split(" ");
+    if (tokens.length % 2 != 0) {
+      throw new IllegalArgumentException("Every option needs a value");
+    }
+
+    String start = null;
+    String end = null;
+    String cursor = null;
+    int limit = DEFAULT_LIMIT;
+    for (int i = 0; i < tokens.length; i += 2) {
+      String value = tokens[i + 1];
+      switch (tokens[i]) {
+        case "START":
+          start = value;
+          break;
+        case "END":
+          end = value;
+          break;
+        case "LIMIT":
+          limit = Integer.parseInt(value);
+          break;
+        case "CURSOR":
+          cursor = value;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + tokens[i]);
+      }
+    }
+
+    if (cursor == null) {
+      return new Scan(start, true, end, limit);
+    }
+    if (start != null || end != null) {
+      throw new IllegalArgumentException("A cursor cannot be combined with START or END");
+    }
+    String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    int separator = decoded.indexOf(CURSOR_SEPARATOR);
+    if (separator <= 0) {
+      throw new IllegalArgumentException("Invalid cursor");
+    }
+    String last = decoded.substring(0, separator);
+    String cursorEnd = separator == decoded.length() - 1 ? null : decoded.substring(separator + 1);
+    return new Scan(last, false, cursorEnd, limit);
+  }
+
+  /**
+   * Returns the first key of the range.
+   *
+   * @return the first key, or null to start from the lowest one
+   */
+  public String getStart() {
+    return start;
+  }
+
+  /**
+   * Returns whether a document with the first key is part of the range.
+   *
+   * @return true if the first key is inclusive
+   */
+  public boolean isStartInclusive() {
+    return startInclusive;
+  }
+
+  /**
+   * Returns the key where the range ends.
+   *
+   * @return the exclusive end key, or null if the range has no end
+   */
+  public String getEnd() {
+    return end;
+  }
+
+  /**
+   * Returns the maximum number of documents of the chunk.
+   *
+   * @return the limit
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the cursor continuing this scan after the specified key.
+   *
+   * @param lastKey the last key returned
+   * @return the opaque cursor
+   */
+  String cursorAfter(String lastKey) {
+    String state = lastKey + CURSOR_SEPARATOR + (end == null ? "" : end);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(state.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,220 @@
+package it.unimib.sd2024;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Maps the values of a top-level JSON field to the IDs of the documents of a
+ * {@link Collection} holding them. The index is kept up to date by the
+ * collection while the changed document is locked.
+ *
+ * <p>
+ * A {@link Type#HASH} index answers equality lookups, a {@link Type#SORTED}
+ * index also answers range queries. In a sorted index numbers are ordered by
+ * value and come before every other value, which is ordered as text (so ISO
+ * dates are ordered chronologically).
+ */
+public final class SecondaryIndex {
+
+  /**
+   * The kind of index.
+   */
+  public enum Type {
+    HASH,
+    SORTED
+  }
+
+  private static final Comparator<String> VALUE_ORDER = SecondaryIndex::compareValues;
+
+  private final String field;
+  private final Type type;
+  private final ConcurrentHashMap<String, Set<String>> hashEntries;
+  private final ConcurrentSkipListSet<Entry> sortedEntries;
+
+  /**
+   * An entry of a sorted index: the value and the ID of a document holding it.
+   */
+  private static final class Entry {
+    private static final Comparator<Entry> ORDER = Comparator
+        .comparing((Entry entry) -> entry.value, VALUE_ORDER)
+        .thenComparing(entry -> entry.id, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final String value;
+    private final String id;
+
+    private Entry(String value, String id) {
+      this.value = value;
+      this.id = id;
+    }
+  }
+
+  /**
+   * Constructs a new, empty SecondaryIndex.
+   *
+   * @param field the name of the indexed field
+   * @param type  the kind of index
+   */
+  public SecondaryIndex(String field, Type type) {
+    this.field = field;
+    this.type = type;
+    if (type == Type.HASH) {
+      this.hashEntries = new ConcurrentHashMap<>();
+      this.sortedEntries = null;
+    } else {
+      this.hashEntries = null;
+      this.sortedEntries = new ConcurrentSkipListSet<>(Entry.ORDER);
+    }
+  }
+
+  /**
+   * Returns the name of the indexed field.
+   *
+   * @return the field name
+   */
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * Returns the kind of index.
+   *
+   * @return the type
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Returns the IDs of the documents whose field equals the specified value.
+   *
+   * @param value the value, as returned by {@link JsonFields}
+   * @return the matching IDs, in no particular order for a hash index and
+   *         ordered by ID for a sorted index
+   */
+  public List<String> lookup(String value) {
+    if (type == Type.HASH) {
+      Set<String> ids = hashEntries.get(value);
+      return ids == null ? new ArrayList<>() : new ArrayList<>(ids);
+    }
+    return range(value, value);
+  }
+
+  /**
+   * Returns the IDs of the documents whose field is between two values,
+   * inclusive. Only supported by sorted indexes.
+   *
+   * @param from the lowest value, or null for no lower bound
+   * @param to   the highest value, or null for no upper bound
+   * @return the matching IDs, ordered by value and then by ID
+   * @throws IllegalStateException if the index is not sorted
+   */
+  public List<String> range(String from, String to) {
+    if (type != Type.SORTED) {
+      throw new IllegalStateException("Range queries need a sorted index");
+    }
+    NavigableSet<Entry> entries = sortedEntries;
+    if (from != null) {
+      entries = entries.tailSet(new Entry(from, null), true);
+    }
+    List<String> ids = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (to != null && compareValues(entry.value, to) > 0) {
+        break;
+      }
+      ids.add(entry.id);
+    }
+    return ids;
+  }
+
+  /**
+   * Records that a document holds a value. Called while the document is
+   * locked.
+   *
+   * @param id    the ID of the document
+   * @param value the value of the field, or null if the document has none
+   */
+  void add(String id, String value) {
+    if (value == null) {
+      return;
+    }
+    if (type == Type.HASH) {
+      hashEntries.compute(value, (key, ids) -> {
+        Set<String> result = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+        result.add(id);
+        return result;
+      });
+    } else {
+      sortedEntries.add(new Entry(value, id));
+    }
+  }
+
+  /**
+   * Records that a document no longer holds a value. Called while the
+   * document is locked.
+   *
+   * @param id    the ID of the document
+   * @param value the previous value of the field, or null if the document had
+   *              none
+   */
+  void remove(String id, String value) {
+    if (value == null) {
+      return;
+    }
+    if (type == Type.HASH) {
+      hashEntries.computeIfPresent(value, (key, ids) -> {
+        ids.remove(id);
+        return ids.isEmpty() ? null : ids;
+      });
+    } else {
+      sortedEntries.remove(new Entry(value, id));
+    }
+  }
+
+  /**
+   * Compares two field values: numbers by value and before any other value,
+   * everything else as text.
+   *
+   * @param a the first value
+   * @param b the second value
+   * @return a negative number, zero or a positive number if the first value is
+   *         lower than, equal to or greater than the second
+   */
+  static int compareValues(String a, String b) {
+    BigDecimal first = parseNumber(a);
+    BigDecimal second = parseNumber(b);
+    if (first != null && second != null) {
+      return first.compareTo(second);
+    }
+    if (first != null || second != null) {
+      return first != null ? -1 : 1;
+    }
+    return a.compareTo(b);
+  }
+
+  /**
+   * Parses a value as a number.
+   *
+   * @param value the value
+   * @return the number, or null if the value is not a number
+   */
+  private static BigDecimal parseNumber(String value) {
+    if (value.isEmpty()) {
+      return null;
+    }
+    char first = value.charAt(0);
+    if (first != '-' && (first < '0' || first > '9')) {
+      return null;
+    }
+    try {
+      return new BigDecimal(value);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
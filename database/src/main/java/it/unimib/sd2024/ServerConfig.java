@@ -0,0 +1,563 @@
+package it.unimib.sd2024;
+
+import java.nio.file.Path;
+
+/**
+ * Holds the startup configuration of the database server.
+ * Values are read from the command line arguments in the form
+ * {@code --key=value}; every option has a default, so the server can still be
+ * started without arguments.
+ */
+public final class ServerConfig {
+
+  /**
+   * The network layer used to serve client connections.
+   */
+  public enum Mode {
+    /** One platform thread per connection (legacy behaviour). */
+    THREAD,
+    /** One virtual thread per connection, with a cap on open connections. */
+    VIRTUAL,
+    /** A small number of selector threads with non-blocking channels. */
+    NIO
+  }
+
+  /**
+   * Where the data of the documents is kept.
+   */
+  public enum Storage {
+    /** On the Java heap, as strings or byte arrays. */
+    HEAP,
+    /** In the slabs of an {@link OffHeapArena}, outside of the heap. */
+    OFF_HEAP
+  }
+
+  private int port = Main.PORT;
+  private Mode mode = Mode.THREAD;
+  private int ioThreads = Runtime.getRuntime().availableProcessors();
+  private int maxConnections = 10_000;
+  private Path dataDirectory;
+  private Durability durability = Durability.SYNC;
+  private int batchWindowMillis = 2;
+  private int snapshotIntervalSeconds;
+  private Storage storage = Storage.HEAP;
+  private String replicaOf;
+  private int statsIntervalSeconds;
+  private int idleTimeoutSeconds;
+  private int readTimeoutSeconds = 30;
+  private int maxLineBytes = 16 * 1024 * 1024;
+  // Indexed by lane: the point requests are not limited by default, the scans
+  // and the administration commands get a few slots and a short queue
+  private final int[] maxActiveRequests = { 0, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1 };
+  private final int[] maxQueuedRequests = { 1000, 64, 64 };
+
+  /**
+   * Builds a configuration from the command line arguments.
+   * Supported options are {@code --port}, {@code --mode},
+   * {@code --io-threads}, {@code --max-connections}, {@code --data-dir},
+   * {@code --durability}, {@code --batch-window-ms},
+   * {@code --snapshot-interval-s}, {@code --storage}, {@code --replica-of},
+   * {@code --stats-interval-s}, {@code --idle-timeout-s},
+   * {@code --read-timeout-s}, {@code --max-line-bytes},
+   * {@code --max-active-requests}, {@code --max-queued-requests},
+   * {@code --max-active-scans}, {@code --max-queued-scans},
+   * {@code --max-active-admin} and {@code --max-queued-admin}.
+   *
+   * @param args the command line arguments
+   * @return the parsed configuration
+   * @throws IllegalArgumentException if an option is unknown or malformed
+   */
+  public static ServerConfig fromArgs(String[] args) {
+    ServerConfig config = new ServerConfig();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (!arg.startsWith("--") || separator < 0) {
+        throw new IllegalArgumentException("Invalid option: " + arg);
+      }
+      String key = arg.substring(2, separator);
+      String value = arg.substring(separator + 1);
+      switch (key) {
+        case "port":
+          config.setPort(parsePositive(key, value));
+          break;
+        case "mode":
+          config.setMode(Mode.valueOf(value.toUpperCase()));
+          break;
+        case "io-threads":
+          config.setIoThreads(parsePositive(key, value));
+          break;
+        case "max-connections":
+          config.setMaxConnections(parsePositive(key, value));
+          break;
+        case "data-dir":
+          config.setDataDirectory(Path.of(value));
+          break;
+        case "durability":
+          config.setDurability(Durability.valueOf(value.toUpperCase()));
+          break;
+        case "batch-window-ms":
+          config.setBatchWindowMillis(parsePositive(key, value));
+          break;
+        case "snapshot-interval-s":
+          config.setSnapshotIntervalSeconds(parsePositive(key, value));
+          break;
+        case "storage":
+          config.setStorage(Storage.valueOf(value.toUpperCase().replace('-', '_')));
+          break;
+        case "replica-of":
+          config.setReplicaOf(value);
+          break;
+        case "stats-interval-s":
+          config.setStatsIntervalSeconds(parsePositive(key, value));
+          break;
+        case "idle-timeout-s":
+          config.setIdleTimeoutSeconds(parseNonNegative(key, value));
+          break;
+        case "read-timeout-s":
+          config.setReadTimeoutSeconds(parseNonNegative(key, value));
+          break;
+        case "max-line-bytes":
+          config.setMaxLineBytes(parsePositive(key, value));
+          break;
+        case "max-active-requests":
+          config.setMaxActiveRequests(Lane.POINT, parseNonNegative(key, value));
+          break;
+        case "max-queued-requests":
+          config.setMaxQueuedRequests(Lane.POINT, parseNonNegative(key, value));
+          break;
+        case "max-active-scans":
+          config.setMaxActiveRequests(Lane.SCAN, parseNonNegative(key, value));
+          break;
+        case "max-queued-scans":
+          config.setMaxQueuedRequests(Lane.SCAN, parseNonNegative(key, value));
+          break;
+        case "max-active-admin":
+          config.setMaxActiveRequests(Lane.ADMIN, parseNonNegative(key, value));
+          break;
+        case "max-queued-admin":
+          config.setMaxQueuedRequests(Lane.ADMIN, parseNonNegative(key, value));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + arg);
+      }
+    }
+    return config;
+  }
+
+  /**
+   * Returns the TCP port the server listens on.
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Sets the TCP port the server listens on.
+   *
+   * @param port the port
+   */
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  /**
+   * Returns the network layer used to serve connections.
+   *
+   * @return the server mode
+   */
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Sets the network layer used to serve connections.
+   *
+   * @param mode the server mode, must not be null
+   */
+  public void setMode(Mode mode) {
+    if (mode == null) {
+      throw new IllegalArgumentException("Mode cannot be null");
+    }
+    this.mode = mode;
+  }
+
+  /**
+   * Returns the number of selector threads used in {@link Mode#NIO} mode.
+   *
+   * @return the number of I/O threads
+   */
+  public int getIoThreads() {
+    return ioThreads;
+  }
+
+  /**
+   * Sets the number of selector threads used in {@link Mode#NIO} mode.
+   *
+   * @param ioThreads the number of I/O threads, must be positive
+   */
+  public void setIoThreads(int ioThreads) {
+    if (ioThreads <= 0) {
+      throw new IllegalArgumentException("I/O threads must be positive");
+    }
+    this.ioThreads = ioThreads;
+  }
+
+  /**
+   * Returns the maximum number of connections served at the same time.
+   *
+   * @return the connection cap
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Sets the maximum number of connections served at the same time. The
+   * clients connecting beyond the cap receive {@link Main#SERVER_BUSY} and
+   * are disconnected.
+   *
+   * @param maxConnections the connection cap, must be positive
+   */
+  public void setMaxConnections(int maxConnections) {
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("Max connections must be positive");
+    }
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * Returns the directory holding the persistent files of the database.
+   *
+   * @return the data directory, or null if the database is kept in memory
+   *         only
+   */
+  public Path getDataDirectory() {
+    return dataDirectory;
+  }
+
+  /**
+   * Sets the directory holding the persistent files of the database. When set,
+   * every change is recorded in a write-ahead log and replayed at startup.
+   *
+   * @param dataDirectory the data directory, or null to keep the database in
+   *                      memory only
+   */
+  public void setDataDirectory(Path dataDirectory) {
+    this.dataDirectory = dataDirectory;
+  }
+
+  /**
+   * Returns when writes are acknowledged with respect to the write-ahead log.
+   *
+   * @return the durability level
+   */
+  public Durability getDurability() {
+    return durability;
+  }
+
+  /**
+   * Sets when writes are acknowledged with respect to the write-ahead log.
+   *
+   * @param durability the durability level, must not be null
+   */
+  public void setDurability(Durability durability) {
+    if (durability == null) {
+      throw new IllegalArgumentException("Durability cannot be null");
+    }
+    this.durability = durability;
+  }
+
+  /**
+   * Returns the batch window of the write-ahead log, in milliseconds.
+   *
+   * @return the batch window
+   */
+  public int getBatchWindowMillis() {
+    return batchWindowMillis;
+  }
+
+  /**
+   * Sets the batch window of the write-ahead log, used by
+   * {@link Durability#BATCH} and {@link Durability#ASYNC}.
+   *
+   * @param batchWindowMillis the batch window in milliseconds, must be
+   *                          positive
+   */
+  public void setBatchWindowMillis(int batchWindowMillis) {
+    if (batchWindowMillis <= 0) {
+      throw new IllegalArgumentException("Batch window must be positive");
+    }
+    this.batchWindowMillis = batchWindowMillis;
+  }
+
+  /**
+   * Returns the interval between two snapshots of the database.
+   *
+   * @return the interval in seconds, 0 if snapshots are disabled
+   */
+  public int getSnapshotIntervalSeconds() {
+    return snapshotIntervalSeconds;
+  }
+
+  /**
+   * Sets the interval between two snapshots of the database. Snapshots are
+   * only taken when a data directory is configured.
+   *
+   * @param snapshotIntervalSeconds the interval in seconds, 0 to disable
+   *                                snapshots
+   * @throws IllegalArgumentException if the interval is negative
+   */
+  public void setSnapshotIntervalSeconds(int snapshotIntervalSeconds) {
+    if (snapshotIntervalSeconds < 0) {
+      throw new IllegalArgumentException("Snapshot interval cannot be negative");
+    }
+    this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+  }
+
+  /**
+   * Returns where the data of the documents is kept.
+   *
+   * @return the storage mode
+   */
+  public Storage getStorage() {
+    return storage;
+  }
+
+  /**
+   * Sets where the data of the documents is kept.
+   *
+   * @param storage the storage mode, must not be null
+   */
+  public void setStorage(Storage storage) {
+    if (storage == null) {
+      throw new IllegalArgumentException("Storage cannot be null");
+    }
+    this.storage = storage;
+  }
+
+  /**
+   * Returns the address of the primary this server replicates.
+   *
+   * @return the address as {@code host:port}, or null if this server is not
+   *         a replica
+   */
+  public String getReplicaOf() {
+    return replicaOf;
+  }
+
+  /**
+   * Sets the address of the primary this server replicates. A replica only
+   * accepts reads from its clients and applies the changes shipped by the
+   * primary.
+   *
+   * @param replicaOf the address as {@code host:port}, or null to accept
+   *                  writes
+   * @throws IllegalArgumentException if the address has no valid port
+   */
+  public void setReplicaOf(String replicaOf) {
+    if (replicaOf != null) {
+      int separator = replicaOf.lastIndexOf(':');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Option --replica-of requires host:port");
+      }
+      parsePositive("replica-of", replicaOf.substring(separator + 1));
+    }
+    this.replicaOf = replicaOf;
+  }
+
+  /**
+   * Returns the interval between two prints of the statistics of the server.
+   *
+   * @return the interval in seconds, 0 if the statistics are not printed
+   */
+  public int getStatsIntervalSeconds() {
+    return statsIntervalSeconds;
+  }
+
+  /**
+   * Sets the interval between two prints of the statistics of the server on
+   * the standard output, in the format of the {@code STATS} command.
+   *
+   * @param statsIntervalSeconds the interval in seconds, 0 to never print
+   *                             them
+   * @throws IllegalArgumentException if the interval is negative
+   */
+  public void setStatsIntervalSeconds(int statsIntervalSeconds) {
+    if (statsIntervalSeconds < 0) {
+      throw new IllegalArgumentException("Stats interval cannot be negative");
+    }
+    this.statsIntervalSeconds = statsIntervalSeconds;
+  }
+
+  /**
+   * Returns the time a connection may stay without sending a request before
+   * it is closed.
+   *
+   * @return the idle timeout in seconds, 0 if idle connections are kept open
+   */
+  public int getIdleTimeoutSeconds() {
+    return idleTimeoutSeconds;
+  }
+
+  /**
+   * Sets the time a connection may stay without sending a request before it
+   * is closed. The timeout applies to the text protocol.
+   *
+   * @param idleTimeoutSeconds the idle timeout in seconds, 0 to keep idle
+   *                           connections open
+   * @throws IllegalArgumentException if the timeout is negative
+   */
+  public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+    if (idleTimeoutSeconds < 0) {
+      throw new IllegalArgumentException("Idle timeout cannot be negative");
+    }
+    this.idleTimeoutSeconds = idleTimeoutSeconds;
+  }
+
+  /**
+   * Returns the time a client may take to send a whole request line, from
+   * its first byte, before the connection is closed.
+   *
+   * @return the read timeout in seconds, 0 if there is no limit
+   */
+  public int getReadTimeoutSeconds() {
+    return readTimeoutSeconds;
+  }
+
+  /**
+   * Sets the time a client may take to send a whole request line, from its
+   * first byte, before the connection is closed, so a client sending a line
+   * slowly cannot hold a connection forever. The timeout applies to the text
+   * protocol.
+   *
+   * @param readTimeoutSeconds the read timeout in seconds, 0 for no limit
+   * @throws IllegalArgumentException if the timeout is negative
+   */
+  public void setReadTimeoutSeconds(int readTimeoutSeconds) {
+    if (readTimeoutSeconds < 0) {
+      throw new IllegalArgumentException("Read timeout cannot be negative");
+    }
+    this.readTimeoutSeconds = readTimeoutSeconds;
+  }
+
+  /**
+   * Returns the maximum length of a request line.
+   *
+   * @return the maximum length in bytes
+   */
+  public int getMaxLineBytes() {
+    return maxLineBytes;
+  }
+
+  /**
+   * Sets the maximum length of a request line. A client sending a longer
+   * line receives {@link Main#REQUEST_TOO_LARGE} and is disconnected, so a
+   * single line cannot make the server buffer without limit.
+   *
+   * @param maxLineBytes the maximum length in bytes, must be positive
+   */
+  public void setMaxLineBytes(int maxLineBytes) {
+    if (maxLineBytes <= 0) {
+      throw new IllegalArgumentException("Max line length must be positive");
+    }
+    this.maxLineBytes = maxLineBytes;
+  }
+
+  /**
+   * Returns the maximum number of requests of a lane executed at the same
+   * time.
+   *
+   * @param lane the lane
+   * @return the number of requests, 0 if there is no limit
+   */
+  public int getMaxActiveRequests(Lane lane) {
+    return maxActiveRequests[lane.ordinal()];
+  }
+
+  /**
+   * Sets the maximum number of requests of a lane executed at the same time,
+   * see {@link AdmissionControl}. In {@link Mode#NIO} mode the
+   * {@link Lane#POINT} requests are executed by the I/O threads, so their
+   * limit is ignored.
+   *
+   * @param lane              the lane
+   * @param maxActiveRequests the number of requests, 0 for no limit
+   * @throws IllegalArgumentException if the number is negative
+   */
+  public void setMaxActiveRequests(Lane lane, int maxActiveRequests) {
+    if (maxActiveRequests < 0) {
+      throw new IllegalArgumentException("Max active requests cannot be negative");
+    }
+    this.maxActiveRequests[lane.ordinal()] = maxActiveRequests;
+  }
+
+  /**
+   * Returns the maximum number of requests of a lane waiting to be executed.
+   *
+   * @param lane the lane
+   * @return the capacity of the queue
+   */
+  public int getMaxQueuedRequests(Lane lane) {
+    return maxQueuedRequests[lane.ordinal()];
+  }
+
+  /**
+   * Sets the maximum number of requests of a lane waiting to be executed
+   * when {@link #getMaxActiveRequests(Lane)} are already running; the
+   * following ones receive {@link AdmissionControl#OVERLOADED}.
+   *
+   * @param lane              the lane
+   * @param maxQueuedRequests the capacity of the queue, 0 to reject every
+   *                          request that cannot run at once
+   * @throws IllegalArgumentException if the capacity is negative
+   */
+  public void setMaxQueuedRequests(Lane lane, int maxQueuedRequests) {
+    if (maxQueuedRequests < 0) {
+      throw new IllegalArgumentException("Max queued requests cannot be negative");
+    }
+    this.maxQueuedRequests[lane.ordinal()] = maxQueuedRequests;
+  }
+
+  /**
+   * Parses a non-negative integer option.
+   *
+   * @param key   the option name, used in the error message
+   * @param value the value to parse
+   * @return the parsed value
+   * @throws IllegalArgumentException if the value is not a non-negative
+   *                                  integer
+   */
+  private static int parseNonNegative(String key, String value) {
+    try {
+      int parsed = Integer.parseInt(value);
+      if (parsed >= 0) {
+        return parsed;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Option --" + key + " requires a non-negative integer");
+  }
+
+  /**
+   * Parses a strictly positive integer option.
+   *
+   * @param key   the option name, used in the error message
+   * @param value the value to parse
+   * @return the parsed value
+   * @throws IllegalArgumentException if the value is not a positive integer
+   */
+  private static int parsePositive(String key, String value) {
+    try {
+      int parsed = Integer.parseInt(value);
+      if (parsed > 0) {
+        return parsed;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException("Option --" + key + " requires a positive integer");
+  }
+}
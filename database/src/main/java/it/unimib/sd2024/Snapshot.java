@@ -0,0 +1,441 @@
+package it.unimib.sd2024;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Point-in-time images of the database, used to restart without replaying the
+ * whole write-ahead log.
+ *
+ * <p>
+ * A snapshot is taken while the database keeps accepting writes: the log is
+ * rotated first, then the collections are copied with a weakly consistent
+ * iteration. The copy contains every change up to the LSN returned by the
+ * rotation and possibly some later ones, which is harmless because replaying
+ * the log from that LSN is idempotent. The file is written to a temporary
+ * name, synced and renamed, so a crash never leaves a partial snapshot behind.
+ *
+ * <p>
+ * A snapshot file starts with a magic number, a version and the LSN it covers,
+ * followed by the collections. Each collection is a marker byte, its name, its
+ * expiry field (empty if it has none, and written first so the documents are
+ * given their expiry time as they are loaded), its encoding (empty if the
+ * documents are stored as JSON; the data is always written as JSON) and its
+ * documents as
+ * {@code short idLength, id, int dataLength, data, long version}, ended by an
+ * empty ID, the last document version given by the collection as a
+ * {@code long}, and its indexes as {@code short count} followed by the field
+ * name and type of each index. A zero marker byte ends the file. Files written before documents had versions or collections had
+ * expiry fields or encodings are still read.
+ *
+ * <p>
+ * Loading maps the file in memory and only reads the document IDs: the data
+ * of each document stays in the mapped file and is paged in by the operating
+ * system when the document is first read, unless the collection has an
+ * encoding.
+ *
+ * <p>
+ * A replica too far behind its primary receives the file of a snapshot of
+ * the primary and loads it in place of its own data, see {@link LogShipper}.
+ * Writing, sending and installing snapshots are serialized, so a snapshot is
+ * never deleted while it is sent.
+ */
+public final class Snapshot {
+  private static final int MAGIC = 0x53444230;
+  private static final int VERSION = 5;
+  private static final int VERSION_WITHOUT_ENCODING = 4;
+  private static final int VERSION_WITHOUT_EXPIRY = 3;
+  private static final int VERSION_WITHOUT_DOCUMENT_VERSIONS = 2;
+  private static final int VERSION_WITHOUT_INDEXES = 1;
+  private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+  private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+  private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+  private static final String PREFIX = "snapshot-";
+  private static final String SUFFIX = ".snap";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  private final FileChannel channel;
+  private final long size;
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  /**
+   * Constructs a new Snapshot reader over an open file.
+   *
+   * @param channel the channel of the snapshot file
+   * @throws IOException if the size of the file cannot be read
+   */
+  private Snapshot(FileChannel channel) throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+  }
+
+  /**
+   * Writes a snapshot of the database, then deletes the older snapshots and
+   * the log segments it covers. Nothing is written if the database has not
+   * changed since the last snapshot.
+   *
+   * @param directory the data directory
+   * @param database  the database, with the log attached
+   * @param log       the write-ahead log of the database
+   * @return the LSN covered by the snapshot
+   * @throws IOException if the snapshot cannot be written
+   */
+  public static synchronized long write(Path directory, Database database, WriteAheadLog log) throws IOException {
+    long lsn = log.rotate();
+    Path target = directory.resolve(fileName(lsn));
+    Path temporary = directory.resolve(fileName(lsn) + TEMPORARY_SUFFIX);
+    if (Files.exists(target)) {
+      return lsn;
+    }
+
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+            OUTPUT_BUFFER_SIZE))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(lsn);
+      for (Collection collection : database.getAllCollections().values()) {
+        out.writeByte(1);
+        writeString(out, collection.getName());
+        String expiryField = collection.getExpiryField();
+        writeString(out, expiryField == null ? "" : expiryField);
+        DocumentCodec.Encoding encoding = collection.getEncoding();
+        writeString(out, encoding == null ? "" : encoding.name());
+        IOException[] failure = new IOException[1];
+        collection.forEachDocument((id, document) -> {
+          if (failure[0] != null) {
+            return;
+          }
+          try {
+            writeString(out, id);
+            byte[] data = document.getDataBytes();
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeLong(document.getVersion());
+          } catch (IOException e) {
+            failure[0] = e;
+          }
+        });
+        if (failure[0] != null) {
+          throw failure[0];
+        }
+        out.writeShort(0);
+        out.writeLong(collection.getLastDocumentVersion());
+        List<SecondaryIndex> indexes = collection.getIndexes();
+        out.writeShort(indexes.size());
+        for (SecondaryIndex index : indexes) {
+          writeString(out, index.getField());
+          out.writeByte(index.getType().ordinal());
+        }
+      }
+      out.writeByte(0);
+      out.flush();
+      channel.force(true);
+    }
+
+    Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    for (Path older : list(directory)) {
+      if (lsnOf(older) < lsn) {
+        Files.delete(older);
+      }
+    }
+    log.deleteSegmentsUpTo(lsn);
+    return lsn;
+  }
+
+  /**
+   * Writes a snapshot of the database, as {@link #write} does, and opens it
+   * for reading before a later snapshot can delete it.
+   *
+   * @param directory the data directory
+   * @param database  the database, with the log attached
+   * @param log       the write-ahead log of the database
+   * @return the channel of the snapshot file, to be closed by the caller
+   * @throws IOException if the snapshot cannot be written or opened
+   */
+  public static synchronized FileChannel writeAndOpen(Path directory, Database database, WriteAheadLog log)
+      throws IOException {
+    long lsn = write(directory, database, log);
+    return FileChannel.open(directory.resolve(fileName(lsn)), StandardOpenOption.READ);
+  }
+
+  /**
+   * Returns the LSN covered by a snapshot file, from its header.
+   *
+   * @param channel the channel of the snapshot file
+   * @return the LSN
+   * @throws IOException if the file is not a snapshot
+   */
+  public static long coveredLsn(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        throw new IOException("Truncated snapshot");
+      }
+    }
+    if (header.getInt(0) != MAGIC) {
+      throw new IOException("Not a snapshot file");
+    }
+    return header.getLong(2 * Integer.BYTES);
+  }
+
+  /**
+   * Replaces the content of a replica with a snapshot received from its
+   * primary. The snapshot is stored in the data directory in place of the
+   * older ones, the log of the replica restarts after the LSN it covers and
+   * the collections of the database are replaced by the ones it holds. Reads
+   * served while the snapshot is loaded may miss some collections.
+   *
+   * @param directory the data directory of the replica
+   * @param database  the database of the replica, without a log attached
+   * @param log       the write-ahead log of the replica, or null if it only
+   *                  keeps its data in memory
+   * @param in        the stream holding the snapshot file
+   * @param size      the size of the snapshot file
+   * @return the LSN covered by the snapshot
+   * @throws IOException if the snapshot cannot be received, stored or loaded
+   */
+  public static synchronized long install(Path directory, Database database, WriteAheadLog log, InputStream in,
+      long size) throws IOException {
+    Path temporary = directory.resolve(PREFIX + "replica" + SUFFIX + TEMPORARY_SUFFIX);
+    long lsn;
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      byte[] chunk = new byte[OUTPUT_BUFFER_SIZE];
+      long remaining = size;
+      while (remaining > 0) {
+        int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+        if (read < 0) {
+          throw new IOException("Truncated snapshot");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        remaining -= read;
+      }
+      channel.force(true);
+      lsn = coveredLsn(channel);
+    }
+
+    Path target = directory.resolve(fileName(lsn));
+    Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    for (Path other : list(directory)) {
+      if (!other.equals(target)) {
+        Files.delete(other);
+      }
+    }
+    if (log != null) {
+      log.reset(lsn);
+    }
+    database.setAllCollections(new ConcurrentHashMap<>());
+    return load(directory, database);
+  }
+
+  /**
+   * Loads the most recent snapshot of the data directory into the database,
+   * which must be empty and must not have a log attached.
+   *
+   * @param directory the data directory
+   * @param database  the database to fill
+   * @return the LSN covered by the snapshot, or 0 if there is none
+   * @throws IOException if the snapshot cannot be read or is corrupted
+   */
+  public static long load(Path directory, Database database) throws IOException {
+    List<Path> snapshots = list(directory);
+    if (snapshots.isEmpty()) {
+      return 0;
+    }
+    Path latest = snapshots.get(snapshots.size() - 1);
+    try (FileChannel channel = FileChannel.open(latest, StandardOpenOption.READ)) {
+      return new Snapshot(channel).read(database);
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupted snapshot " + latest, e);
+    }
+  }
+
+  /**
+   * Reads the whole file into the database.
+   *
+   * @param database the database to fill
+   * @return the LSN covered by the snapshot
+   * @throws IOException if the file cannot be mapped or is corrupted
+   */
+  private long read(Database database) throws IOException {
+    long position = 0;
+    ByteBuffer header = map(position, HEADER_SIZE);
+    int version = header.getInt(Integer.BYTES);
+    if (header.getInt() != MAGIC || version < VERSION_WITHOUT_INDEXES || version > VERSION) {
+      throw new IOException("Not a snapshot file");
+    }
+    header.getInt();
+    long lsn = header.getLong();
+    position += HEADER_SIZE;
+
+    while (map(position, 1).get() != 0) {
+      position++;
+      String name = readString(position);
+      position += Short.BYTES + name.getBytes(StandardCharsets.UTF_8).length;
+      Collection collection = new Collection(name);
+      database.addCollection(name, collection);
+      if (version > VERSION_WITHOUT_EXPIRY) {
+        String expiryField = readString(position);
+        position += Short.BYTES + expiryField.getBytes(StandardCharsets.UTF_8).length;
+        if (!expiryField.isEmpty()) {
+          collection.setExpiryField(expiryField);
+        }
+      }
+      if (version > VERSION_WITHOUT_ENCODING) {
+        String encoding = readString(position);
+        position += Short.BYTES + encoding.getBytes(StandardCharsets.UTF_8).length;
+        if (!encoding.isEmpty()) {
+          collection.setEncoding(DocumentCodec.Encoding.valueOf(encoding));
+        }
+      }
+
+      while (true) {
+        int idLength = map(position, Short.BYTES).getShort() & 0xFFFF;
+        if (idLength == 0) {
+          position += Short.BYTES;
+          break;
+        }
+        String id = readString(position);
+        position += Short.BYTES + idLength;
+        int dataLength = map(position, Integer.BYTES).getInt();
+        position += Integer.BYTES;
+        Document document = new Document(id, map(position, dataLength));
+        position += dataLength;
+        long documentVersion = Collection.ANY_VERSION;
+        if (version != VERSION_WITHOUT_INDEXES && version != VERSION_WITHOUT_DOCUMENT_VERSIONS) {
+          documentVersion = map(position, Long.BYTES).getLong();
+          position += Long.BYTES;
+        }
+        collection.restoreDocument(id, document, documentVersion);
+      }
+      if (version != VERSION_WITHOUT_INDEXES && version != VERSION_WITHOUT_DOCUMENT_VERSIONS) {
+        collection.advanceVersion(map(position, Long.BYTES).getLong());
+        position += Long.BYTES;
+      }
+
+      if (version != VERSION_WITHOUT_INDEXES) {
+        int indexCount = map(position, Short.BYTES).getShort() & 0xFFFF;
+        position += Short.BYTES;
+        for (int i = 0; i < indexCount; i++) {
+          String field = readString(position);
+          position += Short.BYTES + field.getBytes(StandardCharsets.UTF_8).length;
+          collection.createIndex(field, SecondaryIndex.Type.values()[map(position, 1).get()]);
+          position++;
+        }
+      }
+    }
+    return lsn;
+  }
+
+  /**
+   * Returns a read-only view of a region of the file, remapping the window
+   * when the region falls outside of it.
+   *
+   * @param position the position of the region in the file
+   * @param length   the length of the region
+   * @return a buffer over the region, positioned at its start
+   * @throws IOException if the region is outside of the file
+   */
+  private ByteBuffer map(long position, int length) throws IOException {
+    if (position + length > size) {
+      throw new IOException("Truncated snapshot");
+    }
+    if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+      long windowSize = Math.min(MAX_WINDOW_SIZE, size - position);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+      windowStart = position;
+    }
+    return window.slice((int) (position - windowStart), length);
+  }
+
+  /**
+   * Reads a string stored as its UTF-8 length and bytes.
+   *
+   * @param position the position of the length in the file
+   * @return the string
+   * @throws IOException if the string is outside of the file
+   */
+  private String readString(long position) throws IOException {
+    int length = map(position, Short.BYTES).getShort() & 0xFFFF;
+    ByteBuffer bytes = map(position + Short.BYTES, length);
+    byte[] copy = new byte[length];
+    bytes.get(copy);
+    return new String(copy, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a string as its UTF-8 length and bytes.
+   *
+   * @param out   the output stream
+   * @param value the string, at most {@link BinaryProtocol#MAX_NAME_LENGTH}
+   *              bytes long
+   * @throws IOException if an I/O error occurs
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Lists the snapshots of the data directory, ordered by LSN.
+   *
+   * @param directory the data directory
+   * @return the snapshot files
+   * @throws IOException if the directory cannot be listed
+   */
+  private static List<Path> list(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(file -> {
+            String name = file.getFileName().toString();
+            return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+          })
+          .sorted(Comparator.comparingLong(Snapshot::lsnOf))
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Returns the name of the snapshot file covering the specified LSN.
+   *
+   * @param lsn the LSN
+   * @return the file name
+   */
+  private static String fileName(long lsn) {
+    return String.format("%s%020d%s", PREFIX, lsn, SUFFIX);
+  }
+
+  /**
+   * Returns the LSN covered by a snapshot, from its file name.
+   *
+   * @param snapshot the snapshot file
+   * @return the LSN
+   */
+  private static long lsnOf(Path snapshot) {
+    String name = snapshot.getFileName().toString();
+    return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+  }
+}
@@ -0,0 +1,770 @@
+package it.unimib.sd2024;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the changes applied to the database.
+ *
+ * <p>
+ * Writers only copy their record into an in-memory buffer, which is cheap
+ * enough to be done while the changed document is locked. A single flusher
+ * thread swaps the buffer, writes it to the file and calls fsync once for all
+ * the records it contains, so concurrent writers share the cost of a fsync
+ * (group commit). How long a writer then waits is decided by the
+ * {@link Durability} of the log.
+ *
+ * <p>
+ * Each record is stored as its length, a CRC32C checksum and a payload made of
+ * the log sequence number (LSN), the mutation type, the collection name, the
+ * document ID, the document data and the document version (missing in the
+ * records written before versions existed). Replay stops at the first incomplete or
+ * corrupted record of a file, which is what a crash in the middle of a write
+ * leaves behind, and truncates the file there.
+ *
+ * <p>
+ * The log is a sequence of segment files named after the LSN of their first
+ * record. A new segment is started at every startup and by {@link #rotate()},
+ * so that the segments entirely covered by a {@link Snapshot} can be deleted.
+ * The durable records can be read back while the log is written with a
+ * {@link Reader}, which is how the log is shipped to the replicas.
+ */
+public final class WriteAheadLog implements MutationListener, Closeable {
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+  private static final int MIN_PAYLOAD_SIZE = Long.BYTES + 1 + 2 * Short.BYTES + Integer.BYTES;
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String LEGACY_SEGMENT = "wal.log";
+
+  private final Path directory;
+  private final Durability durability;
+  private final long batchWindowNanos;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition pendingWrites = lock.newCondition();
+  private final Condition synced = lock.newCondition();
+  private final ThreadLocal<long[]> lastLsnOfThread = ThreadLocal.withInitial(() -> new long[1]);
+  private final ThreadLocal<List<Mutation>> batchOfThread = new ThreadLocal<>();
+  private final Thread flusher;
+  private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+  private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+  private FileChannel channel;
+  private long segmentFirstLsn;
+  private int rotationOffset = -1;
+  private long lastLsn;
+  private long durableLsn;
+  private IOException failure;
+  private boolean closed;
+
+  /**
+   * Opens the log for appending in a new segment and starts its flusher
+   * thread. The log should have been replayed with
+   * {@link #replay(Path, Database, long)} first.
+   *
+   * @param directory         the directory holding the segments
+   * @param durability        when writes are acknowledged
+   * @param batchWindowMillis the batch window for {@link Durability#BATCH} and
+   *                          {@link Durability#ASYNC}
+   * @param lastLsn           the LSN of the last record already in the log
+   * @throws IOException if the segment cannot be opened
+   */
+  public WriteAheadLog(Path directory, Durability durability, long batchWindowMillis, long lastLsn)
+      throws IOException {
+    this.directory = directory;
+    this.durability = durability;
+    this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+    this.lastLsn = lastLsn;
+    this.durableLsn = lastLsn;
+    this.segmentFirstLsn = lastLsn + 1;
+    this.channel = openSegment(segmentFirstLsn);
+    this.flusher = new Thread(this::flushLoop, "wal-flusher");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  /**
+   * Replays the records of every segment whose LSN is greater than the
+   * specified one into the database, which must not have a log attached.
+   *
+   * @param directory the directory holding the segments
+   * @param database  the database to rebuild
+   * @param afterLsn  the LSN already reflected in the database, 0 to replay
+   *                  everything
+   * @return the LSN of the last record replayed, or {@code afterLsn} if there
+   *         is none
+   * @throws IOException if a segment cannot be read
+   */
+  public static long replay(Path directory, Database database, long afterLsn) throws IOException {
+    long lastLsn = afterLsn;
+    for (Path segment : listSegments(directory)) {
+      lastLsn = Math.max(lastLsn, replaySegment(segment, database, afterLsn));
+    }
+    return lastLsn;
+  }
+
+  /**
+   * Replays the records of a segment whose LSN is greater than the specified
+   * one, truncating the segment at its first invalid record. A record whose
+   * length does not fit in the rest of the file is a torn or garbage tail.
+   *
+   * @param path     the segment file
+   * @param database the database to rebuild
+   * @param afterLsn the LSN already reflected in the database
+   * @return the LSN of the last valid record, or 0 if the segment is empty
+   * @throws IOException if the file cannot be read
+   */
+  private static long replaySegment(Path path, Database database, long afterLsn) throws IOException {
+    long lastLsn = 0;
+    long validSize = 0;
+    long records = 0;
+    long fileSize = Files.size(path);
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), INITIAL_BUFFER_SIZE))) {
+      CRC32C crc = new CRC32C();
+      byte[] payload = new byte[256];
+      while (true) {
+        int length;
+        int checksum;
+        try {
+          length = in.readInt();
+          checksum = in.readInt();
+          if (length < MIN_PAYLOAD_SIZE || length > fileSize - validSize - HEADER_SIZE) {
+            break;
+          }
+          if (length > payload.length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+          }
+          in.readFully(payload, 0, length);
+        } catch (EOFException e) {
+          break;
+        }
+
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+        lastLsn = record.getLong();
+        if (lastLsn > afterLsn) {
+          Mutation.decode(record).applyTo(database);
+        }
+        validSize += HEADER_SIZE + length;
+        records++;
+      }
+    }
+
+    if (validSize < fileSize) {
+      System.err.println("Truncating " + path + " after " + records + " valid records");
+      try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        channel.truncate(validSize);
+      }
+    }
+    return lastLsn;
+  }
+
+  /**
+   * Appends the mutation to the log buffer. Called by the database while the
+   * changed document is locked. Inside a batch the mutation is only collected,
+   * see {@link #beginBatch()}.
+   *
+   * @param mutation the change to record
+   * @throws IllegalStateException if the log has been closed or has failed
+   */
+  @Override
+  public void onMutation(Mutation mutation) {
+    List<Mutation> batch = batchOfThread.get();
+    if (batch != null) {
+      batch.add(mutation);
+      return;
+    }
+    lastLsnOfThread.get()[0] = append(mutation);
+  }
+
+  /**
+   * Starts collecting the mutations of the calling thread instead of
+   * appending them, until {@link #commitBatch()} appends them all as a single
+   * record.
+   */
+  public void beginBatch() {
+    batchOfThread.set(new ArrayList<>());
+  }
+
+  /**
+   * Appends the mutations collected since {@link #beginBatch()} as a single
+   * {@link Mutation.Type#BATCH} record. Must be called while the documents
+   * changed by the batch are still locked.
+   *
+   * @throws IllegalStateException if the log has been closed or has failed
+   */
+  public void commitBatch() {
+    List<Mutation> batch = batchOfThread.get();
+    batchOfThread.remove();
+    if (batch != null && !batch.isEmpty()) {
+      lastLsnOfThread.get()[0] = append(Mutation.batch(batch));
+    }
+  }
+
+  /**
+   * Appends the mutation to the log buffer.
+   *
+   * @param mutation the change to record
+   * @return the LSN assigned to the record
+   * @throws IllegalArgumentException if the collection name or the document
+   *                                  ID is too long to be recorded
+   * @throws IllegalStateException    if the log has been closed or has failed
+   */
+  public long append(Mutation mutation) {
+    byte[] collection = mutation.getCollection().getBytes(StandardCharsets.UTF_8);
+    byte[] id = mutation.getDocumentId() == null ? new byte[0]
+        : mutation.getDocumentId().getBytes(StandardCharsets.UTF_8);
+    byte[] data = mutation.getData() == null ? new byte[0] : mutation.getData();
+    Mutation.checkNameLength(collection);
+    Mutation.checkNameLength(id);
+    int length = MIN_PAYLOAD_SIZE + collection.length + id.length + data.length + Long.BYTES;
+
+    lock.lock();
+    try {
+      if (closed || failure != null) {
+        throw new IllegalStateException("Write-ahead log is not writable", failure);
+      }
+      ensureCapacity(HEADER_SIZE + length);
+
+      long lsn = ++lastLsn;
+      int start = pending.position();
+      pending.position(start + HEADER_SIZE)
+          .putLong(lsn)
+          .put((byte) mutation.getType().ordinal())
+          .putShort((short) collection.length).put(collection)
+          .putShort((short) id.length).put(id)
+          .putInt(data.length).put(data)
+          .putLong(mutation.getVersion());
+
+      CRC32C crc = new CRC32C();
+      crc.update(pending.array(), start + HEADER_SIZE, length);
+      pending.putInt(start, length).putInt(start + Integer.BYTES, (int) crc.getValue());
+
+      pendingWrites.signal();
+      return lsn;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until the last record appended by the calling thread is durable, as
+   * required by the durability of the log. With {@link Durability#ASYNC} it
+   * returns immediately.
+   *
+   * @throws IllegalStateException if the log failed before the record could
+   *                               be synced
+   */
+  public void awaitDurability() {
+    long lsn = lastLsnOfThread.get()[0];
+    lock.lock();
+    try {
+      if (durability != Durability.ASYNC) {
+        while (durableLsn < lsn && failure == null && !closed) {
+          synced.awaitUninterruptibly();
+        }
+      }
+      if (failure != null && durableLsn < lsn) {
+        throw new IllegalStateException("Write-ahead log failed", failure);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Starts a new segment. Every record appended before this call ends up in
+   * the previous segments, every record appended after it in the new one.
+   * Waits until the previous segments are synced.
+   *
+   * @return the LSN of the last record of the previous segments
+   * @throws IllegalStateException if the log has been closed or has failed
+   */
+  public long rotate() {
+    lock.lock();
+    try {
+      if (closed || failure != null) {
+        throw new IllegalStateException("Write-ahead log is not writable", failure);
+      }
+      long rotationLsn = lastLsn;
+      if (rotationLsn < segmentFirstLsn) {
+        return rotationLsn;
+      }
+      rotationOffset = pending.position();
+      pendingWrites.signal();
+      while (segmentFirstLsn <= rotationLsn && failure == null) {
+        synced.awaitUninterruptibly();
+      }
+      if (segmentFirstLsn <= rotationLsn) {
+        throw new IllegalStateException("Write-ahead log failed", failure);
+      }
+      return rotationLsn;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Deletes the segments that only contain records up to the specified LSN.
+   * The current segment is never deleted.
+   *
+   * @param lsn the LSN covered by a durable snapshot
+   * @throws IOException if a segment cannot be deleted
+   */
+  public void deleteSegmentsUpTo(long lsn) throws IOException {
+    long currentFirstLsn;
+    lock.lock();
+    try {
+      currentFirstLsn = segmentFirstLsn;
+    } finally {
+      lock.unlock();
+    }
+
+    List<Path> segments = listSegments(directory);
+    for (int i = 0; i < segments.size(); i++) {
+      long firstLsn = firstLsnOf(segments.get(i));
+      long nextFirstLsn = i + 1 < segments.size() ? firstLsnOf(segments.get(i + 1)) : Long.MAX_VALUE;
+      if (firstLsn < currentFirstLsn && nextFirstLsn - 1 <= lsn) {
+        Files.delete(segments.get(i));
+      }
+    }
+  }
+
+  /**
+   * Returns the LSN of the last record appended to the log.
+   *
+   * @return the last LSN
+   */
+  public long getLastLsn() {
+    lock.lock();
+    try {
+      return lastLsn;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the LSN of the last record synced to the disk.
+   *
+   * @return the durable LSN
+   */
+  public long getDurableLsn() {
+    lock.lock();
+    try {
+      return durableLsn;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until a record after the specified LSN is synced to the disk, or
+   * until the timeout expires.
+   *
+   * @param lsn           the LSN already known to the caller
+   * @param timeoutMillis the highest time to wait, in milliseconds
+   * @return the LSN of the last record synced to the disk
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public long awaitDurableLsn(long lsn, long timeoutMillis) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      while (durableLsn <= lsn && failure == null && !closed && remaining > 0) {
+        remaining = synced.awaitNanos(remaining);
+      }
+      return durableLsn;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discards every record and restarts the log after the specified LSN, in a
+   * new segment. Used by a replica when it loads a snapshot of its primary,
+   * see {@link Snapshot#install}; no record may be appended meanwhile.
+   *
+   * @param lsn the LSN covered by the snapshot
+   * @throws IOException if the segments cannot be deleted or the new one
+   *                     cannot be opened
+   */
+  public void reset(long lsn) throws IOException {
+    lock.lock();
+    try {
+      // Let the flusher finish with the current segment before closing it
+      while (durableLsn < lastLsn && failure == null) {
+        synced.awaitUninterruptibly();
+      }
+      if (closed || failure != null) {
+        throw new IllegalStateException("Write-ahead log is not writable", failure);
+      }
+      channel.close();
+      for (Path segment : listSegments(directory)) {
+        Files.delete(segment);
+      }
+      lastLsn = lsn;
+      durableLsn = lsn;
+      segmentFirstLsn = lsn + 1;
+      channel = openSegment(segmentFirstLsn);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Flushes the pending records, stops the flusher and closes the file.
+   *
+   * @throws IOException if the file cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      pendingWrites.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+  }
+
+  /**
+   * Body of the flusher thread: waits for records, lets them accumulate for
+   * the batch window if required, then writes and syncs them in one go.
+   */
+  private void flushLoop() {
+    try {
+      while (true) {
+        lock.lock();
+        try {
+          while (pending.position() == 0 && rotationOffset < 0 && !closed) {
+            pendingWrites.awaitUninterruptibly();
+          }
+          if (pending.position() == 0 && rotationOffset < 0) {
+            return;
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        if (durability != Durability.SYNC && batchWindowNanos > 0 && rotationOffset < 0) {
+          TimeUnit.NANOSECONDS.sleep(batchWindowNanos);
+        }
+
+        ByteBuffer batch;
+        long batchLsn;
+        int batchRotationOffset;
+        long batchRotationLsn = 0;
+        lock.lock();
+        try {
+          batch = pending;
+          pending = writing;
+          writing = batch;
+          batchLsn = lastLsn;
+          batchRotationOffset = rotationOffset;
+          if (batchRotationOffset >= 0) {
+            batchRotationLsn = lastLsnBefore(batch, batchRotationOffset);
+          }
+          rotationOffset = -1;
+        } finally {
+          lock.unlock();
+        }
+
+        batch.flip();
+        if (batchRotationOffset >= 0) {
+          writeFully(batch.slice(0, batchRotationOffset));
+          channel.force(false);
+          channel.close();
+          FileChannel next = openSegment(batchRotationLsn + 1);
+          lock.lock();
+          try {
+            channel = next;
+            segmentFirstLsn = batchRotationLsn + 1;
+          } finally {
+            lock.unlock();
+          }
+          batch.position(batchRotationOffset);
+        }
+        writeFully(batch);
+        channel.force(false);
+        batch.clear();
+
+        lock.lock();
+        try {
+          durableLsn = batchLsn;
+          synced.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      System.err.println("Write-ahead log failure: " + e);
+      lock.lock();
+      try {
+        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        synced.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Writes the whole content of the buffer to the current segment.
+   *
+   * @param buffer the bytes to write
+   * @throws IOException if an I/O error occurs
+   */
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Returns the LSN of the last record that ends at or before the specified
+   * offset of a batch, or the LSN preceding the batch if there is none. Must
+   * be called with the lock held.
+   *
+   * @param batch  the batch of encoded records, not yet flipped
+   * @param offset the offset in the batch
+   * @return the LSN of the last record before the offset
+   */
+  private long lastLsnBefore(ByteBuffer batch, int offset) {
+    long lsn = durableLsn;
+    int position = 0;
+    while (position < offset) {
+      lsn = batch.getLong(position + HEADER_SIZE);
+      position += HEADER_SIZE + batch.getInt(position);
+    }
+    return lsn;
+  }
+
+  /**
+   * Opens the segment starting at the specified LSN for appending.
+   *
+   * @param firstLsn the LSN of the first record of the segment
+   * @return the channel of the segment
+   * @throws IOException if the file cannot be opened
+   */
+  private FileChannel openSegment(long firstLsn) throws IOException {
+    Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX));
+    return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Lists the segments of the log, ordered by their first LSN. The
+   * {@code wal.log} file written by older versions is treated as the first
+   * segment.
+   *
+   * @param directory the directory holding the segments
+   * @return the segment files
+   * @throws IOException if the directory cannot be listed
+   */
+  private static List<Path> listSegments(Path directory) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return new ArrayList<>();
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(file -> {
+            String name = file.getFileName().toString();
+            return name.equals(LEGACY_SEGMENT)
+                || (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+          })
+          .sorted(Comparator.comparingLong(WriteAheadLog::firstLsnOf))
+          .collect(Collectors.toCollection(ArrayList::new));
+    }
+  }
+
+  /**
+   * Returns the LSN of the first record of a segment, from its file name.
+   *
+   * @param segment the segment file
+   * @return the first LSN
+   */
+  private static long firstLsnOf(Path segment) {
+    String name = segment.getFileName().toString();
+    if (name.equals(LEGACY_SEGMENT)) {
+      return 1;
+    }
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /**
+   * Grows the pending buffer so it can hold the specified number of
+   * additional bytes. Must be called with the lock held.
+   *
+   * @param additional the number of bytes about to be written
+   */
+  private void ensureCapacity(int additional) {
+    if (pending.remaining() < additional) {
+      int capacity = Math.max(pending.capacity() * 2, pending.position() + additional);
+      ByteBuffer larger = ByteBuffer.allocate(capacity);
+      pending.flip();
+      larger.put(pending);
+      pending = larger;
+    }
+  }
+
+  /**
+   * Reads the records of a log in LSN order, exactly as they are stored,
+   * while the log keeps being written: only the records known to be durable
+   * are read, so a record is never read while it is being written. The
+   * segments are looked up by the LSN of their first record, following the
+   * rotations of the log.
+   */
+  public static final class Reader implements Closeable {
+    private final Path directory;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private Path segment;
+    private FileChannel channel;
+    private long position;
+    private long nextLsn;
+
+    /**
+     * Constructs a new Reader starting after the specified LSN.
+     *
+     * @param directory the directory holding the segments
+     * @param afterLsn  the LSN of the last record already read
+     */
+    public Reader(Path directory, long afterLsn) {
+      this.directory = directory;
+      this.nextLsn = afterLsn + 1;
+    }
+
+    /**
+     * Returns the LSN of the next record to read.
+     *
+     * @return the next LSN
+     */
+    public long getNextLsn() {
+      return nextLsn;
+    }
+
+    /**
+     * Returns the next record, with its length and checksum, if it is
+     * durable.
+     *
+     * @param durableLsn the LSN of the last durable record of the log
+     * @return a buffer holding the whole record, or null if the next record is
+     *         not durable yet
+     * @throws NoSuchFileException if the segment holding the next record has
+     *                             been deleted, after a snapshot
+     * @throws IOException         if a segment cannot be read or is corrupted
+     */
+    public ByteBuffer next(long durableLsn) throws IOException {
+      if (nextLsn > durableLsn) {
+        return null;
+      }
+      while (true) {
+        if (channel == null || position >= channel.size()) {
+          openSegmentOf(nextLsn);
+        }
+        header.clear();
+        readFully(header, position);
+        int length = header.getInt(0);
+        if (length < MIN_PAYLOAD_SIZE) {
+          throw new IOException("Corrupted record in " + segment);
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        readFully(record, position);
+        position += record.capacity();
+        long lsn = record.getLong(HEADER_SIZE);
+        if (lsn == nextLsn) {
+          nextLsn++;
+          return record.flip();
+        }
+        if (lsn > nextLsn) {
+          throw new NoSuchFileException(directory.toString(), null, "Record " + nextLsn + " is no longer in the log");
+        }
+      }
+    }
+
+    /**
+     * Opens the segment holding the specified LSN: the last one whose first
+     * LSN is not greater.
+     *
+     * @param lsn the LSN
+     * @throws NoSuchFileException if no segment holds the LSN
+     * @throws IOException         if the segment cannot be opened
+     */
+    private void openSegmentOf(long lsn) throws IOException {
+      Path found = null;
+      for (Path candidate : listSegments(directory)) {
+        if (firstLsnOf(candidate) <= lsn) {
+          found = candidate;
+        }
+      }
+      if (found == null || found.equals(segment)) {
+        throw new NoSuchFileException(directory.toString(), null, "Record " + lsn + " is no longer in the log");
+      }
+      close();
+      channel = FileChannel.open(found, StandardOpenOption.READ);
+      segment = found;
+      position = 0;
+    }
+
+    /**
+     * Fills the buffer with the bytes of the current segment at the
+     * specified position.
+     *
+     * @param buffer   the buffer to fill
+     * @param position the position in the segment
+     * @throws IOException if the segment ends before the buffer is full
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+      long offset = position;
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, offset);
+        if (read < 0) {
+          throw new EOFException("Truncated record in " + segment);
+        }
+        offset += read;
+      }
+    }
+
+    /**
+     * Closes the current segment.
+     *
+     * @throws IOException if the segment cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+    }
+  }
+}
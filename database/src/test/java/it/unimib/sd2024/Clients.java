@@ -0,0 +1,68 @@
+package it.unimib.sd2024;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the same work on many threads released at the same time, to make the
+ * clients of a test contend for the same documents.
+ */
+final class Clients {
+  private Clients() {
+  }
+
+  /**
+   * The work of one of the clients.
+   *
+   * @param <T> the type of the result
+   */
+  @FunctionalInterface
+  interface Task<T> {
+    /**
+     * Runs the work of a client.
+     *
+     * @param client the index of the client
+     * @return the result
+     * @throws Exception if the work fails
+     */
+    T run(int client) throws Exception;
+  }
+
+  /**
+   * Runs a task on many threads started at the same time and waits for all
+   * of them.
+   *
+   * @param clients the number of threads
+   * @param task    the task, given the index of its thread
+   * @return the results, in the order of the threads
+   * @throws Exception if a task fails
+   */
+  static <T> List<T> run(int clients, Task<T> task) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(clients);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<T>> futures = new ArrayList<>();
+      for (int i = 0; i < clients; i++) {
+        int client = i;
+        Callable<T> call = () -> {
+          start.await();
+          return task.run(client);
+        };
+        futures.add(executor.submit(call));
+      }
+      start.countDown();
+      List<T> results = new ArrayList<>();
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package it.unimib.sd2024;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the conditional writes of a {@link Collection} when many clients
+ * write the same documents at the same time.
+ */
+class CollectionTest {
+  private static final Pattern VALUE = Pattern.compile("\"value\":(\\d+)");
+
+  /**
+   * Of many clients inserting the same ID, exactly one succeeds and its
+   * document is the one kept.
+   */
+  @Test
+  void insertOfTheSameIdSucceedsOnce() throws Exception {
+    Collection collection = new Collection("c");
+    List<Collection.WriteResult> results = Clients.run(64,
+        client -> collection.insertDocument("id", new Document("id", "{\"value\":" + client + "}")));
+
+    assertEquals(1, results.stream().filter(result -> result == Collection.WriteResult.APPLIED).count());
+    assertEquals(63, results.stream().filter(result -> result == Collection.WriteResult.ALREADY_EXISTS).count());
+    int winner = results.indexOf(Collection.WriteResult.APPLIED);
+    assertEquals("{\"value\":" + winner + "}", collection.getDocument("id").getData());
+  }
+
+  /**
+   * Increments read and written with the version of the document are never
+   * lost, however many clients increment it at the same time.
+   */
+  @Test
+  void replaceWithExpectedVersionLosesNoIncrement() throws Exception {
+    Collection collection = new Collection("c");
+    collection.insertDocument("counter", new Document("counter", "{\"value\":0}"));
+    int clients = 16;
+    int increments = 50;
+
+    Clients.run(clients, client -> {
+      for (int i = 0; i < increments; i++) {
+        while (true) {
+          Document current = collection.getDocument("counter");
+          int value = valueOf(current) + 1;
+          Collection.WriteResult result = collection.replaceDocument("counter",
+              new Document("counter", "{\"value\":" + value + "}"), current.getVersion());
+          if (result == Collection.WriteResult.APPLIED) {
+            break;
+          }
+          assertEquals(Collection.WriteResult.VERSION_MISMATCH, result);
+        }
+      }
+      return null;
+    });
+
+    Document counter = collection.getDocument("counter");
+    assertEquals(clients * increments, valueOf(counter));
+    assertEquals(1 + clients * increments, counter.getVersion());
+  }
+
+  /**
+   * Of many clients removing the same version of a document, exactly one
+   * succeeds and the others find it gone.
+   */
+  @Test
+  void removeWithExpectedVersionSucceedsOnce() throws Exception {
+    Collection collection = new Collection("c");
+    collection.insertDocument("id", new Document("id", "{\"value\":1}"));
+    long version = collection.getDocument("id").getVersion();
+
+    List<Collection.WriteResult> results = Clients.run(32, client -> collection.removeDocument("id", version));
+
+    assertEquals(1, results.stream().filter(result -> result == Collection.WriteResult.APPLIED).count());
+    assertEquals(31, results.stream().filter(result -> result == Collection.WriteResult.NOT_FOUND).count());
+    assertNull(collection.getDocument("id"));
+  }
+
+  /**
+   * A write with a stale version or on a missing document changes nothing.
+   */
+  @Test
+  void conditionalWritesReportWhyTheyFailed() {
+    Collection collection = new Collection("c");
+    assertEquals(Collection.WriteResult.NOT_FOUND,
+        collection.replaceDocument("id", new Document("id", "{\"value\":1}"), Collection.ANY_VERSION));
+
+    collection.insertDocument("id", new Document("id", "{\"value\":1}"));
+    long version = collection.getDocument("id").getVersion();
+    assertEquals(Collection.WriteResult.VERSION_MISMATCH,
+        collection.replaceDocument("id", new Document("id", "{\"value\":2}"), version + 1));
+    assertEquals(Collection.WriteResult.VERSION_MISMATCH, collection.removeDocument("id", version + 1));
+    assertEquals("{\"value\":1}", collection.getDocument("id").getData());
+    assertEquals(version, collection.getDocument("id").getVersion());
+  }
+
+  /**
+   * A write refused by the listener, like a closed log, leaves neither the
+   * document nor its entries in the indexes.
+   */
+  @Test
+  void failedLogLeavesNoPhantomEntries() {
+    Collection collection = new Collection("c");
+    collection.createIndex("owner", SecondaryIndex.Type.HASH);
+    collection.setExpiryField("expirationDate");
+    collection.insertDocument("kept", new Document("kept", "{\"owner\":\"a\",\"expirationDate\":\"2030-01-01\"}"));
+    collection.setMutationListener(mutation -> {
+      throw new IllegalStateException("Write-ahead log is not writable");
+    });
+
+    assertThrows(IllegalStateException.class, () -> collection.insertDocument("lost",
+        new Document("lost", "{\"owner\":\"a\",\"expirationDate\":\"2030-01-01\"}")));
+    assertThrows(IllegalStateException.class, () -> collection.replaceDocument("kept",
+        new Document("kept", "{\"owner\":\"b\",\"expirationDate\":\"2031-01-01\"}"), Collection.ANY_VERSION));
+    assertThrows(IllegalStateException.class, () -> collection.removeDocument("kept"));
+
+    assertNull(collection.getDocument("lost"));
+    assertNotNull(collection.getDocument("kept"));
+    assertEquals(List.of("kept"), collection.getIndex("owner").lookup("a"));
+    assertEquals(List.of(), collection.getIndex("owner").lookup("b"));
+    assertEquals(List.of("kept"), collection.expiring(0, Long.MAX_VALUE));
+  }
+
+  /**
+   * Returns the value stored in a test document.
+   *
+   * @param document the document
+   * @return its value
+   */
+  private static int valueOf(Document document) {
+    Matcher matcher = VALUE.matcher(document.getData());
+    assertTrue(matcher.find());
+    return Integer.parseInt(matcher.group(1));
+  }
+}
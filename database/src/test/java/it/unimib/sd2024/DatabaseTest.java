@@ -0,0 +1,157 @@
+package it.unimib.sd2024;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the atomic batches of {@link Database#execute(Batch)}: either every
+ * write of a batch is applied or none is.
+ */
+class DatabaseTest {
+  private static final Pattern BALANCE = Pattern.compile("\"balance\":(-?\\d+)");
+
+  /**
+   * A batch spanning several collections applies all its writes.
+   */
+  @Test
+  void batchAppliesEveryWrite() {
+    Database database = databaseWith("domains", "orders");
+    database.getCollection("domains").insertDocument("a.com", new Document("a.com", "{\"owner\":\"x\"}"));
+    long version = database.getCollection("domains").getDocument("a.com").getVersion();
+
+    Batch batch = new Batch();
+    batch.replace("domains", "a.com", new Document("a.com", "{\"owner\":\"y\"}"), version);
+    batch.insert("orders", "{a.com}1", new Document("{a.com}1", "{\"type\":\"buy\"}"));
+    Batch.Result result = database.execute(batch);
+
+    assertTrue(result.isApplied());
+    assertEquals(-1, result.getFailedOperation());
+    assertEquals("{\"owner\":\"y\"}", database.getCollection("domains").getDocument("a.com").getData());
+    assertEquals("{\"type\":\"buy\"}", database.getCollection("orders").getDocument("{a.com}1").getData());
+  }
+
+  /**
+   * A batch with a failing write changes nothing, even the writes before it,
+   * and reports which write failed and why.
+   */
+  @Test
+  void abortedBatchChangesNothing() {
+    Database database = databaseWith("domains", "orders");
+    Collection domains = database.getCollection("domains");
+    domains.insertDocument("a.com", new Document("a.com", "{\"owner\":\"x\"}"));
+    domains.insertDocument("b.com", new Document("b.com", "{\"owner\":\"x\"}"));
+    long version = domains.getDocument("a.com").getVersion();
+
+    Batch batch = new Batch();
+    batch.replace("domains", "a.com", new Document("a.com", "{\"owner\":\"y\"}"), version);
+    batch.insert("orders", "{a.com}1", new Document("{a.com}1", "{\"type\":\"buy\"}"));
+    batch.remove("domains", "b.com", Collection.ANY_VERSION);
+    batch.insert("domains", "a.com", new Document("a.com", "{\"owner\":\"z\"}"));
+    Batch.Result result = database.execute(batch);
+
+    assertFalse(result.isApplied());
+    assertEquals(3, result.getFailedOperation());
+    assertEquals(Collection.WriteResult.ALREADY_EXISTS, result.getFailure());
+    assertEquals("{\"owner\":\"x\"}", domains.getDocument("a.com").getData());
+    assertEquals(version, domains.getDocument("a.com").getVersion());
+    assertEquals("{\"owner\":\"x\"}", domains.getDocument("b.com").getData());
+    assertNull(database.getCollection("orders").getDocument("{a.com}1"));
+  }
+
+  /**
+   * A batch naming a missing collection or a stale version is rejected as a
+   * whole.
+   */
+  @Test
+  void batchChecksCollectionsAndVersions() {
+    Database database = databaseWith("domains");
+    Collection domains = database.getCollection("domains");
+    domains.insertDocument("a.com", new Document("a.com", "{\"owner\":\"x\"}"));
+    long version = domains.getDocument("a.com").getVersion();
+
+    Batch missing = new Batch();
+    missing.insert("domains", "b.com", new Document("b.com", "{\"owner\":\"x\"}"));
+    missing.insert("orders", "{b.com}1", new Document("{b.com}1", "{\"type\":\"buy\"}"));
+    Batch.Result result = database.execute(missing);
+    assertEquals(1, result.getFailedOperation());
+    assertEquals(Collection.WriteResult.COLLECTION_NOT_FOUND, result.getFailure());
+    assertNull(domains.getDocument("b.com"));
+
+    Batch stale = new Batch();
+    stale.insert("domains", "b.com", new Document("b.com", "{\"owner\":\"x\"}"));
+    stale.replace("domains", "a.com", new Document("a.com", "{\"owner\":\"y\"}"), version + 1);
+    result = database.execute(stale);
+    assertEquals(1, result.getFailedOperation());
+    assertEquals(Collection.WriteResult.VERSION_MISMATCH, result.getFailure());
+    assertNull(domains.getDocument("b.com"));
+  }
+
+  /**
+   * Concurrent transfers between two accounts, each a batch conditional on
+   * the versions read, never create or lose money.
+   */
+  @Test
+  void concurrentBatchesAreAtomic() throws Exception {
+    Database database = databaseWith("accounts");
+    Collection accounts = database.getCollection("accounts");
+    accounts.insertDocument("{bank}a", new Document("{bank}a", "{\"balance\":1000}"));
+    accounts.insertDocument("{bank}b", new Document("{bank}b", "{\"balance\":1000}"));
+
+    List<Integer> applied = Clients.run(16, client -> {
+      int transfers = 0;
+      while (transfers < 50) {
+        String from = client % 2 == 0 ? "{bank}a" : "{bank}b";
+        String to = client % 2 == 0 ? "{bank}b" : "{bank}a";
+        Document source = accounts.getDocument(from);
+        Document target = accounts.getDocument(to);
+        Batch batch = new Batch();
+        batch.replace("accounts", from,
+            new Document(from, "{\"balance\":" + (balanceOf(source) - 1) + "}"), source.getVersion());
+        batch.replace("accounts", to,
+            new Document(to, "{\"balance\":" + (balanceOf(target) + 1) + "}"), target.getVersion());
+        if (database.execute(batch).isApplied()) {
+          transfers++;
+        }
+      }
+      return transfers;
+    });
+
+    assertEquals(16 * 50, applied.stream().mapToInt(Integer::intValue).sum());
+    assertEquals(2000, balanceOf(accounts.getDocument("{bank}a")) + balanceOf(accounts.getDocument("{bank}b")));
+    assertEquals(1000, balanceOf(accounts.getDocument("{bank}a")));
+  }
+
+  /**
+   * Returns a database holding empty collections.
+   *
+   * @param names the names of the collections
+   * @return the database
+   */
+  private static Database databaseWith(String... names) {
+    Database database = new Database("test");
+    for (String name : names) {
+      database.addCollection(name, new Collection(name));
+    }
+    return database;
+  }
+
+  /**
+   * Returns the balance stored in a test account.
+   *
+   * @param document the account
+   * @return its balance
+   */
+  private static int balanceOf(Document document) {
+    Matcher matcher = BALANCE.matcher(document.getData());
+    assertTrue(matcher.find());
+    return Integer.parseInt(matcher.group(1));
+  }
+}
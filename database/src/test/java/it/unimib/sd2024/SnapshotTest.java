@@ -0,0 +1,92 @@
+package it.unimib.sd2024;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the {@link Snapshot} files: a database loaded from a snapshot must
+ * be the one that was written, versions and expiry times included.
+ */
+class SnapshotTest {
+  private static final int MAGIC = 0x53444230;
+  private static final int VERSION = 5;
+
+  @TempDir
+  Path directory;
+
+  /**
+   * A snapshot keeps the documents with their versions and expiry times, the
+   * secondary indexes and the expiry field of every collection.
+   */
+  @Test
+  void loadRestoresWhatWasWritten() throws IOException {
+    Database database = new Database("test");
+    WriteAheadLog log = new WriteAheadLog(directory, Durability.SYNC, 0, 0);
+    database.attachLog(log);
+    database.addCollection("domains", new Collection("domains"));
+    database.addCollection("orders", new Collection("orders"));
+    Collection domains = database.getCollection("domains");
+    domains.createIndex("owner", SecondaryIndex.Type.HASH);
+    domains.setExpiryField("expirationDate");
+    domains.insertDocument("a.com", new Document("a.com", "{\"owner\":\"x\",\"expirationDate\":\"2030-01-01\"}"));
+    domains.insertDocument("b.com", new Document("b.com", "{\"owner\":\"y\",\"expirationDate\":\"2031-01-01\"}"));
+    domains.updateDocument("a.com", "{\"owner\":\"x\",\"expirationDate\":\"2032-01-01\"}");
+    domains.insertDocument("c.com", new Document("c.com", "{\"owner\":\"x\"}"));
+    domains.removeDocument("b.com");
+    Document written = domains.getDocument("a.com");
+    long lsn = Snapshot.write(directory, database, log);
+    log.close();
+
+    Database loaded = new Database("test");
+    assertEquals(lsn, Snapshot.load(directory, loaded));
+
+    Collection restored = loaded.getCollection("domains");
+    Document document = restored.getDocument("a.com");
+    assertEquals(written.getData(), document.getData());
+    assertEquals(written.getVersion(), document.getVersion());
+    assertEquals(written.getExpiresAt(), document.getExpiresAt());
+    assertEquals(ExpiryIndex.parse("2032-01-01"), document.getExpiresAt());
+    assertEquals(domains.getDocument("c.com").getVersion(), restored.getDocument("c.com").getVersion());
+    assertEquals(0, restored.getDocument("c.com").getExpiresAt());
+    assertNull(restored.getDocument("b.com"));
+    assertNotNull(loaded.getCollection("orders"));
+
+    assertEquals("expirationDate", restored.getExpiryField());
+    assertEquals(List.of("a.com", "c.com"), restored.getIndex("owner").lookup("x").stream().sorted().toList());
+    assertEquals(List.of("a.com"), restored.expiring(0, Long.MAX_VALUE));
+  }
+
+  /**
+   * A snapshot starts with the magic number, the current format version and
+   * the LSN it covers.
+   */
+  @Test
+  void writeUsesTheCurrentFormat() throws IOException {
+    Database database = new Database("test");
+    WriteAheadLog log = new WriteAheadLog(directory, Durability.SYNC, 0, 0);
+    database.attachLog(log);
+    database.addCollection("c", new Collection("c"));
+    database.getCollection("c").insertDocument("k", new Document("k", "{\"value\":1}"));
+    long lsn = Snapshot.write(directory, database, log);
+    log.close();
+
+    try (Stream<Path> files = Files.list(directory);
+        var in = new DataInputStream(Files.newInputStream(files
+            .filter(path -> path.getFileName().toString().endsWith(".snap")).findFirst().orElseThrow()))) {
+      assertEquals(MAGIC, in.readInt());
+      assertEquals(VERSION, in.readInt());
+      assertEquals(lsn, in.readLong());
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package it.unimib.sd2024;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the recovery of a database from its {@link WriteAheadLog}, which
+ * must replay every complete record and truncate the log at the first torn
+ * or corrupted one.
+ */
+class WriteAheadLogTest {
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+  @TempDir
+  Path directory;
+
+  private Path segment;
+  private long sizeBeforeLastRecord;
+  private long size;
+
+  /**
+   * Writes a log holding a collection, three documents, a replacement and a
+   * removal, and remembers where its last record, the insertion of
+   * {@code k3}, starts.
+   *
+   * @throws IOException if the log cannot be written
+   */
+  @BeforeEach
+  void writeLog() throws IOException {
+    Database database = new Database("test");
+    WriteAheadLog log = new WriteAheadLog(directory, Durability.SYNC, 0, 0);
+    database.attachLog(log);
+    database.addCollection("c", new Collection("c"));
+    Collection collection = database.getCollection("c");
+    collection.insertDocument("k1", new Document("k1", "{\"value\":1}"));
+    collection.insertDocument("k2", new Document("k2", "{\"value\":2}"));
+    collection.updateDocument("k1", "{\"value\":10}");
+    collection.removeDocument("k2");
+    database.awaitDurability();
+    segment = onlySegment();
+    sizeBeforeLastRecord = Files.size(segment);
+    collection.insertDocument("k3", new Document("k3", "{\"value\":3}"));
+    database.awaitDurability();
+    log.close();
+    size = Files.size(segment);
+  }
+
+  /**
+   * Every record of an intact log is replayed, with the versions the
+   * documents were written with.
+   */
+  @Test
+  void replayRestoresEveryWrite() throws IOException {
+    Database database = new Database("test");
+    long lastLsn = WriteAheadLog.replay(directory, database, 0);
+
+    assertEquals(6, lastLsn);
+    Collection collection = database.getCollection("c");
+    assertEquals("{\"value\":10}", collection.getDocument("k1").getData());
+    assertEquals(3, collection.getDocument("k1").getVersion());
+    assertNull(collection.getDocument("k2"));
+    assertEquals("{\"value\":3}", collection.getDocument("k3").getData());
+    assertEquals(5, collection.getDocument("k3").getVersion());
+    assertEquals(size, Files.size(segment));
+  }
+
+  /**
+   * A record cut short by a crash is dropped and the log truncated before
+   * it.
+   */
+  @Test
+  void replayTruncatesTornRecord() throws IOException {
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.truncate(size - 3);
+    }
+
+    assertRecoveredWithoutLastRecord();
+  }
+
+  /**
+   * A record whose checksum does not match is dropped and the log truncated
+   * before it.
+   */
+  @Test
+  void replayTruncatesCorruptedRecord() throws IOException {
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer value = ByteBuffer.allocate(1);
+      long position = sizeBeforeLastRecord + HEADER_SIZE + 12;
+      channel.read(value, position);
+      value.put(0, (byte) (value.get(0) ^ 0xFF)).rewind();
+      channel.write(value, position);
+    }
+
+    assertRecoveredWithoutLastRecord();
+  }
+
+  /**
+   * A header announcing more bytes than the file holds is a garbage tail: it
+   * is truncated without reading it, and the records before it are kept.
+   */
+  @Test
+  void replayTruncatesGarbageLength() throws IOException {
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.allocate(24).putInt(0x7ffffff0).putInt(0xCAFEBABE).putLong(42).flip());
+    }
+
+    Database database = new Database("test");
+    assertEquals(6, WriteAheadLog.replay(directory, database, 0));
+    assertNotNull(database.getCollection("c").getDocument("k3"));
+    assertEquals(size, Files.size(segment));
+  }
+
+  /**
+   * Replays the damaged log twice and checks that the last record is lost,
+   * the others are kept and the log has been truncated at its start.
+   *
+   * @throws IOException if the log cannot be read
+   */
+  private void assertRecoveredWithoutLastRecord() throws IOException {
+    for (int run = 0; run < 2; run++) {
+      Database database = new Database("test");
+      assertEquals(5, WriteAheadLog.replay(directory, database, 0));
+      Collection collection = database.getCollection("c");
+      assertEquals("{\"value\":10}", collection.getDocument("k1").getData());
+      assertNull(collection.getDocument("k3"));
+      assertEquals(sizeBeforeLastRecord, Files.size(segment));
+    }
+  }
+
+  /**
+   * Returns the single segment of the log.
+   *
+   * @return the path of the segment
+   * @throws IOException if the directory cannot be listed
+   */
+  private Path onlySegment() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      List<Path> segments = files.filter(path -> path.getFileName().toString().startsWith("wal-")).toList();
+      assertEquals(1, segments.size());
+      return segments.get(0);
+    }
+  }
+}
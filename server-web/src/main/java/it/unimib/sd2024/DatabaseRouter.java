@@ -0,0 +1,596 @@
+package it.unimib.sd2024;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Routes the commands of the web server to a set of database nodes, each
+ * owning a slice of every collection.
+ *
+ * <p>
+ * The owner of a document is chosen by consistent hashing of its ID: every
+ * node is placed on a ring of 64-bit hashes at {@link #VIRTUAL_NODES}
+ * positions, and a document belongs to the first node found on the ring at or
+ * after the hash of its ID. The virtual nodes spread the documents evenly, and
+ * adding a node only moves the documents that fall in its new slices. When an
+ * ID contains a tag between braces, like {@code {example.com}42}, only the tag
+ * is hashed, so documents sharing a tag are kept on the same node and can be
+ * written in one atomic batch.
+ *
+ * <p>
+ * Writes and reads of a single document go to its owner. Reads of a whole
+ * collection ({@code GET} without an ID, {@code FIND}, {@code LOOKUP},
+ * {@code RANGE}, {@code EXPIRING}, {@code EXPIRED}) are sent to every node in
+ * parallel and their documents are merged into one response, without any
+ * ordering across nodes. Every other command ({@code CREATE}, {@code INDEX},
+ * {@code EXPIRY}) is sent to all the nodes, since every node holds a slice of
+ * each collection.
+ *
+ * <p>
+ * A {@code SCAN} is only sent with a single node: its cursor belongs to the
+ * node that returned it, so a scan of several nodes is refused as
+ * {@code Unsupported command}. The commands that stream responses
+ * ({@code WATCH}, {@code REPLICATE}) or change the state of the connection
+ * ({@code MULTI}, {@code EXEC}, {@code DISCARD}, {@code PROTOCOL}) are
+ * refused too, since the connections are shared between commands; batches
+ * are sent with {@link #sendBatch(String...)}. A command holding a line
+ * terminator, for example from a decoded path parameter, is refused as
+ * {@code Invalid command format}: the node would read it as several commands
+ * and leave answers unread on a shared connection.
+ *
+ * <p>
+ * The nodes are read from the {@code database.nodes} system property or the
+ * {@code DATABASE_NODES} environment variable, as a comma-separated list of
+ * {@code host:port}; the default is the single node {@code localhost:3030}.
+ * Connections to the nodes are kept open and reused between commands.
+ *
+ * <p>
+ * A node under overload refuses new connections with {@code Server busy} and
+ * requests with {@code Server overloaded}, without executing them: the
+ * exchange is then retried a few times with an exponential backoff, and the
+ * refusal is returned only if the node is still overloaded.
+ */
+public final class DatabaseRouter {
+  /**
+   * The number of positions of each node on the ring.
+   */
+  public static final int VIRTUAL_NODES = 160;
+  private static final String DEFAULT_NODES = "localhost:3030";
+  private static final int MAX_IDLE_CONNECTIONS = 64;
+  private static final String SERVER_BUSY = "Server busy";
+  private static final String SERVER_OVERLOADED = "Server overloaded";
+  private static final String UNSUPPORTED_COMMAND = "Unsupported command";
+  private static final String INVALID_COMMAND_FORMAT = "Invalid command format";
+  private static final int OVERLOAD_RETRIES = 3;
+  private static final long OVERLOAD_BACKOFF_MILLIS = 10;
+
+  private static DatabaseRouter instance;
+
+  private final List<Node> nodes = new ArrayList<>();
+  private final TreeMap<Long, Node> ring = new TreeMap<>();
+  private final ExecutorService gatherExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+  /**
+   * A database node, with its idle connections.
+   */
+  private static final class Node {
+    private final String host;
+    private final int port;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    private Node(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    /**
+     * Takes an idle connection, or opens a new one.
+     *
+     * @return The connection.
+     * @throws IOException If the node cannot be reached.
+     */
+    private Connection acquire() throws IOException {
+      Connection connection = idle.pollFirst();
+      return connection != null ? connection : new Connection(new Socket(host, port));
+    }
+
+    /**
+     * Gives back a connection after a complete exchange, closing it if there
+     * are already enough idle connections or the node has sent more than the
+     * responses that were read, which the next exchange would take as its
+     * own.
+     *
+     * @param connection The connection.
+     */
+    private void release(Connection connection) {
+      if (idle.size() < MAX_IDLE_CONNECTIONS && !connection.hasUnreadInput()) {
+        connection.reused = true;
+        idle.addFirst(connection);
+      } else {
+        connection.close();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
+
+  /**
+   * An open connection to a node.
+   */
+  private static final class Connection {
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BufferedReader in;
+    // Whether the connection has been idle, and may have been closed by the
+    // node in the meantime
+    private boolean reused;
+    // Whether the node has replied to the last exchange, so it has executed
+    // at least one of its commands
+    private boolean answered;
+
+    private Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.out = new PrintWriter(socket.getOutputStream(), false);
+      this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    /**
+     * Sends the commands and reads one response line for each. A node that
+     * refuses the connection only replies {@code Server busy}, which is then
+     * the only response line.
+     *
+     * @param commands The commands.
+     * @return The response lines, or null if the node closed the connection
+     *         before replying.
+     * @throws IOException If an I/O error occurs, or the node closed the
+     *                     connection after replying to only some of the
+     *                     commands.
+     */
+    private List<String> exchange(List<String> commands) throws IOException {
+      answered = false;
+      for (String command : commands) {
+        out.print(command + "\n");
+      }
+      out.flush();
+      if (out.checkError()) {
+        throw new IOException("Connection closed");
+      }
+      List<String> responses = new ArrayList<>(commands.size());
+      for (int i = 0; i < commands.size(); i++) {
+        String response = in.readLine();
+        if (response == null) {
+          if (answered) {
+            throw new IOException("Connection closed after " + i + " of " + commands.size() + " responses");
+          }
+          return null;
+        }
+        answered = true;
+        if (i == 0 && response.equals(SERVER_BUSY)) {
+          return List.of(response);
+        }
+        responses.add(response);
+      }
+      return responses;
+    }
+
+    /**
+     * Returns whether the node has sent bytes that have not been read.
+     *
+     * @return True if input is pending, or the connection cannot be checked.
+     */
+    private boolean hasUnreadInput() {
+      try {
+        return in.ready();
+      } catch (IOException e) {
+        return true;
+      }
+    }
+
+    private void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing left to release
+      }
+    }
+  }
+
+  /**
+   * Constructs a new DatabaseRouter.
+   *
+   * @param addresses The nodes, as a comma-separated list of host:port.
+   * @throws IllegalArgumentException If the list is empty or malformed.
+   */
+  public DatabaseRouter(String addresses) {
+    for (String address : addresses.split(",")) {
+      String trimmed = address.trim();
+      int separator = trimmed.lastIndexOf(':');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Invalid database node: " + trimmed);
+      }
+      Node node = new Node(trimmed.substring(0, separator), Integer.parseInt(trimmed.substring(separator + 1)));
+      nodes.add(node);
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        ring.put(hash(node + "#" + i), node);
+      }
+    }
+  }
+
+  /**
+   * Returns the router of the web server, configured from the
+   * {@code database.nodes} system property or the {@code DATABASE_NODES}
+   * environment variable.
+   *
+   * @return The shared router.
+   */
+  public static synchronized DatabaseRouter getInstance() {
+    if (instance == null) {
+      String addresses = System.getProperty("database.nodes", System.getenv("DATABASE_NODES"));
+      instance = new DatabaseRouter(addresses == null || addresses.isBlank() ? DEFAULT_NODES : addresses);
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the number of database nodes.
+   *
+   * @return The number of nodes.
+   */
+  public int getNodeCount() {
+    return nodes.size();
+  }
+
+  /**
+   * Returns the node owning a document.
+   *
+   * @param id The ID of the document.
+   * @return The index of the node, in the order the nodes were configured.
+   */
+  public int nodeOf(String id) {
+    return nodes.indexOf(owner(id));
+  }
+
+  /**
+   * Sends a command to the nodes it concerns and returns its response line.
+   *
+   * @param command The command to send.
+   * @return The response, {@code Invalid command format} if the command
+   *         holds a line terminator, {@code Unsupported command} if it cannot
+   *         be routed, or null if a node closed the connection before
+   *         replying.
+   * @throws IOException If a node cannot be reached.
+   */
+  public String send(String command) throws IOException {
+    if (hasLineTerminator(command)) {
+      return INVALID_COMMAND_FORMAT;
+    }
+    String[] parts = command.split(" ", 4);
+    switch (parts[0]) {
+      case "GET":
+        return parts.length > 2 ? sendTo(owner(parts[2]), command) : gather(command);
+      case "POST":
+      case "PUT":
+      case "DELETE":
+        return sendTo(parts.length > 2 ? owner(parts[2]) : nodes.get(0), command);
+      case "FIND":
+      case "LOOKUP":
+      case "RANGE":
+      case "EXPIRING":
+      case "EXPIRED":
+        return gather(command);
+      case "SCAN":
+        return nodes.size() == 1 ? sendTo(nodes.get(0), command) : UNSUPPORTED_COMMAND;
+      case "WATCH":
+      case "REPLICATE":
+      case "MULTI":
+      case "EXEC":
+      case "DISCARD":
+      case "PROTOCOL":
+        return UNSUPPORTED_COMMAND;
+      default:
+        return broadcast(command);
+    }
+  }
+
+  /**
+   * Sends several writes as a single atomic batch, on one connection and in
+   * one round trip. All the documents must belong to the same node, which is
+   * always the case when their IDs share a tag between braces.
+   *
+   * @param commands The write commands of the batch.
+   * @return The result of the batch (a JSON array if it has been applied),
+   *         {@code Invalid command format} if a command holds a line
+   *         terminator, or null if the node closed the connection before
+   *         replying.
+   * @throws IOException              If the node cannot be reached.
+   * @throws IllegalArgumentException If the documents belong to different
+   *                                  nodes.
+   */
+  public String sendBatch(String... commands) throws IOException {
+    Node node = null;
+    List<String> lines = new ArrayList<>(commands.length + 2);
+    lines.add("MULTI");
+    for (String command : commands) {
+      if (hasLineTerminator(command)) {
+        return INVALID_COMMAND_FORMAT;
+      }
+      String[] parts = command.split(" ", 4);
+      Node owner = parts.length > 2 ? owner(parts[2]) : nodes.get(0);
+      if (node != null && node != owner) {
+        throw new IllegalArgumentException("The batch spans several database nodes");
+      }
+      node = owner;
+      lines.add(command);
+    }
+    lines.add("EXEC");
+    List<String> responses = exchange(node == null ? nodes.get(0) : node, lines);
+    return responses == null ? null : responses.get(responses.size() - 1);
+  }
+
+  /**
+   * Returns whether a command holds a character the node reads as the end of
+   * a request line.
+   *
+   * @param command The command.
+   * @return True if the command contains a carriage return or a line feed.
+   */
+  private static boolean hasLineTerminator(String command) {
+    return command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0;
+  }
+
+  /**
+   * Sends a command to a single node.
+   *
+   * @param node    The node.
+   * @param command The command.
+   * @return The response, or null if the node closed the connection.
+   * @throws IOException If the node cannot be reached.
+   */
+  private String sendTo(Node node, String command) throws IOException {
+    List<String> responses = exchange(node, List.of(command));
+    return responses == null ? null : responses.get(0);
+  }
+
+  /**
+   * Sends commands to a node, retrying with an exponential backoff while the
+   * node is overloaded. Retrying is safe because an overloaded node executes
+   * none of the refused commands: a refused batch is discarded as a whole.
+   *
+   * @param node     The node.
+   * @param commands The commands.
+   * @return The response lines, or null if the node closed the connection.
+   * @throws IOException If the node cannot be reached.
+   */
+  private List<String> exchange(Node node, List<String> commands) throws IOException {
+    long backoff = OVERLOAD_BACKOFF_MILLIS;
+    for (int attempt = 0;; attempt++) {
+      List<String> responses = exchangeOnce(node, commands);
+      if (responses == null || attempt == OVERLOAD_RETRIES || !isOverloaded(responses)) {
+        return responses;
+      }
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for an overloaded database node", e);
+      }
+      backoff *= 2;
+    }
+  }
+
+  /**
+   * Returns whether the node refused an exchange because it is overloaded.
+   *
+   * @param responses The response lines of the exchange.
+   * @return True if the connection or the last command has been refused.
+   */
+  private static boolean isOverloaded(List<String> responses) {
+    return responses.get(0).equals(SERVER_BUSY)
+        || responses.get(responses.size() - 1).equals(SERVER_OVERLOADED);
+  }
+
+  /**
+   * Sends commands to a node on one of its connections. A connection taken
+   * from the idle ones may have been closed by the node in the meantime, for
+   * example by a restart or its idle timeout: the exchange is then retried
+   * once on a new connection, but only if the node has not replied to any of
+   * the commands, so the writes it has already executed are never sent
+   * again.
+   *
+   * @param node     The node.
+   * @param commands The commands.
+   * @return The response lines, or null if the node closed the connection.
+   * @throws IOException If the node cannot be reached.
+   */
+  private List<String> exchangeOnce(Node node, List<String> commands) throws IOException {
+    Connection connection = node.acquire();
+    List<String> responses;
+    try {
+      responses = connection.exchange(commands);
+    } catch (IOException e) {
+      connection.close();
+      if (!connection.reused || connection.answered) {
+        throw e;
+      }
+      responses = null;
+    }
+    if (responses == null && connection.reused) {
+      connection.close();
+      connection = new Connection(new Socket(node.host, node.port));
+      try {
+        responses = connection.exchange(commands);
+      } catch (IOException e) {
+        connection.close();
+        throw e;
+      }
+    }
+    if (responses == null || responses.get(0).equals(SERVER_BUSY)) {
+      // The node closes a refused connection
+      connection.close();
+      return responses;
+    }
+    node.release(connection);
+    return responses;
+  }
+
+  /**
+   * Sends a collection read to every node in parallel and merges the
+   * documents of their responses. The first response that is not a
+   * collection, like {@code Collection not found}, is returned as is.
+   *
+   * @param command The command.
+   * @return The merged response, or null if a node closed the connection.
+   * @throws IOException If a node cannot be reached.
+   */
+  private String gather(String command) throws IOException {
+    List<String> responses = sendToAll(command);
+    if (responses == null || responses.size() == 1) {
+      return responses == null ? null : responses.get(0);
+    }
+    StringBuilder documents = new StringBuilder();
+    String head = null;
+    for (String response : responses) {
+      int marker = response.indexOf("\"allDocuments\"");
+      int start = marker < 0 ? -1 : response.indexOf('{', marker);
+      int end = response.lastIndexOf('}');
+      if (!response.startsWith("{") || start < 0 || end <= start) {
+        return response;
+      }
+      if (head == null) {
+        head = response.substring(0, start);
+      }
+      // The documents of the node, without the braces around them
+      String slice = response.substring(start + 1, response.lastIndexOf('}', end - 1)).trim();
+      if (!slice.isEmpty()) {
+        if (documents.length() > 0) {
+          documents.append(',');
+        }
+        documents.append(slice);
+      }
+    }
+    return head + "{" + documents + "}}";
+  }
+
+  /**
+   * Sends a command to every node, returning the common response if they
+   * agree.
+   *
+   * @param command The command.
+   * @return The response, a message listing the responses if the nodes
+   *         disagree, or null if a node closed the connection.
+   * @throws IOException If a node cannot be reached.
+   */
+  private String broadcast(String command) throws IOException {
+    List<String> responses = sendToAll(command);
+    if (responses == null) {
+      return null;
+    }
+    Set<String> distinct = new LinkedHashSet<>(responses);
+    if (distinct.size() == 1) {
+      return responses.get(0);
+    }
+    return "Inconsistent responses from the database nodes: " + String.join(" / ", distinct);
+  }
+
+  /**
+   * Sends a command to every node in parallel.
+   *
+   * @param command The command.
+   * @return The responses in the order of the nodes, or null if a node closed
+   *         the connection.
+   * @throws IOException If a node cannot be reached.
+   */
+  private List<String> sendToAll(String command) throws IOException {
+    if (nodes.size() == 1) {
+      String response = sendTo(nodes.get(0), command);
+      return response == null ? null : List.of(response);
+    }
+    List<Future<String>> futures = new ArrayList<>(nodes.size());
+    for (Node node : nodes) {
+      futures.add(gatherExecutor.submit(() -> sendTo(node, command)));
+    }
+    List<String> responses = new ArrayList<>(nodes.size());
+    for (Future<String> future : futures) {
+      try {
+        String response = future.get();
+        if (response == null) {
+          return null;
+        }
+        responses.add(response);
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the database nodes", e);
+      }
+    }
+    return responses;
+  }
+
+  /**
+   * Returns the node owning a document: the first node on the ring at or
+   * after the hash of its ID, or of the tag between braces in its ID.
+   *
+   * @param id The ID of the document.
+   * @return The owner.
+   */
+  private Node owner(String id) {
+    Map.Entry<Long, Node> entry = ring.ceilingEntry(hash(routingKey(id)));
+    return (entry != null ? entry : ring.firstEntry()).getValue();
+  }
+
+  /**
+   * Returns the part of an ID used to choose its node.
+   *
+   * @param id The ID of the document.
+   * @return The tag between the first pair of braces, or the whole ID.
+   */
+  static String routingKey(String id) {
+    int open = id.indexOf('{');
+    if (open >= 0) {
+      int close = id.indexOf('}', open + 1);
+      if (close > open + 1) {
+        return id.substring(open + 1, close);
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Hashes a string on the ring, with 64-bit FNV-1a followed by the final
+   * mix of MurmurHash3 so that similar keys land far apart.
+   *
+   * @param key The string.
+   * @return The hash.
+   */
+  static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
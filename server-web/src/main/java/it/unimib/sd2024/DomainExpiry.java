@@ -0,0 +1,29 @@
+package it.unimib.sd2024;
+
+import jakarta.json.JsonObject;
+
+import java.time.LocalDate;
+
+/**
+ * The rule deciding whether a domain has expired and can be bought again,
+ * shared by the resources that read domains from the database.
+ */
+final class DomainExpiry {
+  private DomainExpiry() {
+  }
+
+  /**
+   * Checks whether a domain read from the database has expired. The expiry
+   * time kept by the database is used when present, so the data of the
+   * domain is not parsed again.
+   *
+   * @param document The domain, as returned by a GET on the database.
+   * @return true if the domain has expired and can be bought again.
+   */
+  static boolean isExpired(JsonObject document) {
+    if (document.containsKey("expiresAt")) {
+      return document.getJsonNumber("expiresAt").longValue() <= System.currentTimeMillis();
+    }
+    return LocalDate.now().isAfter(LocalDate.parse(document.getJsonObject("data").getString("expirationDate")));
+  }
+}
@@ -9,12 +9,10 @@ import jakarta.json.Json;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonReader;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.StringReader;
-import java.net.Socket;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Resource class for handling requests to create new collections in the
@@ -22,8 +20,19 @@ import java.net.Socket;
  */
 @Path("collections")
 public class PopulateDatabaseResource {
-  private static final String DATABASE_HOST = "localhost";
-  private static final int DATABASE_PORT = 3030;
+  // Secondary indexes declared when a collection is created, as
+  // "<field> <HASH|SORTED>"
+  private static final Map<String, List<String>> INDEXES = Map.of(
+      "domains", List.of("userId HASH", "expirationDate SORTED"),
+      "orders", List.of("userId HASH"));
+  // Field holding the time the documents of a collection expire
+  private static final Map<String, String> EXPIRY_FIELDS = Map.of("domains", "expirationDate");
+  // Compact encoding of the documents; old orders are rarely read again, so
+  // they are also compressed
+  private static final Map<String, String> ENCODINGS = Map.of(
+      "registrations", "COMPACT",
+      "domains", "COMPACT",
+      "orders", "COMPRESSED");
 
   /**
    * Connects to the database and executes a command.
@@ -32,11 +41,8 @@ public class PopulateDatabaseResource {
    * @return The response from the database as a String.
    */
   private String connectToDatabase(String command) {
-    try (Socket socket = new Socket(DATABASE_HOST, DATABASE_PORT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-      out.println(command);
-      return in.readLine();
+    try {
+      return DatabaseRouter.getInstance().send(command);
     } catch (IOException e) {
       return "Error connecting to the database: " + e.getMessage();
     }
@@ -64,6 +70,15 @@ public class PopulateDatabaseResource {
     String response = connectToDatabase(command);
 
     if ("Collection created".equals(response)) {
+      if (ENCODINGS.containsKey(collectionName)) {
+        connectToDatabase("ENCODING " + collectionName + " " + ENCODINGS.get(collectionName));
+      }
+      for (String index : INDEXES.getOrDefault(collectionName, List.of())) {
+        connectToDatabase("INDEX " + collectionName + " " + index);
+      }
+      if (EXPIRY_FIELDS.containsKey(collectionName)) {
+        connectToDatabase("EXPIRY " + collectionName + " " + EXPIRY_FIELDS.get(collectionName));
+      }
       return Response.ok(response).build();
     } else {
       // Assuming the createResponse contains the error message
@@ -0,0 +1,142 @@
+package it.unimib.sd2024;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how the throughput of the database grows with the number of nodes
+ * behind a {@link DatabaseRouter}.
+ *
+ * <p>
+ * The database nodes must be started beforehand, one process each, for
+ * example on ports 3030 to 3033. For each prefix of the list of nodes (the
+ * first node, the first two, and so on) the benchmark loads a collection with
+ * documents spread by the router, then runs concurrent clients sending a mix
+ * of {@code GET} and {@code PUT} of random documents for a fixed time, and
+ * prints the operations per second and the speedup over a single node.
+ *
+ * <p>
+ * Options: {@code --nodes=host:port,...} (default {@code localhost:3030}),
+ * {@code --clients=N} (default 64), {@code --seconds=N} (default 10),
+ * {@code --documents=N} (default 10000) and {@code --reads=P}, the percentage
+ * of reads (default 90).
+ */
+public final class ShardingBenchmark {
+  private static final String COLLECTION = "benchmark";
+
+  private ShardingBenchmark() {
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args The options of the benchmark.
+   * @throws Exception If a node cannot be reached or the clients are
+   *                   interrupted.
+   */
+  public static void main(String[] args) throws Exception {
+    String nodes = "localhost:3030";
+    int clients = 64;
+    int seconds = 10;
+    int documents = 10_000;
+    int reads = 90;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--nodes=")) {
+        nodes = value;
+      } else if (arg.startsWith("--clients=")) {
+        clients = Integer.parseInt(value);
+      } else if (arg.startsWith("--seconds=")) {
+        seconds = Integer.parseInt(value);
+      } else if (arg.startsWith("--documents=")) {
+        documents = Integer.parseInt(value);
+      } else if (arg.startsWith("--reads=")) {
+        reads = Integer.parseInt(value);
+      } else {
+        throw new IllegalArgumentException("Unknown option: " + arg);
+      }
+    }
+
+    List<String> addresses = Arrays.asList(nodes.split(","));
+    double baseline = 0;
+    for (int count = 1; count <= addresses.size(); count++) {
+      DatabaseRouter router = new DatabaseRouter(String.join(",", addresses.subList(0, count)));
+      load(router, documents);
+      double throughput = run(router, clients, seconds, documents, reads);
+      if (count == 1) {
+        baseline = throughput;
+      }
+      System.out.printf("nodes=%d clients=%d ops/s=%.0f speedup=%.2f%n", count, clients, throughput,
+          throughput / baseline);
+    }
+  }
+
+  /**
+   * Creates the collection on every node and writes the documents, so that
+   * each node holds the slice the router assigns to it.
+   *
+   * @param router    The router over the nodes.
+   * @param documents The number of documents.
+   * @throws IOException If a node cannot be reached.
+   */
+  private static void load(DatabaseRouter router, int documents) throws IOException {
+    router.send("CREATE " + COLLECTION);
+    for (int i = 0; i < documents; i++) {
+      String response = router.send("PUT " + COLLECTION + " " + i + " {\"value\":" + i + "}");
+      if (!"Document updated".equals(response)) {
+        router.send("POST " + COLLECTION + " " + i + " {\"value\":" + i + "}");
+      }
+    }
+  }
+
+  /**
+   * Runs the clients for a fixed time.
+   *
+   * @param router    The router over the nodes.
+   * @param clients   The number of concurrent clients.
+   * @param seconds   The duration of the run.
+   * @param documents The number of documents.
+   * @param reads     The percentage of reads.
+   * @return The operations completed per second.
+   * @throws InterruptedException If the thread is interrupted while waiting
+   *                              for the clients.
+   */
+  private static double run(DatabaseRouter router, int clients, int seconds, int documents, int reads)
+      throws InterruptedException {
+    LongAdder operations = new LongAdder();
+    LongAdder failures = new LongAdder();
+    long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+    List<Thread> threads = new ArrayList<>(clients);
+    for (int i = 0; i < clients; i++) {
+      threads.add(Thread.ofPlatform().name("benchmark-client-" + i).start(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline) {
+          int id = random.nextInt(documents);
+          String command = random.nextInt(100) < reads
+              ? "GET " + COLLECTION + " " + id
+              : "PUT " + COLLECTION + " " + id + " {\"value\":" + random.nextInt() + "}";
+          try {
+            if (router.send(command) == null) {
+              failures.increment();
+            } else {
+              operations.increment();
+            }
+          } catch (IOException e) {
+            failures.increment();
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failures.sum() > 0) {
+      System.out.println("failed operations: " + failures.sum());
+    }
+    return operations.sum() / (double) seconds;
+  }
+}
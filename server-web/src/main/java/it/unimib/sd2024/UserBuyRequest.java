@@ -19,6 +19,7 @@ public class UserBuyRequest {
   private String duration;
   private String currentDate;
   private String expirationDate;
+  private String price;
 
   /**
    * Default constructor for creating an empty UserBuyRequest.
@@ -50,6 +51,7 @@ public class UserBuyRequest {
     this.cardExpirationDate = cardExpirationDate;
     this.CVV = CVV;
     this.duration = duration;
+    this.price = price;
   }
 
   // Getters and setters with appropriate Javadoc comments
@@ -144,6 +146,15 @@ public class UserBuyRequest {
     return expirationDate;
   }
 
+  /**
+   * Gets the price of the purchase or renewal, recorded in the order.
+   *
+   * @return The price.
+   */
+  public String getPrice() {
+    return price;
+  }
+
   /**
    * Sets the user ID.
    *
@@ -233,4 +244,13 @@ public class UserBuyRequest {
   public void setExpirationDate(String expirationDate) {
     this.expirationDate = expirationDate;
   }
-}
\ No newline at end of file
+
+  /**
+   * Sets the price of the purchase or renewal.
+   *
+   * @param price The price to set.
+   */
+  public void setPrice(String price) {
+    this.price = price;
+  }
+}
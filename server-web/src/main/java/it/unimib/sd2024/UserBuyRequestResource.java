@@ -13,47 +13,76 @@ import jakarta.json.JsonObject;
 import jakarta.json.bind.Jsonb;
 import jakarta.json.bind.JsonbBuilder;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.StringReader;
 import java.time.LocalDate;
+import java.util.UUID;
 
 /**
  * Resource class for handling domain purchase and renewal requests.
  */
 @Path("domains")
 public class UserBuyRequestResource {
-  private static final String DATABASE_HOST = "localhost";
-  private static final int DATABASE_PORT = 3030;
+  // The start of the response of a batch the database did not apply, followed
+  // by the number of the failed command and the reason
+  private static final String BATCH_ABORTED = "Batch aborted at command";
+
   private final Jsonb jsonb = JsonbBuilder.create();
 
   /**
-   * Connects to the database and handles the response for a given command.
+   * Sends a command to the database and returns its response line.
    *
    * @param command The command to send to the database.
-   * @return A Response object containing the database's response or an error
-   *         message.
+   * @return The response of the database, or null if it cannot be reached.
    */
-  private Response connectToDatabaseAndHandleResponse(String command) {
-    try (Socket socket = new Socket(DATABASE_HOST, DATABASE_PORT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-      out.println(command);
-      String response = in.readLine();
-      if (response == null) {
-        return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Database connection error").build();
-      }
-      return Response.ok(response).build();
+  private String sendToDatabase(String command) {
+    try {
+      return DatabaseRouter.getInstance().send(command);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Sends several writes to the database as a single atomic batch, on one
+   * connection and in one round trip: either all of them are applied or none.
+   * The documents of a batch must belong to the same database node.
+   *
+   * @param commands The write commands of the batch.
+   * @return The result of the batch (a JSON array if it has been applied), or
+   *         null if the database cannot be reached.
+   */
+  private String sendBatchToDatabase(String... commands) {
+    try {
+      return DatabaseRouter.getInstance().sendBatch(commands);
     } catch (IOException e) {
-      return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Database connection error").build();
+      return null;
     }
   }
 
+  /**
+   * Returns the command recording the order of a purchase or renewal. The ID
+   * of the order is tagged with the domain, so the order is kept on the
+   * database node of the domain and both can be written in one batch.
+   *
+   * @param userBuyRequest The request, with the price of the order.
+   * @param type           The type of the order.
+   * @return The POST command adding the order.
+   */
+  private String orderCommand(UserBuyRequest userBuyRequest, String type) {
+    UserOrderRequest order = new UserOrderRequest(userBuyRequest.getUserId(), userBuyRequest.getDomainId(),
+        LocalDate.now().toString(), type, userBuyRequest.getPrice());
+    return "POST orders {" + userBuyRequest.getDomainId() + "}" + UUID.randomUUID() + " " + jsonb.toJson(order);
+  }
+
   /**
    * Processes a request to buy a domain, setting its registration and expiration
-   * dates.
+   * dates. The domain and its order are written together in one atomic batch.
+   * A new domain is inserted with POST, which fails if the domain exists; an
+   * expired domain is replaced only if it still has the version that was read.
+   * When several users buy the same domain at the same time only one of them
+   * succeeds and the others receive 409 Conflict, with no order recorded. Any
+   * other failure is answered with 500 Internal Server Error.
    *
    * @param userBuyRequest The request containing the domain purchase information.
    * @return A Response object indicating the outcome of the purchase attempt.
@@ -67,15 +96,68 @@ public class UserBuyRequestResource {
     userBuyRequest.setCurrentDate(registrationDate.toString());
     userBuyRequest.setExpirationDate(expirationDate.toString());
 
+    String domainId = userBuyRequest.getDomainId();
+    String orderCommand = orderCommand(userBuyRequest, "buy");
+    // The price belongs to the order, not to the domain
+    userBuyRequest.setPrice(null);
     String buyRequestJson = jsonb.toJson(userBuyRequest);
-    String command = "POST domains " + userBuyRequest.getDomainId() + " " + buyRequestJson;
 
-    Response response = connectToDatabaseAndHandleResponse(command);
-    return response;
+    String response = sendBatchToDatabase("POST domains " + domainId + " " + buyRequestJson, orderCommand);
+    if (response == null) {
+      return createErrorResponse("Database connection error", Status.INTERNAL_SERVER_ERROR);
+    }
+    if (response.startsWith("[")) {
+      return Response.ok(response).build();
+    }
+    if (!response.startsWith(BATCH_ABORTED)) {
+      return createErrorResponse(response, Status.INTERNAL_SERVER_ERROR);
+    }
+
+    // The batch is aborted when the domain exists: it can be bought again only
+    // if it has expired
+    String current = sendToDatabase("GET domains " + domainId);
+    if (current == null) {
+      return createErrorResponse("Database connection error", Status.INTERNAL_SERVER_ERROR);
+    }
+    if (!current.startsWith("{")) {
+      return createErrorResponse(response, Status.INTERNAL_SERVER_ERROR);
+    }
+    long version;
+    boolean expired;
+    try {
+      JsonObject document = Json.createReader(new StringReader(current)).readObject();
+      version = document.getJsonNumber("version").longValue();
+      expired = DomainExpiry.isExpired(document);
+    } catch (Exception e) {
+      return createErrorResponse("Error processing database response", Status.INTERNAL_SERVER_ERROR);
+    }
+    if (!expired) {
+      return createErrorResponse("Domain not available", Status.CONFLICT);
+    }
+
+    String update = sendBatchToDatabase("PUT domains " + domainId + " IF " + version + " " + buyRequestJson,
+        orderCommand);
+    if (update == null) {
+      return createErrorResponse("Database connection error", Status.INTERNAL_SERVER_ERROR);
+    }
+    if (update.startsWith("[")) {
+      return Response.ok(update).build();
+    }
+    if (update.startsWith(BATCH_ABORTED)) {
+      // Another user bought the domain after it was read
+      return createErrorResponse("Domain not available", Status.CONFLICT);
+    }
+    return createErrorResponse(update, Status.INTERNAL_SERVER_ERROR);
   }
 
   /**
-   * Updates the expiration date of an existing domain registration.
+   * Updates the expiration date of an existing domain registration. The domain
+   * and the order of the renewal are written together in one atomic batch.
+   * Only the owner of the domain can renew it, and the domain is replaced only
+   * if it still has the version that was read, so a renewal never overwrites
+   * a domain bought by another user in the meantime: the renewal then
+   * receives 409 Conflict. Any other failure is answered with 500 Internal
+   * Server Error.
    *
    * @param userBuyRequest The request containing the domain and the new duration.
    * @return A Response object indicating the outcome of the update attempt.
@@ -84,26 +166,58 @@ public class UserBuyRequestResource {
   @Consumes(MediaType.APPLICATION_JSON)
   @Produces(MediaType.APPLICATION_JSON)
   public Response updateDomainExpiration(UserBuyRequest userBuyRequest) {
+    LocalDate newExpirationDate;
     try {
       LocalDate currentDate = LocalDate.parse(userBuyRequest.getCurrentDate());
-      LocalDate newExpirationDate = currentDate.plusYears(Long.parseLong(userBuyRequest.getDuration()));
-
-      userBuyRequest.setExpirationDate(newExpirationDate.toString());
-
-      String userUpdateRequestJson = jsonb.toJson(userBuyRequest);
-      String command = "PUT domains " + userBuyRequest.getDomainId() + " " + userUpdateRequestJson;
-      Response response = connectToDatabaseAndHandleResponse(command);
-      if (response.getStatus() == Status.OK.getStatusCode()) {
-        JsonObject jsonResponse = Json.createObjectBuilder()
-            .add("expirationDate", newExpirationDate.toString())
-            .build();
-        return Response.ok(jsonResponse).build();
-      } else {
-        return response;
-      }
+      newExpirationDate = currentDate.plusYears(Long.parseLong(userBuyRequest.getDuration()));
+    } catch (Exception e) {
+      return createErrorResponse("Invalid request", Status.BAD_REQUEST);
+    }
+    String domainId = userBuyRequest.getDomainId();
+
+    String current = sendToDatabase("GET domains " + domainId);
+    if (current == null) {
+      return createErrorResponse("Database connection error", Status.INTERNAL_SERVER_ERROR);
+    }
+    if (current.equals("Document not found")) {
+      return createErrorResponse("Domain not found", Status.NOT_FOUND);
+    }
+    if (!current.startsWith("{")) {
+      return createErrorResponse(current, Status.INTERNAL_SERVER_ERROR);
+    }
+    long version;
+    String owner;
+    try {
+      JsonObject document = Json.createReader(new StringReader(current)).readObject();
+      version = document.getJsonNumber("version").longValue();
+      owner = document.getJsonObject("data").getString("userId");
     } catch (Exception e) {
-      return createErrorResponse("Error processing request", Status.INTERNAL_SERVER_ERROR);
+      return createErrorResponse("Error processing database response", Status.INTERNAL_SERVER_ERROR);
+    }
+    if (!owner.equals(userBuyRequest.getUserId())) {
+      return createErrorResponse("Domain owned by another user", Status.FORBIDDEN);
     }
+
+    userBuyRequest.setExpirationDate(newExpirationDate.toString());
+    String orderCommand = orderCommand(userBuyRequest, "renewal");
+    userBuyRequest.setPrice(null);
+    String userUpdateRequestJson = jsonb.toJson(userBuyRequest);
+    String response = sendBatchToDatabase(
+        "PUT domains " + domainId + " IF " + version + " " + userUpdateRequestJson, orderCommand);
+    if (response == null) {
+      return createErrorResponse("Database connection error", Status.INTERNAL_SERVER_ERROR);
+    }
+    if (response.startsWith(BATCH_ABORTED)) {
+      // The domain has been written since it was read
+      return createErrorResponse("Domain not available", Status.CONFLICT);
+    }
+    if (!response.startsWith("[")) {
+      return createErrorResponse(response, Status.INTERNAL_SERVER_ERROR);
+    }
+    JsonObject jsonResponse = Json.createObjectBuilder()
+        .add("expirationDate", newExpirationDate.toString())
+        .build();
+    return Response.ok(jsonResponse).build();
   }
 
   /**
@@ -12,11 +12,7 @@ import jakarta.json.Json;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonObjectBuilder;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.io.StringReader;
 
 /**
@@ -24,9 +20,6 @@ import java.io.StringReader;
  */
 @Path("registrations")
 public class UserInfoRequestResource {
-  private static final String DATABASE_HOST = "localhost";
-  private static final int DATABASE_PORT = 3030;
-
   /**
    * Connects to the database and executes a command.
    *
@@ -34,11 +27,8 @@ public class UserInfoRequestResource {
    * @return The response from the database as a String.
    */
   private String connectToDatabase(String command) {
-    try (Socket socket = new Socket(DATABASE_HOST, DATABASE_PORT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-      out.println(command);
-      return in.readLine();
+    try {
+      return DatabaseRouter.getInstance().send(command);
     } catch (IOException e) {
       return "Error connecting to the database";
     }
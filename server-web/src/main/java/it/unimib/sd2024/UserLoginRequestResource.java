@@ -10,20 +10,13 @@ import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import jakarta.servlet.http.HttpServletRequest;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 
 /**
  * Resource class for handling user login requests.
  */
 @Path("login")
 public class UserLoginRequestResource {
-  private static final String DATABASE_HOST = "localhost";
-  private static final int DATABASE_PORT = 3030;
-
   /**
    * Attempts to log in a user by validating their credentials against the
    * database.
@@ -52,11 +45,8 @@ public class UserLoginRequestResource {
    *         message.
    */
   private Response connectToDatabaseAndHandleResponse(String command, HttpServletRequest request, String userId) {
-    try (Socket socket = new Socket(DATABASE_HOST, DATABASE_PORT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-      out.println(command);
-      String response = in.readLine();
+    try {
+      String response = DatabaseRouter.getInstance().send(command);
       if (response == null || response.isEmpty()) {
         return Response.status(Status.UNAUTHORIZED).entity("Invalid userId").build();
       } else {
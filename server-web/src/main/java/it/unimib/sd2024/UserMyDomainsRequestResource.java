@@ -12,21 +12,14 @@ import jakarta.json.JsonArrayBuilder;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonReader;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.StringReader;
-import java.net.Socket;
 
 /**
  * Resource class for handling requests related to user domains.
  */
 @Path("domains")
 public class UserMyDomainsRequestResource {
-  private static final String DATABASE_HOST = "localhost";
-  private static final int DATABASE_PORT = 3030;
-
   /**
    * Retrieves the domains associated with a given user ID.
    *
@@ -40,7 +33,9 @@ public class UserMyDomainsRequestResource {
       return createErrorResponse("User ID is required", Status.BAD_REQUEST);
     }
 
-    String command = "GET domains";
+    // The database selects the user's domains (through the index on userId)
+    // and only returns the fields shown in the page
+    String command = "FIND domains userId=\"" + userId + "\" FIELDS domainId,currentDate,expirationDate";
     Response databaseResponse = connectToDatabaseAndHandleResponse(command);
 
     if (databaseResponse.getStatus() == Status.INTERNAL_SERVER_ERROR.getStatusCode()) {
@@ -54,15 +49,7 @@ public class UserMyDomainsRequestResource {
       JsonArrayBuilder filteredDomainsArrayBuilder = Json.createArrayBuilder();
 
       allDocuments.keySet().forEach(domainKey -> {
-        JsonObject domainData = allDocuments.getJsonObject(domainKey).getJsonObject("data");
-        if (userId.equals(domainData.getString("userId"))) {
-          JsonObject filteredDomain = Json.createObjectBuilder()
-              .add("domainId", domainData.getString("domainId"))
-              .add("currentDate", domainData.getString("currentDate"))
-              .add("expirationDate", domainData.getString("expirationDate"))
-              .build();
-          filteredDomainsArrayBuilder.add(filteredDomain);
-        }
+        filteredDomainsArrayBuilder.add(allDocuments.getJsonObject(domainKey).getJsonObject("data"));
       });
 
       return Response.status(Status.OK).entity(filteredDomainsArrayBuilder.build()).build();
@@ -78,11 +65,8 @@ public class UserMyDomainsRequestResource {
    * @return A Response object containing the database's response.
    */
   private Response connectToDatabaseAndHandleResponse(String command) {
-    try (Socket socket = new Socket(DATABASE_HOST, DATABASE_PORT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-      out.println(command);
-      String response = in.readLine();
+    try {
+      String response = DatabaseRouter.getInstance().send(command);
       if (response == null) {
         return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Database connection error").build();
       }
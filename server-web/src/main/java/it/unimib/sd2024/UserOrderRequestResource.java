@@ -16,12 +16,8 @@ import jakarta.json.JsonReader;
 import jakarta.json.bind.Jsonb;
 import jakarta.json.bind.JsonbBuilder;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.StringReader;
-import java.net.Socket;
 
 /**
  * Classe risorsa per la gestione degli ordini di domini.
@@ -29,9 +25,6 @@ import java.net.Socket;
  */
 @Path("orders")
 public class UserOrderRequestResource {
-  // Indirizzo e porta del database, per la connessione via socket
-  private static final String DATABASE_HOST = "localhost";
-  private static final int DATABASE_PORT = 3030;
   private static int orderCounter = 0;
   // Istanza di Jsonb per la serializzazione e deserializzazione JSON
   private final Jsonb jsonb = JsonbBuilder.create();
@@ -43,13 +36,9 @@ public class UserOrderRequestResource {
    * @return Un oggetto Response contenente il risultato dell'operazione.
    */
   private Response connectToDatabaseAndHandleResponse(String command) {
-    try (Socket socket = new Socket(DATABASE_HOST, DATABASE_PORT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-      // Invia il comando al database
-      out.println(command);
-      // Legge la risposta
-      String response = in.readLine();
+    try {
+      // Invia il comando al nodo del database che lo riguarda e legge la risposta
+      String response = DatabaseRouter.getInstance().send(command);
       // Gestisce il caso di risposta nulla
       if (response == null) {
         return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Database connection error").build();
@@ -71,7 +60,11 @@ public class UserOrderRequestResource {
   @GET
   @Produces(MediaType.APPLICATION_JSON)
   public Response getOrders(@QueryParam("userId") String userId) {
-    String command = "GET orders";
+    // Il database filtra gli ordini dell'utente (tramite l'indice su userId)
+    // e restituisce solo i campi mostrati
+    boolean byUser = userId != null && !userId.trim().isEmpty();
+    String command = "FIND orders " + (byUser ? "userId=\"" + userId + "\" " : "")
+        + "FIELDS domainId,orderDate,type,price";
     Response databaseResponse = connectToDatabaseAndHandleResponse(command);
 
     if (databaseResponse.getStatus() == Status.INTERNAL_SERVER_ERROR.getStatusCode()) {
@@ -85,16 +78,7 @@ public class UserOrderRequestResource {
       JsonArrayBuilder filteredOrdersArrayBuilder = Json.createArrayBuilder();
 
       allDocuments.keySet().forEach(orderKey -> {
-        JsonObject orderData = allDocuments.getJsonObject(orderKey).getJsonObject("data");
-        if (userId == null || userId.trim().isEmpty() || userId.equals(orderData.getString("userId"))) {
-          JsonObject filteredOrder = Json.createObjectBuilder()
-              .add("domainId", orderData.getString("domainId"))
-              .add("orderDate", orderData.getString("orderDate"))
-              .add("type", orderData.getString("type"))
-              .add("price", orderData.getString("price"))
-              .build();
-          filteredOrdersArrayBuilder.add(filteredOrder);
-        }
+        filteredOrdersArrayBuilder.add(allDocuments.getJsonObject(orderKey).getJsonObject("data"));
       });
 
       return Response.status(Status.OK).entity(filteredOrdersArrayBuilder.build()).build();
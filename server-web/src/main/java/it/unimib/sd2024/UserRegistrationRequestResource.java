@@ -1,10 +1,6 @@
 package it.unimib.sd2024;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.util.UUID;
 
 import jakarta.json.Json;
@@ -28,8 +24,6 @@ import jakarta.servlet.http.HttpServletRequest;
  */
 @Path("registrations")
 public class UserRegistrationRequestResource {
-  private static final String DATABASE_HOST = "localhost";
-  private static final int DATABASE_PORT = 3030;
   private final Jsonb jsonb = JsonbBuilder.create();
 
   /**
@@ -39,11 +33,8 @@ public class UserRegistrationRequestResource {
    * @return The response from the database.
    */
   private String connectToDatabase(String command) {
-    try (Socket socket = new Socket(DATABASE_HOST, DATABASE_PORT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-      out.println(command);
-      return in.readLine();
+    try {
+      return DatabaseRouter.getInstance().send(command);
     } catch (IOException e) {
       return "Error connecting to the database";
     }
@@ -58,7 +49,7 @@ public class UserRegistrationRequestResource {
   @Produces(MediaType.APPLICATION_JSON)
   public Response getAllUserEmails() {
     try {
-      String command = "GET registrations";
+      String command = "FIND registrations FIELDS email";
       String response = connectToDatabase(command);
       // Parse the response to JSON object
       JsonObject responseObject = jsonb.fromJson(response, JsonObject.class);
@@ -1,16 +1,8 @@
 package it.unimib.sd2024;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.time.LocalDate;
-import java.util.concurrent.ConcurrentHashMap;
 import jakarta.json.Json;
 import jakarta.json.JsonObject;
-import jakarta.json.JsonObjectBuilder;
-import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
@@ -23,16 +15,9 @@ import java.io.StringReader;
 
 @Path("domains")
 public class UserSearchRequestResource {
-  private static final String DATABASE_HOST = "localhost";
-  private static final int DATABASE_PORT = 3030;
-  private static final ConcurrentHashMap<String, Long> beingBoughtDomains = new ConcurrentHashMap<>();
-
   private String connectToDatabase(String command) {
-    try (Socket socket = new Socket(DATABASE_HOST, DATABASE_PORT);
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-      out.println(command);
-      return in.readLine();
+    try {
+      return DatabaseRouter.getInstance().send(command);
     } catch (IOException e) {
       return "Error connecting to the database";
     }
@@ -48,64 +33,29 @@ public class UserSearchRequestResource {
     if ("Error connecting to the database".equals(response)) {
       return createErrorResponse("Database connection error", Status.INTERNAL_SERVER_ERROR);
     } else if ("Document not found".equals(response) || response.isEmpty()) {
-      if (beingBoughtDomains.containsKey(domainId)) {
-        JsonObject actionResponse = Json.createObjectBuilder()
-            .add("action", "Concurrency error")
-            .add("document", domainId)
-            .build();
-        return Response.status(Status.OK).entity(actionResponse).build();
-      } else {
-        beingBoughtDomains.put(domainId, System.currentTimeMillis());
-        JsonObject actionResponse = Json.createObjectBuilder()
-            .add("action", "Buy domain")
-            .add("document", domainId)
-            .build();
-        return Response.status(Status.OK).entity(actionResponse).build();
-      }
+      return buyDomainResponse(domainId);
     }
 
     try {
       JsonObject jsonObject = Json.createReader(new StringReader(response)).readObject();
-      LocalDate expirationDate = LocalDate.parse(jsonObject.getJsonObject("data").getString("expirationDate"));
-      if (LocalDate.now().isAfter(expirationDate)) {
-        if (beingBoughtDomains.containsKey(domainId)) {
-          JsonObject actionResponse = Json.createObjectBuilder()
-              .add("action", "Concurrency error")
-              .add("document", domainId)
-              .build();
-          return Response.status(Status.OK).entity(actionResponse).build();
-        } else {
-          beingBoughtDomains.put(domainId, System.currentTimeMillis());
-          JsonObject actionResponse = Json.createObjectBuilder()
-              .add("action", "Buy domain")
-              .add("document", domainId)
-              .build();
-          return Response.status(Status.OK).entity(actionResponse).build();
-        }
+      if (DomainExpiry.isExpired(jsonObject)) {
+        return buyDomainResponse(domainId);
       }
 
       boolean isUserOwner = userId.equals(jsonObject.getJsonObject("data").getString("userId"));
-      JsonObjectBuilder actionResponseBuilder = Json.createObjectBuilder()
-          .add("action", isUserOwner ? "Update your domain" : "View owner details");
-
-      if (isUserOwner || !LocalDate.now().isAfter(expirationDate)) {
-        actionResponseBuilder.add("document", jsonObject.getJsonObject("data"));
-      }
-
-      JsonObject actionResponse = actionResponseBuilder.build();
+      JsonObject actionResponse = Json.createObjectBuilder()
+          .add("action", isUserOwner ? "Update your domain" : "View owner details")
+          .add("document", jsonObject.getJsonObject("data"))
+          .build();
       return Response.status(Status.OK).entity(actionResponse).build();
     } catch (Exception e) {
       return createErrorResponse("Invalid request", Status.BAD_REQUEST);
     }
   }
 
-  @DELETE
-  @Path("release/{domainId}")
-  @Produces(MediaType.APPLICATION_JSON)
-  public Response releaseDomain(@PathParam("domainId") String domainId) {
-    beingBoughtDomains.remove(domainId);
+  private Response buyDomainResponse(String domainId) {
     JsonObject actionResponse = Json.createObjectBuilder()
-        .add("action", "Domain released")
+        .add("action", "Buy domain")
         .add("document", domainId)
         .build();
     return Response.status(Status.OK).entity(actionResponse).build();